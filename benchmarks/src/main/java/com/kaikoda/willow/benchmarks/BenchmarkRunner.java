@@ -0,0 +1,49 @@
+/*
+ * BenchmarkRunner
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so that allocation rates
+ * are reported alongside time. Accepts the same arguments as the standard JMH
+ * runner, eg. <code>ParseBenchmark -p paragraphs=1000</code>.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public final class BenchmarkRunner {
+
+	/**
+	 * Not instantiable.
+	 */
+	private BenchmarkRunner() {
+	}
+
+	/**
+	 * @param args
+	 *            the standard JMH runner arguments. Every benchmark is run if
+	 *            no regular expression selecting benchmarks is given.
+	 * @throws RunnerException
+	 *             if a benchmark can't be run.
+	 * @throws CommandLineOptionException
+	 *             if the arguments can't be understood.
+	 */
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build()).run();
+	}
+
+}
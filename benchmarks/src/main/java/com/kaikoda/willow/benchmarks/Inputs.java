@@ -0,0 +1,141 @@
+/*
+ * Inputs
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Generates the XML documents, XSL Stylesheets and parameters used by the
+ * benchmarks, so that every run measures exactly the same inputs.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public final class Inputs {
+
+	/**
+	 * Not instantiable.
+	 */
+	private Inputs() {
+	}
+
+	/**
+	 * Creates a document made up of the number of paragraphs specified, each
+	 * with an attribute and some mixed content.
+	 *
+	 * @param paragraphs
+	 *            the number of paragraphs.
+	 * @return the document, as a string.
+	 */
+	public static String newDocument(int paragraphs) {
+
+		StringBuilder builder = new StringBuilder(64 + paragraphs * 96);
+		builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<document>\n");
+
+		for (int i = 0; i < paragraphs; i++) {
+			builder.append("  <p id=\"p").append(i).append("\">Paragraph ").append(i);
+			builder.append(" of the document, with <em>some emphasis</em> &amp; an entity.</p>\n");
+		}
+
+		builder.append("</document>\n");
+		return builder.toString();
+
+	}
+
+	/**
+	 * Creates the number of parameters specified, named to match those
+	 * declared by {@link #newStylesheet(int)}.
+	 *
+	 * @param count
+	 *            the number of parameters.
+	 * @return the parameters, or null if there aren't any.
+	 */
+	public static TreeMap<String, String> newParameters(int count) {
+
+		if (count == 0) {
+			return null;
+		}
+
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		for (int i = 0; i < count; i++) {
+			params.put("param" + i, "value" + i);
+		}
+
+		return params;
+
+	}
+
+	/**
+	 * Creates a stylesheet that declares the number of parameters specified,
+	 * copies each paragraph of a document generated by
+	 * {@link #newDocument(int)} in reverse order and writes every parameter
+	 * value into the result.
+	 *
+	 * @param params
+	 *            the number of parameters to declare.
+	 * @return the stylesheet, as a string.
+	 */
+	public static String newStylesheet(int params) {
+
+		StringBuilder builder = new StringBuilder(1024 + params * 64);
+		builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		builder.append("<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\">\n");
+		builder.append("  <xsl:output method=\"xml\" indent=\"no\" />\n");
+
+		for (int i = 0; i < params; i++) {
+			builder.append("  <xsl:param name=\"param").append(i).append("\" select=\"''\" />\n");
+		}
+
+		builder.append("  <xsl:template match=\"/document\">\n");
+		builder.append("    <document>\n");
+		builder.append("      <params>");
+		for (int i = 0; i < params; i++) {
+			builder.append("<param><xsl:value-of select=\"$param").append(i).append("\" /></param>");
+		}
+		builder.append("</params>\n");
+		builder.append("      <xsl:for-each select=\"reverse(p)\">\n");
+		builder.append("        <p ref=\"{@id}\"><xsl:value-of select=\"upper-case(.)\" /></p>\n");
+		builder.append("      </xsl:for-each>\n");
+		builder.append("    </document>\n");
+		builder.append("  </xsl:template>\n");
+		builder.append("</xsl:stylesheet>\n");
+
+		return builder.toString();
+
+	}
+
+	/**
+	 * Writes the content specified to a new file in the directory specified.
+	 *
+	 * @param directory
+	 *            the directory to write to.
+	 * @param name
+	 *            the name of the file.
+	 * @param content
+	 *            the content of the file.
+	 * @return the file written.
+	 * @throws IOException
+	 *             if the file can't be written.
+	 */
+	public static File write(File directory, String name, String content) throws IOException {
+
+		File file = new File(directory, name);
+		FileUtils.writeStringToFile(file, content, "UTF-8");
+
+		return file;
+
+	}
+
+}
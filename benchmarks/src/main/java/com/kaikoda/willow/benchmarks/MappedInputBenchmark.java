@@ -0,0 +1,133 @@
+/*
+ * MappedInputBenchmark
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import net.sf.saxon.om.DocumentInfo;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import com.kaikoda.willow.PrimedTransformer;
+
+/**
+ * Compares parsing large files through buffered streams with parsing them
+ * through memory-mapped regions of the file.
+ *
+ * Each run is a single parse of the whole file, so the defaults are sized
+ * for tens of megabytes; pass larger values of paragraphs (eg. -p
+ * paragraphs=20000000, around a gigabyte) to measure very large files. Both
+ * paths read from the page cache once the file has been read for the first
+ * time.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MappedInputBenchmark {
+
+	/**
+	 * The number of paragraphs in the generated document.
+	 */
+	@Param({ "100000", "1000000" })
+	public int paragraphs;
+
+	/**
+	 * A PrimedTransformer that reads files through buffered streams.
+	 */
+	private PrimedTransformer buffered;
+
+	/**
+	 * A temporary directory holding the generated document.
+	 */
+	private File directory;
+
+	/**
+	 * A PrimedTransformer that reads files through memory-mapped regions.
+	 */
+	private PrimedTransformer mapped;
+
+	/**
+	 * The generated document, as a file.
+	 */
+	private File xml;
+
+	/**
+	 * Generates the document and prepares a PrimedTransformer for each path.
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException, ParserConfigurationException, TransformerException {
+
+		this.directory = Files.createTempDirectory("willow-benchmark").toFile();
+		this.xml = Inputs.write(this.directory, "document.xml", Inputs.newDocument(this.paragraphs));
+
+		this.buffered = new PrimedTransformer();
+
+		this.mapped = new PrimedTransformer();
+		this.mapped.setMappedInputThreshold(0L);
+
+	}
+
+	/**
+	 * Removes the generated document.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.directory);
+	}
+
+	@Benchmark
+	public Document parseToDocumentBuffered() throws ParserConfigurationException, SAXException, IOException {
+		return this.buffered.parseToDocument(this.xml);
+	}
+
+	@Benchmark
+	public Document parseToDocumentMapped() throws ParserConfigurationException, SAXException, IOException {
+		return this.mapped.parseToDocument(this.xml);
+	}
+
+	@Benchmark
+	public DocumentInfo parseToTreeSourceBuffered() throws TransformerException, SAXException, ParserConfigurationException {
+		return this.buffered.parseToTreeSource(this.xml);
+	}
+
+	@Benchmark
+	public DocumentInfo parseToTreeSourceMapped() throws TransformerException, SAXException, ParserConfigurationException {
+		return this.mapped.parseToTreeSource(this.xml);
+	}
+
+}
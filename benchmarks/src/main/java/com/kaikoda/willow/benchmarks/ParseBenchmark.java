@@ -0,0 +1,145 @@
+/*
+ * ParseBenchmark
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import net.sf.saxon.om.DocumentInfo;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import com.kaikoda.willow.PrimedTransformer;
+
+/**
+ * Measures parsing into a DOM Document and into Saxon's native tree, and
+ * serializing a parsed document, for documents of varying size.
+ *
+ * The parseToDocumentFile and parseToTreeSourceFile benchmarks compare the
+ * two tree models directly.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+	/**
+	 * The number of paragraphs in the generated document.
+	 */
+	@Param({ "10", "1000", "100000" })
+	public int paragraphs;
+
+	/**
+	 * A temporary directory holding the generated document.
+	 */
+	private File directory;
+
+	/**
+	 * The generated document, already parsed into a DOM Document.
+	 */
+	private Document document;
+
+	/**
+	 * The generated document, as a string.
+	 */
+	private String string;
+
+	/**
+	 * The PrimedTransformer being measured.
+	 */
+	private PrimedTransformer transformer;
+
+	/**
+	 * The generated document, as a file.
+	 */
+	private File xml;
+
+	/**
+	 * Generates the document and primes the PrimedTransformer.
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException, ParserConfigurationException, SAXException, TransformerException {
+
+		this.directory = Files.createTempDirectory("willow-benchmark").toFile();
+		this.string = Inputs.newDocument(this.paragraphs);
+		this.xml = Inputs.write(this.directory, "document.xml", this.string);
+
+		this.transformer = new PrimedTransformer();
+		this.document = this.transformer.parseToDocument(this.xml);
+
+	}
+
+	/**
+	 * Removes the generated document.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.directory);
+	}
+
+	@Benchmark
+	public Document parseToDocumentFile() throws ParserConfigurationException, SAXException, IOException {
+		return this.transformer.parseToDocument(this.xml);
+	}
+
+	@Benchmark
+	public Document parseToDocumentString() throws ParserConfigurationException, SAXException, IOException {
+		return this.transformer.parseToDocument(this.string);
+	}
+
+	@Benchmark
+	public String parseToStringDocument() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		return this.transformer.parseToString(this.document);
+	}
+
+	@Benchmark
+	public String parseToStringFile() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		return this.transformer.parseToString(this.xml);
+	}
+
+	@Benchmark
+	public void parseToStreamFile() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.transformer.parseToStream(this.xml, new NullOutputStream());
+	}
+
+	@Benchmark
+	public DocumentInfo parseToTreeSourceFile() throws TransformerException, SAXException, ParserConfigurationException {
+		return this.transformer.parseToTreeSource(this.xml);
+	}
+
+}
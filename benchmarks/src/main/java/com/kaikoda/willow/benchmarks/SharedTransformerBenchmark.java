@@ -0,0 +1,148 @@
+/*
+ * SharedTransformerBenchmark
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+import com.kaikoda.willow.SharedTransformer;
+
+/**
+ * Measures the throughput of a single SharedTransformer used by 1, 2, 4 and
+ * as many threads as there are processors at once, each transforming the
+ * same document with the same stylesheet. If the shared caches don't
+ * contend, throughput grows with the number of threads up to the number of
+ * cores.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedTransformerBenchmark {
+
+	/**
+	 * The number of paragraphs in the generated document.
+	 */
+	@Param({ "10", "1000" })
+	public int paragraphs;
+
+	/**
+	 * A temporary directory holding the generated document and stylesheet.
+	 */
+	private File directory;
+
+	/**
+	 * The parameters passed with each transformation.
+	 */
+	private TreeMap<String, String> params;
+
+	/**
+	 * The SharedTransformer being measured, shared by every thread.
+	 */
+	private SharedTransformer transformer;
+
+	/**
+	 * The generated document.
+	 */
+	private File xml;
+
+	/**
+	 * The generated stylesheet.
+	 */
+	private File xsl;
+
+	/**
+	 * Generates the document and stylesheet, and primes the
+	 * SharedTransformer.
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException, ParserConfigurationException, SAXException, TransformerException {
+
+		this.directory = Files.createTempDirectory("willow-benchmark").toFile();
+		this.xml = Inputs.write(this.directory, "document.xml", Inputs.newDocument(this.paragraphs));
+		this.xsl = Inputs.write(this.directory, "stylesheet.xsl", Inputs.newStylesheet(8));
+		this.params = Inputs.newParameters(8);
+
+		this.transformer = new SharedTransformer();
+		this.transformer.newTemplates(this.xsl);
+
+	}
+
+	/**
+	 * Removes the generated document and stylesheet.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.directory);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void transformThreads01() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.transform();
+	}
+
+	@Benchmark
+	@Threads(2)
+	public void transformThreads02() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.transform();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void transformThreads04() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.transform();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public void transformThreadsMax() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.transform();
+	}
+
+	/**
+	 * Transforms the document once, on the calling thread.
+	 */
+	private void transform() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.transformer.transform(this.xml, this.xsl, new StreamResult(new NullOutputStream()), this.params, null);
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * TransformBenchmark
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+import com.kaikoda.willow.PrimedTransformer;
+
+/**
+ * Measures transformation with and without an XSL Stylesheet, and compiling a
+ * stylesheet with and without the cache of compiled XSL Stylesheets, for
+ * documents of varying size and varying numbers of parameters.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark {
+
+	/**
+	 * The number of paragraphs in the generated document.
+	 */
+	@Param({ "10", "1000", "100000" })
+	public int paragraphs;
+
+	/**
+	 * The number of parameters declared by the generated stylesheet and
+	 * passed with each transformation.
+	 */
+	@Param({ "0", "8", "64" })
+	public int parameters;
+
+	/**
+	 * A temporary directory holding the generated document and stylesheet.
+	 */
+	private File directory;
+
+	/**
+	 * The parameters passed with each transformation.
+	 */
+	private TreeMap<String, String> params;
+
+	/**
+	 * The PrimedTransformer being measured.
+	 */
+	private PrimedTransformer transformer;
+
+	/**
+	 * The generated document.
+	 */
+	private File xml;
+
+	/**
+	 * The generated stylesheet.
+	 */
+	private File xsl;
+
+	/**
+	 * Generates the document and stylesheet, and primes the
+	 * PrimedTransformer.
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException, ParserConfigurationException, SAXException, TransformerException {
+
+		this.directory = Files.createTempDirectory("willow-benchmark").toFile();
+		this.xml = Inputs.write(this.directory, "document.xml", Inputs.newDocument(this.paragraphs));
+		this.xsl = Inputs.write(this.directory, "stylesheet.xsl", Inputs.newStylesheet(this.parameters));
+		this.params = Inputs.newParameters(this.parameters);
+
+		this.transformer = new PrimedTransformer();
+		this.transformer.newTemplates(this.xsl);
+
+	}
+
+	/**
+	 * Removes the generated document and stylesheet.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.directory);
+	}
+
+	@Benchmark
+	public Templates compileCached() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		return this.transformer.newTemplates(this.xsl);
+	}
+
+	@Benchmark
+	public Templates compileCold() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.transformer.getTemplatesCache().clear();
+		return this.transformer.newTemplates(this.xsl);
+	}
+
+	@Benchmark
+	public void transformWithoutStylesheet() throws TransformerException, SAXException, ParserConfigurationException {
+		this.transformer.transformWithTemplates(this.transformer.parseToTreeSource(this.xml), null, new StreamResult(new NullOutputStream()), this.params, null);
+	}
+
+	@Benchmark
+	public void transformWithStylesheet() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.transformer.transform(this.xml, this.xsl, new StreamResult(new NullOutputStream()), this.params, null);
+	}
+
+}
@@ -0,0 +1,358 @@
+/*
+ * AsyncTransformer
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Result;
+
+/**
+ * Runs transformations on a fixed pool of worker threads, so that callers
+ * aren't blocked while they run. Each call returns a Future and, optionally,
+ * notifies a TransformCallback when the transformation finishes.
+ *
+ * The number of transformations waiting for a worker is bounded. What happens
+ * when the queue is full is decided by the RejectionPolicy: the call can fail
+ * straight away, run the transformation on the caller's thread, or wait for
+ * room in the queue. Either of the last two slows callers down to the rate at
+ * which transformations complete, so a burst of large documents can't exhaust
+ * the heap or spawn unbounded threads.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class AsyncTransformer {
+
+	/**
+	 * What to do with a transformation submitted when the queue is full.
+	 */
+	public static enum RejectionPolicy {
+
+		/**
+		 * Throw a RejectedExecutionException.
+		 */
+		ABORT,
+
+		/**
+		 * Wait until there's room in the queue.
+		 */
+		BLOCK,
+
+		/**
+		 * Run the transformation on the caller's thread.
+		 */
+		CALLER_RUNS
+
+	}
+
+	/**
+	 * A transformation that notifies its callback, if any, when it finishes.
+	 */
+	private static class TransformTask extends FutureTask<Result> {
+
+		private final TransformCallback callback;
+
+		private TransformTask(Callable<Result> callable, TransformCallback callback) {
+			super(callable);
+			this.callback = callback;
+		}
+
+		@Override
+		protected void done() {
+
+			if (this.callback == null) {
+				return;
+			}
+
+			try {
+				this.callback.completed(this.get());
+			} catch (CancellationException e) {
+				this.callback.failed(e);
+			} catch (ExecutionException e) {
+				this.callback.failed((e.getCause() instanceof Exception) ? (Exception) e.getCause() : e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				this.callback.failed(e);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Waits for room in the queue rather than rejecting a transformation.
+	 */
+	private static class BlockingPolicy implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("AsyncTransformer has been shut down.");
+			}
+
+			try {
+				executor.getQueue().put(task);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for room in the queue.", e);
+			}
+
+			// Shut down while waiting: the workers may have gone, leaving the task queued forever
+			if (executor.isShutdown() && executor.remove(task)) {
+				throw new RejectedExecutionException("AsyncTransformer has been shut down.");
+			}
+
+		}
+
+	}
+
+	/**
+	 * Runs a transformation on the caller's thread rather than rejecting it,
+	 * unless the pool has been shut down.
+	 */
+	private static class CallerRunsPolicy implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("AsyncTransformer has been shut down.");
+			}
+
+			task.run();
+
+		}
+
+	}
+
+	/**
+	 * The default number of transformations that can wait for a worker.
+	 */
+	public static final int DEFAULT_QUEUE_DEPTH = 64;
+
+	/**
+	 * The pool of worker threads.
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * The SharedTransformer used to run each transformation.
+	 */
+	private final SharedTransformer transformer;
+
+	/**
+	 * Creates an AsyncTransformer with a worker for each available processor,
+	 * the default queue depth, and a policy of running transformations on the
+	 * caller's thread when the queue is full.
+	 *
+	 * @param transformer
+	 *            the SharedTransformer to use to run each transformation.
+	 */
+	public AsyncTransformer(SharedTransformer transformer) {
+		this(transformer, Runtime.getRuntime().availableProcessors(), AsyncTransformer.DEFAULT_QUEUE_DEPTH, RejectionPolicy.CALLER_RUNS);
+	}
+
+	/**
+	 * @param transformer
+	 *            the SharedTransformer to use to run each transformation.
+	 * @param threads
+	 *            the number of worker threads.
+	 * @param queueDepth
+	 *            the number of transformations that can wait for a worker.
+	 * @param policy
+	 *            what to do with a transformation submitted when the queue is
+	 *            full.
+	 */
+	public AsyncTransformer(SharedTransformer transformer, int threads, int queueDepth, RejectionPolicy policy) {
+
+		if (threads < 1) {
+			throw new IllegalArgumentException("Threads must be at least 1.");
+		}
+
+		if (queueDepth < 1) {
+			throw new IllegalArgumentException("Queue depth must be at least 1.");
+		}
+
+		this.transformer = transformer;
+
+		RejectedExecutionHandler handler;
+		switch (policy) {
+		case ABORT:
+			handler = new ThreadPoolExecutor.AbortPolicy();
+			break;
+		case BLOCK:
+			handler = new BlockingPolicy();
+			break;
+		default:
+			handler = new CallerRunsPolicy();
+			break;
+		}
+
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueDepth), AsyncTransformer.newThreadFactory(), handler);
+
+	}
+
+	/**
+	 * Waits for every transformation to finish after a shut down.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return true if every transformation finished in time.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * @return the approximate number of transformations currently running.
+	 */
+	public int getActiveCount() {
+		return this.executor.getActiveCount();
+	}
+
+	/**
+	 * @return the number of transformations waiting for a worker.
+	 */
+	public int getQueueSize() {
+		return this.executor.getQueue().size();
+	}
+
+	/**
+	 * @return the SharedTransformer used to run each transformation.
+	 */
+	public SharedTransformer getTransformer() {
+		return this.transformer;
+	}
+
+	/**
+	 * Stops accepting transformations. Those already submitted still run.
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Submits a transformation of an XML file using the XSL Stylesheet and
+	 * parameters specified.
+	 *
+	 * @param xml
+	 *            the file to transform.
+	 * @param xsl
+	 *            the XSL Stylesheet to use, or null for none.
+	 * @param result
+	 *            a container to hold the result of the transformation. It
+	 *            mustn't be used by the caller until the transformation has
+	 *            finished.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 * @param listener
+	 *            the ErrorListener to use, or null.
+	 * @return a Future that holds the result once the transformation has
+	 *         completed.
+	 * @throws RejectedExecutionException
+	 *             if the queue is full and the policy is to abort, or this
+	 *             instance has been shut down.
+	 */
+	public Future<Result> transform(File xml, File xsl, Result result, TreeMap<String, String> params, ErrorListener listener) {
+		return this.transform(xml, xsl, result, params, listener, null);
+	}
+
+	/**
+	 * Submits a transformation of an XML file using the XSL Stylesheet and
+	 * parameters specified, notifying the callback specified when it
+	 * finishes.
+	 *
+	 * @param xml
+	 *            the file to transform.
+	 * @param xsl
+	 *            the XSL Stylesheet to use, or null for none.
+	 * @param result
+	 *            a container to hold the result of the transformation. It
+	 *            mustn't be used by the caller until the transformation has
+	 *            finished.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 * @param listener
+	 *            the ErrorListener to use, or null.
+	 * @param callback
+	 *            notified when the transformation finishes, or null.
+	 * @return a Future that holds the result once the transformation has
+	 *         completed.
+	 * @throws RejectedExecutionException
+	 *             if the queue is full and the policy is to abort, or this
+	 *             instance has been shut down.
+	 */
+	public Future<Result> transform(final File xml, final File xsl, final Result result, TreeMap<String, String> params, final ErrorListener listener, TransformCallback callback) {
+
+		final TreeMap<String, String> stylesheetParameters = (params == null) ? null : new TreeMap<String, String>(params);
+
+		TransformTask task = new TransformTask(new Callable<Result>() {
+
+			@Override
+			public Result call() throws Exception {
+
+				AsyncTransformer.this.transformer.getWorker().transform(xml, xsl, result, stylesheetParameters, listener);
+
+				return result;
+
+			}
+
+		}, callback);
+
+		this.executor.execute(task);
+
+		return task;
+
+	}
+
+	/**
+	 * Creates a factory for daemon worker threads, so that an AsyncTransformer
+	 * that hasn't been shut down doesn't stop the JVM from exiting.
+	 */
+	private static ThreadFactory newThreadFactory() {
+
+		final AtomicInteger count = new AtomicInteger();
+
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "willow-async-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+
+	}
+
+}
@@ -0,0 +1,382 @@
+/*
+ * BatchManifest
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A record, kept in a file between batch runs, of the content hash of each
+ * input transformed and of the XSL Stylesheet, modules and parameters it was
+ * transformed with. A file whose output is still current can then be skipped.
+ *
+ * Each file transformed is appended to the manifest as soon as its output is
+ * written, so a batch that's interrupted can be run again to pick up where it
+ * stopped. The manifest is rewritten without superseded entries when closed.
+ *
+ * Hashing an input means reading it, so the hash recorded for a file is
+ * reused while its size and last modified time are unchanged.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class BatchManifest {
+
+	/**
+	 * What's known about a single input.
+	 */
+	private static class Entry {
+
+		private final String configuration;
+
+		private final String hash;
+
+		private final long lastModified;
+
+		private final long length;
+
+		private final String output;
+
+		private Entry(String hash, String configuration, long length, long lastModified, String output) {
+			this.hash = hash;
+			this.configuration = configuration;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.output = output;
+		}
+
+		private String format(String input) {
+			return this.hash + "\t" + this.configuration + "\t" + this.length + "\t" + this.lastModified + "\t" + input + "\t" + this.output + "\n";
+		}
+
+	}
+
+	/**
+	 * The algorithm used to hash content.
+	 */
+	public static final String ALGORITHM = "SHA-256";
+
+	/**
+	 * The first line of every manifest, identifying the format.
+	 */
+	private static final String HEADER = "# willow batch manifest 1";
+
+	/**
+	 * The encoding of the manifest.
+	 */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * The entry for each input, by absolute path.
+	 */
+	private final Map<String, Entry> entries;
+
+	/**
+	 * The file the manifest is kept in.
+	 */
+	private final File file;
+
+	/**
+	 * Appends entries to the manifest as they're recorded, or null once
+	 * closed.
+	 */
+	private Writer writer;
+
+	/**
+	 * Opens the manifest kept in the file specified, reading any entries
+	 * already there.
+	 *
+	 * @param file
+	 *            the file the manifest is kept in. It's created if it doesn't
+	 *            exist.
+	 * @throws IOException
+	 *             if the manifest can't be read or opened for writing.
+	 */
+	public BatchManifest(File file) throws IOException {
+
+		this.file = file;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+
+		if (file.isFile()) {
+			this.read();
+		}
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("Unable to create directory: " + parent);
+		}
+
+		boolean empty = !file.isFile() || file.length() == 0;
+		boolean terminated = empty || BatchManifest.endsWithNewLine(file);
+
+		this.writer = new OutputStreamWriter(new FileOutputStream(file, true), BatchManifest.UTF_8);
+
+		if (empty) {
+			this.writer.write(BatchManifest.HEADER + "\n");
+		} else if (!terminated) {
+			// Finish a line left incomplete by an interrupted run, so it's ignored
+			this.writer.write("\n");
+		}
+
+		this.writer.flush();
+
+	}
+
+	/**
+	 * Rewrites the manifest with only the latest entry for each input, and
+	 * stops recording.
+	 *
+	 * @throws IOException
+	 *             if the manifest can't be rewritten.
+	 */
+	public synchronized void close() throws IOException {
+
+		if (this.writer == null) {
+			return;
+		}
+
+		this.writer.close();
+		this.writer = null;
+
+		File compacted = new File(this.file.getAbsoluteFile().getParentFile(), this.file.getName() + ".tmp");
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(compacted), BatchManifest.UTF_8);
+		try {
+			out.write(BatchManifest.HEADER + "\n");
+			for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+				out.write(entry.getValue().format(entry.getKey()));
+			}
+		} finally {
+			out.close();
+		}
+
+		Files.move(compacted.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+	/**
+	 * Forgets the input specified, so that it's transformed next time
+	 * whatever its hash.
+	 *
+	 * @param input
+	 *            the input file.
+	 */
+	public void forget(File input) {
+		this.entries.remove(input.getAbsolutePath());
+	}
+
+	/**
+	 * @return the file the manifest is kept in.
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Hashes the content of the input specified, reusing the hash already
+	 * recorded if the file's size and last modified time haven't changed.
+	 *
+	 * @param input
+	 *            the input file.
+	 * @return the hash of the file's content.
+	 * @throws IOException
+	 *             if the file can't be read.
+	 */
+	public String hash(File input) throws IOException {
+
+		Entry entry = this.entries.get(input.getAbsolutePath());
+		if (entry != null && entry.length == input.length() && entry.lastModified == input.lastModified()) {
+			return entry.hash;
+		}
+
+		MessageDigest digest = BatchManifest.newDigest();
+
+		InputStream in = new FileInputStream(input);
+		try {
+			BatchManifest.update(digest, in);
+		} finally {
+			in.close();
+		}
+
+		return BatchManifest.toHex(digest.digest());
+
+	}
+
+	/**
+	 * Checks whether the output of the input specified is current: that it
+	 * exists, and was written from the same content using the same
+	 * configuration.
+	 *
+	 * @param input
+	 *            the input file.
+	 * @param output
+	 *            the file the output would be written to.
+	 * @param hash
+	 *            the hash of the input's content.
+	 * @param configuration
+	 *            the hash of the XSL Stylesheet, its modules and parameters.
+	 * @return true if the input needn't be transformed again.
+	 */
+	public boolean isCurrent(File input, File output, String hash, String configuration) {
+
+		Entry entry = this.entries.get(input.getAbsolutePath());
+
+		return entry != null && entry.hash.equals(hash) && entry.configuration.equals(configuration) && entry.output.equals(output.getAbsolutePath()) && output.isFile();
+
+	}
+
+	/**
+	 * Records that the input specified has been transformed, appending it to
+	 * the manifest straight away.
+	 *
+	 * @param input
+	 *            the input file.
+	 * @param output
+	 *            the file the output was written to.
+	 * @param hash
+	 *            the hash of the input's content.
+	 * @param configuration
+	 *            the hash of the XSL Stylesheet, its modules and parameters.
+	 * @throws IOException
+	 *             if the manifest can't be written to.
+	 */
+	public synchronized void record(File input, File output, String hash, String configuration) throws IOException {
+
+		if (this.writer == null) {
+			throw new IOException("The manifest has been closed: " + this.file);
+		}
+
+		String key = input.getAbsolutePath();
+		Entry entry = new Entry(hash, configuration, input.length(), input.lastModified(), output.getAbsolutePath());
+
+		this.entries.put(key, entry);
+
+		this.writer.write(entry.format(key));
+		this.writer.flush();
+
+	}
+
+	/**
+	 * @return the number of inputs in the manifest.
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Reads the entries already in the manifest. Later entries for an input
+	 * replace earlier ones, and a line left incomplete by an interrupted run
+	 * is ignored.
+	 */
+	private void read() throws IOException {
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), BatchManifest.UTF_8));
+		try {
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+
+				if (line.startsWith("#")) {
+					continue;
+				}
+
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 6) {
+					continue;
+				}
+
+				try {
+					this.entries.put(fields[4], new Entry(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[5]));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+
+			}
+
+		} finally {
+			reader.close();
+		}
+
+	}
+
+	/**
+	 * @return true if the last byte of the file specified is a new line.
+	 */
+	private static boolean endsWithNewLine(File file) throws IOException {
+
+		RandomAccessFile access = new RandomAccessFile(file, "r");
+		try {
+			access.seek(access.length() - 1);
+			return access.read() == '\n';
+		} finally {
+			access.close();
+		}
+
+	}
+
+	/**
+	 * @return a new MessageDigest for the algorithm used to hash content.
+	 */
+	public static MessageDigest newDigest() {
+
+		try {
+			return MessageDigest.getInstance(BatchManifest.ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+
+	}
+
+	/**
+	 * @return the bytes supplied, as a string of hexadecimal digits.
+	 */
+	public static String toHex(byte[] bytes) {
+
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return hex.toString();
+
+	}
+
+	/**
+	 * Adds everything read from the stream supplied to the digest.
+	 */
+	static void update(MessageDigest digest, InputStream in) throws IOException {
+
+		byte[] buffer = new byte[8192];
+
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			digest.update(buffer, 0, count);
+		}
+
+	}
+
+}
@@ -0,0 +1,32 @@
+/*
+ * BatchOutputNamer
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+
+/**
+ * Decides where the result of transforming each input file in a batch should
+ * be written.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public interface BatchOutputNamer {
+
+	/**
+	 * @param input
+	 *            a file about to be transformed.
+	 * @return the file that the result of the transformation should be written
+	 *         to.
+	 */
+	File getOutputFile(File input);
+
+}
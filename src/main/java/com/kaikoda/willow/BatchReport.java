@@ -0,0 +1,125 @@
+/*
+ * BatchReport
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of transforming a batch of files: a BatchResult for each file,
+ * in the order the files were supplied, together with aggregate figures.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class BatchReport {
+
+	/**
+	 * The wall-clock time taken to transform the whole batch, in nanoseconds.
+	 */
+	private final long elapsed;
+
+	/**
+	 * The outcome for each file in the batch.
+	 */
+	private final List<BatchResult> results;
+
+	/**
+	 * @param results
+	 *            the outcome for each file in the batch.
+	 * @param elapsed
+	 *            the wall-clock time taken to transform the whole batch, in
+	 *            nanoseconds.
+	 */
+	public BatchReport(List<BatchResult> results, long elapsed) {
+		this.results = Collections.unmodifiableList(new ArrayList<BatchResult>(results));
+		this.elapsed = elapsed;
+	}
+
+	/**
+	 * @return the wall-clock time taken to transform the whole batch, in
+	 *         nanoseconds.
+	 */
+	public long getElapsed() {
+		return this.elapsed;
+	}
+
+	/**
+	 * @return the outcome for each file that couldn't be transformed.
+	 */
+	public List<BatchResult> getFailures() {
+
+		List<BatchResult> failures = new ArrayList<BatchResult>();
+		for (BatchResult result : this.results) {
+			if (!result.isSuccessful()) {
+				failures.add(result);
+			}
+		}
+
+		return failures;
+
+	}
+
+	/**
+	 * @return the outcome for each file in the batch.
+	 */
+	public List<BatchResult> getResults() {
+		return this.results;
+	}
+
+	/**
+	 * @return the number of files transformed per second, successfully or
+	 *         otherwise.
+	 */
+	public double getThroughput() {
+
+		if (this.elapsed <= 0) {
+			return 0;
+		}
+
+		return this.results.size() / (this.elapsed / 1e9);
+
+	}
+
+	/**
+	 * @return the number of files that couldn't be transformed.
+	 */
+	public int getTotalFailures() {
+		return this.getFailures().size();
+	}
+
+	/**
+	 * @return the number of files skipped because their output was already
+	 *         current.
+	 */
+	public int getTotalSkipped() {
+
+		int skipped = 0;
+		for (BatchResult result : this.results) {
+			if (result.isSkipped()) {
+				skipped++;
+			}
+		}
+
+		return skipped;
+
+	}
+
+	/**
+	 * @return the number of files transformed successfully, including any
+	 *         skipped.
+	 */
+	public int getTotalSuccesses() {
+		return this.results.size() - this.getTotalFailures();
+	}
+
+}
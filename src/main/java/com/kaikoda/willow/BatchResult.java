@@ -0,0 +1,132 @@
+/*
+ * BatchResult
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+
+/**
+ * The outcome of transforming a single file as part of a batch.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class BatchResult {
+
+	/**
+	 * The time taken to transform the file, in nanoseconds.
+	 */
+	private final long elapsed;
+
+	/**
+	 * The exception that stopped the file being transformed, or null if it was
+	 * transformed successfully.
+	 */
+	private final Exception exception;
+
+	/**
+	 * The file transformed.
+	 */
+	private final File input;
+
+	/**
+	 * The file the result of the transformation was written to.
+	 */
+	private final File output;
+
+	/**
+	 * Whether the file was skipped, because neither it nor the XSL Stylesheet
+	 * and parameters had changed since it was last transformed.
+	 */
+	private final boolean skipped;
+
+	/**
+	 * @param input
+	 *            the file transformed.
+	 * @param output
+	 *            the file the result of the transformation was written to.
+	 * @param exception
+	 *            the exception that stopped the file being transformed, or
+	 *            null.
+	 * @param elapsed
+	 *            the time taken to transform the file, in nanoseconds.
+	 */
+	public BatchResult(File input, File output, Exception exception, long elapsed) {
+		this(input, output, exception, elapsed, false);
+	}
+
+	/**
+	 * @param input
+	 *            the file transformed.
+	 * @param output
+	 *            the file the result of the transformation was written to.
+	 * @param exception
+	 *            the exception that stopped the file being transformed, or
+	 *            null.
+	 * @param elapsed
+	 *            the time taken to transform the file, in nanoseconds.
+	 * @param skipped
+	 *            whether the file was skipped because the output was already
+	 *            current.
+	 */
+	public BatchResult(File input, File output, Exception exception, long elapsed, boolean skipped) {
+		this.input = input;
+		this.output = output;
+		this.exception = exception;
+		this.elapsed = elapsed;
+		this.skipped = skipped;
+	}
+
+	/**
+	 * @return the time taken to transform the file, in nanoseconds.
+	 */
+	public long getElapsed() {
+		return this.elapsed;
+	}
+
+	/**
+	 * @return the exception that stopped the file being transformed, or null
+	 *         if it was transformed successfully.
+	 */
+	public Exception getException() {
+		return this.exception;
+	}
+
+	/**
+	 * @return the file transformed.
+	 */
+	public File getInput() {
+		return this.input;
+	}
+
+	/**
+	 * @return the file the result of the transformation was written to.
+	 */
+	public File getOutput() {
+		return this.output;
+	}
+
+	/**
+	 * @return true if the file was skipped, because neither it nor the XSL
+	 *         Stylesheet and parameters had changed since it was last
+	 *         transformed.
+	 */
+	public boolean isSkipped() {
+		return this.skipped;
+	}
+
+	/**
+	 * @return true if the file was transformed successfully, or skipped.
+	 */
+	public boolean isSuccessful() {
+		return this.exception == null;
+	}
+
+}
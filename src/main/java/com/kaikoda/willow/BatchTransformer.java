@@ -0,0 +1,539 @@
+/*
+ * BatchTransformer
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Transforms many files with the same XSL Stylesheet and parameters, spreading
+ * the work over an ExecutorService (for example, a ForkJoinPool or a fixed
+ * thread pool).
+ *
+ * The stylesheet is compiled once, before any file is transformed. A file
+ * that can't be transformed is recorded as a failure in the BatchReport
+ * returned; it doesn't stop the rest of the batch.
+ *
+ * Given a BatchManifest file, a batch is incremental: a file is skipped if its
+ * content, the stylesheet and every module it includes or imports, and the
+ * parameters are all unchanged since its output was last written.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class BatchTransformer {
+
+	/**
+	 * The ExecutorService used to transform files in parallel.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The SharedTransformer used to parse and transform each file.
+	 */
+	private final SharedTransformer transformer;
+
+	/**
+	 * @param transformer
+	 *            the SharedTransformer to use to parse and transform each
+	 *            file.
+	 * @param executor
+	 *            the ExecutorService to use to transform files in parallel.
+	 *            It's not shut down by this instance of BatchTransformer.
+	 */
+	public BatchTransformer(SharedTransformer transformer, ExecutorService executor) {
+		this.transformer = transformer;
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the ExecutorService used to transform files in parallel.
+	 */
+	public ExecutorService getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * @return the SharedTransformer used to parse and transform each file.
+	 */
+	public SharedTransformer getTransformer() {
+		return this.transformer;
+	}
+
+	/**
+	 * Transforms every file beneath the directory specified whose path,
+	 * relative to that directory, matches the glob pattern specified.
+	 *
+	 * @param directory
+	 *            the directory to search for files to transform.
+	 * @param glob
+	 *            the pattern that files must match, eg. <code>**.xml</code>.
+	 * @param xsl
+	 *            the XSL Stylesheet to use for every transformation.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 * @param namer
+	 *            decides where the result of each transformation is written.
+	 * @return the outcome of transforming each file.
+	 * @throws TransformerException
+	 *             if the XSL Stylesheet can't be compiled.
+	 * @throws SAXException
+	 *             if there's an exception parsing the XSL Stylesheet.
+	 * @throws IOException
+	 *             if there's a problem searching the directory or reading the
+	 *             XSL Stylesheet.
+	 * @throws ParserConfigurationException
+	 *             if the parser is configured incorrectly.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the batch to complete.
+	 * @throws IllegalArgumentException
+	 *             if the namer gives two inputs the same output file.
+	 */
+	public BatchReport transform(File directory, String glob, File xsl, TreeMap<String, String> params, BatchOutputNamer namer) throws TransformerException, SAXException, IOException, ParserConfigurationException, InterruptedException {
+		return this.transform(BatchTransformer.listFiles(directory, glob), xsl, params, namer, null);
+	}
+
+	/**
+	 * Transforms every file beneath the directory specified whose path,
+	 * relative to that directory, matches the glob pattern specified, skipping
+	 * those whose output the manifest shows to be current.
+	 *
+	 * @param directory
+	 *            the directory to search for files to transform.
+	 * @param glob
+	 *            the pattern that files must match, eg. <code>**.xml</code>.
+	 * @param xsl
+	 *            the XSL Stylesheet to use for every transformation.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 * @param namer
+	 *            decides where the result of each transformation is written.
+	 * @param manifest
+	 *            the file the BatchManifest is kept in, or null to transform
+	 *            every file.
+	 * @return the outcome of transforming each file.
+	 * @throws TransformerException
+	 *             if the XSL Stylesheet can't be compiled.
+	 * @throws SAXException
+	 *             if there's an exception parsing the XSL Stylesheet.
+	 * @throws IOException
+	 *             if there's a problem searching the directory, reading the
+	 *             XSL Stylesheet or keeping the manifest.
+	 * @throws ParserConfigurationException
+	 *             if the parser is configured incorrectly.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the batch to complete.
+	 * @throws IllegalArgumentException
+	 *             if the namer gives two inputs the same output file.
+	 */
+	public BatchReport transform(File directory, String glob, File xsl, TreeMap<String, String> params, BatchOutputNamer namer, File manifest) throws TransformerException, SAXException, IOException, ParserConfigurationException, InterruptedException {
+		return this.transform(BatchTransformer.listFiles(directory, glob), xsl, params, namer, manifest);
+	}
+
+	/**
+	 * Transforms every file in the list specified.
+	 *
+	 * @param inputs
+	 *            the files to transform.
+	 * @param xsl
+	 *            the XSL Stylesheet to use for every transformation.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 * @param namer
+	 *            decides where the result of each transformation is written.
+	 * @return the outcome of transforming each file, in the order supplied.
+	 * @throws TransformerException
+	 *             if the XSL Stylesheet can't be compiled.
+	 * @throws SAXException
+	 *             if there's an exception parsing the XSL Stylesheet.
+	 * @throws IOException
+	 *             if there's a problem reading the XSL Stylesheet.
+	 * @throws ParserConfigurationException
+	 *             if the parser is configured incorrectly.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the batch to complete.
+	 * @throws IllegalArgumentException
+	 *             if the namer gives two inputs the same output file.
+	 */
+	public BatchReport transform(List<File> inputs, File xsl, TreeMap<String, String> params, BatchOutputNamer namer) throws TransformerException, SAXException, IOException, ParserConfigurationException, InterruptedException {
+		return this.transform(inputs, xsl, params, namer, null);
+	}
+
+	/**
+	 * Transforms every file in the list specified, skipping those whose output
+	 * the manifest shows to be current. Each file transformed is added to the
+	 * manifest as soon as its output is written, so an interrupted batch can
+	 * be resumed by running it again with the same manifest.
+	 *
+	 * @param inputs
+	 *            the files to transform.
+	 * @param xsl
+	 *            the XSL Stylesheet to use for every transformation.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 * @param namer
+	 *            decides where the result of each transformation is written.
+	 * @param manifest
+	 *            the file the BatchManifest is kept in, or null to transform
+	 *            every file.
+	 * @return the outcome of transforming each file, in the order supplied.
+	 * @throws TransformerException
+	 *             if the XSL Stylesheet can't be compiled.
+	 * @throws SAXException
+	 *             if there's an exception parsing the XSL Stylesheet.
+	 * @throws IOException
+	 *             if there's a problem reading the XSL Stylesheet or keeping
+	 *             the manifest.
+	 * @throws ParserConfigurationException
+	 *             if the parser is configured incorrectly.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the batch to complete.
+	 * @throws IllegalArgumentException
+	 *             if the namer gives two inputs the same output file, or
+	 *             gives an input itself as its output file.
+	 */
+	public BatchReport transform(List<File> inputs, final File xsl, TreeMap<String, String> params, BatchOutputNamer namer, File manifest) throws TransformerException, SAXException, IOException, ParserConfigurationException, InterruptedException {
+
+		long start = System.nanoTime();
+
+		// Two inputs written to the same file would overwrite each other, and an input written to itself would be lost
+		Map<File, File> outputs = new HashMap<File, File>();
+		for (File input : inputs) {
+
+			File output = namer.getOutputFile(input);
+			if (output.getCanonicalFile().equals(input.getCanonicalFile())) {
+				throw new IllegalArgumentException(input + " would be overwritten by its own output");
+			}
+
+			File previous = outputs.put(output.getCanonicalFile(), input);
+			if (previous != null && !previous.equals(input)) {
+				throw new IllegalArgumentException("Both " + previous + " and " + input + " would be written to " + output);
+			}
+
+		}
+
+		// Compile once, up front
+		final Templates templates = this.transformer.newTemplates(xsl);
+		final TreeMap<String, String> stylesheetParameters = (params == null) ? null : new TreeMap<String, String>(params);
+
+		final BatchManifest record = (manifest == null) ? null : new BatchManifest(manifest);
+		final String configuration = (manifest == null) ? null : this.hashConfiguration(xsl, stylesheetParameters);
+
+		try {
+
+			List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>(inputs.size());
+			for (final File input : inputs) {
+
+				final File output = namer.getOutputFile(input);
+
+				futures.add(this.executor.submit(new Callable<BatchResult>() {
+
+					@Override
+					public BatchResult call() {
+						return BatchTransformer.this.transform(input, xsl, templates, stylesheetParameters, output, record, configuration);
+					}
+
+				}));
+
+			}
+
+			List<BatchResult> results = new ArrayList<BatchResult>(inputs.size());
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					File input = inputs.get(i);
+					results.add(new BatchResult(input, namer.getOutputFile(input), (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e, 0L));
+				}
+			}
+
+			return new BatchReport(results, System.nanoTime() - start);
+
+		} finally {
+			if (record != null) {
+				record.close();
+			}
+		}
+
+	}
+
+	/**
+	 * Transforms a single file, recording (rather than throwing) any
+	 * exception. The result is written to a temporary file alongside the
+	 * output, which replaces the output only once the transformation is
+	 * complete, so a failed transformation leaves any existing output as it
+	 * was.
+	 *
+	 * While the SharedTransformer has a ResultCache, the transformation goes
+	 * through it, so an input already transformed (eg. by an earlier batch
+	 * writing elsewhere) is copied from the cache rather than transformed
+	 * again.
+	 *
+	 * @param input
+	 *            the file to transform.
+	 * @param xsl
+	 *            the XSL Stylesheet to use, which identifies its results in
+	 *            the ResultCache.
+	 * @param templates
+	 *            the compiled XSL Stylesheet to use.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 * @param output
+	 *            the file to write the result to.
+	 * @param manifest
+	 *            the manifest to check and record the file in, or null.
+	 * @param configuration
+	 *            the hash of the XSL Stylesheet, its modules and parameters,
+	 *            or null if there's no manifest.
+	 * @return the outcome of the transformation.
+	 */
+	BatchResult transform(File input, File xsl, Templates templates, TreeMap<String, String> params, File output, BatchManifest manifest, String configuration) {
+
+		long start = System.nanoTime();
+
+		try {
+
+			String hash = null;
+			if (manifest != null) {
+
+				hash = manifest.hash(input);
+				if (manifest.isCurrent(input, output, hash, configuration)) {
+					return new BatchResult(input, output, null, System.nanoTime() - start, true);
+				}
+
+				// Until the new output is written, the old entry no longer holds
+				manifest.forget(input);
+
+			}
+
+			File parent = output.getAbsoluteFile().getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+				throw new IOException("Unable to create directory: " + parent);
+			}
+
+			PrimedTransformer worker = this.transformer.getWorker();
+
+			// In the same directory, so that it can be renamed into place
+			File temporary = File.createTempFile(output.getName() + ".", ".tmp", parent);
+			try {
+
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(temporary));
+				try {
+
+					StreamResult result = new StreamResult(out);
+					result.setSystemId(output.toURI().toString());
+
+					if (worker.getResultCache() != null) {
+						worker.transform(input, xsl, result, params, null);
+					} else {
+						worker.transformWithTemplates(worker.parseToSource(input), templates, result, params, null);
+					}
+
+				} finally {
+					out.close();
+				}
+
+				Files.move(temporary.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			} finally {
+				temporary.delete();
+			}
+
+			if (manifest != null) {
+				manifest.record(input, output, hash, configuration);
+			}
+
+			return new BatchResult(input, output, null, System.nanoTime() - start);
+
+		} catch (Exception e) {
+			return new BatchResult(input, output, e, System.nanoTime() - start);
+		}
+
+	}
+
+	/**
+	 * Hashes the content of the XSL Stylesheet specified and every module it
+	 * includes or imports, together with the parameters, so that a change to
+	 * any of them can be spotted.
+	 *
+	 * @return the hash, as a string of hexadecimal digits.
+	 */
+	private String hashConfiguration(File xsl, TreeMap<String, String> params) throws TransformerException, IOException {
+
+		StylesheetResolver resolver = this.transformer.getWorker().getStylesheetResolver();
+		if (resolver == null) {
+			resolver = new StylesheetResolver(this.transformer.getCatalogResolver());
+		}
+
+		MessageDigest digest = BatchManifest.newDigest();
+
+		for (String location : resolver.listModules(xsl.toURI().toString())) {
+
+			digest.update(location.getBytes("UTF-8"));
+			digest.update((byte) 0);
+
+			InputStream in = new URL(location).openStream();
+			try {
+				BatchManifest.update(digest, in);
+			} finally {
+				in.close();
+			}
+
+			digest.update((byte) 0);
+
+		}
+
+		if (params != null) {
+			for (Map.Entry<String, String> param : params.entrySet()) {
+				digest.update((param.getKey() + "=" + param.getValue()).getBytes("UTF-8"));
+				digest.update((byte) 0);
+			}
+		}
+
+		return BatchManifest.toHex(digest.digest());
+
+	}
+
+	/**
+	 * Lists every file beneath the directory specified whose path, relative to
+	 * that directory, matches the glob pattern specified.
+	 *
+	 * @param directory
+	 *            the directory to search.
+	 * @param glob
+	 *            the pattern that files must match, eg. <code>**.xml</code>.
+	 * @return the files found, sorted by path.
+	 * @throws IOException
+	 *             if there's a problem searching the directory.
+	 */
+	public static List<File> listFiles(File directory, String glob) throws IOException {
+
+		final Path root = directory.toPath();
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+		final List<File> files = new ArrayList<File>();
+
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+
+				if (attributes.isRegularFile() && matcher.matches(root.relativize(file))) {
+					files.add(file.toFile());
+				}
+
+				return FileVisitResult.CONTINUE;
+
+			}
+
+		});
+
+		Collections.sort(files);
+		return files;
+
+	}
+
+	/**
+	 * Creates a BatchOutputNamer that writes each result to the directory
+	 * specified, using the name of the input file with its extension replaced.
+	 * Inputs from different directories that share a name would be written to
+	 * the same file; a batch containing them is rejected.
+	 *
+	 * @param directory
+	 *            the directory to write results to.
+	 * @param extension
+	 *            the extension to give each result, eg. <code>.xml</code>.
+	 */
+	public static BatchOutputNamer newOutputNamer(File directory, String extension) {
+		return BatchTransformer.newOutputNamer(null, directory, extension);
+	}
+
+	/**
+	 * Creates a BatchOutputNamer that writes each result to the directory
+	 * specified, at the same path relative to that directory as the input file
+	 * has relative to the input directory, with its extension replaced. An
+	 * input that isn't beneath the input directory is written to the top of
+	 * the output directory.
+	 *
+	 * @param inputDirectory
+	 *            the directory the input files were found beneath, or null to
+	 *            use the name of each input file alone.
+	 * @param directory
+	 *            the directory to write results to.
+	 * @param extension
+	 *            the extension to give each result, eg. <code>.xml</code>.
+	 */
+	public static BatchOutputNamer newOutputNamer(File inputDirectory, final File directory, final String extension) {
+
+		final Path root = (inputDirectory == null) ? null : inputDirectory.toPath().toAbsolutePath().normalize();
+
+		return new BatchOutputNamer() {
+
+			@Override
+			public File getOutputFile(File input) {
+
+				Path path = input.toPath().toAbsolutePath().normalize();
+
+				String name = input.getName();
+				String relative = "";
+				if (root != null && path.startsWith(root) && path.getParent() != null) {
+					relative = root.relativize(path.getParent()).toString();
+				}
+
+				int dot = name.lastIndexOf('.');
+				if (dot > 0) {
+					name = name.substring(0, dot);
+				}
+
+				return new File((relative.length() > 0) ? new File(directory, relative) : directory, name + extension);
+
+			}
+
+		};
+
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * ByteBufferInputStream
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that reads the remaining bytes of a ByteBuffer, so that a
+ * parser can read them without first copying them into an array.
+ *
+ * The stream reads from its own view of the buffer, so the position and limit
+ * of the buffer supplied are left as they are. The buffer mustn't be changed
+ * while the stream is being read.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	/**
+	 * The bytes still to be read.
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param buffer
+	 *            the buffer whose remaining bytes are to be read.
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer) {
+
+		this.buffer = buffer.duplicate();
+
+		// Until marked elsewhere, reset() returns to the start
+		this.buffer.mark();
+
+	}
+
+	@Override
+	public int available() {
+		return this.buffer.remaining();
+	}
+
+	@Override
+	public synchronized void mark(int readLimit) {
+		this.buffer.mark();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public int read() {
+
+		if (!this.buffer.hasRemaining()) {
+			return -1;
+		}
+
+		return this.buffer.get() & 0xFF;
+
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) {
+
+		if (length == 0) {
+			return 0;
+		}
+
+		int count = Math.min(length, this.buffer.remaining());
+		if (count == 0) {
+			return -1;
+		}
+
+		this.buffer.get(bytes, offset, count);
+		return count;
+
+	}
+
+	@Override
+	public synchronized void reset() {
+		this.buffer.reset();
+	}
+
+	@Override
+	public long skip(long count) {
+
+		if (count <= 0) {
+			return 0;
+		}
+
+		int skipped = (int) Math.min(count, this.buffer.remaining());
+		this.buffer.position(this.buffer.position() + skipped);
+		return skipped;
+
+	}
+
+}
@@ -0,0 +1,265 @@
+/*
+ * CachingEntityResolver
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.EntityResolver2;
+
+/**
+ * An EntityResolver2 that sits in front of an XMLCatalogResolver, remembering
+ * where each external entity (including DTDs) was resolved to and keeping the
+ * content of local entity files in memory.
+ *
+ * The content of each file is held as a byte array that's never modified once
+ * read, so a single instance can be shared by any number of parsers on any
+ * number of threads. An entry is discarded as soon as the last-modified time
+ * or length of its file changes, and the least recently used entries are
+ * evicted to keep the total size within the maximum specified. Entities that
+ * aren't local files are left to the parser to read.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class CachingEntityResolver implements EntityResolver2 {
+
+	/**
+	 * The default maximum total size, in bytes, of the entity files held by an
+	 * instance of CachingEntityResolver.
+	 */
+	public static final long DEFAULT_MAXIMUM_BYTES = 16L * 1024L * 1024L;
+
+	/**
+	 * The maximum number of catalog lookups remembered before they're all
+	 * forgotten and the count starts again.
+	 */
+	public static final int MAXIMUM_LOOKUPS = 4096;
+
+	/**
+	 * Remembered in place of a location when an entity can't be resolved to
+	 * an absolute URI.
+	 */
+	private static final String UNRESOLVED = "";
+
+	/**
+	 * The XMLCatalogResolver consulted on the first lookup of each entity, or
+	 * null.
+	 */
+	private final XMLCatalogResolver catalogResolver;
+
+	/**
+	 * The content of the entity files currently held, by location.
+	 */
+	private final LruCache<byte[]> entries;
+
+	/**
+	 * The location each entity was resolved to, by public ID, system ID and
+	 * base URI.
+	 */
+	private final ConcurrentHashMap<String, String> locations;
+
+	/**
+	 * @param resolver
+	 *            the XMLCatalogResolver to consult, or null.
+	 */
+	public CachingEntityResolver(XMLCatalogResolver resolver) {
+		this(resolver, CachingEntityResolver.DEFAULT_MAXIMUM_BYTES);
+	}
+
+	/**
+	 * @param resolver
+	 *            the XMLCatalogResolver to consult, or null.
+	 * @param maximumBytes
+	 *            the maximum total size, in bytes, of the entity files to hold
+	 *            at any one time.
+	 */
+	public CachingEntityResolver(XMLCatalogResolver resolver, long maximumBytes) {
+
+		if (maximumBytes < 1) {
+			throw new IllegalArgumentException("Maximum bytes must be at least 1.");
+		}
+
+		this.catalogResolver = resolver;
+		this.locations = new ConcurrentHashMap<String, String>();
+		this.entries = new LruCache<byte[]>(maximumBytes);
+
+	}
+
+	/**
+	 * Forgets every lookup and discards the content of every entity file
+	 * held. The hit, miss and eviction counts are left as they are.
+	 */
+	public void clear() {
+		this.locations.clear();
+		this.entries.clear();
+	}
+
+	/**
+	 * @return the XMLCatalogResolver consulted on the first lookup of each
+	 *         entity, or null.
+	 */
+	public XMLCatalogResolver getCatalogResolver() {
+		return this.catalogResolver;
+	}
+
+	/**
+	 * @return the number of entity files removed, either to make room for
+	 *         another or because the file had changed.
+	 */
+	public long getEvictions() {
+		return this.entries.getEvictions();
+	}
+
+	/**
+	 * Delegates to the XMLCatalogResolver, if there is one.
+	 */
+	@Override
+	public InputSource getExternalSubset(String name, String baseURI) throws SAXException, IOException {
+
+		if (this.catalogResolver == null) {
+			return null;
+		}
+
+		return this.catalogResolver.getExternalSubset(name, baseURI);
+
+	}
+
+	/**
+	 * @return the number of entities returned from memory.
+	 */
+	public long getHits() {
+		return this.entries.getHits();
+	}
+
+	/**
+	 * @return the maximum total size, in bytes, of the entity files held at
+	 *         any one time.
+	 */
+	public long getMaximumBytes() {
+		return this.entries.getMaximumWeight();
+	}
+
+	/**
+	 * @return the number of entities that had to be read.
+	 */
+	public long getMisses() {
+		return this.entries.getMisses();
+	}
+
+	/**
+	 * @return the total size, in bytes, of the entity files currently held.
+	 */
+	public long getTotalBytes() {
+		return this.entries.getTotalWeight();
+	}
+
+	@Override
+	public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
+		return this.resolveEntity(null, publicId, null, systemId);
+	}
+
+	@Override
+	public InputSource resolveEntity(String name, String publicId, String baseURI, String systemId) throws SAXException, IOException {
+
+		String key = publicId + "\n" + systemId + "\n" + baseURI;
+
+		String location = this.locations.get(key);
+		if (location == null) {
+
+			location = this.lookup(name, publicId, baseURI, systemId);
+
+			if (this.locations.size() >= CachingEntityResolver.MAXIMUM_LOOKUPS) {
+				this.locations.clear();
+			}
+			this.locations.put(key, location);
+
+		}
+
+		if (location.equals(CachingEntityResolver.UNRESOLVED)) {
+			return null;
+		}
+
+		File file = TemplatesCache.toFile(location);
+		if (file == null) {
+
+			// Not a local file: let the parser read it from the location found
+			InputSource input = new InputSource(location);
+			input.setPublicId(publicId);
+			return input;
+
+		}
+
+		InputSource input = new InputSource(new ByteArrayInputStream(this.read(location, file)));
+		input.setSystemId(location);
+		input.setPublicId(publicId);
+		return input;
+
+	}
+
+	/**
+	 * @return the number of entity files currently held.
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Finds the location of an entity: the location given by the catalog if
+	 * there is one, otherwise the system ID resolved against the base URI.
+	 *
+	 * @return the location, or UNRESOLVED if there isn't one.
+	 */
+	private String lookup(String name, String publicId, String baseURI, String systemId) throws SAXException, IOException {
+
+		if (this.catalogResolver != null) {
+			InputSource mapped = this.catalogResolver.resolveEntity(name, publicId, baseURI, systemId);
+			if (mapped != null && mapped.getSystemId() != null) {
+				return mapped.getSystemId();
+			}
+		}
+
+		String location = (systemId == null) ? null : DocumentCache.resolveURI(systemId, baseURI);
+		return (location == null) ? CachingEntityResolver.UNRESOLVED : location;
+
+	}
+
+	/**
+	 * Returns the content of the local entity file specified, reading it first
+	 * if there isn't a current copy in memory.
+	 */
+	private byte[] read(String location, File file) throws IOException {
+
+		byte[] content = this.entries.get(location);
+		if (content != null) {
+			return content;
+		}
+
+		// Note the state of the file before it's read
+		Map<File, long[]> stamps = new HashMap<File, long[]>();
+		long length = LruCache.stamp(file, stamps);
+
+		content = FileUtils.readFileToByteArray(file);
+		this.entries.put(location, content, length, stamps);
+
+		return content;
+
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Diagnostic
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import javax.xml.transform.TransformerException;
+
+/**
+ * A warning or error reported during a transformation, as recorded by a
+ * DiagnosticsCollector.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class Diagnostic {
+
+	/**
+	 * How serious a Diagnostic is, in the terms of
+	 * javax.xml.transform.ErrorListener.
+	 */
+	public enum Severity {
+
+		/**
+		 * A condition that isn't an error; the transformation continues.
+		 */
+		WARNING,
+
+		/**
+		 * A recoverable error.
+		 */
+		ERROR,
+
+		/**
+		 * An error the transformation can't continue after.
+		 */
+		FATAL_ERROR
+
+	}
+
+	/**
+	 * The exception reported.
+	 */
+	private final TransformerException exception;
+
+	/**
+	 * The position of the diagnostic among all those recorded by the
+	 * collector, counting from 0.
+	 */
+	private final long sequence;
+
+	/**
+	 * How serious the diagnostic is.
+	 */
+	private final Severity severity;
+
+	/**
+	 * The time the diagnostic was recorded, in milliseconds since the epoch.
+	 */
+	private final long timestamp;
+
+	/**
+	 * @param sequence
+	 *            the position of the diagnostic among all those recorded by
+	 *            the collector, counting from 0.
+	 * @param severity
+	 *            how serious the diagnostic is.
+	 * @param exception
+	 *            the exception reported.
+	 * @param timestamp
+	 *            the time the diagnostic was recorded, in milliseconds since
+	 *            the epoch.
+	 */
+	public Diagnostic(long sequence, Severity severity, TransformerException exception, long timestamp) {
+		this.sequence = sequence;
+		this.severity = severity;
+		this.exception = exception;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * @return the exception reported.
+	 */
+	public TransformerException getException() {
+		return this.exception;
+	}
+
+	/**
+	 * @return the position of the diagnostic among all those recorded by the
+	 *         collector, counting from 0.
+	 */
+	public long getSequence() {
+		return this.sequence;
+	}
+
+	/**
+	 * @return how serious the diagnostic is.
+	 */
+	public Severity getSeverity() {
+		return this.severity;
+	}
+
+	/**
+	 * @return the time the diagnostic was recorded, in milliseconds since the
+	 *         epoch.
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	/**
+	 * @return the severity and location of the diagnostic, with its message.
+	 */
+	@Override
+	public String toString() {
+		return this.severity + ": " + this.exception.getMessageAndLocation();
+	}
+
+}
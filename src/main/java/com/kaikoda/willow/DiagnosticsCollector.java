@@ -0,0 +1,205 @@
+/*
+ * DiagnosticsCollector
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.TransformerException;
+
+/**
+ * An ErrorListener that records the warnings and errors reported during
+ * transformations, for use by any number of transformations at once.
+ *
+ * The most recent diagnostics are kept in a fixed-size ring buffer; older ones
+ * are overwritten, but every one is counted by severity. Recording takes no
+ * lock and allocates only the Diagnostic itself, and nothing at all is done
+ * while nothing goes wrong, so a single instance can be passed with every
+ * call to a SharedTransformer.
+ *
+ * Warnings never stop a transformation. Errors are recoverable, so they only
+ * stop it if the collector is set to abort on errors. Fatal errors are
+ * recorded and then thrown, since the transformation can't continue after
+ * them.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class DiagnosticsCollector implements ErrorListener {
+
+	/**
+	 * The default number of recent diagnostics kept.
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * True if errors stop the transformation.
+	 */
+	private final boolean abortingOnError;
+
+	/**
+	 * The number of diagnostics recorded, by severity.
+	 */
+	private final AtomicLongArray counts;
+
+	/**
+	 * The sequence number the next diagnostic recorded will be given.
+	 */
+	private final AtomicLong sequence;
+
+	/**
+	 * The most recent diagnostics, each at its sequence number modulo the
+	 * capacity.
+	 */
+	private final AtomicReferenceArray<Diagnostic> slots;
+
+	/**
+	 * Creates a collector that keeps the default number of diagnostics and
+	 * lets transformations continue after errors.
+	 */
+	public DiagnosticsCollector() {
+		this(DiagnosticsCollector.DEFAULT_CAPACITY, false);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of recent diagnostics kept.
+	 * @param abortingOnError
+	 *            true if errors should stop the transformation, as fatal
+	 *            errors do.
+	 */
+	public DiagnosticsCollector(int capacity, boolean abortingOnError) {
+
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1.");
+		}
+
+		this.abortingOnError = abortingOnError;
+		this.slots = new AtomicReferenceArray<Diagnostic>(capacity);
+		this.counts = new AtomicLongArray(Diagnostic.Severity.values().length);
+		this.sequence = new AtomicLong();
+
+	}
+
+	@Override
+	public void error(TransformerException exception) throws TransformerException {
+
+		this.record(Diagnostic.Severity.ERROR, exception);
+
+		if (this.abortingOnError) {
+			throw exception;
+		}
+
+	}
+
+	@Override
+	public void fatalError(TransformerException exception) throws TransformerException {
+		this.record(Diagnostic.Severity.FATAL_ERROR, exception);
+		throw exception;
+	}
+
+	/**
+	 * @return the number of recent diagnostics kept.
+	 */
+	public int getCapacity() {
+		return this.slots.length();
+	}
+
+	/**
+	 * @param severity
+	 *            the severity to count.
+	 * @return the number of diagnostics of the severity specified recorded so
+	 *         far, including those no longer kept.
+	 */
+	public long getCount(Diagnostic.Severity severity) {
+		return this.counts.get(severity.ordinal());
+	}
+
+	/**
+	 * Copies the diagnostics currently kept, oldest first. Diagnostics
+	 * recorded while the copy is made may or may not be included.
+	 *
+	 * @return the most recent diagnostics, up to the capacity.
+	 */
+	public List<Diagnostic> getDiagnostics() {
+
+		long end = this.sequence.get();
+		long start = Math.max(0L, end - this.slots.length());
+
+		List<Diagnostic> diagnostics = new ArrayList<Diagnostic>((int) (end - start));
+		for (long i = start; i < end; i++) {
+
+			// Skip slots not yet written, or already overwritten by a later diagnostic
+			Diagnostic diagnostic = this.slots.get((int) (i % this.slots.length()));
+			if (diagnostic != null && diagnostic.getSequence() == i) {
+				diagnostics.add(diagnostic);
+			}
+
+		}
+
+		return diagnostics;
+
+	}
+
+	/**
+	 * @return the number of diagnostics recorded so far, of every severity,
+	 *         including those no longer kept.
+	 */
+	public long getTotal() {
+		return this.sequence.get();
+	}
+
+	/**
+	 * @return true if any error or fatal error has been recorded.
+	 */
+	public boolean hasErrors() {
+		return this.getCount(Diagnostic.Severity.ERROR) > 0 || this.getCount(Diagnostic.Severity.FATAL_ERROR) > 0;
+	}
+
+	/**
+	 * @return true if errors stop the transformation.
+	 */
+	public boolean isAbortingOnError() {
+		return this.abortingOnError;
+	}
+
+	@Override
+	public void warning(TransformerException exception) throws TransformerException {
+		this.record(Diagnostic.Severity.WARNING, exception);
+	}
+
+	/**
+	 * Counts the diagnostic and writes it to the next slot in the ring.
+	 */
+	private void record(Diagnostic.Severity severity, TransformerException exception) {
+
+		this.counts.incrementAndGet(severity.ordinal());
+
+		long number = this.sequence.getAndIncrement();
+		int index = (int) (number % this.slots.length());
+		Diagnostic diagnostic = new Diagnostic(number, severity, exception, System.currentTimeMillis());
+
+		// A thread that has lapped this one may already have filled the slot with a later diagnostic
+		Diagnostic current;
+		do {
+			current = this.slots.get(index);
+			if (current != null && current.getSequence() > number) {
+				return;
+			}
+		} while (!this.slots.compareAndSet(index, current, diagnostic));
+
+	}
+
+}
@@ -0,0 +1,363 @@
+/*
+ * DocumentBuilderPool
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.EntityResolver;
+
+/**
+ * A bounded pool of DocumentBuilders, so that many threads can build DOM
+ * Documents at once without a call to the DocumentBuilderFactory for every
+ * document, or a DocumentBuilder for every thread.
+ *
+ * Builders are created from the factory as needed, up to the maximum size,
+ * after which a thread wanting a builder waits for one to be returned (or
+ * discarded, making room for a new one). Each
+ * builder is reset() when it's returned and has the EntityResolver
+ * reattached, so it's handed out again in the state it was created in. The
+ * pool records how often and for how long threads had to wait, and how many
+ * builders are in use.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class DocumentBuilderPool {
+
+	/**
+	 * The number of builders currently borrowed.
+	 */
+	private final AtomicInteger active;
+
+	/**
+	 * The number of times a builder has been borrowed.
+	 */
+	private final AtomicLong borrows;
+
+	/**
+	 * The number of builders created so far.
+	 */
+	private final AtomicInteger created;
+
+	/**
+	 * The EntityResolver attached to every builder, or null.
+	 */
+	private volatile EntityResolver entityResolver;
+
+	/**
+	 * The DocumentBuilderFactory used to create builders.
+	 */
+	private final DocumentBuilderFactory factory;
+
+	/**
+	 * The builders not currently borrowed.
+	 */
+	private final ArrayBlockingQueue<DocumentBuilder> idle;
+
+	/**
+	 * The maximum number of builders created.
+	 */
+	private final int maximumSize;
+
+	/**
+	 * The longest time a thread has waited for a builder, in nanoseconds.
+	 */
+	private final AtomicLong maximumWaitTime;
+
+	/**
+	 * The largest number of builders borrowed at any one time.
+	 */
+	private final AtomicInteger peakActive;
+
+	/**
+	 * A permit for each builder that may be borrowed; a thread waits here
+	 * when they're all borrowed.
+	 */
+	private final Semaphore slots;
+
+	/**
+	 * The number of times a thread had to wait for a builder.
+	 */
+	private final AtomicLong waits;
+
+	/**
+	 * The total time threads have waited for a builder, in nanoseconds.
+	 */
+	private final AtomicLong waitTime;
+
+	/**
+	 * @param factory
+	 *            the DocumentBuilderFactory to create builders with. It
+	 *            mustn't be reconfigured once passed in.
+	 * @param maximumSize
+	 *            the maximum number of builders to create.
+	 * @param resolver
+	 *            the EntityResolver to attach to every builder, or null.
+	 */
+	public DocumentBuilderPool(DocumentBuilderFactory factory, int maximumSize, EntityResolver resolver) {
+
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be at least 1.");
+		}
+
+		this.factory = factory;
+		this.maximumSize = maximumSize;
+		this.entityResolver = resolver;
+		this.idle = new ArrayBlockingQueue<DocumentBuilder>(maximumSize);
+		this.slots = new Semaphore(maximumSize);
+		this.created = new AtomicInteger();
+		this.active = new AtomicInteger();
+		this.peakActive = new AtomicInteger();
+		this.borrows = new AtomicLong();
+		this.waits = new AtomicLong();
+		this.waitTime = new AtomicLong();
+		this.maximumWaitTime = new AtomicLong();
+
+	}
+
+	/**
+	 * Borrows a builder, waiting for one to be returned if the maximum number
+	 * are already borrowed. Every builder borrowed must be given back via
+	 * {@link #release(DocumentBuilder)}.
+	 *
+	 * @return a builder for the sole use of the caller until released.
+	 * @throws ParserConfigurationException
+	 *             if a new builder can't be created.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a builder.
+	 */
+	public DocumentBuilder borrow() throws ParserConfigurationException, InterruptedException {
+		return this.borrow(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Borrows a builder, waiting up to the time specified for one to be
+	 * returned if the maximum number are already borrowed. Every builder
+	 * borrowed must be given back via {@link #release(DocumentBuilder)}.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return a builder for the sole use of the caller until released, or null
+	 *         if none became free in time.
+	 * @throws ParserConfigurationException
+	 *             if a new builder can't be created.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a builder.
+	 */
+	public DocumentBuilder borrow(long timeout, TimeUnit unit) throws ParserConfigurationException, InterruptedException {
+
+		if (!this.slots.tryAcquire()) {
+
+			this.waits.incrementAndGet();
+
+			boolean acquired;
+			long start = System.nanoTime();
+			try {
+				acquired = this.slots.tryAcquire(timeout, unit);
+			} finally {
+
+				long waited = System.nanoTime() - start;
+				this.waitTime.addAndGet(waited);
+
+				long longest = this.maximumWaitTime.get();
+				while (waited > longest && !this.maximumWaitTime.compareAndSet(longest, waited)) {
+					longest = this.maximumWaitTime.get();
+				}
+
+			}
+
+			if (!acquired) {
+				return null;
+			}
+
+		}
+
+		// Holding a slot, there's either an idle builder or room for a new one
+		DocumentBuilder builder = this.idle.poll();
+		if (builder != null) {
+			// The EntityResolver may have changed while it was idle
+			builder.setEntityResolver(this.entityResolver);
+		} else {
+
+			boolean complete = false;
+			try {
+				builder = this.create();
+				complete = true;
+			} finally {
+				if (!complete) {
+					this.slots.release();
+				}
+			}
+
+		}
+
+		this.borrows.incrementAndGet();
+
+		int borrowed = this.active.incrementAndGet();
+		int peak = this.peakActive.get();
+		while (borrowed > peak && !this.peakActive.compareAndSet(peak, borrowed)) {
+			peak = this.peakActive.get();
+		}
+
+		return builder;
+
+	}
+
+	/**
+	 * @return the number of builders currently borrowed.
+	 */
+	public int getActive() {
+		return this.active.get();
+	}
+
+	/**
+	 * @return the number of times a builder has been borrowed.
+	 */
+	public long getBorrows() {
+		return this.borrows.get();
+	}
+
+	/**
+	 * @return the EntityResolver attached to every builder, or null.
+	 */
+	public EntityResolver getEntityResolver() {
+		return this.entityResolver;
+	}
+
+	/**
+	 * @return the maximum number of builders created.
+	 */
+	public int getMaximumSize() {
+		return this.maximumSize;
+	}
+
+	/**
+	 * @return the longest time a thread has waited for a builder, in
+	 *         nanoseconds.
+	 */
+	public long getMaximumWaitTime() {
+		return this.maximumWaitTime.get();
+	}
+
+	/**
+	 * @return the largest number of builders borrowed at any one time.
+	 */
+	public int getPeakActive() {
+		return this.peakActive.get();
+	}
+
+	/**
+	 * @return the number of builders created so far.
+	 */
+	public int getSize() {
+		return this.created.get();
+	}
+
+	/**
+	 * @return the fraction of the maximum number of builders currently
+	 *         borrowed, between 0 and 1.
+	 */
+	public double getUtilization() {
+		return (double) this.active.get() / this.maximumSize;
+	}
+
+	/**
+	 * @return the number of times a thread had to wait for a builder.
+	 */
+	public long getWaits() {
+		return this.waits.get();
+	}
+
+	/**
+	 * @return the total time threads have waited for a builder, in
+	 *         nanoseconds.
+	 */
+	public long getWaitTime() {
+		return this.waitTime.get();
+	}
+
+	/**
+	 * Gives back a builder borrowed from this pool. The builder is reset and
+	 * has the EntityResolver reattached before it's handed out again.
+	 *
+	 * @param builder
+	 *            the builder to give back.
+	 */
+	public void release(DocumentBuilder builder) {
+
+		this.active.decrementAndGet();
+
+		try {
+
+			try {
+				builder.reset();
+				builder.setEntityResolver(this.entityResolver);
+				ValidationErrorHandler.attach(this.factory, builder);
+			} catch (RuntimeException e) {
+
+				// Don't hand out a builder in an unknown state; make room for another
+				this.created.decrementAndGet();
+				return;
+
+			}
+
+			if (!this.idle.offer(builder)) {
+				this.created.decrementAndGet();
+			}
+
+		} finally {
+			// Wakes a thread waiting for a builder, whether or not this one was kept
+			this.slots.release();
+		}
+
+	}
+
+	/**
+	 * Changes the EntityResolver attached to every builder, from the next time
+	 * each builder is borrowed.
+	 *
+	 * @param resolver
+	 *            the EntityResolver to attach, or null.
+	 */
+	public void setEntityResolver(EntityResolver resolver) {
+		this.entityResolver = resolver;
+	}
+
+	/**
+	 * Creates a new builder. Only called while holding a slot that has no
+	 * idle builder, so the pool can't grow beyond its maximum size.
+	 *
+	 * @return the new builder.
+	 * @throws ParserConfigurationException
+	 *             if the builder can't be created.
+	 */
+	private DocumentBuilder create() throws ParserConfigurationException {
+
+		DocumentBuilder builder = this.factory.newDocumentBuilder();
+		builder.setEntityResolver(this.entityResolver);
+		ValidationErrorHandler.attach(this.factory, builder);
+
+		this.created.incrementAndGet();
+		return builder;
+
+	}
+
+}
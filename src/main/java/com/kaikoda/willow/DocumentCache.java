@@ -0,0 +1,245 @@
+/*
+ * DocumentCache
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXSource;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.DocumentInfo;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+/**
+ * A URIResolver that keeps parsed copies of the local files loaded by a
+ * stylesheet (eg. via the document() function), so that lookup documents
+ * shared by many transformations are only parsed once.
+ *
+ * Documents are held in the native tree format of the Saxon Configuration
+ * supplied, keyed by resolved URI. An entry is discarded as soon as the
+ * last-modified time or length of its file changes. The cache is bounded by
+ * the total size of the files it holds; the least recently used documents are
+ * evicted to stay within that bound. URIs that don't identify a local file are
+ * left to the default resolution.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class DocumentCache implements URIResolver {
+
+	/**
+	 * The default maximum total size, in bytes, of the files whose parsed
+	 * copies are held by an instance of DocumentCache.
+	 */
+	public static final long DEFAULT_MAXIMUM_BYTES = 64L * 1024L * 1024L;
+
+	/**
+	 * The Saxon Configuration used to build parsed documents.
+	 */
+	private final Configuration configuration;
+
+	/**
+	 * The parsed documents currently held, by resolved URI.
+	 */
+	private final LruCache<DocumentInfo> entries;
+
+	/**
+	 * The EntityResolver used when parsing documents, or null.
+	 */
+	private final EntityResolver entityResolver;
+
+	/**
+	 * @param configuration
+	 *            the Saxon Configuration to build parsed documents with. It
+	 *            must be the Configuration used by the Transformers that the
+	 *            documents are returned to.
+	 * @param entityResolver
+	 *            the EntityResolver to use when parsing documents, or null.
+	 * @param maximumBytes
+	 *            the maximum total size, in bytes, of the files whose parsed
+	 *            copies are held at any one time.
+	 */
+	public DocumentCache(Configuration configuration, EntityResolver entityResolver, long maximumBytes) {
+
+		if (maximumBytes < 1) {
+			throw new IllegalArgumentException("Maximum bytes must be at least 1.");
+		}
+
+		this.configuration = configuration;
+		this.entityResolver = entityResolver;
+		this.entries = new LruCache<DocumentInfo>(maximumBytes);
+
+	}
+
+	/**
+	 * Removes all parsed documents from the cache. The hit, miss and eviction
+	 * counts are left as they are.
+	 */
+	public void clear() {
+		this.entries.clear();
+	}
+
+	/**
+	 * @return the number of parsed documents removed from the cache, either to
+	 *         make room for another or because the file had changed.
+	 */
+	public long getEvictions() {
+		return this.entries.getEvictions();
+	}
+
+	/**
+	 * @return the number of lookups that found a current parsed document.
+	 */
+	public long getHits() {
+		return this.entries.getHits();
+	}
+
+	/**
+	 * @return the maximum total size, in bytes, of the files whose parsed
+	 *         copies are held at any one time.
+	 */
+	public long getMaximumBytes() {
+		return this.entries.getMaximumWeight();
+	}
+
+	/**
+	 * @return the number of lookups that didn't find a current parsed
+	 *         document.
+	 */
+	public long getMisses() {
+		return this.entries.getMisses();
+	}
+
+	/**
+	 * @return the total size, in bytes, of the files whose parsed copies are
+	 *         currently held.
+	 */
+	public long getTotalBytes() {
+		return this.entries.getTotalWeight();
+	}
+
+	/**
+	 * Returns the parsed copy of the local file identified by the href and
+	 * base URI supplied, parsing it first if there isn't a current copy.
+	 *
+	 * @return the parsed document, or null if the href doesn't identify a
+	 *         local file (in which case the default resolution applies).
+	 * @throws TransformerException
+	 *             if the file can't be parsed.
+	 */
+	@Override
+	public Source resolve(String href, String base) throws TransformerException {
+
+		String uri = DocumentCache.resolveURI(href, base);
+		if (uri == null) {
+			return null;
+		}
+
+		File file = TemplatesCache.toFile(uri);
+		if (file == null) {
+			return null;
+		}
+
+		DocumentInfo document = this.entries.get(uri);
+		if (document != null) {
+			return document;
+		}
+
+		// Note the state of the file before it's read
+		Map<File, long[]> stamps = new HashMap<File, long[]>();
+		long length = LruCache.stamp(file, stamps);
+
+		document = this.parse(uri);
+		this.entries.put(uri, document, length, stamps);
+
+		return document;
+
+	}
+
+	/**
+	 * @return the number of parsed documents currently held.
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Parses the document at the URI specified into a native tree.
+	 *
+	 * @throws TransformerException
+	 *             if the document can't be parsed.
+	 */
+	private DocumentInfo parse(String uri) throws TransformerException {
+
+		XMLReader reader;
+		try {
+
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(PrimedTransformer.SET_NAMESPACE_AWARE);
+			factory.setValidating(PrimedTransformer.SET_VALIDATING);
+			factory.setXIncludeAware(PrimedTransformer.SET_XINCLUDE_AWARE);
+
+			reader = factory.newSAXParser().getXMLReader();
+
+		} catch (Exception e) {
+			throw new TransformerException(e);
+		}
+
+		if (this.entityResolver != null) {
+			reader.setEntityResolver(this.entityResolver);
+		}
+
+		SAXSource source = new SAXSource(reader, new InputSource(uri));
+		source.setSystemId(uri);
+
+		return this.configuration.buildDocument(source);
+
+	}
+
+	/**
+	 * Resolves an href against a base URI.
+	 *
+	 * @return the absolute URI, without a fragment identifier, or null if one
+	 *         can't be determined.
+	 */
+	static String resolveURI(String href, String base) {
+
+		try {
+
+			URI uri = new URI(href);
+			if (!uri.isAbsolute() && base != null && base.length() > 0) {
+				uri = new URI(base).resolve(uri);
+			}
+
+			if (!uri.isAbsolute() || uri.getFragment() != null) {
+				return null;
+			}
+
+			return uri.toString();
+
+		} catch (URISyntaxException e) {
+			return null;
+		}
+
+	}
+
+}
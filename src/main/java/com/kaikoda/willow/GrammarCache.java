@@ -0,0 +1,398 @@
+/*
+ * GrammarCache
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.apache.xerces.impl.dtd.DTDGrammar;
+import org.apache.xerces.impl.dtd.XMLEntityDecl;
+import org.apache.xerces.jaxp.DocumentBuilderFactoryImpl;
+import org.apache.xerces.jaxp.SAXParserFactoryImpl;
+import org.apache.xerces.jaxp.validation.XMLSchemaFactory;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.apache.xerces.util.XMLGrammarPoolImpl;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Compiled grammars (DTDs and XML Schemas) for validating documents as they're
+ * parsed, so that each grammar is read and compiled once rather than once per
+ * document.
+ *
+ * DTDs, and schemas named by the documents themselves, are held in a Xerces
+ * grammar pool attached to every factory made here. Schemas named up front are
+ * compiled into javax.xml.validation.Schema objects and kept by location. Both
+ * are resolved through the catalog, and both can be used by any number of
+ * parsers on any number of threads; share a single instance between all the
+ * transformers that validate.
+ *
+ * A DTD that declares general entities isn't pooled, since Xerces wouldn't
+ * declare them in documents that reuse it, so DTD mode saves nothing for such
+ * a grammar: it's compiled per document, as without a pool. Its bytes are
+ * still read from memory after the first document when the parser's
+ * EntityResolver is a CachingEntityResolver (as a SharedTransformer's is).
+ *
+ * Builders made by the factories created here have a ValidationErrorHandler
+ * attached, so invalid documents fail to parse; builders from other factories
+ * keep the parser's default handling.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class GrammarCache {
+
+	/**
+	 * A grammar pool that won't hold DTDs declaring general entities. Xerces
+	 * doesn't read the external subset of a DTD taken from the pool, so those
+	 * entities would otherwise be undeclared in every document after the
+	 * first; such DTDs are compiled each time instead.
+	 */
+	private static class EntitySafeGrammarPool extends XMLGrammarPoolImpl {
+
+		@Override
+		public void putGrammar(Grammar grammar) {
+			if (!EntitySafeGrammarPool.declaresGeneralEntities(grammar)) {
+				super.putGrammar(grammar);
+			}
+		}
+
+		private static boolean declaresGeneralEntities(Grammar grammar) {
+
+			if (!(grammar instanceof DTDGrammar)) {
+				return false;
+			}
+
+			XMLEntityDecl entity = new XMLEntityDecl();
+			for (int i = 0; ((DTDGrammar) grammar).getEntityDecl(i, entity); i++) {
+				if (!entity.isPE) {
+					return true;
+				}
+			}
+
+			return false;
+
+		}
+
+	}
+
+	/**
+	 * A DocumentBuilderFactory made by a GrammarCache, so that the builders
+	 * it makes can be told apart from those of other factories.
+	 */
+	private static class ValidatingDocumentBuilderFactory extends DocumentBuilderFactoryImpl {
+
+	}
+
+	/**
+	 * How documents are validated.
+	 */
+	public enum Mode {
+
+		/**
+		 * Against the DTD named in the document's DOCTYPE declaration.
+		 */
+		DTD,
+
+		/**
+		 * Against an XML Schema: either one named up front, or those named by
+		 * the document's xsi:schemaLocation attributes.
+		 */
+		XSD
+
+	}
+
+	/**
+	 * The Xerces property holding the grammar pool used by a parser.
+	 */
+	public static final String GRAMMAR_POOL = "http://apache.org/xml/properties/internal/grammar-pool";
+
+	/**
+	 * The JAXP attribute naming the schema language a validating parser uses.
+	 */
+	private static final String SCHEMA_LANGUAGE = "http://java.sun.com/xml/jaxp/properties/schemaLanguage";
+
+	/**
+	 * The Xerces feature that turns on validation against XML Schemas.
+	 */
+	private static final String SCHEMA_VALIDATION = "http://apache.org/xml/features/validation/schema";
+
+	/**
+	 * The XMLCatalogResolver used to resolve grammars, or null.
+	 */
+	private final XMLCatalogResolver catalogResolver;
+
+	/**
+	 * The pool of DTDs and document-named schemas shared by every parser.
+	 */
+	private final XMLGrammarPool grammarPool;
+
+	/**
+	 * The number of lookups that found a compiled Schema.
+	 */
+	private final AtomicLong hits;
+
+	/**
+	 * The number of lookups that compiled a Schema.
+	 */
+	private final AtomicLong misses;
+
+	/**
+	 * The compiled Schemas, by resolved location.
+	 */
+	private final ConcurrentHashMap<String, Schema> schemas;
+
+	/**
+	 * @param resolver
+	 *            the XMLCatalogResolver to resolve grammars through, or null.
+	 */
+	public GrammarCache(XMLCatalogResolver resolver) {
+		this.catalogResolver = resolver;
+		this.grammarPool = new EntitySafeGrammarPool();
+		this.schemas = new ConcurrentHashMap<String, Schema>();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+
+	/**
+	 * @return the XMLCatalogResolver used to resolve grammars, or null.
+	 */
+	public XMLCatalogResolver getCatalogResolver() {
+		return this.catalogResolver;
+	}
+
+	/**
+	 * @return the pool of DTDs and document-named schemas shared by every
+	 *         parser.
+	 */
+	public XMLGrammarPool getGrammarPool() {
+		return this.grammarPool;
+	}
+
+	/**
+	 * @return the number of lookups that found a compiled Schema.
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that compiled a Schema.
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Retrieves the compiled form of the XML Schema at the location specified,
+	 * compiling it only the first time it's asked for. The location, and the
+	 * locations of any schemas it imports or includes, are resolved through
+	 * the catalog.
+	 *
+	 * @param location
+	 *            the system ID of the XML Schema.
+	 * @return the compiled Schema.
+	 * @throws SAXException
+	 *             if the XML Schema can't be read or compiled.
+	 */
+	public Schema getSchema(String location) throws SAXException {
+
+		String resolved = this.resolve(location);
+
+		Schema schema = this.schemas.get(resolved);
+		if (schema != null) {
+			this.hits.incrementAndGet();
+			return schema;
+		}
+
+		this.misses.incrementAndGet();
+
+		SchemaFactory factory = new XMLSchemaFactory();
+		if (this.catalogResolver != null) {
+			factory.setResourceResolver(this.catalogResolver);
+		}
+
+		schema = factory.newSchema(new StreamSource(resolved));
+
+		// Another thread may have compiled it in the meantime; keep the first
+		Schema existing = this.schemas.putIfAbsent(resolved, schema);
+
+		return (existing == null) ? schema : existing;
+
+	}
+
+	/**
+	 * Creates a DocumentBuilderFactory, configured as by
+	 * {@link PrimedTransformer#newDocumentBuilderFactory()}, whose builders
+	 * validate using the grammars held here. Pass it to a PrimedTransformer or
+	 * SharedTransformer on construction; invalid documents then fail to parse.
+	 *
+	 * @param mode
+	 *            how documents are validated.
+	 * @param schema
+	 *            the location of the XML Schema to validate against, or null
+	 *            to use those named by each document. Ignored for DTDs.
+	 * @return a new DocumentBuilderFactory.
+	 * @throws SAXException
+	 *             if the XML Schema can't be read or compiled.
+	 */
+	public DocumentBuilderFactory newDocumentBuilderFactory(Mode mode, String schema) throws SAXException {
+
+		DocumentBuilderFactory factory = new ValidatingDocumentBuilderFactory();
+		factory.setExpandEntityReferences(PrimedTransformer.SET_EXPAND_ENTITY_REFERENCES);
+		factory.setNamespaceAware(PrimedTransformer.SET_NAMESPACE_AWARE);
+		factory.setXIncludeAware(PrimedTransformer.SET_XINCLUDE_AWARE);
+		factory.setIgnoringElementContentWhitespace(PrimedTransformer.SET_IGNORING_ELEMENT_CONTENT_WHITESPACE);
+
+		if (mode == Mode.XSD && schema != null) {
+			factory.setSchema(this.getSchema(schema));
+			return factory;
+		}
+
+		factory.setValidating(true);
+		factory.setAttribute(GrammarCache.GRAMMAR_POOL, this.grammarPool);
+
+		if (mode == Mode.XSD) {
+			factory.setAttribute(GrammarCache.SCHEMA_LANGUAGE, XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		}
+
+		return factory;
+
+	}
+
+	/**
+	 * Creates an XMLReader that validates using the grammars held here. No
+	 * ErrorHandler is set, so validity errors are only reported unless the
+	 * caller sets one (eg. a ValidationErrorHandler).
+	 *
+	 * @param mode
+	 *            how documents are validated.
+	 * @param schema
+	 *            the location of the XML Schema to validate against, or null
+	 *            to use those named by each document. Ignored for DTDs.
+	 * @return a new XMLReader.
+	 * @throws SAXException
+	 *             if the XML Schema can't be read or compiled.
+	 * @throws ParserConfigurationException
+	 *             if the parser can't be configured as required.
+	 */
+	public XMLReader newXMLReader(Mode mode, String schema) throws SAXException, ParserConfigurationException {
+
+		SAXParserFactory factory = new SAXParserFactoryImpl();
+		factory.setNamespaceAware(PrimedTransformer.SET_NAMESPACE_AWARE);
+		factory.setXIncludeAware(PrimedTransformer.SET_XINCLUDE_AWARE);
+
+		if (mode == Mode.XSD && schema != null) {
+			factory.setSchema(this.getSchema(schema));
+			return factory.newSAXParser().getXMLReader();
+		}
+
+		factory.setValidating(true);
+
+		XMLReader reader = factory.newSAXParser().getXMLReader();
+		reader.setProperty(GrammarCache.GRAMMAR_POOL, this.grammarPool);
+
+		if (mode == Mode.XSD) {
+			reader.setFeature(GrammarCache.SCHEMA_VALIDATION, true);
+		}
+
+		return reader;
+
+	}
+
+	/**
+	 * @return the number of compiled Schemas held.
+	 */
+	public int size() {
+		return this.schemas.size();
+	}
+
+	/**
+	 * Resolves a grammar's location through the catalog.
+	 *
+	 * @return the location the catalog maps it to, or the location itself if
+	 *         it isn't mapped.
+	 */
+	private String resolve(String location) throws SAXException {
+
+		if (this.catalogResolver == null) {
+			return location;
+		}
+
+		try {
+
+			String resolved = this.catalogResolver.resolveSystem(location);
+			if (resolved == null) {
+				resolved = this.catalogResolver.resolveURI(location);
+			}
+
+			return (resolved == null) ? location : resolved;
+
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
+
+	}
+
+	/**
+	 * @return true if the factory specified was made by
+	 *         {@link #newDocumentBuilderFactory(Mode, String)}.
+	 */
+	static boolean isValidatingFactory(DocumentBuilderFactory factory) {
+		return factory instanceof ValidatingDocumentBuilderFactory;
+	}
+
+	/**
+	 * Attaches the grammar pool of a factory made by
+	 * {@link #newDocumentBuilderFactory(Mode, String)}, if it has one, to an
+	 * XMLReader, so that a reader built to match the factory shares its
+	 * grammars.
+	 */
+	static void share(DocumentBuilderFactory factory, XMLReader reader) throws SAXException {
+
+		if (!(factory instanceof DocumentBuilderFactoryImpl)) {
+			return;
+		}
+
+		Object pool;
+		Object language;
+		try {
+			pool = factory.getAttribute(GrammarCache.GRAMMAR_POOL);
+			language = factory.getAttribute(GrammarCache.SCHEMA_LANGUAGE);
+		} catch (IllegalArgumentException e) {
+			// Not a factory made here.
+			return;
+		}
+
+		if (!(pool instanceof XMLGrammarPool)) {
+			return;
+		}
+
+		reader.setProperty(GrammarCache.GRAMMAR_POOL, pool);
+
+		if (XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(language)) {
+			reader.setFeature(GrammarCache.SCHEMA_VALIDATION, true);
+		}
+
+	}
+
+}
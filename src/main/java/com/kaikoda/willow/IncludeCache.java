@@ -0,0 +1,1066 @@
+/*
+ * IncludeCache
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLFilter;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Resolves XIncludes, keeping the targets it reads so that boilerplate shared
+ * by many documents (legal text, headers) is only read and parsed once.
+ *
+ * Targets are held by resolved URI, with any XIncludes of their own already
+ * resolved, and the fragments selected from them by xpointer attributes are
+ * kept alongside. An entry is discarded as soon as the last-modified time or
+ * length of any file it was built from changes. The cache is bounded by the
+ * total size of those files; the least recently used targets are evicted to
+ * stay within that bound. URIs that don't identify a local file are read each
+ * time.
+ *
+ * Both the DOM and the native-tree parse paths of PrimedTransformer use it
+ * once it's set: a DOM Document has its xi:include elements replaced after
+ * parsing, while a native tree is built through a SAX filter that replays the
+ * cached targets in place of each xi:include. Pointers use the shorthand
+ * (ID) form or the element() scheme, as Xerces supports; a document can't
+ * include part of itself. Cached targets are never modified once held, so a
+ * single instance can be shared by any number of threads.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class IncludeCache {
+
+	/**
+	 * A parsed target, or the text of a target included as text, together
+	 * with the details needed to decide whether it's still current.
+	 */
+	private static class Entry {
+
+		private final Document document;
+
+		private final long length;
+
+		private final ConcurrentHashMap<String, Node> selections;
+
+		private final Map<File, long[]> stamps;
+
+		private final String text;
+
+		private Entry(Document document, String text, Map<File, long[]> stamps) {
+
+			this.document = document;
+			this.text = text;
+			this.stamps = stamps;
+			this.selections = new ConcurrentHashMap<String, Node>();
+
+			long length = 0L;
+			for (long[] stamp : stamps.values()) {
+				length += stamp[1];
+			}
+			this.length = length;
+
+		}
+
+	}
+
+	/**
+	 * The state of an element passed through an IncludeFilter.
+	 */
+	private static class Frame {
+
+		private final String base;
+
+		private final IOException failure;
+
+		private final State state;
+
+		private boolean fallback;
+
+		private Frame(State state, String base, IOException failure) {
+			this.state = state;
+			this.base = base;
+			this.failure = failure;
+		}
+
+	}
+
+	/**
+	 * A SAX filter that replaces each xi:include with the target it refers to,
+	 * or with the content of its xi:fallback if the target can't be read.
+	 */
+	private static class IncludeFilter extends XMLFilterImpl implements LexicalHandler {
+
+		private final IncludeCache cache;
+
+		private final Deque<Frame> frames;
+
+		private final List<String[]> pendingMappings;
+
+		private String documentBase;
+
+		private boolean forwardingEndMappings;
+
+		private LexicalHandler lexicalHandler;
+
+		private IncludeFilter(IncludeCache cache, XMLReader parent) {
+
+			super(parent);
+
+			this.cache = cache;
+			this.frames = new ArrayDeque<Frame>();
+			this.pendingMappings = new ArrayList<String[]>();
+
+			// Keep the parent's handlers, rather than a previous filter's
+			EntityResolver resolver = parent.getEntityResolver();
+			while (resolver instanceof IncludeFilter) {
+				resolver = ((IncludeFilter) resolver).getEntityResolver();
+			}
+			this.setEntityResolver(resolver);
+
+			ErrorHandler handler = parent.getErrorHandler();
+			while (handler instanceof IncludeFilter) {
+				handler = ((IncludeFilter) handler).getErrorHandler();
+			}
+			this.setErrorHandler(handler);
+
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			if (this.isForwarding()) {
+				super.characters(ch, start, length);
+			}
+		}
+
+		@Override
+		public void comment(char[] ch, int start, int length) throws SAXException {
+			if (this.lexicalHandler != null && this.isForwarding()) {
+				this.lexicalHandler.comment(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endCDATA() throws SAXException {
+			if (this.lexicalHandler != null && this.isForwarding()) {
+				this.lexicalHandler.endCDATA();
+			}
+		}
+
+		@Override
+		public void endDTD() throws SAXException {
+			if (this.lexicalHandler != null) {
+				this.lexicalHandler.endDTD();
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+
+			Frame frame = this.frames.pop();
+
+			this.forwardingEndMappings = (frame.state == State.PASS);
+			if (this.forwardingEndMappings) {
+				super.endElement(uri, localName, qName);
+			}
+
+			if (frame.state == State.FAILED && !frame.fallback) {
+				throw new SAXException("Unable to include " + frame.failure.getMessage(), frame.failure);
+			}
+
+		}
+
+		@Override
+		public void endEntity(String name) throws SAXException {
+			if (this.lexicalHandler != null && this.isForwarding()) {
+				this.lexicalHandler.endEntity(name);
+			}
+		}
+
+		@Override
+		public void endPrefixMapping(String prefix) throws SAXException {
+			if (this.forwardingEndMappings) {
+				super.endPrefixMapping(prefix);
+			}
+		}
+
+		@Override
+		public Object getProperty(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
+
+			if (IncludeCache.LEXICAL_HANDLER.equals(name)) {
+				return this.lexicalHandler;
+			}
+
+			return super.getProperty(name);
+
+		}
+
+		@Override
+		public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+			if (this.isForwarding()) {
+				super.ignorableWhitespace(ch, start, length);
+			}
+		}
+
+		@Override
+		public void parse(InputSource input) throws SAXException, IOException {
+
+			// Comments reach the handler through this filter, so that those inside an xi:include are dropped
+			if (this.lexicalHandler != null) {
+				this.getParent().setProperty(IncludeCache.LEXICAL_HANDLER, this);
+			}
+
+			this.documentBase = input.getSystemId();
+			super.parse(input);
+
+		}
+
+		@Override
+		public void processingInstruction(String target, String data) throws SAXException {
+			if (this.isForwarding()) {
+				super.processingInstruction(target, data);
+			}
+		}
+
+		@Override
+		public void setDocumentLocator(Locator locator) {
+
+			if (locator.getSystemId() != null) {
+				this.documentBase = locator.getSystemId();
+			}
+
+			super.setDocumentLocator(locator);
+
+		}
+
+		@Override
+		public void setProperty(String name, Object value) throws SAXNotRecognizedException, SAXNotSupportedException {
+
+			if (IncludeCache.LEXICAL_HANDLER.equals(name)) {
+				this.lexicalHandler = (LexicalHandler) value;
+				return;
+			}
+
+			super.setProperty(name, value);
+
+		}
+
+		@Override
+		public void startCDATA() throws SAXException {
+			if (this.lexicalHandler != null && this.isForwarding()) {
+				this.lexicalHandler.startCDATA();
+			}
+		}
+
+		@Override
+		public void startDTD(String name, String publicId, String systemId) throws SAXException {
+			if (this.lexicalHandler != null) {
+				this.lexicalHandler.startDTD(name, publicId, systemId);
+			}
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+
+			Frame parent = this.frames.peek();
+
+			if (parent != null && (parent.state == State.INCLUDED || parent.state == State.SKIPPED)) {
+				this.skip();
+				return;
+			}
+
+			if (parent != null && parent.state == State.FAILED) {
+
+				if (IncludeCache.isElement(uri, localName, "fallback") && !parent.fallback) {
+					parent.fallback = true;
+					this.pendingMappings.clear();
+					this.frames.push(new Frame(State.FALLBACK, parent.base, null));
+				} else {
+					this.skip();
+				}
+
+				return;
+
+			}
+
+			String base = (parent == null) ? this.documentBase : parent.base;
+			String xmlBase = atts.getValue(XMLConstants.XML_NS_URI, "base");
+			if (xmlBase != null) {
+				String resolved = DocumentCache.resolveURI(xmlBase, base);
+				base = (resolved == null) ? base : resolved;
+			}
+
+			if (IncludeCache.isElement(uri, localName, "include")) {
+
+				this.pendingMappings.clear();
+
+				try {
+					this.include(atts, base);
+					this.frames.push(new Frame(State.INCLUDED, base, null));
+				} catch (IOException e) {
+					this.frames.push(new Frame(State.FAILED, base, e));
+				}
+
+				return;
+
+			}
+
+			for (String[] mapping : this.pendingMappings) {
+				super.startPrefixMapping(mapping[0], mapping[1]);
+			}
+			this.pendingMappings.clear();
+
+			super.startElement(uri, localName, qName, atts);
+			this.frames.push(new Frame(State.PASS, base, null));
+
+		}
+
+		@Override
+		public void startEntity(String name) throws SAXException {
+			if (this.lexicalHandler != null && this.isForwarding()) {
+				this.lexicalHandler.startEntity(name);
+			}
+		}
+
+		@Override
+		public void startPrefixMapping(String prefix, String uri) throws SAXException {
+			// Held until it's known whether the element is passed on
+			this.pendingMappings.add(new String[] { prefix, uri });
+		}
+
+		/**
+		 * Replays the target of an xi:include in its place.
+		 */
+		private void include(Attributes atts, String base) throws SAXException, IOException {
+
+			String href = IncludeCache.valueOf(atts.getValue("href"), "");
+			String uri = DocumentCache.resolveURI(href, base);
+
+			if ("text".equals(atts.getValue("parse"))) {
+				char[] text = this.cache.getText(uri, IncludeCache.valueOf(atts.getValue("encoding"), IncludeCache.DEFAULT_ENCODING), new HashMap<File, long[]>()).toCharArray();
+				super.characters(text, 0, text.length);
+				return;
+			}
+
+			Deque<String> stack = new ArrayDeque<String>();
+			if (this.documentBase != null) {
+				stack.push(this.documentBase);
+			}
+
+			for (Node node : this.cache.getNodes(uri, atts.getValue("xpointer"), stack, new HashMap<File, long[]>())) {
+				this.replay(node, (href.length() > 0) ? href : null, true);
+			}
+
+		}
+
+		/**
+		 * @return true if events at the current position are passed on.
+		 */
+		private boolean isForwarding() {
+			Frame frame = this.frames.peek();
+			return frame == null || frame.state == State.PASS || frame.state == State.FALLBACK;
+		}
+
+		/**
+		 * Sends the node specified, and everything below it, to the handlers as
+		 * if it had been parsed here.
+		 */
+		private void replay(Node node, String xmlBase, boolean top) throws SAXException {
+
+			switch (node.getNodeType()) {
+
+				case Node.ELEMENT_NODE:
+
+					Element element = (Element) node;
+
+					// The namespaces in scope where the element was, not just those it declares
+					Map<String, String> declarations = new LinkedHashMap<String, String>();
+					for (Node scope = element; scope != null && scope.getNodeType() == Node.ELEMENT_NODE; scope = top ? scope.getParentNode() : null) {
+
+						NamedNodeMap attributes = scope.getAttributes();
+						for (int i = 0; i < attributes.getLength(); i++) {
+
+							Attr attribute = (Attr) attributes.item(i);
+							if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+
+								String prefix = XMLConstants.XMLNS_ATTRIBUTE.equals(attribute.getLocalName()) ? "" : attribute.getLocalName();
+								if (!declarations.containsKey(prefix)) {
+									declarations.put(prefix, attribute.getValue());
+								}
+
+							}
+
+						}
+
+					}
+
+					AttributesImpl atts = new AttributesImpl();
+					NamedNodeMap attributes = element.getAttributes();
+					for (int i = 0; i < attributes.getLength(); i++) {
+
+						Attr attribute = (Attr) attributes.item(i);
+						if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+							atts.addAttribute(IncludeCache.valueOf(attribute.getNamespaceURI(), ""), attribute.getLocalName(), attribute.getName(), "CDATA", attribute.getValue());
+						}
+
+					}
+
+					if (xmlBase != null && !element.hasAttributeNS(XMLConstants.XML_NS_URI, "base")) {
+						atts.addAttribute(XMLConstants.XML_NS_URI, "base", "xml:base", "CDATA", xmlBase);
+					}
+
+					for (Map.Entry<String, String> declaration : declarations.entrySet()) {
+						super.startPrefixMapping(declaration.getKey(), declaration.getValue());
+					}
+
+					super.startElement(IncludeCache.valueOf(element.getNamespaceURI(), ""), element.getLocalName(), element.getNodeName(), atts);
+					for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+						this.replay(child, null, false);
+					}
+					super.endElement(IncludeCache.valueOf(element.getNamespaceURI(), ""), element.getLocalName(), element.getNodeName());
+
+					for (String prefix : declarations.keySet()) {
+						super.endPrefixMapping(prefix);
+					}
+
+					break;
+
+				case Node.TEXT_NODE:
+				case Node.CDATA_SECTION_NODE:
+					char[] text = node.getNodeValue().toCharArray();
+					super.characters(text, 0, text.length);
+					break;
+
+				case Node.COMMENT_NODE:
+					if (this.lexicalHandler != null) {
+						char[] comment = node.getNodeValue().toCharArray();
+						this.lexicalHandler.comment(comment, 0, comment.length);
+					}
+					break;
+
+				case Node.PROCESSING_INSTRUCTION_NODE:
+					super.processingInstruction(node.getNodeName(), node.getNodeValue());
+					break;
+
+				default:
+					// Nothing else is included.
+
+			}
+
+		}
+
+		/**
+		 * Drops the element being started, and everything below it.
+		 */
+		private void skip() {
+			this.pendingMappings.clear();
+			this.frames.push(new Frame(State.SKIPPED, null, null));
+		}
+
+	}
+
+	/**
+	 * How an IncludeFilter treats an element.
+	 */
+	private enum State {
+
+		/**
+		 * An ordinary element, passed on.
+		 */
+		PASS,
+
+		/**
+		 * An xi:include whose target has been replayed in its place.
+		 */
+		INCLUDED,
+
+		/**
+		 * An xi:include whose target couldn't be read.
+		 */
+		FAILED,
+
+		/**
+		 * The xi:fallback of a failed xi:include; its content is passed on.
+		 */
+		FALLBACK,
+
+		/**
+		 * An element below an xi:include, dropped.
+		 */
+		SKIPPED
+
+	}
+
+	/**
+	 * The default maximum total size, in bytes, of the files whose content is
+	 * held by an instance of IncludeCache.
+	 */
+	public static final long DEFAULT_MAXIMUM_BYTES = 16L * 1024L * 1024L;
+
+	/**
+	 * The XInclude namespace.
+	 */
+	public static final String NAMESPACE = "http://www.w3.org/2001/XInclude";
+
+	/**
+	 * The encoding of a target included as text, unless the xi:include names
+	 * another.
+	 */
+	private static final String DEFAULT_ENCODING = "UTF-8";
+
+	/**
+	 * The Xerces feature that controls whether a DOM is built lazily. Cached
+	 * targets are built in full, so that reading them doesn't change them.
+	 */
+	private static final String DEFER_NODE_EXPANSION = "http://apache.org/xml/features/dom/defer-node-expansion";
+
+	/**
+	 * The SAX property holding a reader's LexicalHandler.
+	 */
+	private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+	/**
+	 * Matches a shorthand pointer: a bare ID.
+	 */
+	private static final Pattern SHORTHAND = Pattern.compile("[\\p{L}_][\\p{L}\\p{N}_.\\-]*");
+
+	/**
+	 * Matches each part of a scheme-based pointer.
+	 */
+	private static final Pattern POINTER_PART = Pattern.compile("([\\p{L}_][\\p{L}\\p{N}_.\\-:]*)\\(([^)]*)\\)");
+
+	/**
+	 * The DocumentBuilderFactory used to parse targets.
+	 */
+	private final DocumentBuilderFactory documentBuilderFactory;
+
+	/**
+	 * The targets currently held, by resolved URI.
+	 */
+	private final LruCache<Entry> entries;
+
+	/**
+	 * The EntityResolver used when reading targets, or null.
+	 */
+	private final EntityResolver entityResolver;
+
+	/**
+	 * @param entityResolver
+	 *            the EntityResolver to use when reading targets, or null.
+	 * @param maximumBytes
+	 *            the maximum total size, in bytes, of the files whose content
+	 *            is held at any one time.
+	 */
+	public IncludeCache(EntityResolver entityResolver, long maximumBytes) {
+
+		if (maximumBytes < 1) {
+			throw new IllegalArgumentException("Maximum bytes must be at least 1.");
+		}
+
+		this.entityResolver = entityResolver;
+		this.entries = new LruCache<Entry>(maximumBytes);
+
+		this.documentBuilderFactory = PrimedTransformer.newDocumentBuilderFactory();
+		try {
+			this.documentBuilderFactory.setFeature(IncludeCache.DEFER_NODE_EXPANSION, false);
+		} catch (ParserConfigurationException e) {
+			// Not a parser that defers.
+		}
+
+	}
+
+	/**
+	 * Removes all targets from the cache. The hit, miss and eviction counts
+	 * are left as they are.
+	 */
+	public void clear() {
+		this.entries.clear();
+	}
+
+	/**
+	 * @return the number of targets removed from the cache, either to make
+	 *         room for another or because a file had changed.
+	 */
+	public long getEvictions() {
+		return this.entries.getEvictions();
+	}
+
+	/**
+	 * @return the number of lookups that found a current target.
+	 */
+	public long getHits() {
+		return this.entries.getHits();
+	}
+
+	/**
+	 * @return the maximum total size, in bytes, of the files whose content is
+	 *         held at any one time.
+	 */
+	public long getMaximumBytes() {
+		return this.entries.getMaximumWeight();
+	}
+
+	/**
+	 * @return the number of lookups that didn't find a current target.
+	 */
+	public long getMisses() {
+		return this.entries.getMisses();
+	}
+
+	/**
+	 * @return the total size, in bytes, of the files whose content is
+	 *         currently held.
+	 */
+	public long getTotalBytes() {
+		return this.entries.getTotalWeight();
+	}
+
+	/**
+	 * Replaces every xi:include in the DOM Document supplied with the target
+	 * it refers to, or with the content of its xi:fallback if the target can't
+	 * be read. Top-level elements taken from another document are given an
+	 * xml:base attribute, as by Xerces.
+	 *
+	 * @param document
+	 *            the DOM Document to resolve XIncludes in.
+	 * @throws SAXException
+	 *             if a target can't be read and there's no xi:fallback, can't
+	 *             be parsed, or includes itself.
+	 */
+	public void include(Document document) throws SAXException {
+
+		Deque<String> stack = new ArrayDeque<String>();
+		if (document.getDocumentURI() != null) {
+			stack.push(document.getDocumentURI());
+		}
+
+		this.expand(document, stack, new HashMap<File, long[]>());
+
+	}
+
+	/**
+	 * Creates a filter that replaces each xi:include read by the XMLReader
+	 * supplied with the target it refers to, or with the content of its
+	 * xi:fallback if the target can't be read. The filter takes on the
+	 * reader's EntityResolver and ErrorHandler. Use a new filter for each
+	 * parse.
+	 *
+	 * @param parent
+	 *            the XMLReader to filter.
+	 * @return a new filter.
+	 */
+	public XMLFilter newFilter(XMLReader parent) {
+		return new IncludeFilter(this, parent);
+	}
+
+	/**
+	 * @return the number of targets currently held.
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Replaces every xi:include below the node specified.
+	 *
+	 * @param stack
+	 *            the URIs of the documents being expanded, innermost first.
+	 * @param stamps
+	 *            collects the state of every file read.
+	 */
+	private void expand(Node node, Deque<String> stack, Map<File, long[]> stamps) throws SAXException {
+
+		Node child = node.getFirstChild();
+		while (child != null) {
+
+			Node next = child.getNextSibling();
+
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				if (IncludeCache.isElement(child.getNamespaceURI(), child.getLocalName(), "include")) {
+					this.replace((Element) child, stack, stamps);
+				} else {
+					this.expand(child, stack, stamps);
+				}
+			}
+
+			child = next;
+
+		}
+
+	}
+
+	/**
+	 * Retrieves the entry for the target specified, reading it first if
+	 * there isn't a current copy.
+	 *
+	 * @param encoding
+	 *            the encoding of a target included as text, or null for one
+	 *            included as XML.
+	 * @throws IOException
+	 *             if the target can't be read.
+	 * @throws SAXException
+	 *             if the target can't be parsed.
+	 */
+	private Entry getEntry(String uri, String encoding, Deque<String> stack, Map<File, long[]> stamps) throws SAXException, IOException {
+
+		String key = (encoding == null) ? uri : uri + "#text/" + encoding;
+
+		Entry entry = this.entries.get(key);
+		if (entry != null) {
+			stamps.putAll(entry.stamps);
+			return entry;
+		}
+
+		// Note the state of the file before it's read
+		Map<File, long[]> read = new HashMap<File, long[]>();
+		File file = TemplatesCache.toFile(uri);
+		if (file != null) {
+			LruCache.stamp(file, read);
+		}
+
+		if (encoding == null) {
+			entry = new Entry(this.parse(uri, stack, read), null, read);
+		} else {
+			entry = new Entry(null, this.read(uri, encoding), read);
+		}
+
+		stamps.putAll(read);
+
+		if (file != null) {
+			this.entries.put(key, entry, entry.length, entry.stamps);
+		}
+
+		return entry;
+
+	}
+
+	/**
+	 * Retrieves the nodes an xi:include of XML refers to: the children of the
+	 * target document, or the element its pointer selects.
+	 *
+	 * @throws IOException
+	 *             if the target can't be read, or the pointer selects nothing.
+	 * @throws SAXException
+	 *             if the target can't be parsed, or includes itself.
+	 */
+	private List<Node> getNodes(String uri, String xpointer, Deque<String> stack, Map<File, long[]> stamps) throws SAXException, IOException {
+
+		if (uri == null) {
+			throw new IOException("a document that isn't identified by its href.");
+		}
+
+		if (stack.contains(uri)) {
+			throw new SAXException("Inclusion loop: " + uri + " includes itself.");
+		}
+
+		Entry entry = this.getEntry(uri, null, stack, stamps);
+
+		List<Node> nodes = new ArrayList<Node>();
+
+		if (xpointer != null) {
+
+			Node selected = entry.selections.get(xpointer);
+			if (selected == null) {
+
+				selected = IncludeCache.select(entry.document, xpointer);
+				if (selected == null) {
+					throw new IOException(uri + ": the pointer " + xpointer + " selects nothing.");
+				}
+
+				entry.selections.putIfAbsent(xpointer, selected);
+
+			}
+
+			nodes.add(selected);
+			return nodes;
+
+		}
+
+		for (Node child = entry.document.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+				nodes.add(child);
+			}
+		}
+
+		return nodes;
+
+	}
+
+	/**
+	 * Retrieves the text an xi:include of text refers to.
+	 *
+	 * @throws IOException
+	 *             if the target can't be read.
+	 */
+	private String getText(String uri, String encoding, Map<File, long[]> stamps) throws SAXException, IOException {
+
+		if (uri == null) {
+			throw new IOException("a document that isn't identified by its href.");
+		}
+
+		return this.getEntry(uri, encoding, null, stamps).text;
+
+	}
+
+	/**
+	 * Parses the target at the URI specified and resolves its own XIncludes.
+	 */
+	private Document parse(String uri, Deque<String> stack, Map<File, long[]> stamps) throws SAXException, IOException {
+
+		DocumentBuilder builder;
+		try {
+			synchronized (this.documentBuilderFactory) {
+				builder = this.documentBuilderFactory.newDocumentBuilder();
+			}
+		} catch (ParserConfigurationException e) {
+			throw new SAXException(e);
+		}
+
+		InputSource input = null;
+		if (this.entityResolver != null) {
+			builder.setEntityResolver(this.entityResolver);
+			input = this.entityResolver.resolveEntity(null, uri);
+		}
+		if (input == null) {
+			input = new InputSource(uri);
+		}
+
+		Document document = builder.parse(input);
+
+		stack.push(uri);
+		try {
+			this.expand(document, stack, stamps);
+		} finally {
+			stack.pop();
+		}
+
+		return document;
+
+	}
+
+	/**
+	 * Reads the target at the URI specified as text.
+	 */
+	private String read(String uri, String encoding) throws IOException {
+
+		InputStream in = new URL(uri).openStream();
+		try {
+			return IOUtils.toString(in, encoding);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+
+	}
+
+	/**
+	 * Replaces an xi:include in a DOM with the target it refers to, or with
+	 * the content of its xi:fallback.
+	 */
+	private void replace(Element include, Deque<String> stack, Map<File, long[]> stamps) throws SAXException {
+
+		String href = include.getAttribute("href");
+		String uri = DocumentCache.resolveURI(href, include.getBaseURI());
+
+		Document owner = include.getOwnerDocument();
+		Node parent = include.getParentNode();
+
+		try {
+
+			if ("text".equals(include.getAttribute("parse"))) {
+
+				String encoding = include.hasAttribute("encoding") ? include.getAttribute("encoding") : IncludeCache.DEFAULT_ENCODING;
+				parent.insertBefore(owner.createTextNode(this.getText(uri, encoding, stamps)), include);
+
+			} else {
+
+				String xpointer = include.hasAttribute("xpointer") ? include.getAttribute("xpointer") : null;
+				for (Node node : this.getNodes(uri, xpointer, stack, stamps)) {
+
+					Node copy = owner.importNode(node, true);
+					if (copy.getNodeType() == Node.ELEMENT_NODE && href.length() > 0 && !((Element) copy).hasAttributeNS(XMLConstants.XML_NS_URI, "base")) {
+						((Element) copy).setAttributeNS(XMLConstants.XML_NS_URI, "xml:base", href);
+					}
+
+					parent.insertBefore(copy, include);
+
+				}
+
+			}
+
+		} catch (IOException e) {
+
+			Element fallback = null;
+			for (Node child = include.getFirstChild(); child != null && fallback == null; child = child.getNextSibling()) {
+				if (child.getNodeType() == Node.ELEMENT_NODE && IncludeCache.isElement(child.getNamespaceURI(), child.getLocalName(), "fallback")) {
+					fallback = (Element) child;
+				}
+			}
+
+			if (fallback == null) {
+				throw new SAXException("Unable to include " + e.getMessage(), e);
+			}
+
+			this.expand(fallback, stack, stamps);
+			while (fallback.getFirstChild() != null) {
+				parent.insertBefore(fallback.getFirstChild(), include);
+			}
+
+		}
+
+		parent.removeChild(include);
+
+	}
+
+	/**
+	 * @return the n-th child element (counting from 1) of the node specified,
+	 *         or null if there isn't one.
+	 */
+	private static Node childElement(Node node, int n) {
+
+		int count = 0;
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE && ++count == n) {
+				return child;
+			}
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * @return the element with the ID specified, declared as such by a DTD or
+	 *         given by xml:id, or null if there isn't one.
+	 */
+	private static Node findById(Node node, String id) {
+
+		if (node.getNodeType() == Node.DOCUMENT_NODE) {
+			Element element = ((Document) node).getElementById(id);
+			if (element != null) {
+				return element;
+			}
+		}
+
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+
+				if (id.equals(((Element) child).getAttributeNS(XMLConstants.XML_NS_URI, "id"))) {
+					return child;
+				}
+
+				Node found = IncludeCache.findById(child, id);
+				if (found != null) {
+					return found;
+				}
+
+			}
+
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * @return true if the name specified is that of the XInclude element
+	 *         specified.
+	 */
+	private static boolean isElement(String uri, String localName, String name) {
+		return IncludeCache.NAMESPACE.equals(uri) && name.equals(localName);
+	}
+
+	/**
+	 * Finds the element a pointer selects: by ID for a shorthand pointer, or
+	 * by the first element() part that selects anything. Parts using other
+	 * schemes are skipped.
+	 *
+	 * @return the element selected, or null if there isn't one.
+	 */
+	private static Node select(Document document, String xpointer) {
+
+		String pointer = xpointer.trim();
+		if (IncludeCache.SHORTHAND.matcher(pointer).matches()) {
+			return IncludeCache.findById(document, pointer);
+		}
+
+		Matcher part = IncludeCache.POINTER_PART.matcher(pointer);
+		while (part.find()) {
+
+			if (!"element".equals(part.group(1))) {
+				continue;
+			}
+
+			String[] steps = part.group(2).trim().split("/");
+
+			Node node = (steps[0].length() == 0) ? document : IncludeCache.findById(document, steps[0]);
+			for (int i = 1; i < steps.length && node != null; i++) {
+				try {
+					node = IncludeCache.childElement(node, Integer.parseInt(steps[i]));
+				} catch (NumberFormatException e) {
+					node = null;
+				}
+			}
+
+			if (node != null && node != document) {
+				return node;
+			}
+
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * @return the value supplied, or the default if it's null.
+	 */
+	private static String valueOf(String value, String defaultValue) {
+		return (value == null) ? defaultValue : value;
+	}
+
+}
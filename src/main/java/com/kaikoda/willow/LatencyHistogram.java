@@ -0,0 +1,212 @@
+/*
+ * LatencyHistogram
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in nanoseconds, that can be recorded to by any
+ * number of threads at once without taking a lock.
+ *
+ * Values are counted in buckets that are linear within each power of two,
+ * eight to a power, so a percentile is accurate to within about 12%. Values
+ * below 8 are counted exactly. Percentiles are read from the counts at the
+ * time they're asked for; they aren't a consistent snapshot while values are
+ * still being recorded.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * The number of bits of each value, after its highest bit, used to choose
+	 * a bucket within its power of two.
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	/**
+	 * The number of buckets within each power of two.
+	 */
+	private static final int SUB_BUCKETS = 1 << LatencyHistogram.SUB_BUCKET_BITS;
+
+	/**
+	 * The total number of buckets, enough for any non-negative long.
+	 */
+	private static final int BUCKETS = (64 - LatencyHistogram.SUB_BUCKET_BITS) * LatencyHistogram.SUB_BUCKETS;
+
+	/**
+	 * The number of values recorded in each bucket.
+	 */
+	private final AtomicLongArray buckets;
+
+	/**
+	 * The number of values recorded.
+	 */
+	private final AtomicLong count;
+
+	/**
+	 * The largest value recorded.
+	 */
+	private final AtomicLong maximum;
+
+	/**
+	 * The sum of the values recorded.
+	 */
+	private final AtomicLong total;
+
+	/**
+	 * Default constructor.
+	 */
+	public LatencyHistogram() {
+		this.buckets = new AtomicLongArray(LatencyHistogram.BUCKETS);
+		this.count = new AtomicLong();
+		this.maximum = new AtomicLong();
+		this.total = new AtomicLong();
+	}
+
+	/**
+	 * @return the number of values recorded.
+	 */
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * @return the largest value recorded, in nanoseconds.
+	 */
+	public long getMaximum() {
+		return this.maximum.get();
+	}
+
+	/**
+	 * @return the mean of the values recorded, in nanoseconds, or 0 if none
+	 *         have been.
+	 */
+	public long getMean() {
+
+		long values = this.count.get();
+		if (values == 0) {
+			return 0L;
+		}
+
+		return this.total.get() / values;
+
+	}
+
+	/**
+	 * Estimates the value below which the fraction of values specified fall.
+	 *
+	 * @param fraction
+	 *            the fraction of values, eg. 0.99 for the 99th percentile.
+	 * @return the upper bound of the bucket holding that value, in
+	 *         nanoseconds (never more than the largest value recorded), or 0
+	 *         if no values have been recorded.
+	 */
+	public long getPercentile(double fraction) {
+
+		if (fraction < 0 || fraction > 1) {
+			throw new IllegalArgumentException("Fraction must be between 0 and 1.");
+		}
+
+		long values = 0L;
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+			values += this.buckets.get(i);
+		}
+
+		if (values == 0) {
+			return 0L;
+		}
+
+		long rank = Math.max(1L, (long) Math.ceil(fraction * values));
+
+		long seen = 0L;
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+			seen += this.buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(LatencyHistogram.upperBound(i), this.maximum.get());
+			}
+		}
+
+		return this.maximum.get();
+
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param nanoseconds
+	 *            the latency to record. Negative values are recorded as 0.
+	 */
+	public void record(long nanoseconds) {
+
+		long value = Math.max(0L, nanoseconds);
+
+		this.buckets.incrementAndGet(LatencyHistogram.indexOf(value));
+		this.count.incrementAndGet();
+		this.total.addAndGet(value);
+
+		long current = this.maximum.get();
+		while (value > current && !this.maximum.compareAndSet(current, value)) {
+			current = this.maximum.get();
+		}
+
+	}
+
+	/**
+	 * Forgets every value recorded.
+	 */
+	public void reset() {
+
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+			this.buckets.set(i, 0L);
+		}
+
+		this.count.set(0L);
+		this.total.set(0L);
+		this.maximum.set(0L);
+
+	}
+
+	/**
+	 * @return the index of the bucket that counts the value specified.
+	 */
+	static int indexOf(long value) {
+
+		if (value < LatencyHistogram.SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) ((value >>> (exponent - LatencyHistogram.SUB_BUCKET_BITS)) & (LatencyHistogram.SUB_BUCKETS - 1));
+
+		return (exponent - LatencyHistogram.SUB_BUCKET_BITS + 1) * LatencyHistogram.SUB_BUCKETS + subBucket;
+
+	}
+
+	/**
+	 * @return the largest value counted by the bucket specified.
+	 */
+	static long upperBound(int index) {
+
+		if (index < LatencyHistogram.SUB_BUCKETS) {
+			return index;
+		}
+
+		int shift = index / LatencyHistogram.SUB_BUCKETS - 1;
+		long lower = (long) (LatencyHistogram.SUB_BUCKETS + index % LatencyHistogram.SUB_BUCKETS) << shift;
+
+		return lower + (1L << shift) - 1;
+
+	}
+
+}
@@ -0,0 +1,343 @@
+/*
+ * LruCache
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bounded, least-recently-used store behind each of the caches in this
+ * package.
+ *
+ * Each value is held with a weight (its size in bytes, or 1 where the bound
+ * is a count) and, optionally, the last-modified time and length of every
+ * local file it was built from. A value is discarded on lookup as soon as
+ * any of those files changes. When the total weight grows beyond the maximum,
+ * the entries that have gone longest without being used are evicted.
+ *
+ * Lookups don't lock: entries are held in a ConcurrentHashMap and the least
+ * recently used entry is only searched for when the store grows beyond its
+ * maximum.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ * @param <V>
+ *            the type of value held.
+ */
+class LruCache<V> {
+
+	/**
+	 * A value, together with the details needed to decide whether it's still
+	 * current and when it was last used.
+	 */
+	private static class Entry<V> {
+
+		private final Map<File, long[]> stamps;
+
+		private final V value;
+
+		private final long weight;
+
+		private volatile long lastAccessed;
+
+		private Entry(V value, long weight, Map<File, long[]> stamps, long lastAccessed) {
+			this.value = value;
+			this.weight = weight;
+			this.stamps = stamps;
+			this.lastAccessed = lastAccessed;
+		}
+
+	}
+
+	/**
+	 * A counter used to order entries by how recently they were used.
+	 */
+	private final AtomicLong clock;
+
+	/**
+	 * The values currently held, by key.
+	 */
+	private final ConcurrentHashMap<String, Entry<V>> entries;
+
+	/**
+	 * The number of values removed to stay within the maximum weight, or
+	 * because a file had changed.
+	 */
+	private final AtomicLong evictions;
+
+	/**
+	 * The number of lookups that found a current value.
+	 */
+	private final AtomicLong hits;
+
+	/**
+	 * The maximum total weight of the values held at any one time.
+	 */
+	private final long maximumWeight;
+
+	/**
+	 * The number of lookups that didn't find a current value.
+	 */
+	private final AtomicLong misses;
+
+	/**
+	 * The total weight of the values currently held.
+	 */
+	private final AtomicLong totalWeight;
+
+	/**
+	 * @param maximumWeight
+	 *            the maximum total weight of the values held at any one time.
+	 */
+	LruCache(long maximumWeight) {
+		this.maximumWeight = maximumWeight;
+		this.entries = new ConcurrentHashMap<String, Entry<V>>();
+		this.clock = new AtomicLong();
+		this.totalWeight = new AtomicLong();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.evictions = new AtomicLong();
+	}
+
+	/**
+	 * Removes every value. The hit, miss and eviction counts are left as they
+	 * are.
+	 */
+	void clear() {
+		for (String key : this.entries.keySet()) {
+			Entry<V> entry = this.entries.remove(key);
+			if (entry != null) {
+				this.totalWeight.addAndGet(-entry.weight);
+			}
+		}
+	}
+
+	/**
+	 * Retrieves the value stored under the key specified, counting a hit or
+	 * a miss. A value built from a file that has since changed is discarded,
+	 * unless the key isn't checked.
+	 *
+	 * @return the value, or null if there isn't a current one.
+	 */
+	V get(String key) {
+
+		Entry<V> entry = this.entries.get(key);
+		if (entry != null) {
+
+			if (!this.isChecked(key) || LruCache.isCurrent(entry.stamps)) {
+				entry.lastAccessed = this.clock.incrementAndGet();
+				this.hits.incrementAndGet();
+				return entry.value;
+			}
+
+			// A file has changed since the value was built.
+			if (this.discard(key, entry)) {
+				this.evictions.incrementAndGet();
+			}
+
+		}
+
+		this.misses.incrementAndGet();
+		return null;
+
+	}
+
+	/**
+	 * @return the number of values removed, either to make room for another or
+	 *         because a file had changed.
+	 */
+	long getEvictions() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * @return the number of lookups that found a current value.
+	 */
+	long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return the maximum total weight of the values held at any one time.
+	 */
+	long getMaximumWeight() {
+		return this.maximumWeight;
+	}
+
+	/**
+	 * @return the number of lookups that didn't find a current value.
+	 */
+	long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Returns the last-modified time and length of each local file the value
+	 * stored under the key specified was built from, without counting a hit or
+	 * a miss.
+	 *
+	 * @return the stamps, or null if there isn't a value.
+	 */
+	Map<File, long[]> getStamps(String key) {
+		Entry<V> entry = this.entries.get(key);
+		return (entry == null) ? null : entry.stamps;
+	}
+
+	/**
+	 * @return the total weight of the values currently held.
+	 */
+	long getTotalWeight() {
+		return this.totalWeight.get();
+	}
+
+	/**
+	 * Decides whether the files behind the value stored under the key
+	 * specified are checked on lookup. Every key is checked unless a subclass
+	 * says otherwise.
+	 */
+	protected boolean isChecked(String key) {
+		return true;
+	}
+
+	/**
+	 * Stores a value, replacing any already stored under the same key, then
+	 * evicts the least recently used values until the total weight is within
+	 * the maximum. A value heavier than the maximum isn't stored.
+	 *
+	 * @param key
+	 *            the key to store the value under.
+	 * @param value
+	 *            the value.
+	 * @param weight
+	 *            the weight of the value.
+	 * @param stamps
+	 *            the last-modified time and length of each local file the
+	 *            value was built from, read <em>before</em> it was built, or
+	 *            null if it wasn't built from any.
+	 */
+	void put(String key, V value, long weight, Map<File, long[]> stamps) {
+
+		if (weight > this.maximumWeight) {
+			return;
+		}
+
+		Entry<V> entry = new Entry<V>(value, weight, (stamps == null) ? Collections.<File, long[]> emptyMap() : stamps, this.clock.incrementAndGet());
+
+		Entry<V> replaced = this.entries.put(key, entry);
+		this.totalWeight.addAndGet(weight - ((replaced == null) ? 0L : replaced.weight));
+
+		while (this.totalWeight.get() > this.maximumWeight && !this.entries.isEmpty()) {
+			this.evictLeastRecentlyUsed();
+		}
+
+	}
+
+	/**
+	 * Removes the value stored under the key specified, counting it as an
+	 * eviction.
+	 *
+	 * @return true if there was a value to remove.
+	 */
+	boolean remove(String key) {
+
+		Entry<V> entry = this.entries.get(key);
+		if (entry != null && this.discard(key, entry)) {
+			this.evictions.incrementAndGet();
+			return true;
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * @return the number of values currently held.
+	 */
+	int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Removes the entry specified, if it's still the entry for its key.
+	 *
+	 * @return true if the entry was removed.
+	 */
+	private boolean discard(String key, Entry<V> entry) {
+
+		if (this.entries.remove(key, entry)) {
+			this.totalWeight.addAndGet(-entry.weight);
+			return true;
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Removes the entry that has gone longest without being used.
+	 */
+	private void evictLeastRecentlyUsed() {
+
+		String eldestKey = null;
+		Entry<V> eldest = null;
+
+		for (Map.Entry<String, Entry<V>> candidate : this.entries.entrySet()) {
+			if (eldest == null || candidate.getValue().lastAccessed < eldest.lastAccessed) {
+				eldestKey = candidate.getKey();
+				eldest = candidate.getValue();
+			}
+		}
+
+		if (eldest != null && this.discard(eldestKey, eldest)) {
+			this.evictions.incrementAndGet();
+		}
+
+	}
+
+	/**
+	 * @return true if none of the files recorded has changed.
+	 */
+	static boolean isCurrent(Map<File, long[]> stamps) {
+
+		for (Map.Entry<File, long[]> stamp : stamps.entrySet()) {
+
+			File file = stamp.getKey();
+			if (file.lastModified() != stamp.getValue()[0] || file.length() != stamp.getValue()[1]) {
+				return false;
+			}
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Records the last-modified time and length of a file, adding them to the
+	 * stamps supplied.
+	 *
+	 * @return the length of the file.
+	 */
+	static long stamp(File file, Map<File, long[]> stamps) {
+
+		long lastModified = file.lastModified();
+		long length = file.length();
+
+		stamps.put(file, new long[] { lastModified, length });
+
+		return length;
+
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * MappedFileInputStream
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An InputStream that reads a file through memory-mapped regions of its
+ * FileChannel, rather than through read() calls into a buffer of its own. The
+ * bytes are copied once, from the page cache into the reader's array, which
+ * suits very large files read from start to end.
+ *
+ * A file larger than the region size is mapped one region at a time, as
+ * reading reaches it, so files of more than 2GB can be read. A region stays
+ * mapped until it's garbage collected; closing the stream only closes the
+ * channel.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class MappedFileInputStream extends InputStream {
+
+	/**
+	 * The default size, in bytes, of each mapped region.
+	 */
+	public static final int DEFAULT_REGION_SIZE = 256 * 1024 * 1024;
+
+	/**
+	 * The channel the regions are mapped from.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The position in the file at which the current region starts.
+	 */
+	private long offset;
+
+	/**
+	 * The region currently being read, or null before the first read.
+	 */
+	private MappedByteBuffer region;
+
+	/**
+	 * The maximum size, in bytes, of each mapped region.
+	 */
+	private final int regionSize;
+
+	/**
+	 * The length of the file, in bytes, when it was opened.
+	 */
+	private final long size;
+
+	/**
+	 * @param file
+	 *            the file to read.
+	 * @throws IOException
+	 *             if the file can't be opened.
+	 */
+	public MappedFileInputStream(File file) throws IOException {
+		this(file, MappedFileInputStream.DEFAULT_REGION_SIZE);
+	}
+
+	/**
+	 * @param file
+	 *            the file to read.
+	 * @param regionSize
+	 *            the maximum size, in bytes, of each mapped region.
+	 * @throws IOException
+	 *             if the file can't be opened.
+	 */
+	public MappedFileInputStream(File file, int regionSize) throws IOException {
+
+		if (regionSize < 1) {
+			throw new IllegalArgumentException("Region size must be at least 1.");
+		}
+
+		RandomAccessFile access = new RandomAccessFile(file, "r");
+
+		this.channel = access.getChannel();
+		this.regionSize = regionSize;
+		this.size = this.channel.size();
+
+	}
+
+	@Override
+	public int available() throws IOException {
+
+		if (this.region == null) {
+			return (int) Math.min(this.size, Integer.MAX_VALUE);
+		}
+
+		return (int) Math.min(this.size - this.offset - this.region.position(), Integer.MAX_VALUE);
+
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	@Override
+	public int read() throws IOException {
+
+		if (!this.next()) {
+			return -1;
+		}
+
+		return this.region.get() & 0xFF;
+
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+
+		if (length == 0) {
+			return 0;
+		}
+
+		if (!this.next()) {
+			return -1;
+		}
+
+		int count = Math.min(length, this.region.remaining());
+		this.region.get(bytes, offset, count);
+		return count;
+
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+
+		long skipped = 0;
+		while (skipped < count && this.next()) {
+
+			int step = (int) Math.min(count - skipped, this.region.remaining());
+			this.region.position(this.region.position() + step);
+			skipped = skipped + step;
+
+		}
+
+		return skipped;
+
+	}
+
+	/**
+	 * Makes sure there's a region with bytes remaining to be read, mapping
+	 * the next region of the file if the current one is exhausted.
+	 *
+	 * @return false if the end of the file has been reached.
+	 * @throws IOException
+	 *             if the next region can't be mapped.
+	 */
+	private boolean next() throws IOException {
+
+		if (this.region != null && this.region.hasRemaining()) {
+			return true;
+		}
+
+		long start = (this.region == null) ? 0L : this.offset + this.region.capacity();
+		if (start >= this.size) {
+			return false;
+		}
+
+		this.offset = start;
+		this.region = this.channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(this.regionSize, this.size - start));
+
+		return true;
+
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * PhaseSnapshot
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The figures recorded for one phase of the work done with one XSL
+ * Stylesheet, as they stood when the snapshot was taken. Latencies are in
+ * nanoseconds.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class PhaseSnapshot {
+
+	/**
+	 * The number of times the phase completed.
+	 */
+	private final long count;
+
+	/**
+	 * The number of times the phase failed.
+	 */
+	private final long errors;
+
+	/**
+	 * The longest time the phase took.
+	 */
+	private final long maximum;
+
+	/**
+	 * The mean time the phase took.
+	 */
+	private final long mean;
+
+	/**
+	 * The median time the phase took.
+	 */
+	private final long p50;
+
+	/**
+	 * The 95th percentile of the time the phase took.
+	 */
+	private final long p95;
+
+	/**
+	 * The 99th percentile of the time the phase took.
+	 */
+	private final long p99;
+
+	/**
+	 * @param count
+	 *            the number of times the phase completed.
+	 * @param errors
+	 *            the number of times the phase failed.
+	 * @param mean
+	 *            the mean time the phase took.
+	 * @param p50
+	 *            the median time the phase took.
+	 * @param p95
+	 *            the 95th percentile of the time the phase took.
+	 * @param p99
+	 *            the 99th percentile of the time the phase took.
+	 * @param maximum
+	 *            the longest time the phase took.
+	 */
+	@ConstructorProperties({ "count", "errors", "mean", "p50", "p95", "p99", "maximum" })
+	public PhaseSnapshot(long count, long errors, long mean, long p50, long p95, long p99, long maximum) {
+		this.count = count;
+		this.errors = errors;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p95 = p95;
+		this.p99 = p99;
+		this.maximum = maximum;
+	}
+
+	/**
+	 * @return the number of times the phase completed.
+	 */
+	public long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return the number of times the phase failed.
+	 */
+	public long getErrors() {
+		return this.errors;
+	}
+
+	/**
+	 * @return the longest time the phase took, in nanoseconds.
+	 */
+	public long getMaximum() {
+		return this.maximum;
+	}
+
+	/**
+	 * @return the mean time the phase took, in nanoseconds.
+	 */
+	public long getMean() {
+		return this.mean;
+	}
+
+	/**
+	 * @return the median time the phase took, in nanoseconds.
+	 */
+	public long getP50() {
+		return this.p50;
+	}
+
+	/**
+	 * @return the 95th percentile of the time the phase took, in nanoseconds.
+	 */
+	public long getP95() {
+		return this.p95;
+	}
+
+	/**
+	 * @return the 99th percentile of the time the phase took, in nanoseconds.
+	 */
+	public long getP99() {
+		return this.p99;
+	}
+
+}
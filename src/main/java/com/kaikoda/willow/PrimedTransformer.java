@@ -10,31 +10,67 @@
  */
 package com.kaikoda.willow;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.ErrorListener;
+import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
+import net.sf.saxon.Configuration;
+import net.sf.saxon.Controller;
+import net.sf.saxon.TransformerFactoryImpl;
 import net.sf.saxon.lib.FeatureKeys;
-
+import net.sf.saxon.lib.ParseOptions;
+import net.sf.saxon.lib.Validation;
+import net.sf.saxon.om.DocumentInfo;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.xerces.util.XMLCatalogResolver;
 import org.w3c.dom.Document;
+import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 /**
  * @author Sheila Ellen Thomson
@@ -42,6 +78,39 @@ import org.xml.sax.SAXException;
  */
 public class PrimedTransformer {
 
+	/**
+	 * The content of an XSL Stylesheet that isn't read from a local file,
+	 * copied so that it can be both hashed and compiled.
+	 */
+	private static class StylesheetContent {
+
+		private final byte[] bytes;
+
+		private final String systemId;
+
+		private final String text;
+
+		private StylesheetContent(byte[] bytes, String text, String systemId) {
+			this.bytes = bytes;
+			this.text = text;
+			this.systemId = systemId;
+		}
+
+		private long length() {
+			return (this.text == null) ? this.bytes.length : this.text.length();
+		}
+
+		private StreamSource newSource() {
+
+			StreamSource source = (this.text == null) ? new StreamSource(new ByteArrayInputStream(this.bytes)) : new StreamSource(new StringReader(this.text));
+			source.setSystemId(this.systemId);
+
+			return source;
+
+		}
+
+	}
+
 	/**
 	 * The string identifying the default TransformerFactoryImpl used by
 	 * instances of PrimedTransformer.
@@ -82,6 +151,12 @@ public class PrimedTransformer {
 	 */
 	private XMLCatalogResolver catalogResolver;
 
+	/**
+	 * The cache of parsed documents used to resolve documents loaded by the
+	 * XSL Stylesheet, or null if documents aren't cached.
+	 */
+	private DocumentCache documentCache;
+
 	/**
 	 * The DocumentBuilder used when creating a DOM Document.
 	 */
@@ -94,10 +169,47 @@ public class PrimedTransformer {
 	private final DocumentBuilderFactory documentBuilderFactory;
 
 	/**
-	 * The current XSL Stylesheet used when executing a transformation with this
-	 * instance of PrimedTransformer.
+	 * The pool that DocumentBuilders are borrowed from when creating a DOM
+	 * Document, or null if this instance's own DocumentBuilder is used.
+	 */
+	private DocumentBuilderPool documentBuilderPool;
+
+	/**
+	 * The EntityResolver used when parsing XML documents, or null if the
+	 * parser's default resolution applies.
+	 */
+	private EntityResolver entityResolver;
+
+	/**
+	 * The cache of XInclude targets used to resolve XIncludes in the XML
+	 * parsed, or null if XIncludes are left to the DocumentBuilder.
+	 */
+	private IncludeCache includeCache;
+
+	/**
+	 * The size, in bytes, from which XML files are read through memory-mapped
+	 * regions rather than buffered streams, or a negative number if they never
+	 * are.
+	 */
+	private long mappedInputThreshold;
+
+	/**
+	 * The metrics that work done by this instance of PrimedTransformer is
+	 * recorded to, or null if it isn't recorded.
+	 */
+	private TransformerMetrics metrics;
+
+	/**
+	 * The cache of serialized results consulted before transforming, or null
+	 * if results aren't cached.
+	 */
+	private ResultCache resultCache;
+
+	/**
+	 * The compiled form of the current XSL Stylesheet used when executing a
+	 * transformation with this instance of PrimedTransformer.
 	 */
-	private Source stylesheet;
+	private Templates stylesheet;
 
 	/**
 	 * The parameter set currently assigned to the Stylesheet used by this
@@ -105,23 +217,59 @@ public class PrimedTransformer {
 	 */
 	private TreeMap<String, String> stylesheetParameters;
 
+	/**
+	 * The XMLReader used to read XSL Stylesheets, which never validates, or
+	 * null if one hasn't been needed yet.
+	 */
+	private XMLReader stylesheetReader;
+
+	/**
+	 * The cache of compiled XSL Stylesheets used by this instance of
+	 * PrimedTransformer.
+	 */
+	private final TemplatesCache templatesCache;
+
 	/**
 	 * The Transformer used when executing transformations.
 	 */
 	private Transformer transformer;
 
+	/**
+	 * The ErrorListener the current Transformer was created with, restored
+	 * when the ErrorListener is removed.
+	 */
+	private ErrorListener transformerDefaultErrorListener;
+
+	/**
+	 * The URIResolver the current Transformer was created with, restored when
+	 * the DocumentCache is removed.
+	 */
+	private URIResolver transformerDefaultURIResolver;
+
 	/**
 	 * The ErrorListener currently assigned to the Transformer used by this
 	 * instance of PrimedTransformer.
 	 */
 	private ErrorListener transformerErrorListener;
 
+	/**
+	 * The compiled XSL Stylesheet the current Transformer was created from,
+	 * or null if it performs an identity transformation.
+	 */
+	private Templates transformerStylesheet;
+
 	/**
 	 * The TransformerFactory used when instantiating a new Transformer for this
 	 * instance of PrimedTransformer.
 	 */
 	private final TransformerFactory transformerFactory;
 
+	/**
+	 * The XMLReader used when building a tree in the native format of the
+	 * TransformerFactory, or null if one hasn't been needed yet.
+	 */
+	private XMLReader xmlReader;
+
 	/**
 	 * Default constructor.
 	 * 
@@ -131,12 +279,35 @@ public class PrimedTransformer {
 	 *             if there's a problem instantiating a Transformer.
 	 */
 	public PrimedTransformer() throws ParserConfigurationException, TransformerConfigurationException {
+		this(PrimedTransformer.newDocumentBuilderFactory(), PrimedTransformer.newTransformerFactory(), new TemplatesCache());
+	}
+
+	/**
+	 * Constructs a PrimedTransformer that uses the factories and cache of
+	 * compiled XSL Stylesheets specified, which may be shared with other
+	 * instances of PrimedTransformer.
+	 * 
+	 * @param documentBuilderFactory
+	 *            the DocumentBuilderFactory to use when instantiating a new
+	 *            DocumentBuilder.
+	 * @param transformerFactory
+	 *            the TransformerFactory to use when compiling XSL Stylesheets
+	 *            and instantiating a new Transformer.
+	 * @param templatesCache
+	 *            the cache of compiled XSL Stylesheets to use.
+	 * @throws ParserConfigurationException
+	 *             if there's a problem instantiating a DocumentBuilder.
+	 * @throws TransformerConfigurationException
+	 *             if there's a problem instantiating a Transformer.
+	 */
+	public PrimedTransformer(DocumentBuilderFactory documentBuilderFactory, TransformerFactory transformerFactory, TemplatesCache templatesCache) throws ParserConfigurationException, TransformerConfigurationException {
 
-		// Configure and store a re-usable DocumentBuilderFactory
-		this.documentBuilderFactory = PrimedTransformer.newDocumentBuilderFactory();
+		// Store the re-usable DocumentBuilderFactory
+		this.documentBuilderFactory = documentBuilderFactory;
 
 		// Instantiate and store a re-usable DocumentBuilder
 		this.documentBuilder = this.documentBuilderFactory.newDocumentBuilder();
+		ValidationErrorHandler.attach(this.documentBuilderFactory, this.documentBuilder);
 
 		// Instantiate and store a re-usable XMLCatalogResolver
 		this.catalogResolver = new XMLCatalogResolver();
@@ -147,14 +318,122 @@ public class PrimedTransformer {
 		// Set the parameters of the XSL stylesheet to an empty collection.
 		this.stylesheetParameters = new TreeMap<String, String>();
 
-		// Configure and store a re-usable TransformerFactory
-		this.transformerFactory = PrimedTransformer.newTransformerFactory();
+		// Read input files through buffered streams until told otherwise
+		this.mappedInputThreshold = -1L;
+
+		// Store the re-usable TransformerFactory
+		this.transformerFactory = transformerFactory;
+
+		// Store the cache of compiled XSL stylesheets
+		this.templatesCache = templatesCache;
 
 		// Instantiate and store a re-usable Transformer
 		this.setTransformer();
 
 	}
 
+	/**
+	 * Builds a native tree from the SAX Source supplied, validating against
+	 * the DTD if the DocumentBuilder does.
+	 */
+	private DocumentInfo buildDocument(SAXSource source) throws TransformerException {
+
+		Configuration configuration = this.getConfiguration();
+		if (!this.documentBuilder.isValidating()) {
+			return configuration.buildDocument(source);
+		}
+
+		// Saxon turns DTD validation off in the parser unless asked for it
+		ParseOptions options = new ParseOptions(configuration.getParseOptions());
+		options.setDTDValidationMode(Validation.STRICT);
+
+		return configuration.buildDocument(source, options);
+
+	}
+
+	/**
+	 * Compiles the XSL Stylesheet specified, whether or not there's a current
+	 * copy in the cache, and stores the result in the cache in place of any
+	 * earlier copy. Transformations already using the earlier copy aren't
+	 * affected.
+	 * 
+	 * @param xsl
+	 *            the XSL Stylesheet to compile.
+	 * @return the compiled XSL Stylesheet.
+	 */
+	Templates compileTemplates(File xsl) throws TransformerConfigurationException, SAXException, ParserConfigurationException {
+
+		String systemId = xsl.toURI().toString();
+
+		// Read without validating, since the grammars configured are for the documents transformed
+		SAXSource source = new SAXSource(this.getStylesheetReader(), new InputSource(systemId));
+		source.setSystemId(systemId);
+
+		return this.compileTemplates(systemId, source, new StreamSource(systemId), xsl.length());
+
+	}
+
+	/**
+	 * Compiles the XSL Stylesheet supplied and stores the result in the cache
+	 * under the key specified, recording the time taken.
+	 * 
+	 * The cached copy is current until the stylesheet (unless its content is
+	 * supplied) or a module it includes or imports changes. Where the
+	 * StylesheetResolver is in use, the modules are those it actually
+	 * resolves during compilation, noted from the copies it holds, so nothing
+	 * is read twice; otherwise they're listed from the modules argument.
+	 * 
+	 * @param modules
+	 *            the stylesheet, as a StreamSource whose system ID locates it
+	 *            and whose content (if any) is supplied.
+	 */
+	private Templates compileTemplates(String key, Source xsl, StreamSource modules, long length) throws TransformerConfigurationException {
+
+		Templates templates;
+
+		StylesheetResolver resolver = this.getStylesheetResolver();
+
+		Map<File, long[]> stamps;
+		if (resolver == null) {
+			stamps = this.stampModules(modules);
+		} else {
+
+			// Note the state of the stylesheet before it's read; each module is noted as it's resolved
+			stamps = new HashMap<File, long[]>();
+			File file = (modules.getInputStream() != null || modules.getReader() != null) ? null : TemplatesCache.toFile(modules.getSystemId());
+			if (file != null) {
+				LruCache.stamp(file, stamps);
+			}
+
+		}
+
+		Map<File, long[]> tracked = (resolver == null) ? null : resolver.track(stamps);
+
+		long start = System.nanoTime();
+		boolean complete = false;
+		try {
+			templates = this.transformerFactory.newTemplates(xsl);
+			complete = true;
+		} finally {
+
+			if (resolver != null) {
+				resolver.track(tracked);
+			}
+
+			this.record(xsl.getSystemId(), TransformerMetrics.Phase.COMPILE, start, complete, length, 0L);
+
+		}
+
+		this.templatesCache.put(key, templates, stamps);
+
+		if (this.metrics != null) {
+			this.metrics.name(templates, xsl.getSystemId());
+		}
+
+		return templates;
+
+	}
+
 	/**
 	 * @return the CatalogResolver used by this instance of PrimedTransformer.
 	 */
@@ -162,6 +441,29 @@ public class PrimedTransformer {
 		return this.catalogResolver;
 	}
 
+	/**
+	 * @return the Saxon Configuration behind the TransformerFactory.
+	 * @throws TransformerConfigurationException
+	 *             if the TransformerFactory isn't Saxon's.
+	 */
+	private Configuration getConfiguration() throws TransformerConfigurationException {
+
+		if (!(this.transformerFactory instanceof TransformerFactoryImpl)) {
+			throw new TransformerConfigurationException("Native trees can only be built with " + PrimedTransformer.DEFAULT_TRANSFORMER_FACTORY + ".");
+		}
+
+		return ((TransformerFactoryImpl) this.transformerFactory).getConfiguration();
+
+	}
+
+	/**
+	 * @return the cache of parsed documents used to resolve documents loaded
+	 *         by the XSL Stylesheet, or null if documents aren't cached.
+	 */
+	public DocumentCache getDocumentCache() {
+		return this.documentCache;
+	}
+
 	/**
 	 * @return the DocumentBuilder used by this instance of PrimedTransformer.
 	 */
@@ -177,6 +479,159 @@ public class PrimedTransformer {
 		return this.documentBuilderFactory;
 	}
 
+	/**
+	 * @return the pool that DocumentBuilders are borrowed from when creating a
+	 *         DOM Document, or null if this instance's own DocumentBuilder is
+	 *         used.
+	 */
+	public DocumentBuilderPool getDocumentBuilderPool() {
+		return this.documentBuilderPool;
+	}
+
+	/**
+	 * @return the EntityResolver used when parsing XML documents, or null if
+	 *         the parser's default resolution applies.
+	 */
+	public EntityResolver getEntityResolver() {
+		return this.entityResolver;
+	}
+
+	/**
+	 * @return the local file the Source supplied reads its content from, or
+	 *         null if it doesn't read from one.
+	 */
+	private static File getFile(Source source) {
+
+		String systemId = source.getSystemId();
+		if (systemId == null) {
+			return null;
+		}
+
+		if (source instanceof StreamSource) {
+
+			StreamSource stream = (StreamSource) source;
+			if (stream.getInputStream() != null || stream.getReader() != null) {
+				return null;
+			}
+
+		} else if (source instanceof SAXSource) {
+
+			InputSource input = ((SAXSource) source).getInputSource();
+			if (input != null && (input.getByteStream() != null || input.getCharacterStream() != null)) {
+				return null;
+			}
+
+		} else {
+			return null;
+		}
+
+		return TemplatesCache.toFile(systemId);
+
+	}
+
+	/**
+	 * @return the cache of XInclude targets used to resolve XIncludes in the
+	 *         XML parsed, or null if XIncludes are left to the
+	 *         DocumentBuilder.
+	 */
+	public IncludeCache getIncludeCache() {
+		return this.includeCache;
+	}
+
+	/**
+	 * @return the size, in bytes, from which XML files are read through
+	 *         memory-mapped regions, or a negative number if they never are.
+	 */
+	public long getMappedInputThreshold() {
+		return this.mappedInputThreshold;
+	}
+
+	/**
+	 * @return the metrics that work done by this instance of
+	 *         PrimedTransformer is recorded to, or null if it isn't recorded.
+	 */
+	public TransformerMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * @return the cache of serialized results consulted before transforming,
+	 *         or null if results aren't cached.
+	 */
+	public ResultCache getResultCache() {
+		return this.resultCache;
+	}
+
+	/**
+	 * @return the XMLReader used to build native trees, filtered through the
+	 *         cache of XInclude targets if there is one.
+	 */
+	private XMLReader getSourceReader() throws SAXException, ParserConfigurationException {
+
+		XMLReader reader = this.getXMLReader();
+
+		IncludeCache includes = this.includeCache;
+		return (includes == null) ? reader : includes.newFilter(reader);
+
+	}
+
+	/**
+	 * @return the StylesheetResolver used by the TransformerFactory to resolve
+	 *         the modules included or imported by XSL Stylesheets, or null if
+	 *         it isn't using one.
+	 */
+	public StylesheetResolver getStylesheetResolver() {
+
+		if (this.transformerFactory instanceof TransformerFactoryImpl) {
+
+			URIResolver resolver = ((TransformerFactoryImpl) this.transformerFactory).getConfiguration().getDefaultXsltCompilerInfo().getURIResolver();
+			if (resolver instanceof StylesheetResolver) {
+				return (StylesheetResolver) resolver;
+			}
+
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * Creates (once) and returns an XMLReader for reading XSL Stylesheets,
+	 * matching the current DocumentBuilder and using the current
+	 * EntityResolver, but without validation or a schema.
+	 * 
+	 * @throws SAXException
+	 *             if there's a problem instantiating the XMLReader.
+	 * @throws ParserConfigurationException
+	 *             if the XMLReader can't be configured as required.
+	 */
+	private XMLReader getStylesheetReader() throws SAXException, ParserConfigurationException {
+
+		if (this.stylesheetReader == null) {
+
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(this.documentBuilder.isNamespaceAware());
+			factory.setXIncludeAware(this.documentBuilder.isXIncludeAware());
+
+			this.stylesheetReader = factory.newSAXParser().getXMLReader();
+			if (this.entityResolver != null) {
+				this.stylesheetReader.setEntityResolver(this.entityResolver);
+			}
+
+		}
+
+		return this.stylesheetReader;
+
+	}
+
+	/**
+	 * @return the cache of compiled XSL Stylesheets used by this instance of
+	 *         PrimedTransformer.
+	 */
+	public TemplatesCache getTemplatesCache() {
+		return this.templatesCache;
+	}
+
 	/**
 	 * @return the Transformer used when executing transformations with this
 	 *         instance of PrimedTransformer.
@@ -194,59 +649,379 @@ public class PrimedTransformer {
 	}
 
 	/**
-	 * Creates and configures a Transformer generated using the instance of
-	 * TransformerFactory implementation currently stored in this instance of
-	 * PrimedTransformer.
+	 * Creates (once) and returns an XMLReader configured to match the current
+	 * DocumentBuilder, using the current EntityResolver.
 	 * 
-	 * @throws TransformerConfigurationException
-	 *             when it's not possible to configure the Transformer as
-	 *             required.
+	 * @throws SAXException
+	 *             if there's a problem instantiating the XMLReader.
+	 * @throws ParserConfigurationException
+	 *             if the XMLReader can't be configured as required.
 	 */
-	public Transformer newTransformer() throws TransformerConfigurationException {
-		return this.newTransformer((Source) null);
+	private XMLReader getXMLReader() throws SAXException, ParserConfigurationException {
+
+		if (this.xmlReader == null) {
+
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(this.documentBuilder.isNamespaceAware());
+			factory.setValidating(this.documentBuilder.isValidating());
+			factory.setXIncludeAware(this.documentBuilder.isXIncludeAware());
+			factory.setSchema(this.documentBuilder.getSchema());
+
+			this.xmlReader = factory.newSAXParser().getXMLReader();
+			if (this.entityResolver != null) {
+				this.xmlReader.setEntityResolver(this.entityResolver);
+			}
+
+			// Validate as the DocumentBuilder does, with the same grammars
+			GrammarCache.share(this.documentBuilderFactory, this.xmlReader);
+			ValidationErrorHandler.attach(this.documentBuilderFactory, this.xmlReader);
+
+		}
+
+		return this.xmlReader;
+
 	}
 
 	/**
-	 * Creates and configures a Transformer generated using the instance of
-	 * TransformerFactory implementation currently stored in this instance of
-	 * PrimedTransformer.
+	 * @return the length of the file specified, if it's needed for the
+	 *         metrics, otherwise 0.
+	 */
+	private long lengthOf(File xml) {
+		return (this.metrics == null) ? 0L : xml.length();
+	}
+
+	/**
+	 * Creates a bounded pool of DocumentBuilders from the
+	 * DocumentBuilderFactory used by this instance of PrimedTransformer. Each
+	 * builder has the current EntityResolver attached.
 	 * 
-	 * @throws TransformerConfigurationException
-	 *             when it's not possible to configure the Transformer as
-	 *             required.
-	 * @throws ParserConfigurationException
-	 * @throws IOException
-	 * @throws SAXException
+	 * @param maximumSize
+	 *            the maximum number of builders to create.
+	 * @return a new DocumentBuilderPool.
 	 */
-	public Transformer newTransformer(File xsl) throws TransformerConfigurationException, SAXException, IOException, ParserConfigurationException {
-		return this.newTransformer(this.parseToDOMSource(xsl));
+	public DocumentBuilderPool newDocumentBuilderPool(int maximumSize) {
+		return new DocumentBuilderPool(this.documentBuilderFactory, maximumSize, this.entityResolver);
 	}
 
 	/**
-	 * Creates and configures a Transformer generated using the
-	 * TransformerFactory implementation specified.
+	 * Creates a cache of parsed documents that can be used to resolve the
+	 * documents loaded by XSL Stylesheets run by this instance of
+	 * PrimedTransformer, or by any other that shares its TransformerFactory.
+	 * Documents are parsed using the current EntityResolver.
 	 * 
+	 * @param maximumBytes
+	 *            the maximum total size, in bytes, of the files whose parsed
+	 *            copies are held at any one time.
+	 * @return a new DocumentCache.
 	 * @throws TransformerConfigurationException
-	 *             when it's not possible to configure the Transformer as
-	 *             required.
+	 *             if the TransformerFactory isn't Saxon's.
 	 */
-	public Transformer newTransformer(Source xsl) throws TransformerConfigurationException {
-
-		if (xsl != null) {
-			return this.transformerFactory.newTransformer(xsl);
-		}
-
-		return this.transformerFactory.newTransformer();
-
+	public DocumentCache newDocumentCache(long maximumBytes) throws TransformerConfigurationException {
+		return new DocumentCache(this.getConfiguration(), this.entityResolver, maximumBytes);
 	}
 
 	/**
-	 * Parses the XML file specified and returns its contents as a DOM Document.
+	 * Creates a cache of XInclude targets that can be used to resolve the
+	 * XIncludes in XML parsed by this instance of PrimedTransformer, or by any
+	 * other. Targets are read using the current EntityResolver.
 	 * 
-	 * @param xml
-	 *            the file to be parsed.
-	 * @return the contents of the file, as a DOM Document.
-	 * @throws SAXException
+	 * @param maximumBytes
+	 *            the maximum total size, in bytes, of the files whose content
+	 *            is held at any one time.
+	 * @return a new IncludeCache.
+	 */
+	public IncludeCache newIncludeCache(long maximumBytes) {
+		return new IncludeCache(this.entityResolver, maximumBytes);
+	}
+
+	/**
+	 * Prepares the XML file specified to be read by the parser, through
+	 * memory-mapped regions if it's at least the threshold size. The caller
+	 * must close the byte stream, if there is one, once the file is parsed.
+	 */
+	private InputSource newInputSource(File xml) throws IOException {
+
+		InputSource input = new InputSource(xml.toURI().toString());
+
+		if (this.mappedInputThreshold >= 0 && xml.length() >= this.mappedInputThreshold) {
+			input.setByteStream(new MappedFileInputStream(xml));
+		}
+
+		return input;
+
+	}
+
+	/**
+	 * Retrieves the compiled form of the XSL Stylesheet specified, compiling
+	 * it only if there isn't a current copy in the cache.
+	 * 
+	 * @param xsl
+	 *            the XSL Stylesheet to compile.
+	 * @return the compiled XSL Stylesheet.
+	 * @throws TransformerConfigurationException
+	 *             if the XSL Stylesheet can't be compiled.
+	 * @throws SAXException
+	 *             if there's an exception parsing the XSL Stylesheet.
+	 * @throws IOException
+	 *             if there's a problem reading the file.
+	 * @throws ParserConfigurationException
+	 *             if the DocumentBuilder is configured incorrectly.
+	 */
+	public Templates newTemplates(File xsl) throws TransformerConfigurationException, SAXException, IOException, ParserConfigurationException {
+
+		String systemId = xsl.toURI().toString();
+
+		Templates templates = this.templatesCache.get(systemId);
+		if (templates == null) {
+			return this.compileTemplates(xsl);
+		}
+
+		if (this.metrics != null) {
+			this.metrics.name(templates, systemId);
+		}
+
+		return templates;
+
+	}
+
+	/**
+	 * Retrieves the compiled form of the XSL Stylesheet specified, compiling
+	 * it only if there isn't a current copy in the cache.
+	 * 
+	 * A stylesheet read from a local file is identified by its system ID,
+	 * and the copy is current until the file or one of its modules changes.
+	 * Any other stylesheet (eg. a DOM, or a stream) is read into memory and
+	 * identified by its system ID together with a hash of its content. A
+	 * Source whose content can't be copied (eg. one with its own XMLReader)
+	 * is always compiled.
+	 * 
+	 * @param xsl
+	 *            the XSL Stylesheet to compile.
+	 * @return the compiled XSL Stylesheet.
+	 * @throws TransformerConfigurationException
+	 *             if the XSL Stylesheet can't be compiled, or read.
+	 */
+	public Templates newTemplates(Source xsl) throws TransformerConfigurationException {
+
+		String systemId = xsl.getSystemId();
+
+		File file = PrimedTransformer.getFile(xsl);
+		if (file != null) {
+
+			Templates templates = this.templatesCache.get(systemId);
+			if (templates == null) {
+				templates = this.compileTemplates(systemId, xsl, new StreamSource(systemId), file.length());
+			} else if (this.metrics != null) {
+				this.metrics.name(templates, systemId);
+			}
+
+			return templates;
+
+		}
+
+		MessageDigest digest = BatchManifest.newDigest();
+
+		StylesheetContent content = this.readStylesheet(xsl, digest);
+		if (content == null) {
+
+			long start = System.nanoTime();
+			boolean complete = false;
+			try {
+				Templates templates = this.transformerFactory.newTemplates(xsl);
+				complete = true;
+				return templates;
+			} finally {
+				this.record(systemId, TransformerMetrics.Phase.COMPILE, start, complete, 0L, 0L);
+			}
+
+		}
+
+		String key = ((systemId == null) ? "" : systemId) + "#" + BatchManifest.toHex(digest.digest());
+
+		Templates templates = this.templatesCache.get(key);
+		if (templates == null) {
+
+			// The stylesheet itself can't change, but the modules it pulls in can
+			templates = this.compileTemplates(key, content.newSource(), content.newSource(), content.length());
+
+		} else if (this.metrics != null) {
+			this.metrics.name(templates, systemId);
+		}
+
+		return templates;
+
+	}
+
+	/**
+	 * Creates and configures a Transformer generated using the instance of
+	 * TransformerFactory implementation currently stored in this instance of
+	 * PrimedTransformer.
+	 * 
+	 * @throws TransformerConfigurationException
+	 *             when it's not possible to configure the Transformer as
+	 *             required.
+	 */
+	public Transformer newTransformer() throws TransformerConfigurationException {
+		return this.newTransformer((Source) null);
+	}
+
+	/**
+	 * Creates and configures a Transformer generated using the instance of
+	 * TransformerFactory implementation currently stored in this instance of
+	 * PrimedTransformer.
+	 * 
+	 * @throws TransformerConfigurationException
+	 *             when it's not possible to configure the Transformer as
+	 *             required.
+	 * @throws ParserConfigurationException
+	 * @throws IOException
+	 * @throws SAXException
+	 */
+	public Transformer newTransformer(File xsl) throws TransformerConfigurationException, SAXException, IOException, ParserConfigurationException {
+		return this.newTemplates(xsl).newTransformer();
+	}
+
+	/**
+	 * Creates and configures a Transformer generated using the
+	 * TransformerFactory implementation specified.
+	 * 
+	 * @throws TransformerConfigurationException
+	 *             when it's not possible to configure the Transformer as
+	 *             required.
+	 */
+	public Transformer newTransformer(Source xsl) throws TransformerConfigurationException {
+
+		if (xsl != null) {
+			return this.newTemplates(xsl).newTransformer();
+		}
+
+		return this.transformerFactory.newTransformer();
+
+	}
+
+	/**
+	 * Builds a DOM Document from the input supplied, using a DocumentBuilder
+	 * borrowed from the pool if there is one, otherwise this instance's own,
+	 * and resolves its XIncludes through the cache if there is one.
+	 */
+	private Document parse(InputSource xml) throws ParserConfigurationException, SAXException, IOException {
+
+		Document document;
+
+		DocumentBuilderPool pool = this.documentBuilderPool;
+		if (pool == null) {
+			document = this.documentBuilder.parse(xml);
+		} else {
+
+			DocumentBuilder builder;
+			try {
+				builder = pool.borrow();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a DocumentBuilder.");
+			}
+
+			try {
+				document = builder.parse(xml);
+			} finally {
+				pool.release(builder);
+			}
+
+		}
+
+		IncludeCache includes = this.includeCache;
+		if (includes != null) {
+			includes.include(document);
+		}
+
+		return document;
+
+	}
+
+	/**
+	 * Parses the DOM Document supplied and writes it as XML to the channel
+	 * specified, without holding the serialized XML in memory. The channel is
+	 * left open.
+	 * 
+	 * @param xml
+	 *            the DOM Document to be parsed.
+	 * @param out
+	 *            the channel to write the XML to.
+	 * @throws TransformerException
+	 * @throws SAXException
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 */
+	public void parseToChannel(Document xml, WritableByteChannel out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		OutputStream stream = Channels.newOutputStream(out);
+		this.parseToStream(xml, stream);
+		stream.flush();
+	}
+
+	/**
+	 * Parses the XML File supplied and writes it as XML to the channel
+	 * specified, without holding the serialized XML in memory. The channel is
+	 * left open.
+	 * 
+	 * @param xml
+	 *            the file to be parsed.
+	 * @param out
+	 *            the channel to write the XML to.
+	 * @throws TransformerException
+	 * @throws SAXException
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 */
+	public void parseToChannel(File xml, WritableByteChannel out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		OutputStream stream = Channels.newOutputStream(out);
+		this.parseToStream(xml, stream);
+		stream.flush();
+	}
+
+	/**
+	 * Parses the XML bytes supplied and returns them as a DOM Document. The
+	 * parser detects the encoding, so the bytes needn't be decoded first.
+	 * 
+	 * @param xml
+	 *            the bytes to be parsed.
+	 * @return the bytes, as a DOM Document.
+	 * @throws SAXException
+	 *             if there's an exception building the DOM Document.
+	 * @throws IOException
+	 *             if there's an unresolvable problem reading the bytes.
+	 * @throws ParserConfigurationException
+	 *             if the DocumentBuilder is configured incorrectly.
+	 */
+	public Document parseToDocument(byte[] xml) throws ParserConfigurationException, SAXException, IOException {
+		return this.parseToDocument(new ByteArrayInputStream(xml));
+	}
+
+	/**
+	 * Parses the remaining bytes of the buffer supplied and returns them as a
+	 * DOM Document. The bytes are read in place, and the parser detects the
+	 * encoding. The position of the buffer is left as it is.
+	 * 
+	 * @param xml
+	 *            the buffer to be parsed.
+	 * @return the bytes, as a DOM Document.
+	 * @throws SAXException
+	 *             if there's an exception building the DOM Document.
+	 * @throws IOException
+	 *             if there's an unresolvable problem reading the bytes.
+	 * @throws ParserConfigurationException
+	 *             if the DocumentBuilder is configured incorrectly.
+	 */
+	public Document parseToDocument(ByteBuffer xml) throws ParserConfigurationException, SAXException, IOException {
+		return this.parseToDocument(new ByteBufferInputStream(xml));
+	}
+
+	/**
+	 * Parses the XML file specified and returns its contents as a DOM Document.
+	 * 
+	 * @param xml
+	 *            the file to be parsed.
+	 * @return the contents of the file, as a DOM Document.
+	 * @throws SAXException
 	 *             if there's an exception building the DOM Document.
 	 * @throws IOException
 	 *             if there's an unresolvable problem finding or reading the
@@ -255,128 +1030,756 @@ public class PrimedTransformer {
 	 *             if the DocumentBuilder is configured incorrectly.
 	 */
 	public Document parseToDocument(File xml) throws ParserConfigurationException, SAXException, IOException {
-		return this.documentBuilder.parse(xml);
+
+		long start = System.nanoTime();
+		boolean complete = false;
+		InputSource input = null;
+		try {
+			input = this.newInputSource(xml);
+			Document document = this.parse(input);
+			complete = true;
+			return document;
+		} finally {
+			if (input != null) {
+				IOUtils.closeQuietly(input.getByteStream());
+			}
+			this.record(TransformerMetrics.NO_STYLESHEET, TransformerMetrics.Phase.PARSE, start, complete, this.lengthOf(xml), 0L);
+		}
+
+	}
+
+	/**
+	 * Parses the XML read from the stream supplied and returns it as a DOM
+	 * Document. The parser detects the encoding. The stream is left open.
+	 * 
+	 * @param xml
+	 *            the stream to be parsed.
+	 * @return the contents of the stream, as a DOM Document.
+	 * @throws SAXException
+	 *             if there's an exception building the DOM Document.
+	 * @throws IOException
+	 *             if there's an unresolvable problem reading the stream.
+	 * @throws ParserConfigurationException
+	 *             if the DocumentBuilder is configured incorrectly.
+	 */
+	public Document parseToDocument(InputStream xml) throws ParserConfigurationException, SAXException, IOException {
+
+		// Count the bytes read, if anyone's interested
+		CountingInputStream counter = (this.metrics == null) ? null : new CountingInputStream(xml);
+
+		long start = System.nanoTime();
+		boolean complete = false;
+		try {
+			Document document = this.parse(new InputSource((counter == null) ? xml : counter));
+			complete = true;
+			return document;
+		} finally {
+			this.record(TransformerMetrics.NO_STYLESHEET, TransformerMetrics.Phase.PARSE, start, complete, (counter == null) ? 0L : counter.getByteCount(), 0L);
+		}
+
+	}
+
+	/**
+	 * Parses the XML string supplied and returns it as a DOM Document
+	 * 
+	 * @param xml
+	 *            the string to be parsed
+	 * @return the string as a DOM Document
+	 * @throws SAXException
+	 *             if there's an exception building the DOM Document
+	 * @throws IOException
+	 *             if there's an unresolvable problem reading the string
+	 * @throws ParserConfigurationException
+	 *             if the DocumentBuilder is configured incorrectly.
+	 */
+	public Document parseToDocument(String xml) throws ParserConfigurationException, SAXException, IOException {
+
+		long start = System.nanoTime();
+		boolean complete = false;
+		try {
+			Document document = this.parse(new InputSource(new StringReader(xml)));
+			complete = true;
+			return document;
+		} finally {
+			this.record(TransformerMetrics.NO_STYLESHEET, TransformerMetrics.Phase.PARSE, start, complete, 0L, 0L);
+		}
+
+	}
+
+	/**
+	 * Parses the XML bytes supplied and returns them as a DOM Source.
+	 * 
+	 * @param xml
+	 *            the bytes to be parsed.
+	 * @return the bytes, as a DOM Source.
+	 * @throws SAXException
+	 *             if there's an exception building the DOM Source.
+	 * @throws IOException
+	 *             if there's a problem reading the bytes.
+	 * @throws ParserConfigurationException
+	 *             if the DocumentBuilder is configured incorrectly.
+	 */
+	public DOMSource parseToDOMSource(byte[] xml) throws ParserConfigurationException, SAXException, IOException {
+		return new DOMSource(this.parseToDocument(xml));
+	}
+
+	/**
+	 * Parses the remaining bytes of the buffer supplied and returns them as a
+	 * DOM Source.
+	 * 
+	 * @param xml
+	 *            the buffer to be parsed.
+	 * @return the bytes, as a DOM Source.
+	 * @throws SAXException
+	 *             if there's an exception building the DOM Source.
+	 * @throws IOException
+	 *             if there's a problem reading the bytes.
+	 * @throws ParserConfigurationException
+	 *             if the DocumentBuilder is configured incorrectly.
+	 */
+	public DOMSource parseToDOMSource(ByteBuffer xml) throws ParserConfigurationException, SAXException, IOException {
+		return new DOMSource(this.parseToDocument(xml));
+	}
+
+	/**
+	 * Parses the XML Document specified and returns its contents as a DOM
+	 * Source.
+	 * 
+	 * @param xml
+	 *            the document to be parsed.
+	 * @return the contents of the document, as a DOM Source.
+	 * @throws SAXException
+	 *             if there's an exception building the DOM Source.
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 *             if the DocumentBuilder is configured incorrectly.
+	 */
+	public DOMSource parseToDOMSource(Document xml) throws ParserConfigurationException, SAXException, IOException {
+		return new DOMSource(xml);
+	}
+
+	/**
+	 * Parses the XML file specified and returns its contents as a DOM Source.
+	 * 
+	 * @param xml
+	 *            the file to be parsed.
+	 * @return the contents of the file, as a DOM Source.
+	 * @throws SAXException
+	 *             if there's an exception building the DOM Source.
+	 * @throws IOException
+	 *             if there's a problem reading the file.
+	 * @throws ParserConfigurationException
+	 *             if the DocumentBuilder is configured incorrectly.
+	 */
+	public DOMSource parseToDOMSource(File xml) throws ParserConfigurationException, SAXException, IOException {
+		DOMSource source = new DOMSource(this.parseToDocument(xml));
+		source.setSystemId(xml.toURI().toString());
+		return source;
+	}
+
+	/**
+	 * Parses the XML read from the stream supplied and returns it as a DOM
+	 * Source. The stream is left open.
+	 * 
+	 * @param xml
+	 *            the stream to be parsed.
+	 * @return the contents of the stream, as a DOM Source.
+	 * @throws SAXException
+	 *             if there's an exception building the DOM Source.
+	 * @throws IOException
+	 *             if there's a problem reading the stream.
+	 * @throws ParserConfigurationException
+	 *             if the DocumentBuilder is configured incorrectly.
+	 */
+	public DOMSource parseToDOMSource(InputStream xml) throws ParserConfigurationException, SAXException, IOException {
+		return new DOMSource(this.parseToDocument(xml));
+	}
+
+	/**
+	 * Parses the DOM Document supplied and writes it as XML to the file
+	 * specified, replacing any existing content.
+	 * 
+	 * @param xml
+	 *            the DOM Document to be parsed.
+	 * @param out
+	 *            the file to write the XML to.
+	 * @throws TransformerException
+	 * @throws SAXException
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 */
+	public void parseToFile(Document xml, Path out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		OutputStream stream = new BufferedOutputStream(Files.newOutputStream(out));
+		try {
+			this.parseToStream(xml, stream);
+		} finally {
+			stream.close();
+		}
+
+	}
+
+	/**
+	 * Parses the XML File supplied and writes it as XML to the file
+	 * specified, replacing any existing content.
+	 * 
+	 * @param xml
+	 *            the file to be parsed.
+	 * @param out
+	 *            the file to write the XML to.
+	 * @throws TransformerException
+	 * @throws SAXException
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 */
+	public void parseToFile(File xml, Path out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		OutputStream stream = new BufferedOutputStream(Files.newOutputStream(out));
+		try {
+			this.parseToStream(xml, stream);
+		} finally {
+			stream.close();
+		}
+
+	}
+
+	/**
+	 * Parses the XML file specified into the fastest form available for
+	 * transformation: a native tree if the TransformerFactory is Saxon's,
+	 * otherwise a DOM Source.
+	 * 
+	 * @param xml
+	 *            the file to be parsed.
+	 * @throws TransformerException
+	 *             if there's an exception building the tree.
+	 * @throws SAXException
+	 *             if there's an exception parsing the file.
+	 * @throws IOException
+	 *             if there's a problem reading the file.
+	 * @throws ParserConfigurationException
+	 *             if the parser is configured incorrectly.
+	 */
+	Source parseToSource(File xml) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		if (this.transformerFactory instanceof TransformerFactoryImpl) {
+			return this.parseToTreeSource(xml);
+		}
+
+		return this.parseToDOMSource(xml);
+
+	}
+
+	/**
+	 * Parses the XML read from the stream supplied into the fastest form
+	 * available for transformation: a native tree if the TransformerFactory is
+	 * Saxon's, otherwise a DOM Source.
+	 * 
+	 * @param xml
+	 *            the stream to be parsed.
+	 * @param systemId
+	 *            the system ID used to resolve relative references in the XML,
+	 *            or null.
+	 * @return the contents of the stream, as a Source.
+	 * @throws TransformerException
+	 *             if there's an exception building a native tree.
+	 * @throws SAXException
+	 *             if there's an exception parsing the stream.
+	 * @throws IOException
+	 *             if there's a problem reading the stream.
+	 * @throws ParserConfigurationException
+	 *             if the parser is configured incorrectly.
+	 */
+	Source parseToSource(InputStream xml, String systemId) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		if (this.transformerFactory instanceof TransformerFactoryImpl) {
+			return this.parseToTreeSource(xml, systemId);
+		}
+
+		DOMSource source = this.parseToDOMSource(xml);
+		source.setSystemId(systemId);
+		return source;
+
+	}
+
+	/**
+	 * Prepares the XML file specified for parsing, using an XMLReader
+	 * configured to match the current DocumentBuilder (including its
+	 * CatalogResolver).
+	 * 
+	 * @param xml
+	 *            the file to be parsed.
+	 * @return a SAX Source that will parse the file when read.
+	 * @throws SAXException
+	 *             if there's a problem instantiating the XMLReader.
+	 * @throws ParserConfigurationException
+	 *             if the XMLReader can't be configured as required.
+	 */
+	public SAXSource parseToSAXSource(File xml) throws SAXException, ParserConfigurationException {
+		SAXSource source = new SAXSource(this.getSourceReader(), new InputSource(xml.toURI().toString()));
+		source.setSystemId(xml.toURI().toString());
+		return source;
+	}
+
+	/**
+	 * Parses the XML file specified directly into the native tree format of the
+	 * TransformerFactory (for Saxon, a TinyTree), without building a DOM
+	 * Document first. The same CatalogResolver and parser settings are used
+	 * as when building a DOM Document.
+	 * 
+	 * @param xml
+	 *            the file to be parsed.
+	 * @return the contents of the file, as a native tree.
+	 * @throws TransformerException
+	 *             if there's an exception building the tree.
+	 * @throws SAXException
+	 *             if there's a problem instantiating the XMLReader.
+	 * @throws ParserConfigurationException
+	 *             if the XMLReader can't be configured as required.
+	 */
+	public DocumentInfo parseToTreeSource(File xml) throws TransformerException, SAXException, ParserConfigurationException {
+
+		long start = System.nanoTime();
+		boolean complete = false;
+		InputSource input = null;
+		try {
+
+			try {
+				input = this.newInputSource(xml);
+			} catch (IOException e) {
+				throw new TransformerException(e);
+			}
+
+			SAXSource source = new SAXSource(this.getSourceReader(), input);
+			source.setSystemId(input.getSystemId());
+
+			DocumentInfo document = this.buildDocument(source);
+			complete = true;
+			return document;
+
+		} finally {
+			if (input != null) {
+				IOUtils.closeQuietly(input.getByteStream());
+			}
+			this.record(TransformerMetrics.NO_STYLESHEET, TransformerMetrics.Phase.PARSE, start, complete, this.lengthOf(xml), 0L);
+		}
+
+	}
+
+	/**
+	 * Parses the XML stream supplied directly into the native tree format of
+	 * the TransformerFactory (for Saxon, a TinyTree).
+	 * 
+	 * @param xml
+	 *            the stream to be parsed.
+	 * @param systemId
+	 *            the system ID used to resolve relative references in the XML,
+	 *            or null.
+	 * @return the contents of the stream, as a native tree.
+	 * @throws TransformerException
+	 *             if there's an exception building the tree.
+	 * @throws SAXException
+	 *             if there's a problem instantiating the XMLReader.
+	 * @throws ParserConfigurationException
+	 *             if the XMLReader can't be configured as required.
+	 */
+	public DocumentInfo parseToTreeSource(InputStream xml, String systemId) throws TransformerException, SAXException, ParserConfigurationException {
+
+		// Count the bytes read, if anyone's interested
+		CountingInputStream counter = (this.metrics == null) ? null : new CountingInputStream(xml);
+
+		InputSource input = new InputSource((counter == null) ? xml : counter);
+		input.setSystemId(systemId);
+
+		SAXSource source = new SAXSource(this.getSourceReader(), input);
+		source.setSystemId(systemId);
+
+		long start = System.nanoTime();
+		boolean complete = false;
+		try {
+			DocumentInfo document = this.buildDocument(source);
+			complete = true;
+			return document;
+		} finally {
+			this.record(TransformerMetrics.NO_STYLESHEET, TransformerMetrics.Phase.PARSE, start, complete, (counter == null) ? 0L : counter.getByteCount(), 0L);
+		}
+
+	}
+
+	/**
+	 * Parses the XML string supplied directly into the native tree format of
+	 * the TransformerFactory (for Saxon, a TinyTree).
+	 * 
+	 * @param xml
+	 *            the string to be parsed.
+	 * @return the string, as a native tree.
+	 * @throws TransformerException
+	 *             if there's an exception building the tree.
+	 * @throws SAXException
+	 *             if there's a problem instantiating the XMLReader.
+	 * @throws ParserConfigurationException
+	 *             if the XMLReader can't be configured as required.
+	 */
+	public DocumentInfo parseToTreeSource(String xml) throws TransformerException, SAXException, ParserConfigurationException {
+
+		long start = System.nanoTime();
+		boolean complete = false;
+		try {
+			DocumentInfo document = this.buildDocument(new SAXSource(this.getSourceReader(), new InputSource(new StringReader(xml))));
+			complete = true;
+			return document;
+		} finally {
+			this.record(TransformerMetrics.NO_STYLESHEET, TransformerMetrics.Phase.PARSE, start, complete, 0L, 0L);
+		}
+
+	}
+
+	/**
+	 * Parses the DOM Document supplied and writes it as XML to the stream
+	 * specified, in the encoding declared by the serializer (UTF-8 by
+	 * default), without holding the serialized XML in memory. The stream is
+	 * left open.
+	 * 
+	 * @param xml
+	 *            the DOM Document to be parsed.
+	 * @param out
+	 *            the stream to write the XML to.
+	 * @throws TransformerException
+	 * @throws SAXException
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 */
+	public void parseToStream(Document xml, OutputStream out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		// Execute a transformation without an XSLT stylesheet
+		this.transform(this.parseToDOMSource(xml), null, new StreamResult(out), null, null);
+
+	}
+
+	/**
+	 * Parses the XML File supplied and writes it as XML to the stream
+	 * specified, in the encoding declared by the serializer (UTF-8 by
+	 * default), without holding the serialized XML in memory. The stream is
+	 * left open.
+	 * 
+	 * @param xml
+	 *            the file to be parsed.
+	 * @param out
+	 *            the stream to write the XML to.
+	 * @throws TransformerException
+	 * @throws SAXException
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 */
+	public void parseToStream(File xml, OutputStream out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		// Execute a transformation without an XSLT stylesheet
+		this.transform(this.parseToSource(xml), null, new StreamResult(out), null, null);
+
+	}
+
+	/**
+	 * Parses the DOM Document supplied and returns it as an XML String.
+	 * 
+	 * @param xml
+	 *            the DOM Document to be parsed
+	 * @return the contents of the DOM Document as an XML String.
+	 * @throws TransformerException
+	 * @throws SAXException
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 */
+	public String parseToString(Document xml) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		// Prepare an XML String for transformation
+		Source xmlSource = this.parseToDOMSource(xml);
+
+		// Prepare a StringWriter to write out the result of the transformation
+		StringWriter writer = new StringWriter();
+
+		// Prepare a container to hold the result of the transformation
+		StreamResult result = new StreamResult(writer);
+
+		// Execute a transformation without an XSLT stylesheet
+		this.transform(xmlSource, null, result, null, null);
+
+		// Extract the result of the transformation from the container
+		return writer.toString();
+
+	}
+
+	/**
+	 * Parses the XML File supplied and returns it as an XML String.
+	 * 
+	 * @param xml
+	 *            the file to be parsed
+	 * @return the contents of the file as an XML String.
+	 * @throws TransformerException
+	 * @throws SAXException
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 */
+	public String parseToString(File xml) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		// Prepare a StringWriter to write out the result of the transformation
+		StringWriter writer = new StringWriter();
+
+		// Execute a transformation without an XSLT stylesheet
+		this.transform(this.parseToSource(xml), null, new StreamResult(writer), null, null);
+
+		// Extract the result of the transformation from the container
+		return writer.toString();
+
+	}
+
+	/**
+	 * Copies the content of an XSL Stylesheet that isn't read from a local
+	 * file into memory, adding it to the digest supplied.
+	 * 
+	 * @return the content, or null if it can't be copied.
+	 * @throws TransformerConfigurationException
+	 *             if the content can't be read.
+	 */
+	private StylesheetContent readStylesheet(Source xsl, MessageDigest digest) throws TransformerConfigurationException {
+
+		String systemId = xsl.getSystemId();
+
+		byte[] bytes = null;
+		String text = null;
+
+		try {
+
+			if (xsl instanceof DOMSource) {
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				this.transformerFactory.newTransformer().transform(xsl, new StreamResult(out));
+				bytes = out.toByteArray();
+
+			} else if (xsl instanceof StreamSource) {
+
+				StreamSource stream = (StreamSource) xsl;
+				if (stream.getReader() != null) {
+					text = IOUtils.toString(stream.getReader());
+				} else if (stream.getInputStream() != null) {
+					bytes = IOUtils.toByteArray(stream.getInputStream());
+				}
+
+			} else if (xsl instanceof SAXSource && ((SAXSource) xsl).getXMLReader() == null) {
+
+				InputSource input = ((SAXSource) xsl).getInputSource();
+				if (input != null && input.getCharacterStream() != null) {
+					text = IOUtils.toString(input.getCharacterStream());
+				} else if (input != null && input.getByteStream() != null) {
+					bytes = IOUtils.toByteArray(input.getByteStream());
+				}
+
+			} else {
+				return null;
+			}
+
+			if (bytes == null && text == null) {
+
+				if (systemId == null) {
+					return null;
+				}
+
+				InputStream in = new URL(systemId).openStream();
+				try {
+					bytes = IOUtils.toByteArray(in);
+				} finally {
+					in.close();
+				}
+
+			}
+
+		} catch (IOException e) {
+			throw new TransformerConfigurationException("Unable to read stylesheet: " + systemId, e);
+		} catch (TransformerException e) {
+			throw new TransformerConfigurationException(e);
+		}
+
+		digest.update((text == null) ? bytes : text.getBytes(StandardCharsets.UTF_8));
+
+		return new StylesheetContent(bytes, text, systemId);
+
+	}
+
+	/**
+	 * Records a phase of work to the metrics, if there are any.
+	 * 
+	 * @param name
+	 *            the name of the stylesheet the work was done for.
+	 * @param phase
+	 *            the phase of work.
+	 * @param start
+	 *            the value of System.nanoTime() when the phase started.
+	 * @param complete
+	 *            false if the phase failed.
+	 * @param bytesIn
+	 *            the number of bytes read.
+	 * @param bytesOut
+	 *            the number of bytes written.
+	 */
+	private void record(String name, TransformerMetrics.Phase phase, long start, boolean complete, long bytesIn, long bytesOut) {
+
+		if (this.metrics == null) {
+			return;
+		}
+
+		if (complete) {
+			this.metrics.record(name, phase, System.nanoTime() - start, bytesIn, bytesOut);
+		} else {
+			this.metrics.recordError(name, phase);
+		}
+
+	}
+
+	/**
+	 * Changes the instance of CatalogResolver used by this instance of
+	 * PrimedTransformer. External entities are resolved through a new
+	 * CachingEntityResolver in front of the CatalogResolver.
+	 * 
+	 * @param resolver
+	 *            the CatalogResolver to use when building DOM Documents.
+	 */
+	public void setCatalogResolver(XMLCatalogResolver resolver) {
+
+		this.catalogResolver = resolver;
+		this.setEntityResolver(new CachingEntityResolver(this.catalogResolver));
+
+		StylesheetResolver stylesheetResolver = this.getStylesheetResolver();
+		if (stylesheetResolver != null) {
+			stylesheetResolver.setCatalogResolver(this.catalogResolver);
+		}
+
 	}
 
 	/**
-	 * Parses the XML string supplied and returns it as a DOM Document
+	 * Changes the cache of parsed documents used to resolve the documents
+	 * loaded by the XSL Stylesheet, from the next transformation onwards.
 	 * 
-	 * @param xml
-	 *            the string to be parsed
-	 * @return the string as a DOM Document
-	 * @throws SAXException
-	 *             if there's an exception building the DOM Document
-	 * @throws IOException
-	 *             if there's an unresolvable problem reading the string
-	 * @throws ParserConfigurationException
-	 *             if the DocumentBuilder is configured incorrectly.
+	 * @param cache
+	 *            the DocumentCache to use, or null to stop caching documents.
 	 */
-	public Document parseToDocument(String xml) throws ParserConfigurationException, SAXException, IOException {
-		return this.documentBuilder.parse(new InputSource(new StringReader(xml)));
+	public void setDocumentCache(DocumentCache cache) {
+		this.documentCache = cache;
 	}
 
 	/**
-	 * Parses the XML Document specified and returns its contents as a DOM
-	 * Source.
+	 * Changes the instance of DocumentBuilder used by this instance of
+	 * PrimedTransformer.
 	 * 
-	 * @param xml
-	 *            the document to be parsed.
-	 * @return the contents of the document, as a DOM Source.
-	 * @throws SAXException
-	 *             if there's an exception building the DOM Source.
-	 * @throws IOException
-	 * @throws ParserConfigurationException
-	 *             if the DocumentBuilder is configured incorrectly.
+	 * @param builder
+	 *            the DocumentBuilder to use when building DOM Documents.
 	 */
-	public DOMSource parseToDOMSource(Document xml) throws ParserConfigurationException, SAXException, IOException {
-		return new DOMSource(xml);
+	public void setDocumentBuilder(DocumentBuilder builder) {
+
+		this.documentBuilder = builder;
+
+		// Rebuild the XMLReaders to match the new DocumentBuilder when next used
+		this.stylesheetReader = null;
+		this.xmlReader = null;
+
 	}
 
 	/**
-	 * Parses the XML file specified and returns its contents as a DOM Source.
+	 * Changes the pool that DocumentBuilders are borrowed from when creating a
+	 * DOM Document. The pool is safe to share with other instances of
+	 * PrimedTransformer, as long as they use the same configuration.
 	 * 
-	 * @param xml
-	 *            the file to be parsed.
-	 * @return the contents of the file, as a DOM Source.
-	 * @throws SAXException
-	 *             if there's an exception building the DOM Source.
-	 * @throws IOException
-	 *             if there's a problem reading the file.
-	 * @throws ParserConfigurationException
-	 *             if the DocumentBuilder is configured incorrectly.
+	 * @param pool
+	 *            the DocumentBuilderPool to borrow from, or null to use this
+	 *            instance's own DocumentBuilder.
 	 */
-	public DOMSource parseToDOMSource(File xml) throws ParserConfigurationException, SAXException, IOException {
-		DOMSource source = new DOMSource(this.parseToDocument(xml));
-		source.setSystemId(xml.toURI().toString());
-		return source;
+	public void setDocumentBuilderPool(DocumentBuilderPool pool) {
+		this.documentBuilderPool = pool;
 	}
 
 	/**
-	 * Parses the DOM Document supplied and returns it as an XML String.
+	 * Changes the EntityResolver used when parsing XML documents, whether into
+	 * a DOM Document or a native tree, including by the builders borrowed from
+	 * the DocumentBuilderPool, if there is one. The CatalogResolver is left as
+	 * it is.
 	 * 
-	 * @param xml
-	 *            the DOM Document to be parsed
-	 * @return the contents of the DOM Document as an XML String.
-	 * @throws TransformerException
-	 * @throws SAXException
-	 * @throws IOException
-	 * @throws ParserConfigurationException
+	 * @param resolver
+	 *            the EntityResolver to use, eg. a CachingEntityResolver shared
+	 *            with other instances of PrimedTransformer.
 	 */
-	public String parseToString(Document xml) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+	public void setEntityResolver(EntityResolver resolver) {
 
-		// Prepare an XML String for transformation
-		Source xmlSource = this.parseToDOMSource(xml);
+		this.entityResolver = resolver;
+		this.documentBuilder.setEntityResolver(this.entityResolver);
 
-		// Prepare a StringWriter to write out the result of the transformation
-		StringWriter writer = new StringWriter();
+		if (this.stylesheetReader != null) {
+			this.stylesheetReader.setEntityResolver(this.entityResolver);
+		}
 
-		// Prepare a container to hold the result of the transformation
-		StreamResult result = new StreamResult(writer);
+		if (this.xmlReader != null) {
+			this.xmlReader.setEntityResolver(this.entityResolver);
+		}
 
-		// Execute a transformation without an XSLT stylesheet
-		this.transform(xmlSource, null, result, null, null);
+		if (this.documentBuilderPool != null) {
+			this.documentBuilderPool.setEntityResolver(this.entityResolver);
+		}
 
-		// Extract the result of the transformation from the container
-		return writer.toString();
+	}
 
+	/**
+	 * Changes the cache of XInclude targets used to resolve XIncludes in the
+	 * XML parsed, from the next parse onwards. Both DOM Documents and native
+	 * trees have their XIncludes resolved through it. Leave the
+	 * DocumentBuilder's own XInclude processing off while it's set.
+	 * 
+	 * @param cache
+	 *            the IncludeCache to use, or null to leave XIncludes to the
+	 *            DocumentBuilder.
+	 */
+	public void setIncludeCache(IncludeCache cache) {
+		this.includeCache = cache;
 	}
 
 	/**
-	 * Parses the XML File supplied and returns it as an XML String.
+	 * Changes the size from which XML files parsed by this instance of
+	 * PrimedTransformer are read through memory-mapped regions of the file,
+	 * rather than through buffered streams. Mapping saves a copy of every byte
+	 * for very large files, but costs more than it saves for small ones.
 	 * 
-	 * @param xml
-	 *            the file to be parsed
-	 * @return the contents of the file as an XML String.
-	 * @throws TransformerException
-	 * @throws SAXException
-	 * @throws IOException
-	 * @throws ParserConfigurationException
+	 * @param threshold
+	 *            the size, in bytes, from which to map files, or a negative
+	 *            number never to map them (the default).
 	 */
-	public String parseToString(File xml) throws TransformerException, SAXException, IOException, ParserConfigurationException {
-		return this.parseToString(this.parseToDocument(xml));
+	public void setMappedInputThreshold(long threshold) {
+		this.mappedInputThreshold = threshold;
 	}
 
 	/**
-	 * Changes the instance of CatalogResolver used by this instance of
-	 * PrimedTransformer.
+	 * Changes the metrics that work done by this instance of
+	 * PrimedTransformer is recorded to.
 	 * 
-	 * @param resolver
-	 *            the CatalogResolver to use when building DOM Documents.
+	 * @param metrics
+	 *            the TransformerMetrics to record to, eg. one shared with
+	 *            other instances of PrimedTransformer, or null to stop
+	 *            recording.
 	 */
-	public void setCatalogResolver(XMLCatalogResolver resolver) {
-		this.catalogResolver = resolver;
-		this.documentBuilder.setEntityResolver(this.catalogResolver);
+	public void setMetrics(TransformerMetrics metrics) {
+		this.metrics = metrics;
 	}
 
 	/**
-	 * Changes the instance of DocumentBuilder used by this instance of
-	 * PrimedTransformer.
+	 * Changes the cache of serialized results consulted before transforming,
+	 * from the next transformation onwards. Only transformations of files,
+	 * bytes or streams to a StreamResult are cached.
 	 * 
-	 * @param builder
-	 *            the DocumentBuilder to use when building DOM Documents.
+	 * Note that, while a ResultCache is set, transform(File, ...) and
+	 * transform(InputStream, ...) read the whole input into memory so that it
+	 * can be hashed, rather than streaming it to the parser; very large
+	 * inputs are better transformed without one.
+	 * 
+	 * @param cache
+	 *            the ResultCache to use, eg. one shared with other instances
+	 *            of PrimedTransformer, or null to stop caching results.
 	 */
-	public void setDocumentBuilder(DocumentBuilder builder) {
-		this.documentBuilder = builder;
+	public void setResultCache(ResultCache cache) {
+		this.resultCache = cache;
 	}
 
 	/**
@@ -387,6 +1790,17 @@ public class PrimedTransformer {
 	 * @throws TransformerConfigurationException
 	 */
 	public void setStylesheet(Source xsl) throws TransformerConfigurationException {
+		this.setStylesheetTemplates((xsl == null) ? null : this.newTemplates(xsl));
+	}
+
+	/**
+	 * Changes the XSL Stylesheet used by this instance of PrimedTransformer.
+	 * 
+	 * @param xsl
+	 *            the compiled XSL Stylesheet to use for transformations.
+	 * @throws TransformerConfigurationException
+	 */
+	public void setStylesheetTemplates(Templates xsl) throws TransformerConfigurationException {
 
 		// Update the stored XSL Stylesheet
 		this.stylesheet = xsl;
@@ -408,22 +1822,47 @@ public class PrimedTransformer {
 	}
 
 	/**
-	 * Creates a new instance of Transformer that uses the XSL Stylesheet,
-	 * parameters and ErrorListener currently stored in this instance of
+	 * Prepares a Transformer that uses the XSL Stylesheet, parameters,
+	 * ErrorListener and DocumentCache currently stored in this instance of
 	 * PrimedTransformer.
 	 * 
+	 * A Saxon Transformer is kept for as long as the XSL Stylesheet is
+	 * unchanged: its parameters and the documents it has loaded are cleared
+	 * between transformations, and the ErrorListener and URIResolver are only
+	 * set when they change. Any other Transformer is created afresh.
+	 * 
 	 * @throws TransformerConfigurationException
 	 */
 	private void setTransformer() throws TransformerConfigurationException {
 
-		if (this.stylesheet != null) {
-			this.transformer = this.transformerFactory.newTransformer(this.stylesheet);
+		if (this.transformer instanceof Controller && this.transformerStylesheet == this.stylesheet) {
+
+			// Otherwise documents read by document() would be kept from one transformation to the next
+			Controller controller = (Controller) this.transformer;
+			controller.clearParameters();
+			controller.clearDocumentPool();
+
 		} else {
-			this.transformer = this.transformerFactory.newTransformer();
+
+			if (this.stylesheet != null) {
+				this.transformer = this.stylesheet.newTransformer();
+			} else {
+				this.transformer = this.transformerFactory.newTransformer();
+			}
+
+			this.transformerStylesheet = this.stylesheet;
+			this.transformerDefaultErrorListener = this.transformer.getErrorListener();
+			this.transformerDefaultURIResolver = this.transformer.getURIResolver();
+
+			if (this.transformerErrorListener != null) {
+				this.transformer.setErrorListener(this.transformerErrorListener);
+			}
+
 		}
 
-		if (this.transformerErrorListener != null) {
-			this.transformer.setErrorListener(this.transformerErrorListener);
+		URIResolver resolver = (this.documentCache == null) ? this.transformerDefaultURIResolver : this.documentCache;
+		if (this.transformer.getURIResolver() != resolver) {
+			this.transformer.setURIResolver(resolver);
 		}
 
 		// Pass parameters through to the XSLT
@@ -446,20 +1885,128 @@ public class PrimedTransformer {
 
 	/**
 	 * Changes the ErrorListener used with this instance of PrimedTransformer.
+	 * The current Transformer is only updated if the listener differs from
+	 * the one already in place, so the same instance (eg. a shared
+	 * DiagnosticsCollector) can be passed with every transformation at no
+	 * cost.
 	 * 
 	 * @param listener
 	 *            the ErrorListener to use for handling TransformationExceptions
 	 *            thrown during transformations executed by this instance of
-	 *            PrimedTransformation.
+	 *            PrimedTransformation, or null for the Transformer's own.
 	 */
 	public void setTransformerErrorListener(ErrorListener listener) {
 
+		// Already in place on the current Transformer
+		if (listener == this.transformerErrorListener) {
+			return;
+		}
+
 		this.transformerErrorListener = listener;
+		this.transformer.setErrorListener((listener == null) ? this.transformerDefaultErrorListener : listener);
+
+	}
+
+	/**
+	 * Records the last-modified time and length of each local file the XSL
+	 * Stylesheet supplied is compiled from: the stylesheet itself, unless its
+	 * content is supplied, and every module it includes or imports. The
+	 * modules are found by reading each in turn, so this is only used where
+	 * they can't be noted as they're resolved. A module that can't be found
+	 * is left for the compiler to report.
+	 */
+	private Map<File, long[]> stampModules(StreamSource xsl) {
+
+		boolean supplied = xsl.getInputStream() != null || xsl.getReader() != null;
+		String systemId = xsl.getSystemId();
+
+		StylesheetResolver resolver = this.getStylesheetResolver();
+		if (resolver == null) {
+			resolver = new StylesheetResolver(this.catalogResolver);
+		}
+
+		List<String> locations;
+		try {
+			locations = resolver.listModules(xsl);
+		} catch (TransformerException e) {
+			locations = (supplied || systemId == null) ? Collections.<String> emptyList() : Collections.singletonList(systemId);
+		}
+
+		Map<File, long[]> stamps = new HashMap<File, long[]>();
+		for (String location : locations) {
+
+			if (supplied && location.equals(systemId)) {
+				continue;
+			}
+
+			File file = TemplatesCache.toFile(location);
+			if (file != null) {
+				LruCache.stamp(file, stamps);
+			}
+
+		}
+
+		return stamps;
+
+	}
+
+	/**
+	 * Transforms the XML bytes supplied using the XSLT stylesheet and
+	 * parameters specified. The parser detects the encoding, so the bytes
+	 * needn't be decoded first.
+	 * 
+	 * @param xml
+	 *            the XML to be transformed.
+	 * @param xsl
+	 *            the XSLT stylesheet to use for the transformation, or null
+	 *            for none.
+	 * @param result
+	 *            a container to hold the result of the transformation.
+	 * @param params
+	 *            a list of parameters for configuring the XSLT stylesheet prior
+	 *            to the transformation.
+	 * @param listener
+	 * @throws TransformerException
+	 *             when it's not possible to complete the transformation.
+	 * @throws ParserConfigurationException
+	 * @throws IOException
+	 * @throws SAXException
+	 */
+	public void transform(byte[] xml, File xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException, SAXException, IOException, ParserConfigurationException {
 
-		if (this.transformerErrorListener != null) {
-			this.transformer.setErrorListener(this.transformerErrorListener);
+		if (this.resultCache != null && ResultCache.isCacheable(result)) {
+			this.transformCached(xml, null, xsl, result, params, listener);
+			return;
 		}
 
+		this.transform(new ByteArrayInputStream(xml), xsl, result, params, listener);
+
+	}
+
+	/**
+	 * Transforms the remaining bytes of the buffer supplied using the XSLT
+	 * stylesheet and parameters specified. The bytes are read in place, and
+	 * the position of the buffer is left as it is.
+	 * 
+	 * @param xml
+	 *            the XML to be transformed.
+	 * @param xsl
+	 *            the XSLT stylesheet to use for the transformation, or null
+	 *            for none.
+	 * @param result
+	 *            a container to hold the result of the transformation.
+	 * @param params
+	 *            a list of parameters for configuring the XSLT stylesheet prior
+	 *            to the transformation.
+	 * @param listener
+	 * @throws TransformerException
+	 *             when it's not possible to complete the transformation.
+	 * @throws ParserConfigurationException
+	 * @throws IOException
+	 * @throws SAXException
+	 */
+	public void transform(ByteBuffer xml, File xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.transform(new ByteBufferInputStream(xml), xsl, result, params, listener);
 	}
 
 	/**
@@ -467,8 +2014,9 @@ public class PrimedTransformer {
 	 * 
 	 * @param xml
 	 *            the XML to be transformed.
-	 * @param stylesheet
-	 *            the XSLT stylesheet to use for the transformation.
+	 * @param xsl
+	 *            the XSLT stylesheet to use for the transformation, or null
+	 *            for none.
 	 * @param result
 	 *            a container to hold the result of the transformation.
 	 * @param params
@@ -482,7 +2030,46 @@ public class PrimedTransformer {
 	 * @throws SAXException
 	 */
 	public void transform(File xml, File xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException, SAXException, IOException, ParserConfigurationException {
-		this.transform(this.parseToDOMSource(xml), this.parseToDOMSource(xsl), result, params, listener);
+
+		if (this.resultCache != null && ResultCache.isCacheable(result)) {
+			this.transformCached(FileUtils.readFileToByteArray(xml), xml.toURI().toString(), xsl, result, params, listener);
+			return;
+		}
+
+		this.transformWithTemplates(this.parseToSource(xml), (xsl == null) ? null : this.newTemplates(xsl), result, params, listener);
+
+	}
+
+	/**
+	 * Transforms the XML read from the stream supplied using the XSLT
+	 * stylesheet and parameters specified. The stream is left open.
+	 * 
+	 * @param xml
+	 *            the XML to be transformed.
+	 * @param xsl
+	 *            the XSLT stylesheet to use for the transformation, or null
+	 *            for none.
+	 * @param result
+	 *            a container to hold the result of the transformation.
+	 * @param params
+	 *            a list of parameters for configuring the XSLT stylesheet prior
+	 *            to the transformation.
+	 * @param listener
+	 * @throws TransformerException
+	 *             when it's not possible to complete the transformation.
+	 * @throws ParserConfigurationException
+	 * @throws IOException
+	 * @throws SAXException
+	 */
+	public void transform(InputStream xml, File xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		if (this.resultCache != null && ResultCache.isCacheable(result)) {
+			this.transformCached(IOUtils.toByteArray(xml), null, xsl, result, params, listener);
+			return;
+		}
+
+		this.transformWithTemplates(this.parseToSource(xml, null), (xsl == null) ? null : this.newTemplates(xsl), result, params, listener);
+
 	}
 
 	/**
@@ -490,7 +2077,7 @@ public class PrimedTransformer {
 	 * 
 	 * @param xml
 	 *            the XML to be transformed.
-	 * @param stylesheet
+	 * @param xsl
 	 *            the XSLT stylesheet to use for the transformation.
 	 * @param result
 	 *            a container to hold the result of the transformation.
@@ -505,6 +2092,83 @@ public class PrimedTransformer {
 	 * @throws SAXException
 	 */
 	public void transform(Source xml, Source xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.transformWithTemplates(xml, (xsl == null) ? null : this.newTemplates(xsl), result, params, listener);
+	}
+
+	/**
+	 * Writes the cached result of transforming the XML supplied to the Result
+	 * specified, transforming it (and caching the result) only if there isn't
+	 * one. The XSL Stylesheet is identified by its location and the
+	 * last-modified time and length of every local file it's compiled from,
+	 * so a cached result is ignored once the stylesheet or any of its modules
+	 * changes.
+	 */
+	private void transformCached(byte[] xml, String systemId, File xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		Templates templates = null;
+		String stylesheet = null;
+
+		if (xsl != null) {
+
+			templates = this.newTemplates(xsl);
+
+			// The stamps recorded when the stylesheet was compiled are current, having just been checked
+			String location = xsl.toURI().toString();
+			Map<File, long[]> stamps = this.templatesCache.getStamps(location);
+			if (stamps == null) {
+				stamps = this.stampModules(new StreamSource(location));
+			}
+
+			TreeMap<String, long[]> sorted = new TreeMap<String, long[]>();
+			for (Map.Entry<File, long[]> stamp : stamps.entrySet()) {
+				sorted.put(stamp.getKey().getPath(), stamp.getValue());
+			}
+
+			StringBuilder identity = new StringBuilder(location);
+			for (Map.Entry<String, long[]> stamp : sorted.entrySet()) {
+				identity.append('\n').append(stamp.getKey()).append('@').append(stamp.getValue()[0]).append(':').append(stamp.getValue()[1]);
+			}
+			stylesheet = identity.toString();
+
+		}
+
+		String key = ResultCache.newKey(xml, systemId, stylesheet, params);
+		if (this.resultCache.write(key, result)) {
+			return;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		this.transformWithTemplates(this.parseToSource(new ByteArrayInputStream(xml), systemId), templates, new StreamResult(out), params, listener);
+
+		byte[] output = out.toByteArray();
+		String encoding = this.transformer.getOutputProperty(OutputKeys.ENCODING);
+
+		this.resultCache.put(key, output, encoding);
+		ResultCache.write(output, (encoding == null) ? "UTF-8" : encoding, result);
+
+	}
+
+	/**
+	 * Transforms XML using the compiled XSLT stylesheet and parameters
+	 * specified.
+	 * 
+	 * @param xml
+	 *            the XML to be transformed.
+	 * @param xsl
+	 *            the compiled XSLT stylesheet to use for the transformation.
+	 * @param result
+	 *            a container to hold the result of the transformation.
+	 * @param params
+	 *            a list of parameters for configuring the XSLT stylesheet prior
+	 *            to the transformation.
+	 * @param listener
+	 *            the ErrorListener for the transformation, or null. Passing
+	 *            the same instance with every call, eg. a shared
+	 *            DiagnosticsCollector, leaves it in place between calls.
+	 * @throws TransformerException
+	 *             when it's not possible to complete the transformation.
+	 */
+	public void transformWithTemplates(Source xml, Templates xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException {
 
 		// Update the stored ErrorListener
 		this.setTransformerErrorListener(listener);
@@ -513,10 +2177,39 @@ public class PrimedTransformer {
 		this.setStylesheetParameters(params);
 
 		// Update the stored XSL Stylesheet (and Transformer).
-		this.setStylesheet(xsl);
+		this.setStylesheetTemplates(xsl);
+
+		if (this.metrics == null) {
+
+			// Execute the transformation.
+			this.transformer.transform(xml, result);
+			return;
+
+		}
+
+		// Count the bytes written, where the result is a stream
+		CountingOutputStream counter = null;
+		Result target = result;
+		if (result instanceof StreamResult && ((StreamResult) result).getOutputStream() != null) {
+			counter = new CountingOutputStream(((StreamResult) result).getOutputStream());
+			target = new StreamResult(counter);
+			target.setSystemId(result.getSystemId());
+		}
+
+		String name = this.metrics.nameOf(xsl);
+		TransformerMetrics.Phase phase = (xsl == null) ? TransformerMetrics.Phase.SERIALIZE : TransformerMetrics.Phase.TRANSFORM;
 
-		// Execute the transformation.
-		this.transformer.transform(xml, result);
+		long start = System.nanoTime();
+		boolean complete = false;
+		try {
+
+			// Execute the transformation.
+			this.transformer.transform(xml, target);
+			complete = true;
+
+		} finally {
+			this.record(name, phase, start, complete, 0L, (counter == null) ? 0L : counter.getByteCount());
+		}
 
 	}
 
@@ -556,15 +2249,19 @@ public class PrimedTransformer {
 
 	/**
 	 * Creates and configures an instance of the default TransformerFactory
-	 * implementation.
+	 * implementation. Modules included or imported by XSL Stylesheets are
+	 * resolved by a StylesheetResolver, so each is only read once.
 	 */
 	public static TransformerFactory newTransformerFactory() {
 
-		TransformerFactory factory = new net.sf.saxon.TransformerFactoryImpl();
+		TransformerFactoryImpl factory = new net.sf.saxon.TransformerFactoryImpl();
 
 		factory.setAttribute(FeatureKeys.XINCLUDE, PrimedTransformer.SET_XINCLUDE_AWARE);
 		factory.setAttribute(FeatureKeys.VALIDATION_WARNINGS, !PrimedTransformer.SET_VALIDATING);
 
+		// Only applies when compiling, so documents loaded at run time aren't held
+		factory.getConfiguration().getDefaultXsltCompilerInfo().setURIResolver(new StylesheetResolver());
+
 		return factory;
 
 	}
@@ -0,0 +1,101 @@
+/*
+ * PrimingReport
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of priming a set of XSL Stylesheets: a PrimingResult for each
+ * stylesheet, in the order the stylesheets were supplied, together with the
+ * time taken to prime the whole set.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class PrimingReport {
+
+	/**
+	 * The wall-clock time taken to prime the whole set, in nanoseconds.
+	 */
+	private final long elapsed;
+
+	/**
+	 * The outcome for each stylesheet in the set.
+	 */
+	private final List<PrimingResult> results;
+
+	/**
+	 * @param results
+	 *            the outcome for each stylesheet in the set.
+	 * @param elapsed
+	 *            the wall-clock time taken to prime the whole set, in
+	 *            nanoseconds.
+	 */
+	public PrimingReport(List<PrimingResult> results, long elapsed) {
+		this.results = Collections.unmodifiableList(new ArrayList<PrimingResult>(results));
+		this.elapsed = elapsed;
+	}
+
+	/**
+	 * @return the wall-clock time taken to prime the whole set, in
+	 *         nanoseconds.
+	 */
+	public long getElapsed() {
+		return this.elapsed;
+	}
+
+	/**
+	 * @return the outcome for each stylesheet that couldn't be primed.
+	 */
+	public List<PrimingResult> getFailures() {
+
+		List<PrimingResult> failures = new ArrayList<PrimingResult>();
+		for (PrimingResult result : this.results) {
+			if (!result.isSuccessful()) {
+				failures.add(result);
+			}
+		}
+
+		return failures;
+
+	}
+
+	/**
+	 * @return the outcome for each stylesheet in the set.
+	 */
+	public List<PrimingResult> getResults() {
+		return this.results;
+	}
+
+	/**
+	 * @return true if every stylesheet in the set was primed successfully.
+	 */
+	public boolean isSuccessful() {
+		return this.getFailures().isEmpty();
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder builder = new StringBuilder();
+		builder.append("Primed ").append(this.results.size()).append(" stylesheet(s) in ").append(this.elapsed / 1000000L).append(" ms");
+
+		for (PrimingResult result : this.results) {
+			builder.append(System.getProperty("line.separator")).append("  ").append(result);
+		}
+
+		return builder.toString();
+
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * PrimingResult
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+
+/**
+ * The outcome of priming a single XSL Stylesheet: how long it took to compile
+ * and to run its warm-up transformations, or why it couldn't be primed.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class PrimingResult {
+
+	/**
+	 * The time taken to compile the stylesheet, in nanoseconds.
+	 */
+	private final long compileTime;
+
+	/**
+	 * The exception that stopped the stylesheet being primed, or null if it was
+	 * primed successfully.
+	 */
+	private final Exception exception;
+
+	/**
+	 * The XSL Stylesheet primed.
+	 */
+	private final File stylesheet;
+
+	/**
+	 * The number of warm-up transformations completed.
+	 */
+	private final int warmUps;
+
+	/**
+	 * The total time taken by the warm-up transformations, in nanoseconds.
+	 */
+	private final long warmUpTime;
+
+	/**
+	 * @param stylesheet
+	 *            the XSL Stylesheet primed.
+	 * @param compileTime
+	 *            the time taken to compile the stylesheet, in nanoseconds.
+	 * @param warmUps
+	 *            the number of warm-up transformations completed.
+	 * @param warmUpTime
+	 *            the total time taken by the warm-up transformations, in
+	 *            nanoseconds.
+	 * @param exception
+	 *            the exception that stopped the stylesheet being primed, or
+	 *            null.
+	 */
+	public PrimingResult(File stylesheet, long compileTime, int warmUps, long warmUpTime, Exception exception) {
+		this.stylesheet = stylesheet;
+		this.compileTime = compileTime;
+		this.warmUps = warmUps;
+		this.warmUpTime = warmUpTime;
+		this.exception = exception;
+	}
+
+	/**
+	 * @return the time taken to compile the stylesheet, in nanoseconds.
+	 */
+	public long getCompileTime() {
+		return this.compileTime;
+	}
+
+	/**
+	 * @return the exception that stopped the stylesheet being primed, or null
+	 *         if it was primed successfully.
+	 */
+	public Exception getException() {
+		return this.exception;
+	}
+
+	/**
+	 * @return the XSL Stylesheet primed.
+	 */
+	public File getStylesheet() {
+		return this.stylesheet;
+	}
+
+	/**
+	 * @return the number of warm-up transformations completed.
+	 */
+	public int getWarmUps() {
+		return this.warmUps;
+	}
+
+	/**
+	 * @return the total time taken by the warm-up transformations, in
+	 *         nanoseconds.
+	 */
+	public long getWarmUpTime() {
+		return this.warmUpTime;
+	}
+
+	/**
+	 * @return true if the stylesheet was compiled and every warm-up
+	 *         transformation completed.
+	 */
+	public boolean isSuccessful() {
+		return this.exception == null;
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder builder = new StringBuilder(this.stylesheet.getPath());
+		builder.append(": compiled in ").append(this.compileTime / 1000000L).append(" ms");
+		builder.append(", ").append(this.warmUps).append(" warm-up(s) in ").append(this.warmUpTime / 1000000L).append(" ms");
+
+		if (this.exception != null) {
+			builder.append(", failed: ").append(this.exception.getMessage());
+		}
+
+		return builder.toString();
+
+	}
+
+}
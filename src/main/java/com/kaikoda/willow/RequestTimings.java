@@ -0,0 +1,120 @@
+/*
+ * RequestTimings
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.util.Locale;
+
+/**
+ * How long a TransformDaemon spent on each phase of a single request, as
+ * reported back to the TransformClient that made it. Times are in
+ * nanoseconds.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class RequestTimings {
+
+	/**
+	 * The time spent compiling the XSL Stylesheet, or finding it in the cache.
+	 */
+	private final long compile;
+
+	/**
+	 * The time spent parsing the input.
+	 */
+	private final long parse;
+
+	/**
+	 * The time the request waited for a free worker thread.
+	 */
+	private final long queued;
+
+	/**
+	 * The time from the connection being accepted to the response being
+	 * ready.
+	 */
+	private final long total;
+
+	/**
+	 * The time spent transforming the input and writing the output.
+	 */
+	private final long transform;
+
+	/**
+	 * @param queued
+	 *            the time the request waited for a free worker thread.
+	 * @param compile
+	 *            the time spent compiling the XSL Stylesheet, or finding it in
+	 *            the cache.
+	 * @param parse
+	 *            the time spent parsing the input.
+	 * @param transform
+	 *            the time spent transforming the input and writing the output.
+	 * @param total
+	 *            the time from the connection being accepted to the response
+	 *            being ready.
+	 */
+	public RequestTimings(long queued, long compile, long parse, long transform, long total) {
+		this.queued = queued;
+		this.compile = compile;
+		this.parse = parse;
+		this.transform = transform;
+		this.total = total;
+	}
+
+	/**
+	 * @return the time spent compiling the XSL Stylesheet, or finding it in
+	 *         the cache, in nanoseconds.
+	 */
+	public long getCompile() {
+		return this.compile;
+	}
+
+	/**
+	 * @return the time spent parsing the input, in nanoseconds.
+	 */
+	public long getParse() {
+		return this.parse;
+	}
+
+	/**
+	 * @return the time the request waited for a free worker thread, in
+	 *         nanoseconds.
+	 */
+	public long getQueued() {
+		return this.queued;
+	}
+
+	/**
+	 * @return the time from the connection being accepted to the response
+	 *         being ready, in nanoseconds.
+	 */
+	public long getTotal() {
+		return this.total;
+	}
+
+	/**
+	 * @return the time spent transforming the input and writing the output,
+	 *         in nanoseconds.
+	 */
+	public long getTransform() {
+		return this.transform;
+	}
+
+	/**
+	 * @return the timings in milliseconds, eg. for logging by a shell script.
+	 */
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "queued=%.3fms compile=%.3fms parse=%.3fms transform=%.3fms total=%.3fms", this.queued / 1e6, this.compile / 1e6, this.parse / 1e6, this.transform / 1e6, this.total / 1e6);
+	}
+
+}
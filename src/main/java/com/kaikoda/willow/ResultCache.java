@@ -0,0 +1,586 @@
+/*
+ * ResultCache
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A cache of the serialized results of transformations, keyed by a hash of the
+ * input bytes and location, the identity of the XSL Stylesheet (and its
+ * modules) and the parameters, so that the same payload arriving again is
+ * answered without transforming it.
+ *
+ * Results are held in memory, bounded by their total size; the least recently
+ * used are evicted to stay within that bound. Given a directory, results are
+ * also written to disk, bounded in the same way, so that they outlive the
+ * memory tier (and the process). A result found on disk is promoted back into
+ * memory.
+ *
+ * Only results destined for a StreamResult (an OutputStream, a Writer or a
+ * local file) are cached, and only the principal result of a transformation
+ * is stored: stylesheets that write secondary results shouldn't be used with
+ * a ResultCache.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class ResultCache {
+
+	/**
+	 * A serialized result, together with what's needed to deliver it.
+	 */
+	private static class Entry {
+
+		private final String encoding;
+
+		private final byte[] output;
+
+		private Entry(byte[] output, String encoding) {
+			this.output = output;
+			this.encoding = encoding;
+		}
+
+	}
+
+	/**
+	 * The default maximum total size, in bytes, of the results held in memory.
+	 */
+	public static final long DEFAULT_MAXIMUM_BYTES = 32L * 1024L * 1024L;
+
+	/**
+	 * The encoding assumed for a result whose encoding isn't known.
+	 */
+	private static final String DEFAULT_ENCODING = "UTF-8";
+
+	/**
+	 * The file extension given to results written to disk.
+	 */
+	private static final String EXTENSION = ".result";
+
+	/**
+	 * The directory results are written to, or null if they're only held in
+	 * memory.
+	 */
+	private final File directory;
+
+	/**
+	 * The total size, in bytes, of the results currently on disk.
+	 */
+	private final AtomicLong diskBytes;
+
+	/**
+	 * The number of results removed from disk to stay within the maximum
+	 * size.
+	 */
+	private final AtomicLong diskEvictions;
+
+	/**
+	 * The number of lookups answered from disk.
+	 */
+	private final AtomicLong diskHits;
+
+	/**
+	 * The results currently held in memory, by key.
+	 */
+	private final LruCache<Entry> entries;
+
+	/**
+	 * The maximum total size, in bytes, of the results held on disk.
+	 */
+	private final long maximumDiskBytes;
+
+	/**
+	 * Creates a ResultCache that holds results in memory only.
+	 *
+	 * @param maximumBytes
+	 *            the maximum total size, in bytes, of the results held in
+	 *            memory.
+	 */
+	public ResultCache(long maximumBytes) {
+		this(maximumBytes, null, 0L);
+	}
+
+	/**
+	 * Creates a ResultCache that also writes results to the directory
+	 * specified. Results already in the directory, from an earlier run, are
+	 * used.
+	 *
+	 * @param maximumBytes
+	 *            the maximum total size, in bytes, of the results held in
+	 *            memory.
+	 * @param directory
+	 *            the directory to write results to, or null to hold them in
+	 *            memory only. It's created if it doesn't exist.
+	 * @param maximumDiskBytes
+	 *            the maximum total size, in bytes, of the results held on
+	 *            disk. Ignored if there isn't a directory.
+	 */
+	public ResultCache(long maximumBytes, File directory, long maximumDiskBytes) {
+
+		if (maximumBytes < 1) {
+			throw new IllegalArgumentException("Maximum bytes must be at least 1.");
+		}
+
+		if (directory != null && maximumDiskBytes < 1) {
+			throw new IllegalArgumentException("Maximum disk bytes must be at least 1.");
+		}
+
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+			throw new IllegalArgumentException("Unable to create directory: " + directory);
+		}
+
+		this.directory = directory;
+		this.maximumDiskBytes = maximumDiskBytes;
+		this.entries = new LruCache<Entry>(maximumBytes);
+		this.diskBytes = new AtomicLong();
+		this.diskHits = new AtomicLong();
+		this.diskEvictions = new AtomicLong();
+
+		if (directory != null) {
+
+			for (File file : this.listFiles()) {
+				this.diskBytes.addAndGet(file.length());
+			}
+
+			this.trimDisk();
+
+		}
+
+	}
+
+	/**
+	 * Removes all results from memory and disk. The hit, miss and eviction
+	 * counts are left as they are.
+	 */
+	public void clear() {
+
+		this.entries.clear();
+
+		if (this.directory != null) {
+			synchronized (this.directory) {
+				for (File file : this.listFiles()) {
+					long length = file.length();
+					if (file.delete()) {
+						this.diskBytes.addAndGet(-length);
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * @return the directory results are written to, or null if they're only
+	 *         held in memory.
+	 */
+	public File getDirectory() {
+		return this.directory;
+	}
+
+	/**
+	 * @return the total size, in bytes, of the results currently on disk.
+	 */
+	public long getDiskBytes() {
+		return this.diskBytes.get();
+	}
+
+	/**
+	 * @return the number of lookups answered from disk, rather than memory.
+	 *         These are included in the number of hits.
+	 */
+	public long getDiskHits() {
+		return this.diskHits.get();
+	}
+
+	/**
+	 * @return the number of results removed from memory or disk to stay
+	 *         within the maximum sizes.
+	 */
+	public long getEvictions() {
+		return this.entries.getEvictions() + this.diskEvictions.get();
+	}
+
+	/**
+	 * @return the number of lookups that found a result.
+	 */
+	public long getHits() {
+		return this.entries.getHits() + this.diskHits.get();
+	}
+
+	/**
+	 * @return the maximum total size, in bytes, of the results held in memory.
+	 */
+	public long getMaximumBytes() {
+		return this.entries.getMaximumWeight();
+	}
+
+	/**
+	 * @return the maximum total size, in bytes, of the results held on disk.
+	 */
+	public long getMaximumDiskBytes() {
+		return this.maximumDiskBytes;
+	}
+
+	/**
+	 * @return the number of lookups that didn't find a result.
+	 */
+	public long getMisses() {
+
+		// A lookup answered from disk missed the memory tier first
+		return this.entries.getMisses() - this.diskHits.get();
+
+	}
+
+	/**
+	 * @return the total size, in bytes, of the results currently held in
+	 *         memory.
+	 */
+	public long getTotalBytes() {
+		return this.entries.getTotalWeight();
+	}
+
+	/**
+	 * Stores the serialized result of a transformation.
+	 *
+	 * @param key
+	 *            the key made by {@link #newKey(byte[], String, String, TreeMap)}.
+	 * @param output
+	 *            the serialized result.
+	 * @param encoding
+	 *            the encoding the result was serialized with, or null if it's
+	 *            UTF-8.
+	 * @throws IOException
+	 *             if the result can't be written to disk.
+	 */
+	public void put(String key, byte[] output, String encoding) throws IOException {
+
+		Entry entry = new Entry(output, (encoding == null) ? ResultCache.DEFAULT_ENCODING : encoding);
+		this.entries.put(key, entry, output.length, null);
+
+		if (this.directory != null && output.length <= this.maximumDiskBytes) {
+			this.writeToDisk(key, entry);
+		}
+
+	}
+
+	/**
+	 * @return the number of results currently held in memory.
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Writes the result stored under the key specified to the Result
+	 * supplied, if there is one.
+	 *
+	 * @param key
+	 *            the key made by {@link #newKey(byte[], String, String, TreeMap)}.
+	 * @param result
+	 *            where to write the result; it must be cacheable.
+	 * @return true if a result was found and written, false otherwise.
+	 * @throws IOException
+	 *             if the result can't be read from disk, or written.
+	 * @see #isCacheable(Result)
+	 */
+	public boolean write(String key, Result result) throws IOException {
+
+		Entry entry = this.entries.get(key);
+		if (entry == null && this.directory != null) {
+
+			entry = this.readFromDisk(key);
+			if (entry != null) {
+
+				this.diskHits.incrementAndGet();
+
+				// Promote the result back into memory
+				this.entries.put(key, entry, entry.output.length, null);
+
+			}
+
+		}
+
+		if (entry == null) {
+			return false;
+		}
+
+		ResultCache.write(entry.output, entry.encoding, result);
+
+		return true;
+
+	}
+
+	/**
+	 * @return the results currently on disk.
+	 */
+	private File[] listFiles() {
+
+		File[] files = this.directory.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+
+		int count = 0;
+		for (File file : files) {
+			if (file.isFile() && file.getName().endsWith(ResultCache.EXTENSION)) {
+				files[count++] = file;
+			}
+		}
+
+		return Arrays.copyOf(files, count);
+
+	}
+
+	/**
+	 * Reads the result stored on disk under the key specified, marking it as
+	 * recently used.
+	 *
+	 * @return the result, or null if there isn't one.
+	 */
+	private Entry readFromDisk(String key) throws IOException {
+
+		File file = new File(this.directory, key + ResultCache.EXTENSION);
+
+		byte[] content;
+		synchronized (this.directory) {
+
+			if (!file.isFile()) {
+				return null;
+			}
+
+			content = FileUtils.readFileToByteArray(file);
+			file.setLastModified(System.currentTimeMillis());
+
+		}
+
+		// The encoding is on the first line, ahead of the result
+		int end = 0;
+		while (end < content.length && content[end] != '\n') {
+			end++;
+		}
+
+		if (end == content.length) {
+			return null;
+		}
+
+		String encoding = new String(content, 0, end, "US-ASCII");
+		byte[] output = Arrays.copyOfRange(content, end + 1, content.length);
+
+		return new Entry(output, encoding);
+
+	}
+
+	/**
+	 * Deletes the least recently used results from disk until the total size
+	 * is within the maximum.
+	 */
+	private void trimDisk() {
+
+		if (this.diskBytes.get() <= this.maximumDiskBytes) {
+			return;
+		}
+
+		synchronized (this.directory) {
+
+			File[] files = this.listFiles();
+			Arrays.sort(files, new Comparator<File>() {
+
+				@Override
+				public int compare(File a, File b) {
+					long difference = a.lastModified() - b.lastModified();
+					return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+				}
+
+			});
+
+			for (int i = 0; i < files.length && this.diskBytes.get() > this.maximumDiskBytes; i++) {
+				long length = files[i].length();
+				if (files[i].delete()) {
+					this.diskBytes.addAndGet(-length);
+					this.diskEvictions.incrementAndGet();
+				}
+			}
+
+		}
+
+	}
+
+	/**
+	 * Writes a result to disk, replacing any already stored under the same
+	 * key.
+	 */
+	private void writeToDisk(String key, Entry entry) throws IOException {
+
+		File file = new File(this.directory, key + ResultCache.EXTENSION);
+		File temporary = File.createTempFile(key, ".tmp", this.directory);
+
+		boolean complete = false;
+		try {
+
+			OutputStream out = new FileOutputStream(temporary);
+			try {
+				out.write((entry.encoding + "\n").getBytes("US-ASCII"));
+				out.write(entry.output);
+			} finally {
+				out.close();
+			}
+
+			synchronized (this.directory) {
+
+				long replaced = file.isFile() ? file.length() : 0L;
+				long length = temporary.length();
+
+				Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				this.diskBytes.addAndGet(length - replaced);
+
+			}
+
+			complete = true;
+
+		} finally {
+			if (!complete) {
+				temporary.delete();
+			}
+		}
+
+		this.trimDisk();
+
+	}
+
+	/**
+	 * Checks whether the result of a transformation to the Result specified
+	 * can be cached.
+	 *
+	 * @param result
+	 *            the Result a transformation is destined for.
+	 * @return true if it's a StreamResult with an OutputStream, a Writer or a
+	 *         local file.
+	 */
+	public static boolean isCacheable(Result result) {
+
+		if (!(result instanceof StreamResult)) {
+			return false;
+		}
+
+		StreamResult stream = (StreamResult) result;
+
+		return stream.getOutputStream() != null || stream.getWriter() != null || (stream.getSystemId() != null && TemplatesCache.toFile(stream.getSystemId()) != null);
+
+	}
+
+	/**
+	 * Makes the key that identifies the result of transforming the input
+	 * specified with the XSL Stylesheet and parameters specified.
+	 *
+	 * @param xml
+	 *            the input, as bytes.
+	 * @param stylesheet
+	 *            the identity of the XSL Stylesheet, which must change
+	 *            whenever the stylesheet does, or null for none.
+	 * @param params
+	 *            the parameters, or null for none.
+	 * @return the key, as a string of hexadecimal digits.
+	 */
+	public static String newKey(byte[] xml, String stylesheet, TreeMap<String, String> params) {
+		return ResultCache.newKey(xml, null, stylesheet, params);
+	}
+
+	/**
+	 * Makes the key that identifies the result of transforming the input
+	 * specified, read from the location specified, with the XSL Stylesheet
+	 * and parameters specified. The location matters wherever the input or
+	 * stylesheet resolves relative URIs against it.
+	 *
+	 * @param xml
+	 *            the input, as bytes.
+	 * @param systemId
+	 *            the system ID of the input, or null if it has none.
+	 * @param stylesheet
+	 *            the identity of the XSL Stylesheet and every module it
+	 *            includes or imports, which must change whenever any of them
+	 *            does, or null for none.
+	 * @param params
+	 *            the parameters, or null for none.
+	 * @return the key, as a string of hexadecimal digits.
+	 */
+	public static String newKey(byte[] xml, String systemId, String stylesheet, TreeMap<String, String> params) {
+
+		MessageDigest digest = BatchManifest.newDigest();
+
+		try {
+
+			digest.update(xml);
+			digest.update((byte) 0);
+
+			if (systemId != null) {
+				digest.update(systemId.getBytes("UTF-8"));
+			}
+			digest.update((byte) 0);
+
+			if (stylesheet != null) {
+				digest.update(stylesheet.getBytes("UTF-8"));
+			}
+			digest.update((byte) 0);
+
+			if (params != null) {
+				for (Map.Entry<String, String> param : params.entrySet()) {
+					// A namespace URI in Clark notation may contain '=', so names and values are kept apart by a byte XML can't contain
+					digest.update(param.getKey().getBytes("UTF-8"));
+					digest.update((byte) 0);
+					digest.update(param.getValue().getBytes("UTF-8"));
+					digest.update((byte) 0);
+				}
+			}
+
+		} catch (IOException e) {
+			// Every Java platform is required to support UTF-8
+			throw new IllegalStateException(e);
+		}
+
+		return BatchManifest.toHex(digest.digest());
+
+	}
+
+	/**
+	 * Writes a serialized result to the Result specified: bytes go straight
+	 * to an OutputStream or file, and are decoded for a Writer.
+	 */
+	static void write(byte[] output, String encoding, Result result) throws IOException {
+
+		StreamResult stream = (StreamResult) result;
+
+		if (stream.getOutputStream() != null) {
+			stream.getOutputStream().write(output);
+		} else if (stream.getWriter() != null) {
+			stream.getWriter().write(new String(output, encoding));
+		} else {
+			FileUtils.writeByteArrayToFile(TemplatesCache.toFile(stream.getSystemId()), output);
+		}
+
+	}
+
+}
@@ -0,0 +1,664 @@
+/*
+ * SharedTransformer
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+
+import net.sf.saxon.om.DocumentInfo;
+
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * A thread-safe facade over PrimedTransformer, for use when a single instance
+ * is shared between many threads.
+ *
+ * The factories, catalog resolver, cache of external entities and cache of
+ * compiled XSL Stylesheets are shared by every thread, as are the caches of
+ * parsed documents, XInclude targets and serialized results, if set. Each
+ * thread is given its own PrimedTransformer (and so its own DocumentBuilder,
+ * unless a DocumentBuilderPool is shared) the first time it calls this
+ * instance, and every transformation uses a new Transformer together with the
+ * parameters and ErrorListener passed with the call. No lock is taken while
+ * transforming.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class SharedTransformer {
+
+	/**
+	 * The XMLCatalogResolver used when building an XML Document, or null if
+	 * there isn't one.
+	 */
+	private final XMLCatalogResolver catalogResolver;
+
+	/**
+	 * The DocumentBuilderFactory shared by every thread.
+	 */
+	private final DocumentBuilderFactory documentBuilderFactory;
+
+	/**
+	 * The pool of DocumentBuilders shared by every thread, or null if each
+	 * thread uses its own.
+	 */
+	private volatile DocumentBuilderPool documentBuilderPool;
+
+	/**
+	 * The cache of parsed documents shared by every thread, or null if
+	 * documents aren't cached.
+	 */
+	private volatile DocumentCache documentCache;
+
+	/**
+	 * The cache of external entities shared by every thread, or null if there
+	 * isn't a CatalogResolver.
+	 */
+	private final CachingEntityResolver entityResolver;
+
+	/**
+	 * The cache of XInclude targets shared by every thread, or null if
+	 * XIncludes are left to each thread's DocumentBuilder.
+	 */
+	private volatile IncludeCache includeCache;
+
+	/**
+	 * The size, in bytes, from which every thread reads XML files through
+	 * memory-mapped regions, or a negative number if they never do.
+	 */
+	private volatile long mappedInputThreshold;
+
+	/**
+	 * The metrics shared by every thread, or null if work isn't recorded.
+	 */
+	private volatile TransformerMetrics metrics;
+
+	/**
+	 * The cache of serialized results shared by every thread, or null if
+	 * results aren't cached.
+	 */
+	private volatile ResultCache resultCache;
+
+	/**
+	 * The cache of compiled XSL Stylesheets shared by every thread.
+	 */
+	private final TemplatesCache templatesCache;
+
+	/**
+	 * The TransformerFactory shared by every thread.
+	 */
+	private final TransformerFactory transformerFactory;
+
+	/**
+	 * The PrimedTransformer used by each thread.
+	 */
+	private final ThreadLocal<PrimedTransformer> workers;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @throws ParserConfigurationException
+	 *             if there's a problem instantiating a DocumentBuilder.
+	 * @throws TransformerConfigurationException
+	 *             if there's a problem instantiating a Transformer.
+	 */
+	public SharedTransformer() throws ParserConfigurationException, TransformerConfigurationException {
+		this(null);
+	}
+
+	/**
+	 * @param resolver
+	 *            the CatalogResolver to use when building DOM Documents.
+	 * @throws ParserConfigurationException
+	 *             if there's a problem instantiating a DocumentBuilder.
+	 * @throws TransformerConfigurationException
+	 *             if there's a problem instantiating a Transformer.
+	 */
+	public SharedTransformer(XMLCatalogResolver resolver) throws ParserConfigurationException, TransformerConfigurationException {
+		this(PrimedTransformer.newDocumentBuilderFactory(), PrimedTransformer.newTransformerFactory(), new TemplatesCache(), resolver);
+	}
+
+	/**
+	 * @param documentBuilderFactory
+	 *            the DocumentBuilderFactory to share between threads. It
+	 *            mustn't be reconfigured once passed in.
+	 * @param transformerFactory
+	 *            the TransformerFactory to share between threads. It mustn't be
+	 *            reconfigured once passed in.
+	 * @param templatesCache
+	 *            the cache of compiled XSL Stylesheets to share between
+	 *            threads.
+	 * @param resolver
+	 *            the CatalogResolver to use when building DOM Documents, or
+	 *            null.
+	 * @throws ParserConfigurationException
+	 *             if there's a problem instantiating a DocumentBuilder.
+	 * @throws TransformerConfigurationException
+	 *             if there's a problem instantiating a Transformer.
+	 */
+	public SharedTransformer(DocumentBuilderFactory documentBuilderFactory, TransformerFactory transformerFactory, TemplatesCache templatesCache, XMLCatalogResolver resolver) throws ParserConfigurationException, TransformerConfigurationException {
+
+		this.documentBuilderFactory = documentBuilderFactory;
+		this.transformerFactory = transformerFactory;
+		this.templatesCache = templatesCache;
+		this.catalogResolver = resolver;
+		this.entityResolver = (resolver == null) ? null : new CachingEntityResolver(resolver);
+		this.mappedInputThreshold = -1L;
+
+		this.workers = new ThreadLocal<PrimedTransformer>() {
+
+			@Override
+			protected PrimedTransformer initialValue() {
+				try {
+					return SharedTransformer.this.newWorker();
+				} catch (ParserConfigurationException e) {
+					throw new IllegalStateException(e);
+				} catch (TransformerConfigurationException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+		};
+
+		// Fail now, rather than on first use, if the factories are unusable
+		this.workers.set(this.newWorker());
+
+	}
+
+	/**
+	 * @return the CatalogResolver used by this instance of SharedTransformer,
+	 *         or null if there isn't one.
+	 */
+	public XMLCatalogResolver getCatalogResolver() {
+		return this.catalogResolver;
+	}
+
+	/**
+	 * @return the DocumentBuilderFactory shared by every thread.
+	 */
+	public DocumentBuilderFactory getDocumentBuilderFactory() {
+		return this.documentBuilderFactory;
+	}
+
+	/**
+	 * @return the pool of DocumentBuilders shared by every thread, or null if
+	 *         each thread uses its own.
+	 */
+	public DocumentBuilderPool getDocumentBuilderPool() {
+		return this.documentBuilderPool;
+	}
+
+	/**
+	 * @return the cache of parsed documents shared by every thread, or null if
+	 *         documents aren't cached.
+	 */
+	public DocumentCache getDocumentCache() {
+		return this.documentCache;
+	}
+
+	/**
+	 * @return the cache of external entities shared by every thread, or null
+	 *         if there isn't a CatalogResolver.
+	 */
+	public CachingEntityResolver getEntityResolver() {
+		return this.entityResolver;
+	}
+
+	/**
+	 * @return the cache of XInclude targets shared by every thread, or null if
+	 *         XIncludes are left to each thread's DocumentBuilder.
+	 */
+	public IncludeCache getIncludeCache() {
+		return this.includeCache;
+	}
+
+	/**
+	 * @return the size, in bytes, from which every thread reads XML files
+	 *         through memory-mapped regions, or a negative number if they
+	 *         never do.
+	 */
+	public long getMappedInputThreshold() {
+		return this.mappedInputThreshold;
+	}
+
+	/**
+	 * @return the metrics shared by every thread, or null if work isn't
+	 *         recorded.
+	 */
+	public TransformerMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * @return the cache of serialized results shared by every thread, or null
+	 *         if results aren't cached.
+	 */
+	public ResultCache getResultCache() {
+		return this.resultCache;
+	}
+
+	/**
+	 * @return the cache of compiled XSL Stylesheets shared by every thread.
+	 */
+	public TemplatesCache getTemplatesCache() {
+		return this.templatesCache;
+	}
+
+	/**
+	 * @return the TransformerFactory shared by every thread.
+	 */
+	public TransformerFactory getTransformerFactory() {
+		return this.transformerFactory;
+	}
+
+	/**
+	 * @return the PrimedTransformer reserved for the calling thread.
+	 */
+	PrimedTransformer getWorker() {
+
+		PrimedTransformer worker = this.workers.get();
+
+		// Pick up any change to the shared state since the worker last ran
+		DocumentCache cache = this.documentCache;
+		if (worker.getDocumentCache() != cache) {
+			worker.setDocumentCache(cache);
+		}
+
+		DocumentBuilderPool pool = this.documentBuilderPool;
+		if (worker.getDocumentBuilderPool() != pool) {
+			worker.setDocumentBuilderPool(pool);
+		}
+
+		IncludeCache includes = this.includeCache;
+		if (worker.getIncludeCache() != includes) {
+			worker.setIncludeCache(includes);
+		}
+
+		long threshold = this.mappedInputThreshold;
+		if (worker.getMappedInputThreshold() != threshold) {
+			worker.setMappedInputThreshold(threshold);
+		}
+
+		TransformerMetrics recorder = this.metrics;
+		if (worker.getMetrics() != recorder) {
+			worker.setMetrics(recorder);
+		}
+
+		ResultCache results = this.resultCache;
+		if (worker.getResultCache() != results) {
+			worker.setResultCache(results);
+		}
+
+		return worker;
+
+	}
+
+	/**
+	 * @see PrimedTransformer#newDocumentBuilderPool(int)
+	 */
+	public DocumentBuilderPool newDocumentBuilderPool(int maximumSize) {
+		return this.getWorker().newDocumentBuilderPool(maximumSize);
+	}
+
+	/**
+	 * @see PrimedTransformer#newDocumentCache(long)
+	 */
+	public DocumentCache newDocumentCache(long maximumBytes) throws TransformerConfigurationException {
+		return this.getWorker().newDocumentCache(maximumBytes);
+	}
+
+	/**
+	 * @see PrimedTransformer#newIncludeCache(long)
+	 */
+	public IncludeCache newIncludeCache(long maximumBytes) {
+		return this.getWorker().newIncludeCache(maximumBytes);
+	}
+
+	/**
+	 * @see PrimedTransformer#newTemplates(File)
+	 */
+	public Templates newTemplates(File xsl) throws TransformerConfigurationException, SAXException, IOException, ParserConfigurationException {
+		return this.getWorker().newTemplates(xsl);
+	}
+
+	/**
+	 * @see PrimedTransformer#newTemplates(Source)
+	 */
+	public Templates newTemplates(Source xsl) throws TransformerConfigurationException {
+		return this.getWorker().newTemplates(xsl);
+	}
+
+	/**
+	 * @see PrimedTransformer#newTransformer()
+	 */
+	public Transformer newTransformer() throws TransformerConfigurationException {
+		return this.getWorker().newTransformer();
+	}
+
+	/**
+	 * @see PrimedTransformer#newTransformer(File)
+	 */
+	public Transformer newTransformer(File xsl) throws TransformerConfigurationException, SAXException, IOException, ParserConfigurationException {
+		return this.getWorker().newTransformer(xsl);
+	}
+
+	/**
+	 * @see PrimedTransformer#newTransformer(Source)
+	 */
+	public Transformer newTransformer(Source xsl) throws TransformerConfigurationException {
+		return this.getWorker().newTransformer(xsl);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToChannel(Document, WritableByteChannel)
+	 */
+	public void parseToChannel(Document xml, WritableByteChannel out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.getWorker().parseToChannel(xml, out);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToChannel(File, WritableByteChannel)
+	 */
+	public void parseToChannel(File xml, WritableByteChannel out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.getWorker().parseToChannel(xml, out);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToDocument(byte[])
+	 */
+	public Document parseToDocument(byte[] xml) throws ParserConfigurationException, SAXException, IOException {
+		return this.getWorker().parseToDocument(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToDocument(ByteBuffer)
+	 */
+	public Document parseToDocument(ByteBuffer xml) throws ParserConfigurationException, SAXException, IOException {
+		return this.getWorker().parseToDocument(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToDocument(File)
+	 */
+	public Document parseToDocument(File xml) throws ParserConfigurationException, SAXException, IOException {
+		return this.getWorker().parseToDocument(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToDocument(InputStream)
+	 */
+	public Document parseToDocument(InputStream xml) throws ParserConfigurationException, SAXException, IOException {
+		return this.getWorker().parseToDocument(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToDocument(String)
+	 */
+	public Document parseToDocument(String xml) throws ParserConfigurationException, SAXException, IOException {
+		return this.getWorker().parseToDocument(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToDOMSource(byte[])
+	 */
+	public DOMSource parseToDOMSource(byte[] xml) throws ParserConfigurationException, SAXException, IOException {
+		return this.getWorker().parseToDOMSource(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToDOMSource(ByteBuffer)
+	 */
+	public DOMSource parseToDOMSource(ByteBuffer xml) throws ParserConfigurationException, SAXException, IOException {
+		return this.getWorker().parseToDOMSource(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToDOMSource(File)
+	 */
+	public DOMSource parseToDOMSource(File xml) throws ParserConfigurationException, SAXException, IOException {
+		return this.getWorker().parseToDOMSource(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToDOMSource(InputStream)
+	 */
+	public DOMSource parseToDOMSource(InputStream xml) throws ParserConfigurationException, SAXException, IOException {
+		return this.getWorker().parseToDOMSource(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToFile(Document, Path)
+	 */
+	public void parseToFile(Document xml, Path out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.getWorker().parseToFile(xml, out);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToFile(File, Path)
+	 */
+	public void parseToFile(File xml, Path out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.getWorker().parseToFile(xml, out);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToStream(Document, OutputStream)
+	 */
+	public void parseToStream(Document xml, OutputStream out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.getWorker().parseToStream(xml, out);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToStream(File, OutputStream)
+	 */
+	public void parseToStream(File xml, OutputStream out) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.getWorker().parseToStream(xml, out);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToTreeSource(File)
+	 */
+	public DocumentInfo parseToTreeSource(File xml) throws TransformerException, SAXException, ParserConfigurationException {
+		return this.getWorker().parseToTreeSource(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToTreeSource(InputStream, String)
+	 */
+	public DocumentInfo parseToTreeSource(InputStream xml, String systemId) throws TransformerException, SAXException, ParserConfigurationException {
+		return this.getWorker().parseToTreeSource(xml, systemId);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToTreeSource(String)
+	 */
+	public DocumentInfo parseToTreeSource(String xml) throws TransformerException, SAXException, ParserConfigurationException {
+		return this.getWorker().parseToTreeSource(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToString(Document)
+	 */
+	public String parseToString(Document xml) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		return this.getWorker().parseToString(xml);
+	}
+
+	/**
+	 * @see PrimedTransformer#parseToString(File)
+	 */
+	public String parseToString(File xml) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		return this.getWorker().parseToString(xml);
+	}
+
+	/**
+	 * Changes the pool of DocumentBuilders shared by every thread, from each
+	 * thread's next call onwards. A pool bounds the number of builders in use
+	 * however many threads call this instance.
+	 *
+	 * @param pool
+	 *            the DocumentBuilderPool to use, or null for each thread to use
+	 *            its own DocumentBuilder.
+	 */
+	public void setDocumentBuilderPool(DocumentBuilderPool pool) {
+		this.documentBuilderPool = pool;
+	}
+
+	/**
+	 * Changes the cache of parsed documents shared by every thread, from each
+	 * thread's next transformation onwards.
+	 *
+	 * @param cache
+	 *            the DocumentCache to use, or null to stop caching documents.
+	 */
+	public void setDocumentCache(DocumentCache cache) {
+		this.documentCache = cache;
+	}
+
+	/**
+	 * Changes the cache of XInclude targets shared by every thread, from each
+	 * thread's next parse onwards.
+	 *
+	 * @param cache
+	 *            the IncludeCache to use, or null to leave XIncludes to each
+	 *            thread's DocumentBuilder.
+	 * @see PrimedTransformer#setIncludeCache(IncludeCache)
+	 */
+	public void setIncludeCache(IncludeCache cache) {
+		this.includeCache = cache;
+	}
+
+	/**
+	 * Changes the size from which every thread reads XML files through
+	 * memory-mapped regions, from each thread's next call onwards.
+	 *
+	 * @param threshold
+	 *            the size, in bytes, from which to map files, or a negative
+	 *            number never to map them (the default).
+	 * @see PrimedTransformer#setMappedInputThreshold(long)
+	 */
+	public void setMappedInputThreshold(long threshold) {
+		this.mappedInputThreshold = threshold;
+	}
+
+	/**
+	 * Changes the metrics shared by every thread, from each thread's next call
+	 * onwards.
+	 *
+	 * @param metrics
+	 *            the TransformerMetrics to record to, or null to stop
+	 *            recording.
+	 */
+	public void setMetrics(TransformerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Changes the cache of serialized results shared by every thread, from
+	 * each thread's next transformation onwards.
+	 *
+	 * @param cache
+	 *            the ResultCache to use, or null to stop caching results.
+	 * @see PrimedTransformer#setResultCache(ResultCache)
+	 */
+	public void setResultCache(ResultCache cache) {
+		this.resultCache = cache;
+	}
+
+	/**
+	 * @see PrimedTransformer#transform(byte[], File, Result, TreeMap,
+	 *      ErrorListener)
+	 */
+	public void transform(byte[] xml, File xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.getWorker().transform(xml, xsl, result, params, listener);
+	}
+
+	/**
+	 * @see PrimedTransformer#transform(ByteBuffer, File, Result, TreeMap,
+	 *      ErrorListener)
+	 */
+	public void transform(ByteBuffer xml, File xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.getWorker().transform(xml, xsl, result, params, listener);
+	}
+
+	/**
+	 * @see PrimedTransformer#transform(File, File, Result, TreeMap,
+	 *      ErrorListener)
+	 */
+	public void transform(File xml, File xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.getWorker().transform(xml, xsl, result, params, listener);
+	}
+
+	/**
+	 * @see PrimedTransformer#transform(InputStream, File, Result, TreeMap,
+	 *      ErrorListener)
+	 */
+	public void transform(InputStream xml, File xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.getWorker().transform(xml, xsl, result, params, listener);
+	}
+
+	/**
+	 * @see PrimedTransformer#transform(Source, Source, Result, TreeMap,
+	 *      ErrorListener)
+	 */
+	public void transform(Source xml, Source xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+		this.getWorker().transform(xml, xsl, result, params, listener);
+	}
+
+	/**
+	 * @see PrimedTransformer#transformWithTemplates(Source, Templates, Result,
+	 *      TreeMap, ErrorListener)
+	 */
+	public void transformWithTemplates(Source xml, Templates xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws TransformerException {
+		this.getWorker().transformWithTemplates(xml, xsl, result, params, listener);
+	}
+
+	/**
+	 * Creates a PrimedTransformer that uses the state shared by this instance
+	 * of SharedTransformer.
+	 *
+	 * @throws ParserConfigurationException
+	 *             if there's a problem instantiating a DocumentBuilder.
+	 * @throws TransformerConfigurationException
+	 *             if there's a problem instantiating a Transformer.
+	 */
+	private PrimedTransformer newWorker() throws ParserConfigurationException, TransformerConfigurationException {
+
+		PrimedTransformer worker = new PrimedTransformer(this.documentBuilderFactory, this.transformerFactory, this.templatesCache);
+
+		if (this.catalogResolver != null) {
+			worker.setCatalogResolver(this.catalogResolver);
+			worker.setEntityResolver(this.entityResolver);
+		}
+
+		return worker;
+
+	}
+
+}
@@ -0,0 +1,629 @@
+/*
+ * SplitTransformer
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.EntityResolver2;
+
+/**
+ * Transforms a large, record-oriented XML file (a root element wrapping many
+ * independent records) without parsing the whole file at once.
+ *
+ * The file is streamed with StAX and cut into chunks of a fixed number of
+ * records. Each chunk is a small document with a copy of the original root
+ * element, so the XSL Stylesheet sees the same structure it would see for
+ * the whole file. Chunks are transformed in parallel, and the children of
+ * the root element of each result are written out, in order, under a single
+ * wrapper element. Only the records themselves are kept: anything else inside
+ * the root element is left out of the chunks.
+ *
+ * No more than a fixed number of chunks are read ahead of the output, so the
+ * memory used depends on the chunk size rather than the size of the file.
+ *
+ * Chunks bypass any ResultCache set on the SharedTransformer: each is a
+ * fresh in-memory document, and holding every chunk's result would defeat
+ * the point of streaming the file.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class SplitTransformer {
+
+	/**
+	 * The merged result being written, and the wrapper element it was started
+	 * with.
+	 */
+	private static class Output {
+
+		private StartElement wrapper;
+
+		private final XMLEventWriter writer;
+
+		private Output(XMLEventWriter writer) {
+			this.writer = writer;
+		}
+
+	}
+
+	/**
+	 * The default number of records in each chunk.
+	 */
+	public static final int DEFAULT_RECORDS_PER_CHUNK = 1000;
+
+	/**
+	 * The factory used to create the events written to chunks and output.
+	 */
+	private final XMLEventFactory eventFactory;
+
+	/**
+	 * The ExecutorService used to transform chunks in parallel.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The factory used to read the input file and the results of each chunk.
+	 */
+	private final XMLInputFactory inputFactory;
+
+	/**
+	 * The maximum number of chunks read ahead of the output.
+	 */
+	private final int maximumPendingChunks;
+
+	/**
+	 * The factory used to write chunks and output.
+	 */
+	private final XMLOutputFactory outputFactory;
+
+	/**
+	 * The name of the elements the file is split between.
+	 */
+	private final QName record;
+
+	/**
+	 * The number of records in each chunk.
+	 */
+	private final int recordsPerChunk;
+
+	/**
+	 * The factory used to read the result of each chunk, which ignores any
+	 * document type declaration the XSL Stylesheet writes.
+	 */
+	private final XMLInputFactory resultFactory;
+
+	/**
+	 * The SharedTransformer used to parse and transform each chunk.
+	 */
+	private final SharedTransformer transformer;
+
+	/**
+	 * Creates a SplitTransformer with the default chunk size, reading up to
+	 * two chunks ahead for each available processor.
+	 *
+	 * @param transformer
+	 *            the SharedTransformer to use to parse and transform each
+	 *            chunk.
+	 * @param executor
+	 *            the ExecutorService to use to transform chunks in parallel.
+	 *            It's not shut down by this instance of SplitTransformer.
+	 * @param record
+	 *            the name of the child elements of the root that the file is
+	 *            split between.
+	 */
+	public SplitTransformer(SharedTransformer transformer, ExecutorService executor, QName record) {
+		this(transformer, executor, record, SplitTransformer.DEFAULT_RECORDS_PER_CHUNK, 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param transformer
+	 *            the SharedTransformer to use to parse and transform each
+	 *            chunk.
+	 * @param executor
+	 *            the ExecutorService to use to transform chunks in parallel.
+	 *            It's not shut down by this instance of SplitTransformer.
+	 * @param record
+	 *            the name of the child elements of the root that the file is
+	 *            split between.
+	 * @param recordsPerChunk
+	 *            the number of records in each chunk.
+	 * @param maximumPendingChunks
+	 *            the maximum number of chunks read ahead of the output.
+	 */
+	public SplitTransformer(SharedTransformer transformer, ExecutorService executor, QName record, int recordsPerChunk, int maximumPendingChunks) {
+
+		if (recordsPerChunk < 1) {
+			throw new IllegalArgumentException("Records per chunk must be at least 1.");
+		}
+
+		if (maximumPendingChunks < 1) {
+			throw new IllegalArgumentException("Maximum pending chunks must be at least 1.");
+		}
+
+		this.transformer = transformer;
+		this.executor = executor;
+		this.record = record;
+		this.recordsPerChunk = recordsPerChunk;
+		this.maximumPendingChunks = maximumPendingChunks;
+
+		this.inputFactory = XMLInputFactory.newInstance();
+		this.inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		this.inputFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+
+		final EntityResolver resolver = transformer.getEntityResolver();
+		if (resolver != null) {
+			this.inputFactory.setXMLResolver(new XMLResolver() {
+
+				@Override
+				public Object resolveEntity(String publicId, String systemId, String baseURI, String namespace) throws XMLStreamException {
+					return SplitTransformer.resolveEntity(resolver, publicId, systemId, baseURI);
+				}
+
+			});
+		}
+
+		this.resultFactory = XMLInputFactory.newInstance();
+		this.resultFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+
+		this.outputFactory = XMLOutputFactory.newInstance();
+		this.outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
+
+		this.eventFactory = XMLEventFactory.newInstance();
+
+	}
+
+	/**
+	 * @return the ExecutorService used to transform chunks in parallel.
+	 */
+	public ExecutorService getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * @return the maximum number of chunks read ahead of the output.
+	 */
+	public int getMaximumPendingChunks() {
+		return this.maximumPendingChunks;
+	}
+
+	/**
+	 * @return the name of the elements the file is split between.
+	 */
+	public QName getRecord() {
+		return this.record;
+	}
+
+	/**
+	 * @return the number of records in each chunk.
+	 */
+	public int getRecordsPerChunk() {
+		return this.recordsPerChunk;
+	}
+
+	/**
+	 * @return the SharedTransformer used to parse and transform each chunk.
+	 */
+	public SharedTransformer getTransformer() {
+		return this.transformer;
+	}
+
+	/**
+	 * Splits the XML file specified into chunks, transforms each chunk using
+	 * the XSL Stylesheet and parameters specified, and writes the merged
+	 * result to the stream specified.
+	 *
+	 * @param xml
+	 *            the file to transform.
+	 * @param xsl
+	 *            the XSL Stylesheet to use for every chunk. The result of
+	 *            each chunk must be a single element, whose children are
+	 *            merged.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 * @param wrapper
+	 *            the name of the element to merge the results under, or null
+	 *            to copy the root element of the first result.
+	 * @param out
+	 *            the stream to write the merged result to, as UTF-8. It's
+	 *            left open.
+	 * @return the number of records transformed.
+	 * @throws TransformerException
+	 *             if the XSL Stylesheet can't be compiled, or the file or any
+	 *             chunk can't be transformed.
+	 * @throws SAXException
+	 *             if there's an exception parsing the XSL Stylesheet.
+	 * @throws IOException
+	 *             if there's a problem reading the file or the XSL Stylesheet.
+	 * @throws ParserConfigurationException
+	 *             if the parser is configured incorrectly.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a chunk to be transformed.
+	 */
+	public long transform(File xml, File xsl, TreeMap<String, String> params, QName wrapper, OutputStream out) throws TransformerException, SAXException, IOException, ParserConfigurationException, InterruptedException {
+
+		// Compile once, up front
+		Templates templates = this.transformer.newTemplates(xsl);
+		TreeMap<String, String> stylesheetParameters = (params == null) ? null : new TreeMap<String, String>(params);
+
+		String systemId = xml.toURI().toString();
+		Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+		InputStream in = new BufferedInputStream(new FileInputStream(xml));
+		try {
+
+			XMLEventReader reader = this.inputFactory.createXMLEventReader(systemId, in);
+			Output output = new Output(this.outputFactory.createXMLEventWriter(out, "UTF-8"));
+
+			// Find the root element, to be copied into every chunk
+			StartElement root = null;
+			while (root == null && reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					root = event.asStartElement();
+				}
+			}
+
+			if (root == null) {
+				throw new TransformerException("No root element found in " + systemId);
+			}
+
+			long records = 0;
+			int chunks = 0;
+
+			ByteArrayOutputStream chunk = null;
+			XMLEventWriter chunkWriter = null;
+			int chunkRecords = 0;
+
+			while (reader.hasNext()) {
+
+				XMLEvent event = reader.nextEvent();
+
+				if (event.isEndElement()) {
+					break;
+				}
+
+				if (!event.isStartElement()) {
+					continue;
+				}
+
+				if (!event.asStartElement().getName().equals(this.record)) {
+					SplitTransformer.skip(reader);
+					continue;
+				}
+
+				if (chunk == null) {
+					chunk = new ByteArrayOutputStream();
+					chunkWriter = this.newChunk(chunk, root);
+				}
+
+				chunkWriter.add(event);
+				SplitTransformer.copy(reader, chunkWriter);
+				chunkRecords++;
+				records++;
+
+				if (chunkRecords == this.recordsPerChunk) {
+
+					pending.add(this.submit(this.endChunk(chunk, chunkWriter), systemId, templates, stylesheetParameters));
+					chunks++;
+
+					chunk = null;
+					chunkWriter = null;
+					chunkRecords = 0;
+
+					if (pending.size() >= this.maximumPendingChunks) {
+						this.merge(SplitTransformer.get(pending.removeFirst()), wrapper, output);
+					}
+
+				}
+
+			}
+
+			// The last chunk may be short, and there's always at least one
+			if (chunk != null || chunks == 0) {
+
+				if (chunk == null) {
+					chunk = new ByteArrayOutputStream();
+					chunkWriter = this.newChunk(chunk, root);
+				}
+
+				pending.add(this.submit(this.endChunk(chunk, chunkWriter), systemId, templates, stylesheetParameters));
+
+			}
+
+			while (!pending.isEmpty()) {
+				this.merge(SplitTransformer.get(pending.removeFirst()), wrapper, output);
+			}
+
+			output.writer.add(this.eventFactory.createEndElement(output.wrapper.getName(), null));
+			output.writer.add(this.eventFactory.createEndDocument());
+			output.writer.flush();
+
+			return records;
+
+		} catch (XMLStreamException e) {
+			throw new TransformerException(e);
+		} finally {
+
+			// Don't leave chunks running after a failure
+			for (Future<byte[]> future : pending) {
+				future.cancel(true);
+			}
+
+			in.close();
+
+		}
+
+	}
+
+	/**
+	 * Finishes a chunk started with {@link #newChunk(OutputStream, StartElement)}.
+	 *
+	 * @return the chunk, as bytes.
+	 */
+	private byte[] endChunk(ByteArrayOutputStream chunk, XMLEventWriter writer) throws XMLStreamException {
+
+		writer.add(this.eventFactory.createEndDocument());
+		writer.close();
+
+		return chunk.toByteArray();
+
+	}
+
+	/**
+	 * Writes the children of the root element of a chunk's result to the
+	 * output, preceded by the wrapper element if it hasn't been written yet.
+	 *
+	 * @param result
+	 *            the result of transforming a chunk.
+	 * @param wrapper
+	 *            the name of the wrapper element, or null to copy the root
+	 *            element of the result.
+	 * @param output
+	 *            the merged result being written.
+	 */
+	private void merge(byte[] result, QName wrapper, Output output) throws XMLStreamException {
+
+		XMLEventReader reader = this.resultFactory.createXMLEventReader(new ByteArrayInputStream(result));
+		try {
+
+			StartElement root = null;
+			while (root == null && reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					root = event.asStartElement();
+				}
+			}
+
+			if (output.wrapper == null) {
+
+				if (wrapper != null) {
+					output.wrapper = this.eventFactory.createStartElement(wrapper, null, null);
+				} else if (root != null) {
+					output.wrapper = root;
+				} else {
+					throw new XMLStreamException("The result of the first chunk has no root element to use as a wrapper.");
+				}
+
+				output.writer.add(this.eventFactory.createStartDocument("UTF-8", "1.0"));
+				output.writer.add(output.wrapper);
+
+			}
+
+			if (root == null) {
+				return;
+			}
+
+			int depth = 0;
+			while (reader.hasNext()) {
+
+				XMLEvent event = reader.nextEvent();
+
+				if (event.isStartElement()) {
+					depth++;
+				} else if (event.isEndElement()) {
+					if (depth == 0) {
+						break;
+					}
+					depth--;
+				}
+
+				output.writer.add(event);
+
+			}
+
+		} finally {
+			reader.close();
+		}
+
+	}
+
+	/**
+	 * Starts a chunk: a document whose root element is a copy of the root of
+	 * the file being split.
+	 *
+	 * @param chunk
+	 *            the stream to write the chunk to.
+	 * @param root
+	 *            the root element of the file being split.
+	 * @return the writer to add records to.
+	 */
+	private XMLEventWriter newChunk(OutputStream chunk, StartElement root) throws XMLStreamException {
+
+		XMLEventWriter writer = this.outputFactory.createXMLEventWriter(chunk, "UTF-8");
+		writer.add(this.eventFactory.createStartDocument("UTF-8", "1.0"));
+		writer.add(root);
+
+		return writer;
+
+	}
+
+	/**
+	 * Submits a chunk to be transformed.
+	 *
+	 * @return a Future that holds the result of the transformation, as bytes.
+	 */
+	private Future<byte[]> submit(final byte[] chunk, final String systemId, final Templates templates, final TreeMap<String, String> params) {
+
+		return this.executor.submit(new Callable<byte[]>() {
+
+			@Override
+			public byte[] call() throws Exception {
+
+				PrimedTransformer worker = SplitTransformer.this.transformer.getWorker();
+
+				ByteArrayOutputStream result = new ByteArrayOutputStream();
+				worker.transformWithTemplates(worker.parseToSource(new ByteArrayInputStream(chunk), systemId), templates, new StreamResult(result), params, null);
+
+				return result.toByteArray();
+
+			}
+
+		});
+
+	}
+
+	/**
+	 * Copies the rest of the element just started from the reader to the
+	 * writer, up to and including its end tag.
+	 */
+	private static void copy(XMLEventReader reader, XMLEventWriter writer) throws XMLStreamException {
+
+		int depth = 0;
+		while (reader.hasNext()) {
+
+			XMLEvent event = reader.nextEvent();
+			writer.add(event);
+
+			if (event.isStartElement()) {
+				depth++;
+			} else if (event.isEndElement()) {
+				if (depth == 0) {
+					return;
+				}
+				depth--;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Waits for the result of a chunk, passing on the exception that stopped
+	 * it being transformed, if any.
+	 */
+	private static byte[] get(Future<byte[]> future) throws TransformerException, InterruptedException {
+
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+
+			if (e.getCause() instanceof TransformerException) {
+				throw (TransformerException) e.getCause();
+			}
+
+			throw new TransformerException(e.getCause());
+
+		}
+
+	}
+
+	/**
+	 * Resolves an external entity referenced by the file being split, using
+	 * the same EntityResolver as when parsing any other document.
+	 */
+	private static Object resolveEntity(EntityResolver resolver, String publicId, String systemId, String baseURI) throws XMLStreamException {
+
+		try {
+
+			InputSource input;
+			if (resolver instanceof EntityResolver2) {
+				input = ((EntityResolver2) resolver).resolveEntity(null, publicId, baseURI, systemId);
+			} else {
+				input = resolver.resolveEntity(publicId, systemId);
+			}
+
+			if (input == null) {
+				return null;
+			}
+
+			if (input.getByteStream() != null) {
+				return input.getByteStream();
+			}
+
+			return new URL(input.getSystemId()).openStream();
+
+		} catch (SAXException e) {
+			throw new XMLStreamException(e);
+		} catch (IOException e) {
+			throw new XMLStreamException(e);
+		}
+
+	}
+
+	/**
+	 * Skips the rest of the element just started, up to and including its end
+	 * tag.
+	 */
+	private static void skip(XMLEventReader reader) throws XMLStreamException {
+
+		int depth = 0;
+		while (reader.hasNext()) {
+
+			XMLEvent event = reader.nextEvent();
+
+			if (event.isStartElement()) {
+				depth++;
+			} else if (event.isEndElement()) {
+				if (depth == 0) {
+					return;
+				}
+				depth--;
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,343 @@
+/*
+ * StreamingValidator
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXSource;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.lib.ParseOptions;
+import net.sf.saxon.lib.Validation;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Validates documents against a DTD or XML Schema in a single SAX pass, as
+ * they're read, rather than after a DOM has been built.
+ *
+ * Validation stops as soon as the maximum number of errors has been found
+ * (by default, the first), so invalid input is rejected without reading the
+ * rest of it. A document can be validated on its own, or validated on its way
+ * into a transformation: the same pass that validates it builds the tree that
+ * is transformed, and nothing is written to the Result unless it's valid.
+ *
+ * Grammars come from the GrammarCache supplied. Each thread is given its own
+ * XMLReader the first time it calls an instance, so a single instance can be
+ * shared by any number of threads.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class StreamingValidator {
+
+	/**
+	 * An ErrorHandler that collects errors, stopping the parse once the
+	 * maximum has been reached or the document turns out not to be
+	 * well-formed.
+	 */
+	private static class Collector implements ErrorHandler {
+
+		private final List<SAXParseException> errors;
+
+		private final int maximumErrors;
+
+		private Collector(int maximumErrors) {
+			this.maximumErrors = maximumErrors;
+			this.errors = new ArrayList<SAXParseException>();
+		}
+
+		@Override
+		public void error(SAXParseException exception) throws SAXException {
+
+			this.errors.add(exception);
+
+			if (this.errors.size() >= this.maximumErrors) {
+				throw new ValidationException(this.errors);
+			}
+
+		}
+
+		@Override
+		public void fatalError(SAXParseException exception) throws SAXException {
+			this.errors.add(exception);
+			throw new ValidationException(this.errors);
+		}
+
+		@Override
+		public void warning(SAXParseException exception) throws SAXException {
+			// Not a reason to reject the document.
+		}
+
+	}
+
+	/**
+	 * The default maximum number of errors collected before validation stops.
+	 */
+	public static final int DEFAULT_MAXIMUM_ERRORS = 1;
+
+	/**
+	 * The compiled grammars used to validate.
+	 */
+	private final GrammarCache grammars;
+
+	/**
+	 * The maximum number of errors collected before validation stops.
+	 */
+	private final int maximumErrors;
+
+	/**
+	 * How documents are validated.
+	 */
+	private final GrammarCache.Mode mode;
+
+	/**
+	 * The XMLReader used by each thread.
+	 */
+	private final ThreadLocal<XMLReader> readers;
+
+	/**
+	 * The location of the XML Schema validated against, or null.
+	 */
+	private final String schema;
+
+	/**
+	 * The SharedTransformer that valid documents are transformed with.
+	 */
+	private final SharedTransformer transformer;
+
+	/**
+	 * Creates a StreamingValidator that stops at the first error.
+	 *
+	 * @param transformer
+	 *            the SharedTransformer to transform valid documents with, and
+	 *            whose EntityResolver is used while validating.
+	 * @param grammars
+	 *            the compiled grammars to validate with.
+	 * @param mode
+	 *            how documents are validated.
+	 * @param schema
+	 *            the location of the XML Schema to validate against, or null
+	 *            to use those named by each document. Ignored for DTDs.
+	 */
+	public StreamingValidator(SharedTransformer transformer, GrammarCache grammars, GrammarCache.Mode mode, String schema) {
+		this(transformer, grammars, mode, schema, StreamingValidator.DEFAULT_MAXIMUM_ERRORS);
+	}
+
+	/**
+	 * @param transformer
+	 *            the SharedTransformer to transform valid documents with, and
+	 *            whose EntityResolver is used while validating.
+	 * @param grammars
+	 *            the compiled grammars to validate with.
+	 * @param mode
+	 *            how documents are validated.
+	 * @param schema
+	 *            the location of the XML Schema to validate against, or null
+	 *            to use those named by each document. Ignored for DTDs.
+	 * @param maximumErrors
+	 *            the maximum number of errors to collect before validation
+	 *            stops.
+	 */
+	public StreamingValidator(SharedTransformer transformer, GrammarCache grammars, GrammarCache.Mode mode, String schema, int maximumErrors) {
+
+		if (maximumErrors < 1) {
+			throw new IllegalArgumentException("Maximum errors must be at least 1.");
+		}
+
+		this.transformer = transformer;
+		this.grammars = grammars;
+		this.mode = mode;
+		this.schema = schema;
+		this.maximumErrors = maximumErrors;
+		this.readers = new ThreadLocal<XMLReader>();
+
+	}
+
+	/**
+	 * @return the maximum number of errors collected before validation stops.
+	 */
+	public int getMaximumErrors() {
+		return this.maximumErrors;
+	}
+
+	/**
+	 * @return how documents are validated.
+	 */
+	public GrammarCache.Mode getMode() {
+		return this.mode;
+	}
+
+	/**
+	 * Transforms the XML file specified, validating it as it's read. The
+	 * transformation only starts once the whole file has been read and found
+	 * to be valid. With a TransformerFactory other than Saxon's, the file is
+	 * validated in a pass of its own and then read again to be transformed.
+	 *
+	 * @param xml
+	 *            the XML file to validate and transform.
+	 * @param xsl
+	 *            the XSL Stylesheet to use for the transformation, or null for
+	 *            none.
+	 * @param result
+	 *            a container to hold the result of the transformation.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 * @param listener
+	 *            the ErrorListener for the transformation, or null.
+	 * @throws ValidationException
+	 *             if the file isn't valid; nothing is written to the Result.
+	 * @throws TransformerException
+	 *             if the XSL Stylesheet can't be compiled, or the
+	 *             transformation fails.
+	 * @throws SAXException
+	 *             if there's an exception parsing the XSL Stylesheet.
+	 * @throws IOException
+	 *             if there's a problem reading either file.
+	 * @throws ParserConfigurationException
+	 *             if the parser is configured incorrectly.
+	 */
+	public void transform(File xml, File xsl, Result result, TreeMap<String, String> params, ErrorListener listener) throws ValidationException, TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		// Compile first, so that a broken stylesheet isn't mistaken for invalid input
+		Templates templates = (xsl == null) ? null : this.transformer.newTemplates(xsl);
+
+		Collector collector = new Collector(this.maximumErrors);
+		SAXSource source = new SAXSource(this.getXMLReader(collector), new InputSource(xml.toURI().toString()));
+		source.setSystemId(xml.toURI().toString());
+
+		Source tree = source;
+		if (this.transformer.getTransformerFactory() instanceof TransformerFactoryImpl) {
+
+			Configuration configuration = ((TransformerFactoryImpl) this.transformer.getTransformerFactory()).getConfiguration();
+
+			ParseOptions options = new ParseOptions(configuration.getParseOptions());
+			if (this.mode == GrammarCache.Mode.DTD || this.schema == null) {
+				// Saxon turns DTD validation off in the parser unless asked for it
+				options.setDTDValidationMode(Validation.STRICT);
+			}
+			if (listener != null) {
+				options.setErrorListener(listener);
+			}
+
+			try {
+				tree = configuration.buildDocument(source, options);
+			} catch (TransformerException e) {
+				if (!collector.errors.isEmpty()) {
+					throw new ValidationException(collector.errors);
+				}
+				throw e;
+			}
+
+			if (!collector.errors.isEmpty()) {
+				throw new ValidationException(collector.errors);
+			}
+
+		} else {
+
+			// Without Saxon the validating pass can't build the tree, so it's a pass of its own
+			List<SAXParseException> errors = this.validate(xml);
+			if (!errors.isEmpty()) {
+				throw new ValidationException(errors);
+			}
+
+			tree = this.transformer.getWorker().parseToSource(xml);
+
+		}
+
+		this.transformer.transformWithTemplates(tree, templates, result, params, listener);
+
+	}
+
+	/**
+	 * Validates the XML file specified, without building a tree.
+	 *
+	 * @param xml
+	 *            the XML file to validate.
+	 * @return the errors found, up to the maximum; empty if the file is valid.
+	 * @throws SAXException
+	 *             if there's a problem other than the file being invalid.
+	 * @throws IOException
+	 *             if there's a problem reading the file.
+	 * @throws ParserConfigurationException
+	 *             if the parser is configured incorrectly.
+	 */
+	public List<SAXParseException> validate(File xml) throws SAXException, IOException, ParserConfigurationException {
+		return this.validate(new InputSource(xml.toURI().toString()));
+	}
+
+	/**
+	 * Validates the XML supplied, without building a tree.
+	 *
+	 * @param xml
+	 *            the XML to validate.
+	 * @return the errors found, up to the maximum; empty if the XML is valid.
+	 * @throws SAXException
+	 *             if there's a problem other than the XML being invalid.
+	 * @throws IOException
+	 *             if there's a problem reading the XML.
+	 * @throws ParserConfigurationException
+	 *             if the parser is configured incorrectly.
+	 */
+	public List<SAXParseException> validate(InputSource xml) throws SAXException, IOException, ParserConfigurationException {
+
+		Collector collector = new Collector(this.maximumErrors);
+		XMLReader reader = this.getXMLReader(collector);
+
+		try {
+			reader.parse(xml);
+		} catch (ValidationException e) {
+			return e.getErrors();
+		}
+
+		return Collections.unmodifiableList(collector.errors);
+
+	}
+
+	/**
+	 * @return the XMLReader reserved for the calling thread, reporting errors
+	 *         to the Collector supplied.
+	 */
+	private XMLReader getXMLReader(Collector collector) throws SAXException, ParserConfigurationException {
+
+		XMLReader reader = this.readers.get();
+		if (reader == null) {
+			reader = this.grammars.newXMLReader(this.mode, this.schema);
+			this.readers.set(reader);
+		}
+
+		// Pick up any change to the shared EntityResolver
+		reader.setEntityResolver(this.transformer.getEntityResolver());
+		reader.setContentHandler(null);
+		reader.setErrorHandler(collector);
+
+		return reader;
+
+	}
+
+}
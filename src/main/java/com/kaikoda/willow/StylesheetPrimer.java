@@ -0,0 +1,247 @@
+/*
+ * StylesheetPrimer
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Primes a SharedTransformer at startup, so that the first real requests
+ * don't pay the cost of compiling their XSL Stylesheet or of running through
+ * code the JIT compiler hasn't seen yet.
+ *
+ * Each stylesheet is compiled into the shared cache of compiled XSL
+ * Stylesheets, in parallel, and then run against the sample inputs supplied a
+ * configurable number of times, discarding the results. The instance reports
+ * itself ready once every stylesheet has been primed successfully.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class StylesheetPrimer {
+
+	/**
+	 * The ExecutorService used to prime stylesheets in parallel.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Released once priming has finished, successfully or otherwise.
+	 */
+	private final CountDownLatch finished;
+
+	/**
+	 * The outcome of priming, or null if it hasn't finished.
+	 */
+	private volatile PrimingReport report;
+
+	/**
+	 * The SharedTransformer being primed.
+	 */
+	private final SharedTransformer transformer;
+
+	/**
+	 * @param transformer
+	 *            the SharedTransformer to prime.
+	 * @param executor
+	 *            the ExecutorService to use to prime stylesheets in parallel.
+	 *            It's not shut down by this instance of StylesheetPrimer.
+	 */
+	public StylesheetPrimer(SharedTransformer transformer, ExecutorService executor) {
+		this.transformer = transformer;
+		this.executor = executor;
+		this.finished = new CountDownLatch(1);
+	}
+
+	/**
+	 * Waits for priming to finish, up to the time specified.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return true if priming finished and every stylesheet was primed
+	 *         successfully.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.finished.await(timeout, unit) && this.isReady();
+	}
+
+	/**
+	 * @return the ExecutorService used to prime stylesheets in parallel.
+	 */
+	public ExecutorService getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * @return the outcome of priming, or null if it hasn't finished.
+	 */
+	public PrimingReport getReport() {
+		return this.report;
+	}
+
+	/**
+	 * @return the SharedTransformer being primed.
+	 */
+	public SharedTransformer getTransformer() {
+		return this.transformer;
+	}
+
+	/**
+	 * @return true if priming has finished and every stylesheet was primed
+	 *         successfully.
+	 */
+	public boolean isReady() {
+		PrimingReport current = this.report;
+		return current != null && current.isSuccessful();
+	}
+
+	/**
+	 * Compiles every stylesheet in the list specified, in parallel, then runs
+	 * each against every sample input the number of times specified.
+	 *
+	 * @param stylesheets
+	 *            the XSL Stylesheets to prime.
+	 * @param samples
+	 *            the XML files to run through each stylesheet, or null to
+	 *            compile without warming up.
+	 * @param params
+	 *            a list of parameters for configuring each XSL Stylesheet
+	 *            during warm-up, or null.
+	 * @param warmUps
+	 *            the number of times to run each stylesheet against each
+	 *            sample.
+	 * @return the outcome of priming each stylesheet, in the order supplied.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for priming to complete, in
+	 *             which case the stylesheets not yet primed are cancelled and
+	 *             the primer is left not ready.
+	 */
+	public PrimingReport prime(List<File> stylesheets, List<File> samples, TreeMap<String, String> params, final int warmUps) throws InterruptedException {
+
+		if (warmUps < 0) {
+			throw new IllegalArgumentException("Warm-ups can't be negative.");
+		}
+
+		long start = System.nanoTime();
+
+		final List<File> inputs = (samples == null) ? Collections.<File> emptyList() : new ArrayList<File>(samples);
+		final TreeMap<String, String> stylesheetParameters = (params == null) ? null : new TreeMap<String, String>(params);
+
+		List<Future<PrimingResult>> futures = new ArrayList<Future<PrimingResult>>(stylesheets.size());
+		for (final File xsl : stylesheets) {
+
+			futures.add(this.executor.submit(new Callable<PrimingResult>() {
+
+				@Override
+				public PrimingResult call() {
+					return StylesheetPrimer.this.prime(xsl, inputs, stylesheetParameters, warmUps);
+				}
+
+			}));
+
+		}
+
+		try {
+
+			List<PrimingResult> results = new ArrayList<PrimingResult>(stylesheets.size());
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					results.add(new PrimingResult(stylesheets.get(i), 0L, 0, 0L, (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e));
+				}
+			}
+
+			PrimingReport primed = new PrimingReport(results, System.nanoTime() - start);
+			this.report = primed;
+
+			return primed;
+
+		} finally {
+
+			// If interrupted, stop the rest and release anyone waiting (who'll
+			// find there's no report, so priming isn't ready)
+			for (Future<PrimingResult> future : futures) {
+				future.cancel(true);
+			}
+
+			this.finished.countDown();
+
+		}
+
+	}
+
+	/**
+	 * Primes a single stylesheet, recording (rather than throwing) any
+	 * exception.
+	 *
+	 * @param xsl
+	 *            the XSL Stylesheet to prime.
+	 * @param samples
+	 *            the XML files to run through the stylesheet.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 * @param warmUps
+	 *            the number of times to run the stylesheet against each
+	 *            sample.
+	 * @return the outcome of priming the stylesheet.
+	 */
+	PrimingResult prime(File xsl, List<File> samples, TreeMap<String, String> params, int warmUps) {
+
+		long compileTime = 0L;
+		int completed = 0;
+		long warmUpTime = 0L;
+
+		try {
+
+			long start = System.nanoTime();
+			Templates templates = this.transformer.newTemplates(xsl);
+			compileTime = System.nanoTime() - start;
+
+			PrimedTransformer worker = this.transformer.getWorker();
+
+			start = System.nanoTime();
+			for (int i = 0; i < warmUps; i++) {
+				for (File sample : samples) {
+					worker.transformWithTemplates(worker.parseToSource(sample), templates, new StreamResult(new NullOutputStream()), params, null);
+					completed++;
+				}
+			}
+			warmUpTime = System.nanoTime() - start;
+
+			return new PrimingResult(xsl, compileTime, completed, warmUpTime, null);
+
+		} catch (Exception e) {
+			return new PrimingResult(xsl, compileTime, completed, warmUpTime, e);
+		}
+
+	}
+
+}
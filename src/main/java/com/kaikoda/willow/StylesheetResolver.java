@@ -0,0 +1,414 @@
+/*
+ * StylesheetResolver
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+
+/**
+ * A URIResolver for the TransformerFactory that resolves the modules pulled
+ * into an XSL Stylesheet (via xsl:include and xsl:import) through an XML
+ * catalog, and keeps the bytes of each module in memory once read.
+ *
+ * Modules are read at most once, however often the stylesheets that use them
+ * are compiled. A module that's a local file is read again if its
+ * last-modified time or length has changed by the time it's next needed;
+ * changes made to any other module aren't seen until it's invalidated.
+ *
+ * A thread compiling a stylesheet can have the state of each local module
+ * it resolves noted as it goes (see {@link #track(Map)}), so that the
+ * compiled stylesheet can be checked for changes without reading its
+ * modules again.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class StylesheetResolver implements URIResolver {
+
+	/**
+	 * The content of a module, together with the details needed to decide
+	 * whether it's still current.
+	 */
+	private static class Module {
+
+		private final byte[] content;
+
+		private final Map<File, long[]> stamps;
+
+		private Module(byte[] content, Map<File, long[]> stamps) {
+			this.content = content;
+			this.stamps = stamps;
+		}
+
+	}
+
+	/**
+	 * The namespace of XSLT instructions.
+	 */
+	private static final String XSLT_NAMESPACE = "http://www.w3.org/1999/XSL/Transform";
+
+	/**
+	 * The XMLCatalogResolver used to map module URIs to locations, or null.
+	 */
+	private volatile XMLCatalogResolver catalogResolver;
+
+	/**
+	 * The number of modules returned from memory.
+	 */
+	private final AtomicLong hits;
+
+	/**
+	 * The number of modules that had to be read.
+	 */
+	private final AtomicLong misses;
+
+	/**
+	 * The content of each module read, by location.
+	 */
+	private final ConcurrentHashMap<String, Module> modules;
+
+	/**
+	 * Where each thread notes the state of the local modules it resolves, if
+	 * anywhere.
+	 */
+	private final ThreadLocal<Map<File, long[]>> tracking;
+
+	/**
+	 * Default constructor.
+	 */
+	public StylesheetResolver() {
+		this(null);
+	}
+
+	/**
+	 * @param resolver
+	 *            the XMLCatalogResolver to use to map module URIs to
+	 *            locations, or null.
+	 */
+	public StylesheetResolver(XMLCatalogResolver resolver) {
+		this.catalogResolver = resolver;
+		this.modules = new ConcurrentHashMap<String, Module>();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.tracking = new ThreadLocal<Map<File, long[]>>();
+	}
+
+	/**
+	 * Discards the content of every module read so far.
+	 */
+	public void clear() {
+		this.modules.clear();
+	}
+
+	/**
+	 * @return the XMLCatalogResolver used to map module URIs to locations, or
+	 *         null.
+	 */
+	public XMLCatalogResolver getCatalogResolver() {
+		return this.catalogResolver;
+	}
+
+	/**
+	 * @return the number of modules returned from memory.
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return the number of modules that had to be read.
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Discards the content of the module at the location specified, so that
+	 * it's read again when next needed.
+	 *
+	 * @param location
+	 *            the resolved location of the module.
+	 */
+	public void invalidate(String location) {
+		this.modules.remove(location);
+	}
+
+	/**
+	 * Lists the location of the XSL Stylesheet specified and of every module
+	 * it includes or imports, directly or indirectly, resolving each through
+	 * the catalog as when compiling. Each module is read from its location,
+	 * not from memory, so the list reflects any changes since it was last
+	 * compiled.
+	 *
+	 * @param systemId
+	 *            the location of the XSL Stylesheet.
+	 * @return the stylesheet's location, followed by those of its modules in
+	 *         the order they're found.
+	 * @throws TransformerException
+	 *             if the stylesheet or a module can't be read.
+	 */
+	public List<String> listModules(String systemId) throws TransformerException {
+		return this.listModules(new StreamSource(systemId));
+	}
+
+	/**
+	 * Lists the location of the XSL Stylesheet supplied and of every module
+	 * it includes or imports, directly or indirectly. The stylesheet itself
+	 * is read from its InputStream or Reader, if it has one, and otherwise
+	 * from its system ID; modules are read from their locations.
+	 *
+	 * @param stylesheet
+	 *            the XSL Stylesheet. Its InputStream or Reader is consumed.
+	 * @return the stylesheet's system ID (if it has one), followed by the
+	 *         locations of its modules in the order they're found.
+	 * @throws TransformerException
+	 *             if the stylesheet or a module can't be read.
+	 */
+	public List<String> listModules(StreamSource stylesheet) throws TransformerException {
+
+		Set<String> found = new LinkedHashSet<String>();
+		if (stylesheet.getSystemId() != null) {
+			found.add(stylesheet.getSystemId());
+		}
+
+		List<String> unread = new ArrayList<String>();
+		unread.add(stylesheet.getSystemId());
+
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+
+		boolean first = true;
+		while (!unread.isEmpty()) {
+
+			String location = unread.remove(0);
+
+			try {
+
+				XMLStreamReader reader;
+				if (first && stylesheet.getReader() != null) {
+					reader = factory.createXMLStreamReader(location, stylesheet.getReader());
+				} else if (first && stylesheet.getInputStream() != null) {
+					reader = factory.createXMLStreamReader(location, stylesheet.getInputStream());
+				} else {
+					reader = factory.createXMLStreamReader(location, new ByteArrayInputStream(StylesheetResolver.read(location)));
+				}
+				first = false;
+
+				try {
+
+					while (reader.hasNext()) {
+
+						if (reader.next() != XMLStreamConstants.START_ELEMENT || !StylesheetResolver.XSLT_NAMESPACE.equals(reader.getNamespaceURI())) {
+							continue;
+						}
+
+						String name = reader.getLocalName();
+						if (!"import".equals(name) && !"include".equals(name)) {
+							continue;
+						}
+
+						String href = reader.getAttributeValue(null, "href");
+						String module = (href == null) ? null : this.resolveLocation(href, location);
+
+						if (module != null && found.add(module)) {
+							unread.add(module);
+						}
+
+					}
+
+				} finally {
+					reader.close();
+				}
+
+			} catch (XMLStreamException e) {
+				throw new TransformerException("Unable to read stylesheet module: " + location, e);
+			}
+
+		}
+
+		return new ArrayList<String>(found);
+
+	}
+
+	/**
+	 * Maps the href and base URI supplied to a location, via the catalog
+	 * where possible, and returns the content found there.
+	 *
+	 * @return the content of the module, or null if the href can't be
+	 *         resolved to an absolute URI (in which case the default
+	 *         resolution applies).
+	 * @throws TransformerException
+	 *             if the module can't be read.
+	 */
+	@Override
+	public Source resolve(String href, String base) throws TransformerException {
+
+		String location = this.resolveLocation(href, base);
+		if (location == null) {
+			return null;
+		}
+
+		Module module = this.modules.get(location);
+		if (module == null || !LruCache.isCurrent(module.stamps)) {
+
+			this.misses.incrementAndGet();
+
+			// Note the state of the file (if any) before it's read
+			Map<File, long[]> stamps = new HashMap<File, long[]>();
+			File file = TemplatesCache.toFile(location);
+			if (file != null) {
+				LruCache.stamp(file, stamps);
+			}
+
+			module = new Module(StylesheetResolver.read(location), stamps);
+			this.modules.put(location, module);
+
+		} else {
+			this.hits.incrementAndGet();
+		}
+
+		// The stamps were taken before the content was read, and have just been checked
+		Map<File, long[]> tracked = this.tracking.get();
+		if (tracked != null) {
+			tracked.putAll(module.stamps);
+		}
+
+		return new StreamSource(new ByteArrayInputStream(module.content), location);
+
+	}
+
+	/**
+	 * Maps the href and base URI supplied to the location of a module: the
+	 * location given by the catalog if there is one, otherwise the href
+	 * resolved against the base URI.
+	 *
+	 * @return the location of the module, or null if the href can't be
+	 *         resolved to an absolute URI.
+	 * @throws TransformerException
+	 *             if the catalog can't be read.
+	 */
+	public String resolveLocation(String href, String base) throws TransformerException {
+
+		String uri = DocumentCache.resolveURI(href, base);
+
+		XMLCatalogResolver resolver = this.catalogResolver;
+		if (resolver != null) {
+
+			try {
+
+				String mapped = (uri == null) ? null : resolver.resolveURI(uri);
+				if (mapped == null) {
+					mapped = resolver.resolveURI(href);
+				}
+
+				if (mapped != null) {
+					return mapped;
+				}
+
+			} catch (IOException e) {
+				throw new TransformerException(e);
+			}
+
+		}
+
+		return uri;
+
+	}
+
+	/**
+	 * Changes the XMLCatalogResolver used to map module URIs to locations.
+	 * Modules already read are kept.
+	 *
+	 * @param resolver
+	 *            the XMLCatalogResolver to use, or null.
+	 */
+	public void setCatalogResolver(XMLCatalogResolver resolver) {
+		this.catalogResolver = resolver;
+	}
+
+	/**
+	 * Starts (or stops) noting the last-modified time and length of each
+	 * local module resolved by the current thread, as they were when the
+	 * content returned was read.
+	 *
+	 * @param stamps
+	 *            the map to note the modules in, or null to stop.
+	 * @return the map previously in use by the current thread, or null; pass
+	 *         it back once finished.
+	 */
+	Map<File, long[]> track(Map<File, long[]> stamps) {
+
+		Map<File, long[]> previous = this.tracking.get();
+
+		if (stamps == null) {
+			this.tracking.remove();
+		} else {
+			this.tracking.set(stamps);
+		}
+
+		return previous;
+
+	}
+
+	/**
+	 * @return the number of modules currently held in memory.
+	 */
+	public int size() {
+		return this.modules.size();
+	}
+
+	/**
+	 * Reads the content at the location specified.
+	 *
+	 * @throws TransformerException
+	 *             if the content can't be read.
+	 */
+	private static byte[] read(String location) throws TransformerException {
+
+		try {
+
+			InputStream in = new URL(location).openStream();
+			try {
+				return IOUtils.toByteArray(in);
+			} finally {
+				in.close();
+			}
+
+		} catch (IOException e) {
+			throw new TransformerException("Unable to read stylesheet module: " + location, e);
+		}
+
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ * StylesheetSnapshot
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The figures recorded for the work done with one XSL Stylesheet, as they
+ * stood when the snapshot was taken.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class StylesheetSnapshot {
+
+	/**
+	 * The number of bytes read.
+	 */
+	private final long bytesIn;
+
+	/**
+	 * The number of bytes written.
+	 */
+	private final long bytesOut;
+
+	/**
+	 * The figures for compiling the stylesheet.
+	 */
+	private final PhaseSnapshot compile;
+
+	/**
+	 * The system ID of the stylesheet, or one of the names reserved by
+	 * TransformerMetrics.
+	 */
+	private final String name;
+
+	/**
+	 * The figures for parsing.
+	 */
+	private final PhaseSnapshot parse;
+
+	/**
+	 * The figures for serializing without a stylesheet.
+	 */
+	private final PhaseSnapshot serialize;
+
+	/**
+	 * The figures for transforming with the stylesheet.
+	 */
+	private final PhaseSnapshot transform;
+
+	/**
+	 * @param name
+	 *            the system ID of the stylesheet, or one of the names reserved
+	 *            by TransformerMetrics.
+	 * @param parse
+	 *            the figures for parsing.
+	 * @param compile
+	 *            the figures for compiling the stylesheet.
+	 * @param transform
+	 *            the figures for transforming with the stylesheet.
+	 * @param serialize
+	 *            the figures for serializing without a stylesheet.
+	 * @param bytesIn
+	 *            the number of bytes read.
+	 * @param bytesOut
+	 *            the number of bytes written.
+	 */
+	@ConstructorProperties({ "name", "parse", "compile", "transform", "serialize", "bytesIn", "bytesOut" })
+	public StylesheetSnapshot(String name, PhaseSnapshot parse, PhaseSnapshot compile, PhaseSnapshot transform, PhaseSnapshot serialize, long bytesIn, long bytesOut) {
+		this.name = name;
+		this.parse = parse;
+		this.compile = compile;
+		this.transform = transform;
+		this.serialize = serialize;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+	}
+
+	/**
+	 * @return the number of bytes read.
+	 */
+	public long getBytesIn() {
+		return this.bytesIn;
+	}
+
+	/**
+	 * @return the number of bytes written.
+	 */
+	public long getBytesOut() {
+		return this.bytesOut;
+	}
+
+	/**
+	 * @return the figures for compiling the stylesheet.
+	 */
+	public PhaseSnapshot getCompile() {
+		return this.compile;
+	}
+
+	/**
+	 * @return the total number of times any phase failed.
+	 */
+	public long getErrors() {
+		return this.parse.getErrors() + this.compile.getErrors() + this.transform.getErrors() + this.serialize.getErrors();
+	}
+
+	/**
+	 * @return the system ID of the stylesheet, or one of the names reserved
+	 *         by TransformerMetrics.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return the figures for parsing.
+	 */
+	public PhaseSnapshot getParse() {
+		return this.parse;
+	}
+
+	/**
+	 * @return the figures for serializing without a stylesheet.
+	 */
+	public PhaseSnapshot getSerialize() {
+		return this.serialize;
+	}
+
+	/**
+	 * @return the figures for transforming with the stylesheet.
+	 */
+	public PhaseSnapshot getTransform() {
+		return this.transform;
+	}
+
+}
@@ -0,0 +1,391 @@
+/*
+ * StylesheetWatcher
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Keeps the compiled copies of the XSL Stylesheets it watches current, so
+ * that stylesheet changes can be deployed without a restart.
+ *
+ * The directories holding each stylesheet, and every module it includes or
+ * imports, are watched through a WatchService. When a file changes, each
+ * stylesheet that depends on it is recompiled on a background thread and
+ * stored in the TemplatesCache in place of the earlier copy. Transformations
+ * already under way finish with the copy they started with, and no lookup
+ * waits for the recompilation. A stylesheet that fails to compile keeps its
+ * earlier copy.
+ *
+ * While a StylesheetWatcher is open, the TemplatesCache doesn't check the
+ * files behind the entries of the stylesheets it watches on every lookup;
+ * other entries are checked as usual.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class StylesheetWatcher implements Closeable {
+
+	/**
+	 * The default time, in milliseconds, to wait for further changes before
+	 * recompiling, so that a burst of saves leads to a single recompilation.
+	 */
+	public static final long DEFAULT_QUIET_PERIOD = 100L;
+
+	/**
+	 * The watched stylesheets that depend on each module file, including the
+	 * stylesheets themselves.
+	 */
+	private final Map<Path, Set<File>> dependents;
+
+	/**
+	 * The directory registered under each WatchKey.
+	 */
+	private final Map<WatchKey, Path> directories;
+
+	/**
+	 * The number of recompilations that failed.
+	 */
+	private final AtomicLong failures;
+
+	/**
+	 * The most recent exception thrown by a recompilation, or null.
+	 */
+	private volatile Exception lastFailure;
+
+	/**
+	 * The location each module file was resolved to, as used by the
+	 * StylesheetResolver.
+	 */
+	private final Map<Path, String> locations;
+
+	/**
+	 * The module files each watched stylesheet depends on.
+	 */
+	private final Map<File, Set<Path>> modules;
+
+	/**
+	 * The time, in milliseconds, to wait for further changes before
+	 * recompiling.
+	 */
+	private final long quietPeriod;
+
+	/**
+	 * The number of successful recompilations.
+	 */
+	private final AtomicLong reloads;
+
+	/**
+	 * The background thread that waits for changes and recompiles.
+	 */
+	private final Thread thread;
+
+	/**
+	 * The SharedTransformer whose TemplatesCache is kept current.
+	 */
+	private final SharedTransformer transformer;
+
+	/**
+	 * The WatchService notified of changes to the watched directories.
+	 */
+	private final WatchService watchService;
+
+	/**
+	 * @param transformer
+	 *            the SharedTransformer whose TemplatesCache is to be kept
+	 *            current.
+	 * @throws IOException
+	 *             if the file system can't be watched.
+	 */
+	public StylesheetWatcher(SharedTransformer transformer) throws IOException {
+		this(transformer, StylesheetWatcher.DEFAULT_QUIET_PERIOD);
+	}
+
+	/**
+	 * @param transformer
+	 *            the SharedTransformer whose TemplatesCache is to be kept
+	 *            current.
+	 * @param quietPeriod
+	 *            the time, in milliseconds, to wait for further changes before
+	 *            recompiling.
+	 * @throws IOException
+	 *             if the file system can't be watched.
+	 */
+	public StylesheetWatcher(SharedTransformer transformer, long quietPeriod) throws IOException {
+
+		this.transformer = transformer;
+		this.quietPeriod = quietPeriod;
+		this.dependents = new HashMap<Path, Set<File>>();
+		this.directories = new HashMap<WatchKey, Path>();
+		this.locations = new HashMap<Path, String>();
+		this.modules = new HashMap<File, Set<Path>>();
+		this.reloads = new AtomicLong();
+		this.failures = new AtomicLong();
+		this.watchService = FileSystems.getDefault().newWatchService();
+
+		this.thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				StylesheetWatcher.this.run();
+			}
+
+		}, "willow-stylesheet-watcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+
+	}
+
+	/**
+	 * Stops watching, and returns the TemplatesCache to checking the files
+	 * behind the entries of the watched stylesheets on every lookup.
+	 *
+	 * @throws IOException
+	 *             if the WatchService can't be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		TemplatesCache cache = this.transformer.getTemplatesCache();
+		for (File stylesheet : this.getWatched()) {
+			cache.setCheckingModified(stylesheet.toURI().toString(), true);
+		}
+
+		this.thread.interrupt();
+		this.watchService.close();
+
+	}
+
+	/**
+	 * @return the number of recompilations that failed.
+	 */
+	public long getFailures() {
+		return this.failures.get();
+	}
+
+	/**
+	 * @return the most recent exception thrown by a recompilation, or null if
+	 *         none has failed.
+	 */
+	public Exception getLastFailure() {
+		return this.lastFailure;
+	}
+
+	/**
+	 * @return the number of successful recompilations, not counting the
+	 *         compilation made when a stylesheet is first watched.
+	 */
+	public long getReloads() {
+		return this.reloads.get();
+	}
+
+	/**
+	 * @return the stylesheets being watched.
+	 */
+	public synchronized Set<File> getWatched() {
+		return Collections.unmodifiableSet(new HashSet<File>(this.modules.keySet()));
+	}
+
+	/**
+	 * Compiles the XSL Stylesheet specified and keeps its compiled copy
+	 * current from now on.
+	 *
+	 * @param xsl
+	 *            the XSL Stylesheet to watch.
+	 * @return the compiled XSL Stylesheet.
+	 * @throws TransformerException
+	 *             if the XSL Stylesheet can't be compiled, or its modules
+	 *             can't be found.
+	 * @throws SAXException
+	 *             if there's an exception parsing the XSL Stylesheet.
+	 * @throws IOException
+	 *             if a directory can't be watched.
+	 * @throws ParserConfigurationException
+	 *             if the parser is configured incorrectly.
+	 */
+	public Templates watch(File xsl) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		File stylesheet = xsl.getAbsoluteFile();
+
+		// Watch first, so that a change made while compiling isn't missed
+		this.register(stylesheet);
+		this.transformer.getTemplatesCache().setCheckingModified(stylesheet.toURI().toString(), false);
+
+		return this.transformer.getWorker().compileTemplates(stylesheet);
+
+	}
+
+	/**
+	 * Recompiles every watched stylesheet that depends on one of the files
+	 * specified.
+	 */
+	private void recompile(Set<Path> changed) {
+
+		Set<File> stylesheets = new LinkedHashSet<File>();
+		StylesheetResolver resolver = this.transformer.getWorker().getStylesheetResolver();
+
+		synchronized (this) {
+			for (Path path : changed) {
+
+				Set<File> found = this.dependents.get(path);
+				if (found != null) {
+					stylesheets.addAll(found);
+				}
+
+				String location = this.locations.get(path);
+				if (location != null && resolver != null) {
+					resolver.invalidate(location);
+				}
+
+			}
+		}
+
+		for (File stylesheet : stylesheets) {
+			try {
+
+				this.transformer.getWorker().compileTemplates(stylesheet);
+
+				// Modules may have been added or removed
+				this.register(stylesheet);
+
+				this.reloads.incrementAndGet();
+
+			} catch (Exception e) {
+				this.failures.incrementAndGet();
+				this.lastFailure = e;
+			}
+		}
+
+	}
+
+	/**
+	 * Records the modules the stylesheet specified depends on, and watches
+	 * the directories that hold them.
+	 */
+	private void register(File stylesheet) throws TransformerException, IOException {
+
+		StylesheetResolver resolver = this.transformer.getWorker().getStylesheetResolver();
+		if (resolver == null) {
+			resolver = new StylesheetResolver(this.transformer.getCatalogResolver());
+		}
+
+		Map<Path, String> found = new HashMap<Path, String>();
+		for (String location : resolver.listModules(stylesheet.toURI().toString())) {
+			File file = TemplatesCache.toFile(location);
+			if (file != null) {
+				found.put(file.getAbsoluteFile().toPath(), location);
+			}
+		}
+
+		synchronized (this) {
+
+			Set<Path> previous = this.modules.put(stylesheet, new HashSet<Path>(found.keySet()));
+			if (previous != null) {
+				for (Path path : previous) {
+					if (!found.containsKey(path)) {
+						this.dependents.get(path).remove(stylesheet);
+					}
+				}
+			}
+
+			for (Map.Entry<Path, String> module : found.entrySet()) {
+
+				Path path = module.getKey();
+
+				Set<File> stylesheets = this.dependents.get(path);
+				if (stylesheets == null) {
+					stylesheets = new HashSet<File>();
+					this.dependents.put(path, stylesheets);
+				}
+				stylesheets.add(stylesheet);
+
+				this.locations.put(path, module.getValue());
+
+				Path directory = path.getParent();
+				if (!this.directories.containsValue(directory)) {
+					this.directories.put(directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), directory);
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Waits for changes, gathering those that arrive within the quiet period
+	 * of each other, and recompiles the stylesheets affected; until closed.
+	 */
+	private void run() {
+
+		try {
+			while (true) {
+
+				Set<Path> changed = new HashSet<Path>();
+
+				WatchKey key = this.watchService.take();
+				while (key != null) {
+
+					Path directory;
+					synchronized (this) {
+						directory = this.directories.get(key);
+					}
+
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							// Events were lost, so assume everything changed
+							synchronized (this) {
+								changed.addAll(this.dependents.keySet());
+							}
+						} else if (directory != null) {
+							changed.add(directory.resolve((Path) event.context()));
+						}
+					}
+
+					key.reset();
+					key = this.watchService.poll(this.quietPeriod, TimeUnit.MILLISECONDS);
+
+				}
+
+				this.recompile(changed);
+
+			}
+		} catch (InterruptedException e) {
+			// Closed.
+		} catch (ClosedWatchServiceException e) {
+			// Closed.
+		}
+
+	}
+
+}
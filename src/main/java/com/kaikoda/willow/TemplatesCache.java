@@ -0,0 +1,321 @@
+/*
+ * TemplatesCache
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Templates;
+
+/**
+ * A bounded cache of compiled XSL Stylesheets, keyed by system ID (together
+ * with a hash of the content, for stylesheets that aren't read from a local
+ * file).
+ *
+ * The last-modified time and length of each local file a stylesheet was
+ * compiled from, including every module it includes or imports, are recorded
+ * alongside the compiled stylesheet, and an entry is treated as stale (and
+ * discarded) as soon as any of them changes. That check can be turned off,
+ * for the whole cache or for particular system IDs, where something else (eg.
+ * a StylesheetWatcher) keeps those entries current, so that lookups don't
+ * touch the file system.
+ *
+ * Lookups don't lock, and the least recently used entry is only searched for
+ * when the cache grows beyond its maximum size.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TemplatesCache {
+
+	/**
+	 * The default maximum number of compiled stylesheets held by an instance
+	 * of TemplatesCache.
+	 */
+	public static final int DEFAULT_MAXIMUM_SIZE = 64;
+
+	/**
+	 * Whether the file behind each entry is checked for changes on lookup.
+	 */
+	private volatile boolean checkingModified;
+
+	/**
+	 * The compiled stylesheets currently held, by system ID.
+	 */
+	private final LruCache<Templates> entries;
+
+	/**
+	 * The system IDs whose files aren't checked for changes on lookup.
+	 */
+	private final Set<String> unchecked;
+
+	/**
+	 * Default constructor.
+	 */
+	public TemplatesCache() {
+		this(TemplatesCache.DEFAULT_MAXIMUM_SIZE);
+	}
+
+	/**
+	 * @param maximumSize
+	 *            the maximum number of compiled stylesheets to hold at any one
+	 *            time.
+	 */
+	public TemplatesCache(int maximumSize) {
+
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be at least 1.");
+		}
+
+		this.checkingModified = true;
+		this.unchecked = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.entries = new LruCache<Templates>(maximumSize) {
+
+			@Override
+			protected boolean isChecked(String key) {
+				return TemplatesCache.this.isCheckingModified(key);
+			}
+
+		};
+
+	}
+
+	/**
+	 * Removes all compiled stylesheets from the cache. The hit, miss and
+	 * eviction counts are left as they are.
+	 */
+	public void clear() {
+		this.entries.clear();
+	}
+
+	/**
+	 * Retrieves the compiled stylesheet stored for the system ID specified.
+	 *
+	 * @param systemId
+	 *            the system ID of the stylesheet.
+	 * @return the compiled stylesheet, or null if there isn't a current one.
+	 */
+	public Templates get(String systemId) {
+
+		if (systemId == null) {
+			return null;
+		}
+
+		return this.entries.get(systemId);
+
+	}
+
+	/**
+	 * @return the number of compiled stylesheets removed from the cache, either
+	 *         to make room for another or because the stylesheet had changed.
+	 */
+	public long getEvictions() {
+		return this.entries.getEvictions();
+	}
+
+	/**
+	 * @return the number of lookups that found a current compiled stylesheet.
+	 */
+	public long getHits() {
+		return this.entries.getHits();
+	}
+
+	/**
+	 * @return the maximum number of compiled stylesheets held at any one time.
+	 */
+	public int getMaximumSize() {
+		return (int) this.entries.getMaximumWeight();
+	}
+
+	/**
+	 * @return the number of lookups that didn't find a current compiled
+	 *         stylesheet.
+	 */
+	public long getMisses() {
+		return this.entries.getMisses();
+	}
+
+	/**
+	 * Returns the last-modified time and length of each local file the
+	 * compiled stylesheet stored for the key specified was compiled from,
+	 * without counting a hit or a miss.
+	 *
+	 * @param key
+	 *            the system ID of the stylesheet, with the hash of its content
+	 *            if it wasn't read from a local file.
+	 * @return the stamps, or null if there isn't a compiled stylesheet.
+	 */
+	Map<File, long[]> getStamps(String key) {
+		return (key == null) ? null : this.entries.getStamps(key);
+	}
+
+	/**
+	 * @return true if the file behind each entry is checked for changes on
+	 *         lookup (the default), other than those of the system IDs
+	 *         excluded individually.
+	 */
+	public boolean isCheckingModified() {
+		return this.checkingModified;
+	}
+
+	/**
+	 * @param systemId
+	 *            the system ID of a stylesheet.
+	 * @return true if the files behind the entry for the system ID specified
+	 *         are checked for changes on lookup.
+	 */
+	public boolean isCheckingModified(String systemId) {
+		return this.checkingModified && !this.unchecked.contains(systemId);
+	}
+
+	/**
+	 * Stores a compiled stylesheet against the system ID specified, replacing
+	 * any stylesheet already stored for it.
+	 *
+	 * The last-modified time and length of a local file should be read
+	 * <em>before</em> it's compiled, so that a change made during compilation
+	 * is picked up by the next lookup; hence they're supplied by the caller.
+	 *
+	 * @param systemId
+	 *            the system ID of the stylesheet.
+	 * @param templates
+	 *            the compiled stylesheet.
+	 * @param lastModified
+	 *            the last-modified time of the stylesheet when it was read.
+	 * @param length
+	 *            the length of the stylesheet when it was read.
+	 */
+	public void put(String systemId, Templates templates, long lastModified, long length) {
+
+		if (systemId == null || templates == null) {
+			return;
+		}
+
+		Map<File, long[]> stamps = new HashMap<File, long[]>();
+
+		File file = TemplatesCache.toFile(systemId);
+		if (file != null) {
+			stamps.put(file, new long[] { lastModified, length });
+		}
+
+		this.put(systemId, templates, stamps);
+
+	}
+
+	/**
+	 * Stores a compiled stylesheet against the key specified, replacing any
+	 * stylesheet already stored for it.
+	 *
+	 * @param key
+	 *            the system ID of the stylesheet, with the hash of its content
+	 *            if it wasn't read from a local file.
+	 * @param templates
+	 *            the compiled stylesheet.
+	 * @param stamps
+	 *            the last-modified time and length of each local file the
+	 *            stylesheet was compiled from, read before it was compiled.
+	 */
+	void put(String key, Templates templates, Map<File, long[]> stamps) {
+
+		if (key == null || templates == null) {
+			return;
+		}
+
+		this.entries.put(key, templates, 1L, stamps);
+
+	}
+
+	/**
+	 * Removes the compiled stylesheet stored for the system ID specified.
+	 *
+	 * @param systemId
+	 *            the system ID of the stylesheet.
+	 */
+	public void remove(String systemId) {
+		if (systemId != null) {
+			this.entries.remove(systemId);
+		}
+	}
+
+	/**
+	 * Changes whether the file behind each entry is checked for changes on
+	 * lookup.
+	 *
+	 * @param checking
+	 *            false to return entries without checking the file, when
+	 *            something else replaces entries as their files change.
+	 */
+	public void setCheckingModified(boolean checking) {
+		this.checkingModified = checking;
+	}
+
+	/**
+	 * Changes whether the files behind the entry for the system ID specified
+	 * are checked for changes on lookup. Other entries are unaffected.
+	 *
+	 * @param systemId
+	 *            the system ID of the stylesheet.
+	 * @param checking
+	 *            false to return the entry without checking its files, when
+	 *            something else replaces it as they change.
+	 */
+	public void setCheckingModified(String systemId, boolean checking) {
+
+		if (systemId == null) {
+			return;
+		}
+
+		if (checking) {
+			this.unchecked.remove(systemId);
+		} else {
+			this.unchecked.add(systemId);
+		}
+
+	}
+
+	/**
+	 * @return the number of compiled stylesheets currently held.
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Converts a system ID into a File, if it identifies a local file.
+	 *
+	 * @param systemId
+	 *            the system ID to convert.
+	 * @return the File identified, or null if the system ID doesn't identify a
+	 *         local file.
+	 */
+	static File toFile(String systemId) {
+
+		try {
+
+			URI uri = new URI(systemId);
+			if ("file".equalsIgnoreCase(uri.getScheme()) && uri.getAuthority() == null) {
+				return new File(uri);
+			}
+
+		} catch (Exception e) {
+			// Not a URI that can be converted to a File.
+		}
+
+		return null;
+
+	}
+
+}
@@ -0,0 +1,41 @@
+/*
+ * TransformCallback
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import javax.xml.transform.Result;
+
+/**
+ * Notified when a transformation submitted to an AsyncTransformer finishes.
+ * Called on the worker thread that ran the transformation, so it should
+ * return quickly.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public interface TransformCallback {
+
+	/**
+	 * Called when the transformation completes successfully.
+	 *
+	 * @param result
+	 *            the container holding the result of the transformation.
+	 */
+	void completed(Result result);
+
+	/**
+	 * Called when the transformation fails or is cancelled.
+	 *
+	 * @param exception
+	 *            the reason the transformation didn't complete.
+	 */
+	void failed(Exception exception);
+
+}
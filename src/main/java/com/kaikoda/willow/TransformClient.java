@@ -0,0 +1,229 @@
+/*
+ * TransformClient
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.transform.TransformerException;
+
+/**
+ * Sends transformation requests to a TransformDaemon running on the same
+ * machine. Paths are made absolute before they're sent, since the daemon has
+ * its own working directory. Each request begins with the daemon's token.
+ *
+ * This client is only a convenience for Java callers: the protocol is plain
+ * text (see TransformDaemon), so shell jobs can talk to the daemon without
+ * starting a JVM at all.
+ *
+ * Each request uses its own connection, so a single instance can be shared by
+ * any number of threads.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TransformClient {
+
+	/**
+	 * The port the daemon listens on.
+	 */
+	private final int port;
+
+	/**
+	 * The time, in milliseconds, to wait for a response, or 0 to wait
+	 * indefinitely.
+	 */
+	private final int timeout;
+
+	/**
+	 * The daemon's token.
+	 */
+	private final String token;
+
+	/**
+	 * Creates a client that waits indefinitely for each response.
+	 *
+	 * @param port
+	 *            the port the daemon listens on.
+	 * @param token
+	 *            the daemon's token.
+	 */
+	public TransformClient(int port, String token) {
+		this(port, token, 0);
+	}
+
+	/**
+	 * @param port
+	 *            the port the daemon listens on.
+	 * @param token
+	 *            the daemon's token.
+	 * @param timeout
+	 *            the time, in milliseconds, to wait for a response, or 0 to
+	 *            wait indefinitely.
+	 */
+	public TransformClient(int port, String token, int timeout) {
+		this.port = port;
+		this.token = token;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return the port the daemon listens on.
+	 */
+	public int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * Asks the daemon to transform the XML file specified, writing the result
+	 * to the output file specified.
+	 *
+	 * @param xml
+	 *            the XML file to transform.
+	 * @param xsl
+	 *            the XSL Stylesheet to use for the transformation, or null for
+	 *            none.
+	 * @param output
+	 *            the file to write the result to.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 * @return how long the daemon spent on each phase of the request.
+	 * @throws TransformerException
+	 *             if the daemon couldn't carry out the transformation.
+	 * @throws IOException
+	 *             if the daemon can't be reached.
+	 * @throws IllegalArgumentException
+	 *             if a path or parameter contains a line break.
+	 */
+	public RequestTimings transform(File xml, File xsl, File output, TreeMap<String, String> params) throws TransformerException, IOException {
+
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.port);
+		try {
+
+			socket.setSoTimeout(this.timeout);
+
+			StringBuilder request = new StringBuilder();
+			TransformClient.appendLine(request, this.token);
+			TransformClient.appendLine(request, TransformDaemon.TRANSFORM);
+			TransformClient.appendLine(request, xml.getAbsolutePath());
+			TransformClient.appendLine(request, (xsl == null) ? "" : xsl.getAbsolutePath());
+			TransformClient.appendLine(request, output.getAbsolutePath());
+
+			if (params != null) {
+				for (Map.Entry<String, String> param : params.entrySet()) {
+					TransformClient.appendLine(request, param.getKey() + "=" + param.getValue());
+				}
+			}
+			request.append('\n');
+
+			OutputStream out = socket.getOutputStream();
+			out.write(request.toString().getBytes("UTF-8"));
+			out.flush();
+
+			String response = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")).readLine();
+			if (response == null) {
+				throw new IOException("No response from the daemon.");
+			}
+
+			String[] fields = response.split(" ", 2);
+			if (TransformDaemon.ERROR.equals(fields[0])) {
+				throw new TransformerException((fields.length > 1) ? fields[1] : response);
+			}
+
+			String[] times = (fields.length > 1) ? fields[1].split(" ") : new String[0];
+			if (!TransformDaemon.OK.equals(fields[0]) || times.length != 5) {
+				throw new IOException("Unexpected response from the daemon: " + response);
+			}
+
+			return new RequestTimings(Long.parseLong(times[0]), Long.parseLong(times[1]), Long.parseLong(times[2]), Long.parseLong(times[3]), Long.parseLong(times[4]));
+
+		} finally {
+			socket.close();
+		}
+
+	}
+
+	/**
+	 * Adds a single field to a request, as a line of its own.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the field contains a line break.
+	 */
+	private static void appendLine(StringBuilder request, String field) {
+
+		if (field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0) {
+			throw new IllegalArgumentException("Line breaks can't be sent to the daemon: " + field);
+		}
+
+		request.append(field).append('\n');
+
+	}
+
+	/**
+	 * Reads a token written by {@link TransformDaemon#writeToken(File)}.
+	 *
+	 * @param file
+	 *            the file the token was written to.
+	 * @return the token.
+	 * @throws IOException
+	 *             if the file can't be read.
+	 */
+	public static String readToken(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), "UTF-8").trim();
+	}
+
+	/**
+	 * Sends a single request to a daemon, printing the timings to standard
+	 * error. Exits with status 1 if the request fails.
+	 *
+	 * Usage: TransformClient port token-file xml xsl|- output [name=value...]
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 5) {
+			System.err.println("Usage: TransformClient port token-file xml xsl|- output [name=value...]");
+			System.exit(2);
+		}
+
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		for (int i = 5; i < args.length; i++) {
+
+			int split = args[i].indexOf('=');
+			if (split < 1) {
+				System.err.println("Not a parameter: " + args[i]);
+				System.exit(2);
+			}
+
+			params.put(args[i].substring(0, split), args[i].substring(split + 1));
+
+		}
+
+		TransformClient client = new TransformClient(Integer.parseInt(args[0]), TransformClient.readToken(new File(args[1])));
+		try {
+			RequestTimings timings = client.transform(new File(args[2]), "-".equals(args[3]) ? null : new File(args[3]), new File(args[4]), params);
+			System.err.println(timings);
+		} catch (TransformerException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+
+	}
+
+}
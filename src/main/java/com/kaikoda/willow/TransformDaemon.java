@@ -0,0 +1,717 @@
+/*
+ * TransformDaemon
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+
+/**
+ * A long-running process that transforms files on behalf of TransformClients,
+ * so that shell-driven jobs don't pay for starting a JVM, creating the
+ * factories and compiling their XSL Stylesheets on every file.
+ *
+ * Requests arrive over TCP on the loopback interface, one per connection, and
+ * are handled by a fixed pool of threads sharing a single SharedTransformer:
+ * compiled stylesheets, catalogs and the JIT compiler's work are all kept
+ * between requests. The time spent on each phase of a request is sent back
+ * with the response.
+ *
+ * The protocol is plain UTF-8 text, one field per line, so that a shell can
+ * speak it directly (eg. through bash's /dev/tcp, nc or socat) without
+ * starting a JVM. A request is the token, the command TRANSFORM, the absolute
+ * paths of the input, the stylesheet (or an empty line for none) and the
+ * output, then any parameters as name=value, and finally an empty line. The
+ * response is a single line: "OK" followed by the queued, compile, parse,
+ * transform and total times in nanoseconds, or "ERROR" followed by the reason.
+ *
+ * Any local process can connect, so each request must begin with the daemon's
+ * token: a random secret, unless one is supplied, that clients are given
+ * through a file only the daemon's user can read (see
+ * {@link #writeToken(File)}). Paths are read and written with the daemon's
+ * permissions, so run it as a user whose files its clients may already read
+ * and write.
+ *
+ * A connection is dropped if it sends nothing for longer than the read
+ * timeout, or hasn't sent its whole request within the request timeout of
+ * being accepted, so a stalled or trickling client can't hold a worker thread
+ * indefinitely. Once every thread is busy, a limited number of connections
+ * wait their turn; any more are refused straight away.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TransformDaemon implements Closeable {
+
+	/**
+	 * Handles a single connection.
+	 */
+	private class Handler implements Runnable {
+
+		private final long accepted;
+
+		private final Socket socket;
+
+		private Handler(Socket socket, long accepted) {
+			this.socket = socket;
+			this.accepted = accepted;
+		}
+
+		@Override
+		public void run() {
+			try {
+				TransformDaemon.this.handle(this.socket, this.accepted);
+			} catch (IOException e) {
+				// The client has gone; there's no one to tell.
+			} finally {
+				IOUtils.closeQuietly(this.socket);
+			}
+		}
+
+	}
+
+	/**
+	 * The response line that starts a failure.
+	 */
+	static final String ERROR = "ERROR";
+
+	/**
+	 * The response line that starts a success.
+	 */
+	static final String OK = "OK";
+
+	/**
+	 * The command sent by a TransformClient to request a transformation.
+	 */
+	static final String TRANSFORM = "TRANSFORM";
+
+	/**
+	 * The default time, in milliseconds, to wait for each part of a request
+	 * before dropping the connection.
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	/**
+	 * The default time, in milliseconds, from accepting a connection to
+	 * receiving the whole of its request.
+	 */
+	public static final int DEFAULT_REQUEST_TIMEOUT = 60000;
+
+	/**
+	 * The number of connections that may wait to be accepted.
+	 */
+	private static final int BACKLOG = 50;
+
+	/**
+	 * The longest line, in bytes, accepted in a request.
+	 */
+	private static final int MAXIMUM_LINE = 65536;
+
+	/**
+	 * The number of accepted connections that may wait for a worker thread
+	 * for each thread.
+	 */
+	private static final int QUEUED_PER_THREAD = 4;
+
+	/**
+	 * The longest time, in milliseconds, to wait before accepting again after
+	 * accept() fails.
+	 */
+	private static final long MAXIMUM_BACKOFF = 1000L;
+
+	/**
+	 * The number of random bytes in a generated token.
+	 */
+	private static final int TOKEN_BYTES = 32;
+
+	/**
+	 * The thread accepting connections.
+	 */
+	private final Thread acceptor;
+
+	/**
+	 * True once the daemon has been closed.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * The ThreadPoolExecutor handling requests, with a bounded queue.
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * The number of requests that failed.
+	 */
+	private final AtomicLong failures;
+
+	/**
+	 * The time, in milliseconds, to wait for each part of a request.
+	 */
+	private volatile int readTimeout;
+
+	/**
+	 * The number of requests handled, successfully or otherwise.
+	 */
+	private final AtomicLong requests;
+
+	/**
+	 * The time, in milliseconds, from accepting a connection to receiving
+	 * the whole of its request.
+	 */
+	private volatile int requestTimeout;
+
+	/**
+	 * The socket connections are accepted on.
+	 */
+	private final ServerSocket serverSocket;
+
+	/**
+	 * The secret each request must begin with.
+	 */
+	private final String token;
+
+	/**
+	 * The SharedTransformer used for every request.
+	 */
+	private final SharedTransformer transformer;
+
+	/**
+	 * Starts a daemon with one worker thread per available processor and a
+	 * random token.
+	 *
+	 * @param transformer
+	 *            the SharedTransformer to use for every request.
+	 * @param port
+	 *            the port to listen on, or 0 for any free port.
+	 * @throws IOException
+	 *             if the port can't be listened on.
+	 */
+	public TransformDaemon(SharedTransformer transformer, int port) throws IOException {
+		this(transformer, port, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Starts a daemon with a random token.
+	 *
+	 * @param transformer
+	 *            the SharedTransformer to use for every request.
+	 * @param port
+	 *            the port to listen on, or 0 for any free port.
+	 * @param threads
+	 *            the number of requests handled at once; up to four times as
+	 *            many more may wait.
+	 * @throws IOException
+	 *             if the port can't be listened on.
+	 */
+	public TransformDaemon(SharedTransformer transformer, int port, int threads) throws IOException {
+		this(transformer, port, threads, TransformDaemon.newToken());
+	}
+
+	/**
+	 * @param transformer
+	 *            the SharedTransformer to use for every request.
+	 * @param port
+	 *            the port to listen on, or 0 for any free port.
+	 * @param threads
+	 *            the number of requests handled at once; up to four times as
+	 *            many more may wait.
+	 * @param token
+	 *            the secret each request must begin with.
+	 * @throws IOException
+	 *             if the port can't be listened on.
+	 */
+	public TransformDaemon(SharedTransformer transformer, int port, int threads, String token) throws IOException {
+
+		if (token == null || token.length() == 0) {
+			throw new IllegalArgumentException("A token is required.");
+		}
+
+		this.transformer = transformer;
+		this.token = token;
+		this.readTimeout = TransformDaemon.DEFAULT_READ_TIMEOUT;
+		this.requestTimeout = TransformDaemon.DEFAULT_REQUEST_TIMEOUT;
+		this.requests = new AtomicLong();
+		this.failures = new AtomicLong();
+
+		this.serverSocket = new ServerSocket(port, TransformDaemon.BACKLOG, InetAddress.getLoopbackAddress());
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * TransformDaemon.QUEUED_PER_THREAD));
+
+		this.acceptor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				TransformDaemon.this.accept();
+			}
+
+		}, "willow-daemon");
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+
+	}
+
+	/**
+	 * Waits until the daemon has been closed and has stopped accepting
+	 * connections.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public void awaitClose() throws InterruptedException {
+		this.acceptor.join();
+	}
+
+	/**
+	 * Stops accepting connections, and waits briefly for the requests in
+	 * progress to finish.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		this.closed = true;
+		this.serverSocket.close();
+		this.executor.shutdown();
+
+		try {
+			this.executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+	}
+
+	/**
+	 * @return the number of requests that failed.
+	 */
+	public long getFailures() {
+		return this.failures.get();
+	}
+
+	/**
+	 * @return the port the daemon is listening on.
+	 */
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return the time, in milliseconds, to wait for each part of a request
+	 *         before dropping the connection.
+	 */
+	public int getReadTimeout() {
+		return this.readTimeout;
+	}
+
+	/**
+	 * @return the number of requests handled, successfully or otherwise.
+	 */
+	public long getRequests() {
+		return this.requests.get();
+	}
+
+	/**
+	 * @return the time, in milliseconds, from accepting a connection to
+	 *         receiving the whole of its request.
+	 */
+	public int getRequestTimeout() {
+		return this.requestTimeout;
+	}
+
+	/**
+	 * @return the secret each request must begin with.
+	 */
+	public String getToken() {
+		return this.token;
+	}
+
+	/**
+	 * @return the SharedTransformer used for every request.
+	 */
+	public SharedTransformer getTransformer() {
+		return this.transformer;
+	}
+
+	/**
+	 * Changes the time to wait for each part of a request, from the next
+	 * connection onwards.
+	 *
+	 * @param timeout
+	 *            the time, in milliseconds, to wait before dropping the
+	 *            connection; at least 1.
+	 */
+	public void setReadTimeout(int timeout) {
+
+		if (timeout < 1) {
+			throw new IllegalArgumentException("Read timeout must be at least 1.");
+		}
+
+		this.readTimeout = timeout;
+
+	}
+
+	/**
+	 * Changes the time allowed for receiving the whole of a request, from the
+	 * next connection onwards.
+	 *
+	 * @param timeout
+	 *            the time, in milliseconds, from accepting a connection to
+	 *            receiving the whole of its request; at least 1.
+	 */
+	public void setRequestTimeout(int timeout) {
+
+		if (timeout < 1) {
+			throw new IllegalArgumentException("Request timeout must be at least 1.");
+		}
+
+		this.requestTimeout = timeout;
+
+	}
+
+	/**
+	 * Writes the token to the file specified, readable and writable only by
+	 * the daemon's user, so that clients run as that user can read it with
+	 * {@link TransformClient#readToken(File)}. Any existing file is replaced.
+	 *
+	 * @param file
+	 *            the file to write the token to.
+	 * @throws IOException
+	 *             if the file can't be written.
+	 */
+	public void writeToken(File file) throws IOException {
+
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+
+		// Restrict the file before the token is written to it
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(path);
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+		}
+
+		Files.write(path, this.token.getBytes("UTF-8"));
+
+	}
+
+	/**
+	 * Accepts connections until the daemon is closed, passing each to a
+	 * worker thread. A connection that can't be queued is refused and closed.
+	 * Each failure to accept in a row doubles the wait before the next
+	 * attempt, up to a second, so a persistent failure (eg. running out of
+	 * file descriptors) doesn't spin.
+	 */
+	private void accept() {
+
+		long backoff = 0L;
+
+		while (!this.closed) {
+
+			Socket socket;
+			try {
+				socket = this.serverSocket.accept();
+				backoff = 0L;
+			} catch (IOException e) {
+
+				// Closed, or a connection that failed before it was accepted.
+				if (this.closed) {
+					break;
+				}
+
+				backoff = (backoff == 0L) ? 10L : Math.min(backoff * 2L, TransformDaemon.MAXIMUM_BACKOFF);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException interrupted) {
+					break;
+				}
+
+				continue;
+
+			}
+
+			try {
+				this.executor.execute(new Handler(socket, System.nanoTime()));
+			} catch (RejectedExecutionException e) {
+
+				this.requests.incrementAndGet();
+				this.failures.incrementAndGet();
+
+				// The response is far smaller than the socket's buffer, so this doesn't block
+				try {
+					TransformDaemon.respond(socket.getOutputStream(), TransformDaemon.ERROR + " Too many requests waiting.");
+				} catch (IOException ignored) {
+					// The client has gone; there's no one to tell.
+				} finally {
+					IOUtils.closeQuietly(socket);
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Reads a request from the connection specified, carries it out and
+	 * writes the response: the timings if it succeeded, otherwise the reason
+	 * it failed.
+	 */
+	private void handle(Socket socket, long accepted) throws IOException {
+
+		long started = System.nanoTime();
+		long deadline = accepted + TimeUnit.MILLISECONDS.toNanos(this.requestTimeout);
+
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		OutputStream out = socket.getOutputStream();
+
+		this.requests.incrementAndGet();
+
+		RequestTimings timings;
+		try {
+
+			// Compared in constant time, so the token can't be guessed a byte at a time
+			if (!MessageDigest.isEqual(this.token.getBytes("UTF-8"), this.readLine(socket, in, deadline).getBytes("UTF-8"))) {
+				throw new IOException("Not authorised.");
+			}
+
+			String command = this.readLine(socket, in, deadline);
+			if (!TransformDaemon.TRANSFORM.equals(command)) {
+				throw new IOException("Unknown command: " + command);
+			}
+
+			File xml = new File(this.readLine(socket, in, deadline));
+			String xsl = this.readLine(socket, in, deadline);
+			File output = new File(this.readLine(socket, in, deadline));
+
+			TreeMap<String, String> params = null;
+			String line;
+			while ((line = this.readLine(socket, in, deadline)).length() > 0) {
+
+				// A name in Clark notation ({uri}local) may contain '=' within its URI
+				int split = line.indexOf('=', line.startsWith("{") ? Math.max(line.indexOf('}'), 0) : 0);
+				if (split < 1) {
+					throw new IOException("Not a parameter: " + line);
+				}
+
+				if (params == null) {
+					params = new TreeMap<String, String>();
+				}
+				params.put(line.substring(0, split), line.substring(split + 1));
+
+			}
+
+			timings = this.transform(xml, (xsl.length() == 0) ? null : new File(xsl), output, params, started - accepted, accepted);
+
+		} catch (Exception e) {
+
+			this.failures.incrementAndGet();
+
+			String message = (e.getMessage() == null) ? e.getClass().getName() : e.getMessage();
+			TransformDaemon.respond(out, TransformDaemon.ERROR + " " + message.replaceAll("[\\r\\n]+", " "));
+
+			return;
+
+		}
+
+		TransformDaemon.respond(out, TransformDaemon.OK + " " + timings.getQueued() + " " + timings.getCompile() + " " + timings.getParse() + " " + timings.getTransform() + " " + timings.getTotal());
+
+	}
+
+	/**
+	 * Reads a single line of a request, ending with a line feed (and
+	 * optionally a carriage return before it). Each wait for more bytes is
+	 * limited by the read timeout and by the time left before the deadline.
+	 *
+	 * @throws IOException
+	 *             if the line is too long, the connection ends before the
+	 *             line does, or the request isn't received in time.
+	 */
+	private String readLine(Socket socket, InputStream in, long deadline) throws IOException {
+
+		ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+		while (true) {
+
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining < 1) {
+				throw new SocketTimeoutException("Request not received in time.");
+			}
+			socket.setSoTimeout((int) Math.min(this.readTimeout, remaining));
+
+			int b = in.read();
+			if (b < 0) {
+				throw new IOException("Incomplete request.");
+			}
+
+			if (b == '\n') {
+				break;
+			}
+
+			if (line.size() == TransformDaemon.MAXIMUM_LINE) {
+				throw new IOException("Request line too long.");
+			}
+			line.write(b);
+
+		}
+
+		String text = line.toString("UTF-8");
+		return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+
+	}
+
+	/**
+	 * Transforms the input file specified into the output file specified,
+	 * timing each phase. The output is removed if the transformation fails.
+	 *
+	 * While the SharedTransformer has a ResultCache, the input is transformed
+	 * through it, so a result already in the cache is simply copied to the
+	 * output. Parsing then happens (if at all) as part of the transformation
+	 * and is timed with it.
+	 */
+	private RequestTimings transform(File xml, File xsl, File output, TreeMap<String, String> params, long queued, long accepted) throws Exception {
+
+		long start = System.nanoTime();
+		Templates templates = (xsl == null) ? null : this.transformer.newTemplates(xsl);
+		long compile = System.nanoTime() - start;
+
+		PrimedTransformer worker = this.transformer.getWorker();
+		boolean cached = worker.getResultCache() != null;
+
+		start = System.nanoTime();
+		Source source = cached ? null : worker.parseToSource(xml);
+		long parse = System.nanoTime() - start;
+
+		File parent = output.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("Unable to create directory: " + parent);
+		}
+
+		start = System.nanoTime();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+		boolean complete = false;
+		try {
+
+			StreamResult result = new StreamResult(out);
+			result.setSystemId(output.toURI().toString());
+
+			if (cached) {
+				worker.transform(xml, xsl, result, params, null);
+			} else {
+				worker.transformWithTemplates(source, templates, result, params, null);
+			}
+			complete = true;
+
+		} finally {
+			out.close();
+			if (!complete) {
+				output.delete();
+			}
+		}
+		long transform = System.nanoTime() - start;
+
+		return new RequestTimings(queued, compile, parse, transform, System.nanoTime() - accepted);
+
+	}
+
+	/**
+	 * Writes a single response line to the connection.
+	 */
+	private static void respond(OutputStream out, String line) throws IOException {
+		out.write((line + "\n").getBytes("UTF-8"));
+		out.flush();
+	}
+
+	/**
+	 * @return a new random token, as a string of hexadecimal digits.
+	 */
+	private static String newToken() {
+
+		byte[] bytes = new byte[TransformDaemon.TOKEN_BYTES];
+		new SecureRandom().nextBytes(bytes);
+
+		return BatchManifest.toHex(bytes);
+
+	}
+
+	/**
+	 * Runs a daemon until the process is stopped.
+	 *
+	 * Usage: TransformDaemon port token-file [catalog|- [stylesheet...]]
+	 *
+	 * A random token is written to the token file, readable only by the
+	 * current user, for clients to send. The stylesheets listed are compiled
+	 * before the first request is accepted; "-" stands for no catalog.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 2) {
+			System.err.println("Usage: TransformDaemon port token-file [catalog|- [stylesheet...]]");
+			System.exit(2);
+		}
+
+		XMLCatalogResolver resolver = null;
+		if (args.length > 2 && !"-".equals(args[2])) {
+			resolver = new XMLCatalogResolver(new String[] { new File(args[2]).toURI().toString() });
+		}
+
+		SharedTransformer transformer = new SharedTransformer(resolver);
+		for (int i = 3; i < args.length; i++) {
+			transformer.newTemplates(new File(args[i]));
+		}
+
+		final TransformDaemon daemon = new TransformDaemon(transformer, Integer.parseInt(args[0]));
+		daemon.writeToken(new File(args[1]));
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				IOUtils.closeQuietly(daemon);
+			}
+
+		}));
+
+		System.err.println("Listening on port " + daemon.getPort());
+		daemon.awaitClose();
+
+	}
+
+}
@@ -0,0 +1,220 @@
+/*
+ * TransformPipeline
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+
+/**
+ * Runs a sequence of compiled XSL Stylesheets one after another, feeding the
+ * output of each stage into the next as SAX events, so that no intermediate
+ * result is serialized or parsed again. Only the output of the final stage is
+ * written to the Result supplied.
+ *
+ * Each stage has its own parameters. Every stage sees the system ID of the
+ * input, so relative URIs resolve the same way in each, and loads documents
+ * through the pipeline's DocumentCache, if it has one. A new chain of
+ * Transformers is created for every transformation, so a single pipeline can
+ * be used by any number of threads at once.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TransformPipeline {
+
+	/**
+	 * A compiled XSL Stylesheet, together with the parameters to pass to it.
+	 */
+	private static class Stage {
+
+		private final TreeMap<String, String> params;
+
+		private final Templates templates;
+
+		private Stage(Templates templates, TreeMap<String, String> params) {
+			this.templates = templates;
+			this.params = params;
+		}
+
+		private void configure(Transformer transformer, ErrorListener listener, URIResolver resolver) {
+
+			if (listener != null) {
+				transformer.setErrorListener(listener);
+			}
+
+			if (resolver != null) {
+				transformer.setURIResolver(resolver);
+			}
+
+			if (this.params != null) {
+				for (String name : this.params.keySet()) {
+					String value = this.params.get(name);
+					if (value != null) {
+						transformer.setParameter(name, value);
+					}
+				}
+			}
+
+		}
+
+	}
+
+	/**
+	 * The cache of parsed documents used to resolve the documents loaded by
+	 * every stage, or null.
+	 */
+	private volatile DocumentCache documentCache;
+
+	/**
+	 * The TransformerFactory used to chain the stages together.
+	 */
+	private final SAXTransformerFactory factory;
+
+	/**
+	 * The stages of the pipeline, in the order they're run.
+	 */
+	private final List<Stage> stages;
+
+	/**
+	 * @param factory
+	 *            the TransformerFactory used to compile the stylesheets. It
+	 *            must support SAX (as Saxon's does).
+	 * @throws TransformerConfigurationException
+	 *             if the TransformerFactory doesn't support SAX.
+	 */
+	public TransformPipeline(TransformerFactory factory) throws TransformerConfigurationException {
+
+		if (!(factory instanceof SAXTransformerFactory) || !factory.getFeature(SAXTransformerFactory.FEATURE) || !factory.getFeature(SAXResult.FEATURE)) {
+			throw new TransformerConfigurationException("The TransformerFactory doesn't support SAX: " + factory.getClass().getName());
+		}
+
+		this.factory = (SAXTransformerFactory) factory;
+		this.stages = new CopyOnWriteArrayList<Stage>();
+
+	}
+
+	/**
+	 * Adds a stage to the end of the pipeline.
+	 *
+	 * @param templates
+	 *            the compiled XSL Stylesheet to run.
+	 * @param params
+	 *            a list of parameters for configuring the XSL Stylesheet, or
+	 *            null.
+	 */
+	public void addStage(Templates templates, TreeMap<String, String> params) {
+
+		if (templates == null) {
+			throw new IllegalArgumentException("A stage needs a compiled XSL Stylesheet.");
+		}
+
+		this.stages.add(new Stage(templates, (params == null) ? null : new TreeMap<String, String>(params)));
+
+	}
+
+	/**
+	 * @return the cache of parsed documents used to resolve the documents
+	 *         loaded by every stage, or null if documents aren't cached.
+	 */
+	public DocumentCache getDocumentCache() {
+		return this.documentCache;
+	}
+
+	/**
+	 * Changes the cache of parsed documents used to resolve the documents
+	 * loaded by every stage, from the next transformation onwards.
+	 *
+	 * @param cache
+	 *            the DocumentCache to use, eg. the one used by the
+	 *            PrimedTransformer the stages were compiled with, or null to
+	 *            stop caching documents.
+	 */
+	public void setDocumentCache(DocumentCache cache) {
+		this.documentCache = cache;
+	}
+
+	/**
+	 * @return the number of stages in the pipeline.
+	 */
+	public int size() {
+		return this.stages.size();
+	}
+
+	/**
+	 * Runs the XML supplied through every stage of the pipeline, in order.
+	 * With no stages, the XML is copied to the Result unchanged.
+	 *
+	 * @param xml
+	 *            the XML to be transformed.
+	 * @param result
+	 *            a container to hold the result of the final stage.
+	 * @param listener
+	 *            the ErrorListener to use for every stage, or null.
+	 * @throws TransformerException
+	 *             when it's not possible to complete the transformation.
+	 */
+	public void transform(Source xml, Result result, ErrorListener listener) throws TransformerException {
+
+		Stage[] chain = this.stages.toArray(new Stage[0]);
+		DocumentCache cache = this.documentCache;
+
+		if (chain.length == 0) {
+
+			Transformer identity = this.factory.newTransformer();
+			if (listener != null) {
+				identity.setErrorListener(listener);
+			}
+			if (cache != null) {
+				identity.setURIResolver(cache);
+			}
+
+			identity.transform(xml, result);
+			return;
+
+		}
+
+		// Link the stages from last to first, so each knows where to send its output
+		Result next = result;
+		for (int i = chain.length - 1; i > 0; i--) {
+
+			TransformerHandler handler = this.factory.newTransformerHandler(chain[i].templates);
+			chain[i].configure(handler.getTransformer(), listener, cache);
+			handler.setResult(next);
+
+			// Relative URIs in the intermediate document resolve against the input, as they would in a single stage
+			handler.setSystemId(xml.getSystemId());
+
+			next = new SAXResult(handler);
+
+		}
+
+		// The first stage reads the XML itself, whatever form it's in
+		Transformer first = chain[0].templates.newTransformer();
+		chain[0].configure(first, listener, cache);
+		first.transform(xml, next);
+
+	}
+
+}
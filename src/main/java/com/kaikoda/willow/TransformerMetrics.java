@@ -0,0 +1,455 @@
+/*
+ * TransformerMetrics
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.transform.Templates;
+
+/**
+ * Counts, latency histograms, bytes in and out and error counts for the work
+ * done by one or more instances of PrimedTransformer, broken down by XSL
+ * Stylesheet and by phase.
+ *
+ * Parsing isn't tied to a stylesheet, so it's recorded under
+ * {@link #NO_STYLESHEET}, as is serialization (a transformation without a
+ * stylesheet). Compiling and transforming are recorded under the system ID of
+ * the stylesheet; the time taken to transform includes writing the result.
+ *
+ * Recording takes no locks, so a single instance can be shared by any number
+ * of threads. The figures can be read programmatically, via
+ * {@link #getStylesheets()}, or over JMX once registered.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TransformerMetrics implements TransformerMetricsMXBean {
+
+	/**
+	 * The phases of work recorded.
+	 */
+	public static enum Phase {
+
+		/**
+		 * Compiling an XSL Stylesheet.
+		 */
+		COMPILE,
+
+		/**
+		 * Parsing an XML document.
+		 */
+		PARSE,
+
+		/**
+		 * Writing a document out without a stylesheet.
+		 */
+		SERIALIZE,
+
+		/**
+		 * Running an XSL Stylesheet, including writing its result.
+		 */
+		TRANSFORM
+
+	}
+
+	/**
+	 * Refers to a compiled stylesheet by identity, without keeping it from
+	 * being garbage collected.
+	 */
+	private static class StylesheetKey extends WeakReference<Templates> {
+
+		private final int hash;
+
+		private StylesheetKey(Templates templates, ReferenceQueue<Templates> queue) {
+			super(templates, queue);
+			this.hash = System.identityHashCode(templates);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+
+			if (this == obj) {
+				return true;
+			}
+
+			Templates templates = this.get();
+			if (templates == null) {
+				return false;
+			}
+
+			if (obj instanceof StylesheetProbe) {
+				return templates == ((StylesheetProbe) obj).templates;
+			}
+
+			return obj instanceof StylesheetKey && templates == ((StylesheetKey) obj).get();
+
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+	}
+
+	/**
+	 * Looks up a StylesheetKey by identity. Unlike a StylesheetKey, it isn't a
+	 * Reference, so a lookup doesn't hand the garbage collector another
+	 * reference to process.
+	 */
+	private static class StylesheetProbe {
+
+		private final Templates templates;
+
+		private StylesheetProbe(Templates templates) {
+			this.templates = templates;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+
+			if (this == obj) {
+				return true;
+			}
+
+			if (obj instanceof StylesheetProbe) {
+				return this.templates == ((StylesheetProbe) obj).templates;
+			}
+
+			return obj instanceof StylesheetKey && this.templates == ((StylesheetKey) obj).get();
+
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(this.templates);
+		}
+
+	}
+
+	/**
+	 * The figures recorded for a single stylesheet.
+	 */
+	private static class StylesheetMetrics {
+
+		private final AtomicLong bytesIn;
+
+		private final AtomicLong bytesOut;
+
+		private final AtomicLong[] errors;
+
+		private final LatencyHistogram[] latencies;
+
+		private StylesheetMetrics() {
+
+			this.bytesIn = new AtomicLong();
+			this.bytesOut = new AtomicLong();
+			this.errors = new AtomicLong[Phase.values().length];
+			this.latencies = new LatencyHistogram[Phase.values().length];
+
+			for (int i = 0; i < this.latencies.length; i++) {
+				this.errors[i] = new AtomicLong();
+				this.latencies[i] = new LatencyHistogram();
+			}
+
+		}
+
+		private PhaseSnapshot snapshot(Phase phase) {
+			LatencyHistogram histogram = this.latencies[phase.ordinal()];
+			return new PhaseSnapshot(histogram.getCount(), this.errors[phase.ordinal()].get(), histogram.getMean(), histogram.getPercentile(0.5), histogram.getPercentile(0.95), histogram.getPercentile(0.99), histogram.getMaximum());
+		}
+
+	}
+
+	/**
+	 * The default name under which instances are registered with an
+	 * MBeanServer.
+	 */
+	public static final String DEFAULT_OBJECT_NAME = "com.kaikoda.willow:type=TransformerMetrics";
+
+	/**
+	 * The name under which work that isn't tied to a stylesheet is recorded.
+	 */
+	public static final String NO_STYLESHEET = "(none)";
+
+	/**
+	 * The name under which work with a compiled stylesheet of unknown origin is
+	 * recorded.
+	 */
+	public static final String UNNAMED_STYLESHEET = "(unnamed)";
+
+	/**
+	 * The name of each compiled stylesheet seen, by identity. A name is
+	 * forgotten once its compiled stylesheet has been garbage collected.
+	 */
+	private final ConcurrentHashMap<StylesheetKey, String> names;
+
+	/**
+	 * Receives the key of each named stylesheet that's been garbage
+	 * collected.
+	 */
+	private final ReferenceQueue<Templates> released;
+
+	/**
+	 * The figures recorded for each stylesheet, by name.
+	 */
+	private final ConcurrentHashMap<String, StylesheetMetrics> stylesheets;
+
+	/**
+	 * Default constructor.
+	 */
+	public TransformerMetrics() {
+		this.names = new ConcurrentHashMap<StylesheetKey, String>();
+		this.released = new ReferenceQueue<Templates>();
+		this.stylesheets = new ConcurrentHashMap<String, StylesheetMetrics>();
+	}
+
+	/**
+	 * Returns the figures recorded for the stylesheet specified.
+	 *
+	 * @param name
+	 *            the system ID of the stylesheet, or one of the reserved
+	 *            names.
+	 * @return a snapshot of the figures, or null if nothing has been recorded
+	 *         for the stylesheet.
+	 */
+	public StylesheetSnapshot getStylesheet(String name) {
+
+		StylesheetMetrics metrics = this.stylesheets.get(name);
+		if (metrics == null) {
+			return null;
+		}
+
+		return TransformerMetrics.snapshot(name, metrics);
+
+	}
+
+	@Override
+	public List<StylesheetSnapshot> getStylesheets() {
+
+		List<StylesheetSnapshot> snapshots = new ArrayList<StylesheetSnapshot>(this.stylesheets.size());
+		for (Map.Entry<String, StylesheetMetrics> entry : this.stylesheets.entrySet()) {
+			snapshots.add(TransformerMetrics.snapshot(entry.getKey(), entry.getValue()));
+		}
+
+		Collections.sort(snapshots, new Comparator<StylesheetSnapshot>() {
+
+			@Override
+			public int compare(StylesheetSnapshot a, StylesheetSnapshot b) {
+				return a.getName().compareTo(b.getName());
+			}
+
+		});
+
+		return snapshots;
+
+	}
+
+	@Override
+	public long getTotalBytesIn() {
+
+		long total = 0L;
+		for (StylesheetMetrics metrics : this.stylesheets.values()) {
+			total += metrics.bytesIn.get();
+		}
+
+		return total;
+
+	}
+
+	@Override
+	public long getTotalBytesOut() {
+
+		long total = 0L;
+		for (StylesheetMetrics metrics : this.stylesheets.values()) {
+			total += metrics.bytesOut.get();
+		}
+
+		return total;
+
+	}
+
+	@Override
+	public long getTotalErrors() {
+
+		long total = 0L;
+		for (StylesheetMetrics metrics : this.stylesheets.values()) {
+			for (AtomicLong errors : metrics.errors) {
+				total += errors.get();
+			}
+		}
+
+		return total;
+
+	}
+
+	/**
+	 * Remembers the name of a compiled stylesheet, so that work done with it
+	 * is recorded under that name.
+	 *
+	 * @param templates
+	 *            the compiled stylesheet.
+	 * @param name
+	 *            the system ID of the stylesheet.
+	 */
+	public void name(Templates templates, String name) {
+
+		if (templates == null || name == null || name.equals(this.names.get(new StylesheetProbe(templates)))) {
+			return;
+		}
+
+		// Forget the names of stylesheets that are no longer in use
+		Reference<? extends Templates> collected;
+		while ((collected = this.released.poll()) != null) {
+			this.names.remove(collected);
+		}
+
+		this.names.put(new StylesheetKey(templates, this.released), name);
+
+	}
+
+	/**
+	 * @param templates
+	 *            a compiled stylesheet, or null.
+	 * @return the name under which work done with the compiled stylesheet is
+	 *         recorded.
+	 */
+	public String nameOf(Templates templates) {
+
+		if (templates == null) {
+			return TransformerMetrics.NO_STYLESHEET;
+		}
+
+		String name = this.names.get(new StylesheetProbe(templates));
+		return (name == null) ? TransformerMetrics.UNNAMED_STYLESHEET : name;
+
+	}
+
+	/**
+	 * Records a completed phase of work.
+	 *
+	 * @param name
+	 *            the system ID of the stylesheet, or one of the reserved
+	 *            names.
+	 * @param phase
+	 *            the phase completed.
+	 * @param nanoseconds
+	 *            the time the phase took.
+	 * @param bytesIn
+	 *            the number of bytes read during the phase.
+	 * @param bytesOut
+	 *            the number of bytes written during the phase.
+	 */
+	public void record(String name, Phase phase, long nanoseconds, long bytesIn, long bytesOut) {
+
+		StylesheetMetrics metrics = this.getMetrics(name);
+		metrics.latencies[phase.ordinal()].record(nanoseconds);
+
+		if (bytesIn > 0) {
+			metrics.bytesIn.addAndGet(bytesIn);
+		}
+
+		if (bytesOut > 0) {
+			metrics.bytesOut.addAndGet(bytesOut);
+		}
+
+	}
+
+	/**
+	 * Records a failed phase of work.
+	 *
+	 * @param name
+	 *            the system ID of the stylesheet, or one of the reserved
+	 *            names.
+	 * @param phase
+	 *            the phase that failed.
+	 */
+	public void recordError(String name, Phase phase) {
+		this.getMetrics(name).errors[phase.ordinal()].incrementAndGet();
+	}
+
+	/**
+	 * Registers this instance with the platform MBeanServer, under the default
+	 * name.
+	 *
+	 * @return the name registered under.
+	 * @throws JMException
+	 *             if the instance can't be registered.
+	 */
+	public ObjectName register() throws JMException {
+		return this.register(ManagementFactory.getPlatformMBeanServer(), new ObjectName(TransformerMetrics.DEFAULT_OBJECT_NAME));
+	}
+
+	/**
+	 * Registers this instance with the MBeanServer specified.
+	 *
+	 * @param server
+	 *            the MBeanServer to register with.
+	 * @param name
+	 *            the name to register under.
+	 * @return the name registered under.
+	 * @throws JMException
+	 *             if the instance can't be registered.
+	 */
+	public ObjectName register(MBeanServer server, ObjectName name) throws JMException {
+		return server.registerMBean(this, name).getObjectName();
+	}
+
+	@Override
+	public void reset() {
+		this.stylesheets.clear();
+	}
+
+	/**
+	 * Returns the figures for the stylesheet specified, creating them if
+	 * necessary.
+	 */
+	private StylesheetMetrics getMetrics(String name) {
+
+		String key = (name == null) ? TransformerMetrics.UNNAMED_STYLESHEET : name;
+
+		StylesheetMetrics metrics = this.stylesheets.get(key);
+		if (metrics == null) {
+
+			metrics = new StylesheetMetrics();
+
+			StylesheetMetrics existing = this.stylesheets.putIfAbsent(key, metrics);
+			if (existing != null) {
+				metrics = existing;
+			}
+
+		}
+
+		return metrics;
+
+	}
+
+	/**
+	 * Takes a snapshot of the figures for a single stylesheet.
+	 */
+	private static StylesheetSnapshot snapshot(String name, StylesheetMetrics metrics) {
+		return new StylesheetSnapshot(name, metrics.snapshot(Phase.PARSE), metrics.snapshot(Phase.COMPILE), metrics.snapshot(Phase.TRANSFORM), metrics.snapshot(Phase.SERIALIZE), metrics.bytesIn.get(), metrics.bytesOut.get());
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * TransformerMetricsMXBean
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.util.List;
+
+/**
+ * The management interface through which TransformerMetrics are exposed over
+ * JMX.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public interface TransformerMetricsMXBean {
+
+	/**
+	 * @return a snapshot of the figures recorded for each XSL Stylesheet.
+	 */
+	List<StylesheetSnapshot> getStylesheets();
+
+	/**
+	 * @return the total number of bytes read.
+	 */
+	long getTotalBytesIn();
+
+	/**
+	 * @return the total number of bytes written.
+	 */
+	long getTotalBytesOut();
+
+	/**
+	 * @return the total number of failures, across every stylesheet and phase.
+	 */
+	long getTotalErrors();
+
+	/**
+	 * Forgets every figure recorded so far.
+	 */
+	void reset();
+
+}
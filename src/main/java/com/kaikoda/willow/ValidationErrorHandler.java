@@ -0,0 +1,76 @@
+/*
+ * ValidationErrorHandler
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+/**
+ * An ErrorHandler that makes validity errors fatal, so that a document that
+ * doesn't match its grammar fails to parse rather than just being reported.
+ * Warnings are ignored.
+ *
+ * It holds no state, so a single instance can be shared by any number of
+ * parsers on any number of threads.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class ValidationErrorHandler implements ErrorHandler {
+
+	/**
+	 * An instance that can be shared by every parser.
+	 */
+	public static final ValidationErrorHandler INSTANCE = new ValidationErrorHandler();
+
+	@Override
+	public void error(SAXParseException exception) throws SAXException {
+		throw exception;
+	}
+
+	@Override
+	public void fatalError(SAXParseException exception) throws SAXException {
+		throw exception;
+	}
+
+	@Override
+	public void warning(SAXParseException exception) throws SAXException {
+		// Not a reason to reject the document.
+	}
+
+	/**
+	 * Attaches the shared instance to the builder specified, if it was made by
+	 * a factory from a GrammarCache. Builders from any other factory keep the
+	 * parser's default handling, under which validity errors are only
+	 * reported.
+	 */
+	static void attach(DocumentBuilderFactory factory, DocumentBuilder builder) {
+		if (GrammarCache.isValidatingFactory(factory)) {
+			builder.setErrorHandler(ValidationErrorHandler.INSTANCE);
+		}
+	}
+
+	/**
+	 * Attaches the shared instance to the reader specified, if it mirrors
+	 * builders made by a factory from a GrammarCache.
+	 */
+	static void attach(DocumentBuilderFactory factory, XMLReader reader) {
+		if (GrammarCache.isValidatingFactory(factory)) {
+			reader.setErrorHandler(ValidationErrorHandler.INSTANCE);
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ * ValidationException
+ * Copyright (C) 2013  Sheila Thomson
+ *
+ * This Source Code Form is subject to the terms of the
+ * Mozilla Public License, v.2.0.
+ *
+ * If a copy of the MPL was not distributed with this file,
+ * You can obtain one at <http://mozilla.org/MPL/2.0/ />.
+ */
+package com.kaikoda.willow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Thrown when a document doesn't match its grammar, carrying every error
+ * found before validation stopped.
+ *
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class ValidationException extends SAXException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The errors found, in the order they were found.
+	 */
+	private final List<SAXParseException> errors;
+
+	/**
+	 * @param errors
+	 *            the errors found, in the order they were found. There must be
+	 *            at least one.
+	 */
+	public ValidationException(List<SAXParseException> errors) {
+
+		super(ValidationException.describe(errors), errors.get(0));
+
+		this.errors = Collections.unmodifiableList(new ArrayList<SAXParseException>(errors));
+
+	}
+
+	/**
+	 * @return the errors found, in the order they were found.
+	 */
+	public List<SAXParseException> getErrors() {
+		return this.errors;
+	}
+
+	/**
+	 * @return a message describing the first error, and how many there were.
+	 */
+	private static String describe(List<SAXParseException> errors) {
+
+		SAXParseException first = errors.get(0);
+
+		String message = first.getMessage() + " (line " + first.getLineNumber() + ", column " + first.getColumnNumber() + ")";
+		if (errors.size() > 1) {
+			message += " and " + (errors.size() - 1) + " more error" + ((errors.size() > 2) ? "s" : "");
+		}
+
+		return message;
+
+	}
+
+}
@@ -0,0 +1,314 @@
+package com.kaikoda.willow;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Result;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestAsyncTransformer {
+
+	/**
+	 * An OutputStream that holds up the transformation writing to it until
+	 * released.
+	 */
+	private static class BlockedOutputStream extends OutputStream {
+
+		private final CountDownLatch release;
+
+		private final CountDownLatch started;
+
+		private BlockedOutputStream(CountDownLatch started, CountDownLatch release) {
+			this.started = started;
+			this.release = release;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+
+			this.started.countDown();
+
+			try {
+				this.release.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+
+		}
+
+	}
+
+	/**
+	 * The AsyncTransformer used by the current test.
+	 */
+	private AsyncTransformer async;
+
+	/**
+	 * Released to let blocked transformations finish.
+	 */
+	private CountDownLatch release;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private File sampleFileHelloWorldSemantic;
+
+	/**
+	 * The SharedTransformer used during these tests.
+	 */
+	private SharedTransformer transformer;
+
+	/**
+	 * An XSL stylesheet that reverses the order of elements.
+	 */
+	private File xslReverse;
+
+	/**
+	 * Before each test, prepare a fresh SharedTransformer.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException {
+
+		sampleFileHelloWorldSemantic = new File(TestAsyncTransformer.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		xslReverse = new File(TestAsyncTransformer.class.getResource("/xsl/reverse.xsl").getFile());
+		File catalog = new File(TestAsyncTransformer.class.getResource("/schema/catalog.xml").getFile());
+
+		transformer = new SharedTransformer(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+		release = new CountDownLatch(1);
+
+		XMLUnit.setIgnoreWhitespace(true);
+		XMLUnit.setControlEntityResolver(transformer.getCatalogResolver());
+		XMLUnit.setTestEntityResolver(transformer.getCatalogResolver());
+
+	}
+
+	/**
+	 * After each test, let any blocked transformations finish and stop the
+	 * workers.
+	 */
+	@After
+	public void tearDown() throws InterruptedException {
+
+		release.countDown();
+
+		if (async != null) {
+			async.shutdown();
+			assertTrue(async.awaitTermination(10, TimeUnit.SECONDS));
+		}
+
+	}
+
+	/**
+	 * Check that a transformation completes in the background, and that its
+	 * callback is notified.
+	 */
+	@Test
+	public void testAsyncTransformer_transform() throws Exception {
+
+		String expected = FileUtils.readFileToString(new File(TestAsyncTransformer.class.getResource("/data/control/hello_world_semantic_reversed.xml").getFile()));
+
+		async = new AsyncTransformer(transformer, 2, 4, AsyncTransformer.RejectionPolicy.ABORT);
+
+		final CountDownLatch notified = new CountDownLatch(1);
+		final AtomicReference<Result> completed = new AtomicReference<Result>();
+
+		StringWriter writer = new StringWriter();
+		Future<Result> future = async.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(writer), null, null, new TransformCallback() {
+
+			@Override
+			public void completed(Result result) {
+				completed.set(result);
+				notified.countDown();
+			}
+
+			@Override
+			public void failed(Exception exception) {
+				notified.countDown();
+			}
+
+		});
+
+		Result result = future.get(10, TimeUnit.SECONDS);
+		assertXMLEqual(expected, writer.toString());
+
+		assertTrue(notified.await(10, TimeUnit.SECONDS));
+		assertSame(result, completed.get());
+
+	}
+
+	/**
+	 * Check that a failed transformation is reported through the callback.
+	 */
+	@Test
+	public void testAsyncTransformer_transform_failed() throws Exception {
+
+		async = new AsyncTransformer(transformer, 1, 1, AsyncTransformer.RejectionPolicy.ABORT);
+
+		final CountDownLatch notified = new CountDownLatch(1);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+		async.transform(new File(xslReverse.getParentFile(), "missing.xml"), xslReverse, new StreamResult(new StringWriter()), null, null, new TransformCallback() {
+
+			@Override
+			public void completed(Result result) {
+				notified.countDown();
+			}
+
+			@Override
+			public void failed(Exception exception) {
+				failure.set(exception);
+				notified.countDown();
+			}
+
+		});
+
+		assertTrue(notified.await(10, TimeUnit.SECONDS));
+		assertNotNull(failure.get());
+
+	}
+
+	/**
+	 * Check that a transformation is rejected once the worker is busy and the
+	 * queue is full.
+	 */
+	@Test
+	public void testAsyncTransformer_transform_abort() throws Exception {
+
+		async = new AsyncTransformer(transformer, 1, 1, AsyncTransformer.RejectionPolicy.ABORT);
+
+		CountDownLatch started = new CountDownLatch(1);
+		Future<Result> running = async.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new BlockedOutputStream(started, release)), null, null);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		Future<Result> queued = async.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new ByteArrayOutputStream()), null, null);
+		assertEquals(1, async.getQueueSize());
+
+		try {
+			async.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new ByteArrayOutputStream()), null, null);
+			fail("Expected the transformation to be rejected.");
+		} catch (RejectedExecutionException e) {
+			// Expected
+		}
+
+		release.countDown();
+		running.get(10, TimeUnit.SECONDS);
+		queued.get(10, TimeUnit.SECONDS);
+
+	}
+
+	/**
+	 * Check that a transformation runs on the caller's thread once the worker
+	 * is busy and the queue is full.
+	 */
+	@Test
+	public void testAsyncTransformer_transform_callerRuns() throws Exception {
+
+		async = new AsyncTransformer(transformer, 1, 1, AsyncTransformer.RejectionPolicy.CALLER_RUNS);
+
+		CountDownLatch started = new CountDownLatch(1);
+		async.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new BlockedOutputStream(started, release)), null, null);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		async.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new ByteArrayOutputStream()), null, null);
+
+		// Already complete when returned, having run on this thread
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Future<Result> overflow = async.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(out), null, null);
+		assertTrue(overflow.isDone());
+		assertTrue(out.size() > 0);
+
+	}
+
+	/**
+	 * Check that a caller waits for room in the queue once the worker is busy
+	 * and the queue is full.
+	 */
+	@Test
+	public void testAsyncTransformer_transform_block() throws Exception {
+
+		async = new AsyncTransformer(transformer, 1, 1, AsyncTransformer.RejectionPolicy.BLOCK);
+
+		CountDownLatch started = new CountDownLatch(1);
+		async.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new BlockedOutputStream(started, release)), null, null);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		async.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new ByteArrayOutputStream()), null, null);
+
+		final CountDownLatch submitted = new CountDownLatch(1);
+		final AtomicReference<Future<Result>> blocked = new AtomicReference<Future<Result>>();
+
+		Thread caller = new Thread() {
+
+			@Override
+			public void run() {
+				blocked.set(async.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new ByteArrayOutputStream()), null, null));
+				submitted.countDown();
+			}
+
+		};
+		caller.start();
+
+		// Still waiting while the worker is held up
+		assertTrue(!submitted.await(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		assertTrue(submitted.await(10, TimeUnit.SECONDS));
+		blocked.get().get(10, TimeUnit.SECONDS);
+
+	}
+
+	/**
+	 * Check that a transformation submitted after a shut down is rejected,
+	 * whatever the policy, rather than left with a Future that never
+	 * completes.
+	 */
+	@Test
+	public void testAsyncTransformer_transform_shutdown() throws Exception {
+
+		for (AsyncTransformer.RejectionPolicy policy : AsyncTransformer.RejectionPolicy.values()) {
+
+			AsyncTransformer stopped = new AsyncTransformer(transformer, 1, 1, policy);
+			stopped.shutdown();
+
+			try {
+				stopped.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new ByteArrayOutputStream()), null, null);
+				fail("Expected the transformation to be rejected under " + policy + ".");
+			} catch (RejectedExecutionException e) {
+				// Expected
+			}
+
+			assertTrue(stopped.awaitTermination(10, TimeUnit.SECONDS));
+
+		}
+
+	}
+
+}
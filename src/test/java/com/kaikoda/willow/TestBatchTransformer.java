@@ -0,0 +1,364 @@
+package com.kaikoda.willow;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestBatchTransformer {
+
+	/**
+	 * The ExecutorService used during these tests.
+	 */
+	private static ExecutorService executor;
+
+	/**
+	 * The SharedTransformer used during these tests.
+	 */
+	private static SharedTransformer transformer;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private static File sampleFileHelloWorldSemantic;
+
+	/**
+	 * A sample XML string for use during tests.
+	 */
+	private static String sampleStringHelloWorldSemanticReversed;
+
+	/**
+	 * An XSL stylesheet that reverses the order of elements.
+	 */
+	private static File xslReverse;
+
+	/**
+	 * A temporary directory holding the input files for each test.
+	 */
+	private File inputDirectory;
+
+	/**
+	 * A temporary directory holding the output files for each test.
+	 */
+	private File outputDirectory;
+
+	/**
+	 * Test environment configuration steps.
+	 */
+	@BeforeClass
+	public static void setupOnce() throws ParserConfigurationException, TransformerException, IOException {
+
+		sampleFileHelloWorldSemantic = new File(TestBatchTransformer.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		xslReverse = new File(TestBatchTransformer.class.getResource("/xsl/reverse.xsl").getFile());
+		File catalog = new File(TestBatchTransformer.class.getResource("/schema/catalog.xml").getFile());
+
+		sampleStringHelloWorldSemanticReversed = FileUtils.readFileToString(new File(TestBatchTransformer.class.getResource("/data/control/hello_world_semantic_reversed.xml").getFile()));
+
+		transformer = new SharedTransformer(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+		executor = Executors.newFixedThreadPool(4);
+
+	}
+
+	/**
+	 * Test environment clean-up steps.
+	 */
+	@AfterClass
+	public static void tearDownOnce() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Before each test, prepare a fresh set of directories.
+	 */
+	@Before
+	public void setup() throws IOException {
+
+		XMLUnit.setIgnoreWhitespace(true);
+		XMLUnit.setControlEntityResolver(transformer.getCatalogResolver());
+		XMLUnit.setTestEntityResolver(transformer.getCatalogResolver());
+
+		inputDirectory = Files.createTempDirectory("willow-input").toFile();
+		outputDirectory = Files.createTempDirectory("willow-output").toFile();
+
+	}
+
+	/**
+	 * After each test, remove the directories.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(inputDirectory);
+		FileUtils.deleteDirectory(outputDirectory);
+	}
+
+	/**
+	 * Check that every file in a list is transformed, and that a file that
+	 * can't be transformed doesn't stop the rest of the batch.
+	 */
+	@Test
+	public void testBatchTransformer_transform_inputList() throws Exception {
+
+		List<File> inputs = new ArrayList<File>();
+		for (int i = 0; i < 20; i++) {
+			File input = new File(inputDirectory, "hello_" + i + ".xml");
+			FileUtils.copyFile(sampleFileHelloWorldSemantic, input);
+			inputs.add(input);
+		}
+
+		File broken = new File(inputDirectory, "broken.xml");
+		FileUtils.writeStringToFile(broken, "<document><p>Unclosed</document>", "UTF-8");
+		inputs.add(10, broken);
+
+		BatchTransformer batch = new BatchTransformer(transformer, executor);
+		BatchReport report = batch.transform(inputs, xslReverse, null, BatchTransformer.newOutputNamer(outputDirectory, ".out.xml"));
+
+		assertEquals(21, report.getResults().size());
+		assertEquals(20, report.getTotalSuccesses());
+		assertEquals(1, report.getTotalFailures());
+		assertTrue(report.getThroughput() > 0);
+
+		BatchResult failure = report.getFailures().get(0);
+		assertEquals(broken, failure.getInput());
+		assertNotNull(failure.getException());
+		assertFalse(failure.getOutput().exists());
+
+		for (int i = 0; i < inputs.size(); i++) {
+
+			BatchResult result = report.getResults().get(i);
+			assertEquals(inputs.get(i), result.getInput());
+
+			if (result.isSuccessful()) {
+				assertEquals(new File(outputDirectory, result.getInput().getName().replace(".xml", ".out.xml")), result.getOutput());
+				assertXMLEqual(sampleStringHelloWorldSemanticReversed, FileUtils.readFileToString(result.getOutput(), "UTF-8"));
+			}
+
+		}
+
+	}
+
+	/**
+	 * Check that only the files beneath a directory that match the glob
+	 * pattern are transformed.
+	 */
+	@Test
+	public void testBatchTransformer_transform_inputDirectory() throws TransformerException, SAXException, IOException, ParserConfigurationException, InterruptedException {
+
+		FileUtils.copyFile(sampleFileHelloWorldSemantic, new File(inputDirectory, "a/one.xml"));
+		FileUtils.copyFile(sampleFileHelloWorldSemantic, new File(inputDirectory, "b/two.xml"));
+		FileUtils.writeStringToFile(new File(inputDirectory, "three.txt"), "Not XML", "UTF-8");
+
+		List<File> listed = BatchTransformer.listFiles(inputDirectory, "**.xml");
+		assertEquals(2, listed.size());
+
+		BatchTransformer batch = new BatchTransformer(transformer, executor);
+		BatchReport report = batch.transform(inputDirectory, "**.xml", xslReverse, null, BatchTransformer.newOutputNamer(inputDirectory, outputDirectory, ".xml"));
+
+		assertEquals(2, report.getTotalSuccesses());
+		assertEquals(0, report.getTotalFailures());
+		assertTrue(new File(outputDirectory, "a/one.xml").exists());
+		assertTrue(new File(outputDirectory, "b/two.xml").exists());
+
+	}
+
+	/**
+	 * Check that inputs in different directories that share a name are kept
+	 * apart when named relative to the input directory, and that a batch that
+	 * would write two of them to the same file is rejected.
+	 */
+	@Test
+	public void testBatchTransformer_transform_outputCollision() throws Exception {
+
+		FileUtils.copyFile(sampleFileHelloWorldSemantic, new File(inputDirectory, "a/same.xml"));
+		FileUtils.copyFile(sampleFileHelloWorldSemantic, new File(inputDirectory, "b/same.xml"));
+
+		BatchTransformer batch = new BatchTransformer(transformer, executor);
+
+		try {
+			batch.transform(inputDirectory, "**.xml", xslReverse, null, BatchTransformer.newOutputNamer(outputDirectory, ".xml"));
+			fail("Both inputs would have been written to the same file.");
+		} catch (IllegalArgumentException e) {
+			assertFalse(new File(outputDirectory, "same.xml").exists());
+		}
+
+		BatchReport report = batch.transform(inputDirectory, "**.xml", xslReverse, null, BatchTransformer.newOutputNamer(inputDirectory, outputDirectory, ".xml"));
+
+		assertEquals(2, report.getTotalSuccesses());
+		assertEquals(new File(new File(outputDirectory, "a"), "same.xml"), report.getResults().get(0).getOutput());
+		assertEquals(new File(new File(outputDirectory, "b"), "same.xml"), report.getResults().get(1).getOutput());
+
+	}
+
+	/**
+	 * Check that a namer that would write an input over itself is refused
+	 * before anything is written, leaving the input intact.
+	 */
+	@Test
+	public void testBatchTransformer_transform_outputIsInput() throws Exception {
+
+		File input = new File(inputDirectory, "same.xml");
+		FileUtils.copyFile(sampleFileHelloWorldSemantic, input);
+
+		BatchTransformer batch = new BatchTransformer(transformer, executor);
+
+		try {
+			batch.transform(inputDirectory, "*.xml", xslReverse, null, BatchTransformer.newOutputNamer(inputDirectory, ".xml"));
+			fail("An input would have been overwritten by its own output.");
+		} catch (IllegalArgumentException e) {
+			assertTrue(FileUtils.contentEquals(sampleFileHelloWorldSemantic, input));
+		}
+
+	}
+
+	/**
+	 * Check that a failed transformation leaves the existing output as it was,
+	 * with no temporary file left behind.
+	 */
+	@Test
+	public void testBatchTransformer_transform_failureKeepsOutput() throws Exception {
+
+		File input = new File(inputDirectory, "broken.xml");
+		FileUtils.writeStringToFile(input, "<unclosed>", "UTF-8");
+
+		File output = new File(outputDirectory, "broken.xml");
+		FileUtils.writeStringToFile(output, "<previous />", "UTF-8");
+
+		BatchReport report = new BatchTransformer(transformer, executor).transform(inputDirectory, "*.xml", xslReverse, null, BatchTransformer.newOutputNamer(outputDirectory, ".xml"));
+
+		assertEquals(1, report.getTotalFailures());
+		assertEquals("<previous />", FileUtils.readFileToString(output, "UTF-8"));
+		assertEquals(1, outputDirectory.list().length);
+
+	}
+
+	/**
+	 * Check that a batch run with a manifest only transforms the files whose
+	 * content, stylesheet or parameters have changed, or whose output is
+	 * missing.
+	 */
+	@Test
+	public void testBatchTransformer_transform_manifest() throws Exception {
+
+		List<File> inputs = new ArrayList<File>();
+		for (int i = 0; i < 5; i++) {
+			File input = new File(inputDirectory, "hello_" + i + ".xml");
+			FileUtils.copyFile(sampleFileHelloWorldSemantic, input);
+			inputs.add(input);
+		}
+
+		File manifest = new File(outputDirectory, "manifest.txt");
+		BatchOutputNamer namer = BatchTransformer.newOutputNamer(outputDirectory, ".out.xml");
+		BatchTransformer batch = new BatchTransformer(transformer, executor);
+
+		BatchReport report = batch.transform(inputs, xslReverse, null, namer, manifest);
+		assertEquals(5, report.getTotalSuccesses());
+		assertEquals(0, report.getTotalSkipped());
+
+		report = batch.transform(inputs, xslReverse, null, namer, manifest);
+		assertEquals(5, report.getTotalSuccesses());
+		assertEquals(5, report.getTotalSkipped());
+
+		// Touched but unchanged content is still skipped
+		assertTrue(inputs.get(0).setLastModified(inputs.get(0).lastModified() + 5000));
+
+		// Changed content, or a missing output, isn't
+		FileUtils.writeStringToFile(inputs.get(1), "<document><p>Changed</p><p>Order</p></document>", "UTF-8");
+		assertTrue(namer.getOutputFile(inputs.get(2)).delete());
+
+		report = batch.transform(inputs, xslReverse, null, namer, manifest);
+		assertEquals(3, report.getTotalSkipped());
+		assertTrue(report.getResults().get(0).isSkipped());
+		assertFalse(report.getResults().get(1).isSkipped());
+		assertFalse(report.getResults().get(2).isSkipped());
+		assertTrue(FileUtils.readFileToString(namer.getOutputFile(inputs.get(1)), "UTF-8").contains("Changed"));
+		assertTrue(namer.getOutputFile(inputs.get(2)).exists());
+
+		// Different parameters mean every file is transformed again
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		params.put("unused", "value");
+
+		report = batch.transform(inputs, xslReverse, params, namer, manifest);
+		assertEquals(0, report.getTotalSkipped());
+		assertEquals(5, report.getTotalSuccesses());
+
+	}
+
+	/**
+	 * Check that a batch interrupted part way through picks up where it
+	 * stopped, ignoring any entry it was in the middle of writing.
+	 */
+	@Test
+	public void testBatchTransformer_transform_manifestResumed() throws Exception {
+
+		List<File> inputs = new ArrayList<File>();
+		for (int i = 0; i < 4; i++) {
+			File input = new File(inputDirectory, "hello_" + i + ".xml");
+			FileUtils.copyFile(sampleFileHelloWorldSemantic, input);
+			inputs.add(input);
+		}
+
+		File manifest = new File(outputDirectory, "manifest.txt");
+		BatchOutputNamer namer = BatchTransformer.newOutputNamer(outputDirectory, ".out.xml");
+		BatchTransformer batch = new BatchTransformer(transformer, executor);
+
+		batch.transform(inputs, xslReverse, null, namer, manifest);
+
+		// Simulate a run that stopped after the first two files
+		List<String> lines = FileUtils.readLines(manifest, "UTF-8");
+		StringBuilder partial = new StringBuilder();
+		String interrupted = null;
+		for (String line : lines) {
+			if (line.startsWith("#") || line.contains("hello_0.xml") || line.contains("hello_1.xml")) {
+				partial.append(line).append("\n");
+			} else if (line.contains("hello_2.xml")) {
+				interrupted = line.substring(0, line.length() / 2);
+			}
+		}
+		partial.append(interrupted);
+		FileUtils.writeStringToFile(manifest, partial.toString(), "UTF-8");
+
+		BatchReport report = batch.transform(inputs, xslReverse, null, namer, manifest);
+		assertEquals(2, report.getTotalSkipped());
+		assertEquals(4, report.getTotalSuccesses());
+		assertTrue(report.getResults().get(1).isSkipped());
+		assertFalse(report.getResults().get(2).isSkipped());
+
+		// Every file is now recorded, once
+		BatchManifest reopened = new BatchManifest(manifest);
+		try {
+			assertEquals(4, reopened.size());
+		} finally {
+			reopened.close();
+		}
+		assertEquals(5, FileUtils.readLines(manifest, "UTF-8").size());
+
+	}
+
+}
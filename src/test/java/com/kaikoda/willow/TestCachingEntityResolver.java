@@ -0,0 +1,155 @@
+package com.kaikoda.willow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import net.sf.saxon.om.DocumentInfo;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestCachingEntityResolver {
+
+	/**
+	 * A copy of a sample entity file, that can be changed during a test.
+	 */
+	private File entity;
+
+	/**
+	 * The CachingEntityResolver belonging to the transformer below.
+	 */
+	private CachingEntityResolver resolver;
+
+	/**
+	 * A sample XML file that references a DTD and an external entity.
+	 */
+	private File sampleFileEntityReferences;
+
+	/**
+	 * The instance of PrimedTransformer used during these tests.
+	 */
+	private PrimedTransformer transformer;
+
+	/**
+	 * Before each test, check that all is as expected.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException, IOException {
+
+		sampleFileEntityReferences = new File(TestCachingEntityResolver.class.getResource("/data/source/entity_references.xml").getFile());
+		File catalog = new File(TestCachingEntityResolver.class.getResource("/schema/catalog.xml").getFile());
+
+		entity = File.createTempFile("entity", ".txt");
+		FileUtils.copyFile(new File(TestCachingEntityResolver.class.getResource("/schema/entities/hello_world.txt").getFile()), entity);
+
+		transformer = new PrimedTransformer();
+		transformer.setCatalogResolver(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+
+		resolver = (CachingEntityResolver) transformer.getEntityResolver();
+		assertNotNull(resolver);
+		assertEquals(0, resolver.size());
+
+	}
+
+	/**
+	 * After each test, remove the copy of the sample entity file.
+	 */
+	@After
+	public void tearDown() {
+		entity.delete();
+	}
+
+	/**
+	 * Check that the DTD and external entity are read once and then shared by
+	 * every later parse, whether into a DOM Document or a native tree.
+	 */
+	@Test
+	public void testCachingEntityResolver_resolveEntity_hit() throws SAXException, IOException, TransformerException, ParserConfigurationException {
+
+		Document document = transformer.parseToDocument(sampleFileEntityReferences);
+		assertEquals("Hello World!", document.getElementsByTagName("p").item(0).getTextContent().trim());
+
+		// The DTD and the entity it declares
+		assertEquals(2, resolver.getMisses());
+		assertEquals(0, resolver.getHits());
+		assertEquals(2, resolver.size());
+
+		document = transformer.parseToDocument(sampleFileEntityReferences);
+		assertEquals("Hello World!", document.getElementsByTagName("p").item(0).getTextContent().trim());
+
+		DocumentInfo tree = transformer.parseToTreeSource(sampleFileEntityReferences);
+		assertTrue(tree.getStringValue().contains("Hello World!"));
+
+		assertEquals(2, resolver.getMisses());
+		assertEquals(4, resolver.getHits());
+
+	}
+
+	/**
+	 * Check that an entity file is read again once it has changed, and that
+	 * files too big to hold aren't held.
+	 */
+	@Test
+	public void testCachingEntityResolver_resolveEntity_stale() throws SAXException, IOException {
+
+		String base = entity.getParentFile().toURI().toString();
+
+		InputSource first = resolver.resolveEntity(null, null, base, entity.getName());
+		assertEquals(entity.toURI().toString(), first.getSystemId());
+		assertEquals("Hello World!", IOUtils.toString(first.getByteStream(), "UTF-8").trim());
+
+		FileUtils.writeStringToFile(entity, "Goodbye World!", "UTF-8");
+		entity.setLastModified(entity.lastModified() + 2000);
+
+		InputSource second = resolver.resolveEntity(null, null, base, entity.getName());
+		assertEquals("Goodbye World!", IOUtils.toString(second.getByteStream(), "UTF-8"));
+		assertEquals(0, resolver.getHits());
+		assertEquals(2, resolver.getMisses());
+		assertEquals(1, resolver.getEvictions());
+		assertEquals(1, resolver.size());
+
+		CachingEntityResolver tiny = new CachingEntityResolver(null, 1);
+		assertNotNull(tiny.resolveEntity(null, null, base, entity.getName()));
+		assertEquals(0, tiny.size());
+		assertEquals(0, tiny.getTotalBytes());
+
+	}
+
+	/**
+	 * Check that entities that can't be resolved to an absolute URI are left
+	 * to the parser, and that remembered lookups are reused.
+	 */
+	@Test
+	public void testCachingEntityResolver_resolveEntity_unresolved() throws SAXException, IOException {
+
+		CachingEntityResolver plain = new CachingEntityResolver(null);
+		assertNull(plain.resolveEntity(null, null, null, "relative.dtd"));
+		assertNull(plain.resolveEntity("-//UNKNOWN//EN", null));
+
+		InputSource remote = plain.resolveEntity(null, null, null, "http://xml.kaikoda.com/schema/document.dtd");
+		assertEquals("http://xml.kaikoda.com/schema/document.dtd", remote.getSystemId());
+		assertNull(remote.getByteStream());
+		assertEquals(0, plain.getMisses());
+
+	}
+
+}
@@ -0,0 +1,170 @@
+package com.kaikoda.willow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestDiagnosticsCollector {
+
+	/**
+	 * A temporary directory holding a stylesheet that causes a recoverable
+	 * error.
+	 */
+	private File directory;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private File sampleFileHelloWorldPlain;
+
+	/**
+	 * The SharedTransformer used during these tests.
+	 */
+	private SharedTransformer transformer;
+
+	/**
+	 * A stylesheet with two equally good matches for the same element, which
+	 * Saxon reports as a recoverable error.
+	 */
+	private File xslAmbiguous;
+
+	/**
+	 * Before each test, prepare a stylesheet that causes a recoverable error.
+	 */
+	@Before
+	public void setup() throws Exception {
+
+		transformer = new SharedTransformer();
+		sampleFileHelloWorldPlain = new File(TestDiagnosticsCollector.class.getResource("/data/control/hello_world_plain.xml").getFile());
+
+		directory = Files.createTempDirectory("willow-diagnostics").toFile();
+		xslAmbiguous = new File(directory, "ambiguous.xsl");
+		FileUtils.writeStringToFile(xslAmbiguous, "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\"><xsl:template match=\"/\"><xsl:apply-templates select=\"*\" /></xsl:template><xsl:template match=\"*[1]\"><done /></xsl:template><xsl:template match=\"*[true()]\"><done /></xsl:template></xsl:stylesheet>", "UTF-8");
+
+	}
+
+	/**
+	 * After each test, remove the stylesheet.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	/**
+	 * Check that a recoverable error is recorded without stopping the
+	 * transformation, and that a fatal error is recorded and then thrown.
+	 */
+	@Test
+	public void testDiagnosticsCollector_transform() throws Exception {
+
+		DiagnosticsCollector collector = new DiagnosticsCollector();
+
+		for (int i = 0; i < 2; i++) {
+			StringWriter writer = new StringWriter();
+			transformer.transform(sampleFileHelloWorldPlain, xslAmbiguous, new StreamResult(writer), null, collector);
+			assertTrue(writer.toString().contains("<done"));
+		}
+
+		assertEquals(2, collector.getCount(Diagnostic.Severity.ERROR));
+		assertEquals(0, collector.getCount(Diagnostic.Severity.FATAL_ERROR));
+
+		File xslError = new File(TestDiagnosticsCollector.class.getResource("/xsl/error.xsl").getFile());
+		try {
+			transformer.transform(sampleFileHelloWorldPlain, xslError, new StreamResult(new StringWriter()), null, collector);
+			fail("TransformerException not thrown.");
+		} catch (TransformerException e) {
+			// Expected.
+		}
+
+		assertEquals(1, collector.getCount(Diagnostic.Severity.FATAL_ERROR));
+
+		List<Diagnostic> diagnostics = collector.getDiagnostics();
+		assertEquals(3, diagnostics.size());
+		assertEquals(Diagnostic.Severity.FATAL_ERROR, diagnostics.get(2).getSeverity());
+
+		// Stopped at the first error when asked to
+		DiagnosticsCollector aborting = new DiagnosticsCollector(DiagnosticsCollector.DEFAULT_CAPACITY, true);
+		try {
+			transformer.transform(sampleFileHelloWorldPlain, xslAmbiguous, new StreamResult(new StringWriter()), null, aborting);
+			fail("TransformerException not thrown.");
+		} catch (TransformerException e) {
+			// Expected.
+		}
+		assertTrue(aborting.hasErrors());
+
+	}
+
+	/**
+	 * Check that a single collector can be used by many threads at once,
+	 * counting every diagnostic but keeping only the most recent.
+	 */
+	@Test
+	public void testDiagnosticsCollector_concurrent() throws Exception {
+
+		final DiagnosticsCollector collector = new DiagnosticsCollector(64, false);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 8; i++) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						for (int j = 0; j < 1000; j++) {
+							collector.warning(new TransformerException("Warning " + j));
+							collector.error(new TransformerException("Error " + j));
+						}
+						return null;
+					}
+
+				}));
+			}
+
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(8000, collector.getCount(Diagnostic.Severity.WARNING));
+		assertEquals(8000, collector.getCount(Diagnostic.Severity.ERROR));
+		assertEquals(16000, collector.getTotal());
+		assertTrue(collector.hasErrors());
+
+		List<Diagnostic> diagnostics = collector.getDiagnostics();
+		assertEquals(64, diagnostics.size());
+		for (int i = 0; i < diagnostics.size(); i++) {
+			assertEquals(16000 - 64 + i, diagnostics.get(i).getSequence());
+		}
+
+	}
+
+}
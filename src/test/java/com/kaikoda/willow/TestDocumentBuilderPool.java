@@ -0,0 +1,340 @@
+package com.kaikoda.willow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.validation.Schema;
+
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestDocumentBuilderPool {
+
+	/**
+	 * A DocumentBuilderFactory whose builders can't be reset, so that the pool
+	 * discards each one when it's returned.
+	 */
+	private static class UnresettableFactory extends DocumentBuilderFactory {
+
+		@Override
+		public Object getAttribute(String name) {
+			return null;
+		}
+
+		@Override
+		public boolean getFeature(String name) {
+			return false;
+		}
+
+		@Override
+		public DocumentBuilder newDocumentBuilder() {
+
+			return new DocumentBuilder() {
+
+				@Override
+				public DOMImplementation getDOMImplementation() {
+					return null;
+				}
+
+				@Override
+				public Schema getSchema() {
+					return null;
+				}
+
+				@Override
+				public boolean isNamespaceAware() {
+					return false;
+				}
+
+				@Override
+				public boolean isValidating() {
+					return false;
+				}
+
+				@Override
+				public Document newDocument() {
+					return null;
+				}
+
+				@Override
+				public Document parse(InputSource is) {
+					return null;
+				}
+
+				@Override
+				public void setEntityResolver(EntityResolver er) {
+					// Not needed
+				}
+
+				@Override
+				public void setErrorHandler(ErrorHandler eh) {
+					// Not needed
+				}
+
+			};
+
+		}
+
+		@Override
+		public void setAttribute(String name, Object value) {
+			// Not needed
+		}
+
+		@Override
+		public void setFeature(String name, boolean value) {
+			// Not needed
+		}
+
+	}
+
+	/**
+	 * A sample XML file that references a DTD via the catalog.
+	 */
+	private File sampleFileHelloWorldSemantic;
+
+	/**
+	 * The SharedTransformer used during these tests.
+	 */
+	private SharedTransformer transformer;
+
+	/**
+	 * Before each test, prepare a fresh SharedTransformer.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException {
+
+		sampleFileHelloWorldSemantic = new File(TestDocumentBuilderPool.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		File catalog = new File(TestDocumentBuilderPool.class.getResource("/schema/catalog.xml").getFile());
+
+		transformer = new SharedTransformer(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+
+	}
+
+	/**
+	 * Check that a returned builder is handed out again, and that the
+	 * statistics reflect what's been borrowed.
+	 */
+	@Test
+	public void testDocumentBuilderPool_borrow() throws ParserConfigurationException, InterruptedException {
+
+		DocumentBuilderPool pool = transformer.newDocumentBuilderPool(2);
+		assertEquals(2, pool.getMaximumSize());
+		assertEquals(0, pool.getSize());
+
+		DocumentBuilder first = pool.borrow();
+		assertEquals(1, pool.getSize());
+		assertEquals(1, pool.getActive());
+		assertEquals(0.5, pool.getUtilization(), 0.0);
+
+		pool.release(first);
+		assertEquals(0, pool.getActive());
+		assertEquals(0.0, pool.getUtilization(), 0.0);
+
+		DocumentBuilder second = pool.borrow();
+		assertSame(first, second);
+		assertEquals(1, pool.getSize());
+		assertEquals(2, pool.getBorrows());
+		assertEquals(0, pool.getWaits());
+		assertEquals(1, pool.getPeakActive());
+
+		pool.release(second);
+
+	}
+
+	/**
+	 * Check that no more than the maximum number of builders are created, and
+	 * that the time spent waiting for one is recorded.
+	 */
+	@Test
+	public void testDocumentBuilderPool_borrow_bounded() throws ParserConfigurationException, InterruptedException {
+
+		DocumentBuilderPool pool = transformer.newDocumentBuilderPool(1);
+
+		DocumentBuilder builder = pool.borrow();
+		assertEquals(1.0, pool.getUtilization(), 0.0);
+
+		assertNull(pool.borrow(50, TimeUnit.MILLISECONDS));
+		assertEquals(1, pool.getSize());
+		assertEquals(1, pool.getWaits());
+		assertTrue(pool.getWaitTime() >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertEquals(pool.getWaitTime(), pool.getMaximumWaitTime());
+
+		pool.release(builder);
+		assertNotNull(pool.borrow(50, TimeUnit.MILLISECONDS));
+
+	}
+
+	/**
+	 * Check that a thread waiting for a builder is woken when a borrowed
+	 * builder is discarded rather than returned to the pool.
+	 */
+	@Test
+	public void testDocumentBuilderPool_release_discarded() throws Exception {
+
+		final DocumentBuilderPool pool = new DocumentBuilderPool(new UnresettableFactory(), 1, null);
+
+		DocumentBuilder builder = pool.borrow();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+
+			Future<DocumentBuilder> waiting = executor.submit(new Callable<DocumentBuilder>() {
+
+				@Override
+				public DocumentBuilder call() throws Exception {
+					return pool.borrow(10, TimeUnit.SECONDS);
+				}
+
+			});
+
+			// Can't be reset, so it's discarded, leaving room for a new one
+			pool.release(builder);
+
+			DocumentBuilder replacement = waiting.get(10, TimeUnit.SECONDS);
+			assertNotNull(replacement);
+			assertNotSame(builder, replacement);
+			assertEquals(1, pool.getSize());
+
+		} finally {
+			executor.shutdown();
+		}
+
+	}
+
+	/**
+	 * Check that a builder is reset with its EntityResolver reattached, even
+	 * if the borrower replaced it.
+	 */
+	@Test
+	public void testDocumentBuilderPool_release_reset() throws ParserConfigurationException, InterruptedException, SAXException, IOException {
+
+		final EntityResolver catalog = transformer.getEntityResolver();
+		final AtomicInteger resolved = new AtomicInteger();
+
+		DocumentBuilderPool pool = new DocumentBuilderPool(transformer.getDocumentBuilderFactory(), 1, new EntityResolver() {
+
+			@Override
+			public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
+				resolved.incrementAndGet();
+				return catalog.resolveEntity(publicId, systemId);
+			}
+
+		});
+
+		DocumentBuilder builder = pool.borrow();
+		builder.setEntityResolver(null);
+		pool.release(builder);
+
+		builder = pool.borrow();
+		assertNotNull(builder.parse(sampleFileHelloWorldSemantic));
+		assertTrue(resolved.get() > 0);
+		pool.release(builder);
+
+	}
+
+	/**
+	 * Check that threads sharing a pool through a SharedTransformer never use
+	 * more builders than the pool allows.
+	 */
+	@Test
+	public void testSharedTransformer_parseToDocument_pooled() throws Exception {
+
+		DocumentBuilderPool pool = transformer.newDocumentBuilderPool(2);
+		transformer.setDocumentBuilderPool(pool);
+
+		ExecutorService executor = Executors.newFixedThreadPool(6);
+		try {
+
+			List<Future<Document>> futures = new ArrayList<Future<Document>>();
+			for (int i = 0; i < 24; i++) {
+				futures.add(executor.submit(new Callable<Document>() {
+
+					@Override
+					public Document call() throws Exception {
+						return transformer.parseToDocument(sampleFileHelloWorldSemantic);
+					}
+
+				}));
+			}
+
+			for (Future<Document> future : futures) {
+				assertEquals("document", future.get(10, TimeUnit.SECONDS).getDocumentElement().getLocalName());
+			}
+
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(24, pool.getBorrows());
+		assertTrue(pool.getSize() <= 2);
+		assertTrue(pool.getPeakActive() <= 2);
+		assertEquals(0, pool.getActive());
+
+	}
+
+	/**
+	 * Check that a PrimedTransformer's new EntityResolver reaches its pool,
+	 * including the builders already idle in it.
+	 */
+	@Test
+	public void testPrimedTransformer_setEntityResolver_pooled() throws Exception {
+
+		PrimedTransformer primed = new PrimedTransformer();
+		primed.setCatalogResolver(transformer.getCatalogResolver());
+
+		DocumentBuilderPool pool = primed.newDocumentBuilderPool(1);
+		primed.setDocumentBuilderPool(pool);
+		primed.parseToDocument(sampleFileHelloWorldSemantic);
+		assertEquals(1, pool.getSize());
+
+		final AtomicInteger resolved = new AtomicInteger();
+		final EntityResolver catalog = transformer.getCatalogResolver();
+		EntityResolver counting = new EntityResolver() {
+
+			@Override
+			public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
+				resolved.incrementAndGet();
+				return catalog.resolveEntity(publicId, systemId);
+			}
+
+		};
+
+		primed.setEntityResolver(counting);
+		assertSame(counting, pool.getEntityResolver());
+
+		primed.parseToDocument(sampleFileHelloWorldSemantic);
+		assertTrue(resolved.get() > 0);
+
+	}
+
+}
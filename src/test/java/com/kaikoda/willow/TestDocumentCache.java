@@ -0,0 +1,181 @@
+package com.kaikoda.willow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.TreeMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestDocumentCache {
+
+	/**
+	 * The default instance of DocumentCache that will be used during these
+	 * tests.
+	 */
+	private DocumentCache cache;
+
+	/**
+	 * A copy of a sample XML file, that can be changed during a test.
+	 */
+	private File lookup;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private File sampleFileHelloWorldPlain;
+
+	/**
+	 * The instance of PrimedTransformer used during these tests.
+	 */
+	private PrimedTransformer transformer;
+
+	/**
+	 * An XSL stylesheet that reads a message from the document identified by
+	 * a parameter.
+	 */
+	private File xslLookup;
+
+	/**
+	 * Before each test, check that all is as expected.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException, IOException {
+
+		sampleFileHelloWorldPlain = new File(TestDocumentCache.class.getResource("/data/control/hello_world_plain.xml").getFile());
+		xslLookup = new File(TestDocumentCache.class.getResource("/xsl/lookup.xsl").getFile());
+		File catalog = new File(TestDocumentCache.class.getResource("/schema/catalog.xml").getFile());
+
+		lookup = File.createTempFile("lookup", ".xml");
+		FileUtils.copyFile(sampleFileHelloWorldPlain, lookup);
+
+		transformer = new PrimedTransformer();
+		transformer.setCatalogResolver(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+
+		cache = transformer.newDocumentCache(DocumentCache.DEFAULT_MAXIMUM_BYTES);
+		transformer.setDocumentCache(cache);
+
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getMisses());
+		assertEquals(0, cache.getEvictions());
+
+	}
+
+	/**
+	 * After each test, remove the copy of the sample file.
+	 */
+	@After
+	public void tearDown() {
+		lookup.delete();
+	}
+
+	/**
+	 * Check that a document loaded by a stylesheet is parsed once and then
+	 * reused by later transformations.
+	 */
+	@Test
+	public void testDocumentCache_resolve_hit() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		assertTrue(this.transform().contains("<p>Hello World!</p>"));
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.size());
+		assertEquals(lookup.length(), cache.getTotalBytes());
+
+		assertTrue(this.transform().contains("<p>Hello World!</p>"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+	}
+
+	/**
+	 * Check that a document is parsed again once its file has changed.
+	 */
+	@Test
+	public void testDocumentCache_resolve_stale() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		assertTrue(this.transform().contains("<p>Hello World!</p>"));
+
+		FileUtils.writeStringToFile(lookup, FileUtils.readFileToString(sampleFileHelloWorldPlain).replace("Hello World!", "Goodbye World!"), "UTF-8");
+
+		assertTrue(this.transform().contains("<p>Goodbye World!</p>"));
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(1, cache.size());
+
+	}
+
+	/**
+	 * Check that the least recently used document is evicted to stay within
+	 * the maximum size, and that documents too big to hold aren't held.
+	 */
+	@Test
+	public void testDocumentCache_resolve_eviction() throws TransformerException, IOException {
+
+		DocumentCache small = transformer.newDocumentCache(lookup.length());
+
+		String base = lookup.getParentFile().toURI().toString();
+
+		Source first = small.resolve(lookup.getName(), base);
+		assertSame(first, small.resolve(lookup.toURI().toString(), null));
+		assertEquals(1, small.size());
+
+		Source second = small.resolve(sampleFileHelloWorldPlain.toURI().toString(), null);
+		assertTrue(second != null);
+		assertEquals(1, small.size());
+		assertEquals(1, small.getEvictions());
+
+		DocumentCache tiny = transformer.newDocumentCache(1);
+		tiny.resolve(lookup.toURI().toString(), null);
+		assertEquals(0, tiny.size());
+		assertEquals(0, tiny.getTotalBytes());
+
+	}
+
+	/**
+	 * Check that URIs that don't identify a local file are left to the default
+	 * resolution.
+	 */
+	@Test
+	public void testDocumentCache_resolve_notLocal() throws TransformerException {
+		assertNull(cache.resolve("http://xml.kaikoda.com/schema/document.xsd", null));
+		assertNull(cache.resolve("lookup.xml#fragment", lookup.toURI().toString()));
+	}
+
+	/**
+	 * Runs the lookup stylesheet against the copy of the sample file.
+	 */
+	private String transform() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		params.put("lookup", lookup.toURI().toString());
+
+		StringWriter writer = new StringWriter();
+		transformer.transform(sampleFileHelloWorldPlain, xslLookup, new StreamResult(writer), params, null);
+
+		return writer.toString();
+
+	}
+
+}
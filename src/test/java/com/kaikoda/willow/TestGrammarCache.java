@@ -0,0 +1,293 @@
+package com.kaikoda.willow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.validation.Schema;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestGrammarCache {
+
+	/**
+	 * A document that doesn't match either grammar: it has two paragraphs.
+	 */
+	private static final String INVALID = "<!DOCTYPE document PUBLIC \"-//KAIKODA//DTD DOCUMENT 1.0//EN\" \"../../schema/document.dtd\"><document><p>One</p><p>Two</p></document>";
+
+	/**
+	 * The GrammarCache used during these tests.
+	 */
+	private GrammarCache cache;
+
+	/**
+	 * The catalog resolver used during these tests.
+	 */
+	private XMLCatalogResolver catalogResolver;
+
+	/**
+	 * A temporary directory holding a DTD that declares no entities, and
+	 * documents that use it.
+	 */
+	private File directory;
+
+	/**
+	 * A document that doesn't match the DTD that declares no entities.
+	 */
+	private File invalidList;
+
+	/**
+	 * A document that matches the DTD that declares no entities.
+	 */
+	private File list;
+
+	/**
+	 * A sample XML file that refers to an entity declared in the DTD.
+	 */
+	private File sampleFileEntityReferences;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private File sampleFileHelloWorldSemantic;
+
+	/**
+	 * Before each test, prepare an empty GrammarCache and a DTD that declares
+	 * no entities.
+	 */
+	@Before
+	public void setup() throws IOException {
+
+		sampleFileHelloWorldSemantic = new File(TestGrammarCache.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		sampleFileEntityReferences = new File(TestGrammarCache.class.getResource("/data/source/entity_references.xml").getFile());
+		File catalog = new File(TestGrammarCache.class.getResource("/schema/catalog.xml").getFile());
+
+		catalogResolver = new XMLCatalogResolver(new String[] { catalog.toURI().toString() });
+		cache = new GrammarCache(catalogResolver);
+
+		directory = Files.createTempDirectory("willow-dtd").toFile();
+		FileUtils.writeStringToFile(new File(directory, "list.dtd"), "<!ELEMENT list (item+)>\n<!ELEMENT item (#PCDATA)>\n", "UTF-8");
+
+		list = new File(directory, "list.xml");
+		FileUtils.writeStringToFile(list, "<!DOCTYPE list SYSTEM \"list.dtd\"><list><item>One</item></list>", "UTF-8");
+
+		invalidList = new File(directory, "invalid.xml");
+		FileUtils.writeStringToFile(invalidList, "<!DOCTYPE list SYSTEM \"list.dtd\"><list />", "UTF-8");
+
+	}
+
+	/**
+	 * After each test, remove the DTD and documents.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	/**
+	 * Check that documents are validated against their DTD, which is compiled
+	 * once into the pool, and that a DTD declaring entities is left out of the
+	 * pool so that its entities are still declared.
+	 */
+	@Test
+	public void testGrammarCache_dtd() throws Exception {
+
+		PrimedTransformer transformer = new PrimedTransformer(cache.newDocumentBuilderFactory(GrammarCache.Mode.DTD, null), PrimedTransformer.newTransformerFactory(), new TemplatesCache());
+		transformer.setCatalogResolver(catalogResolver);
+
+		transformer.parseToDocument(list);
+		transformer.parseToDocument(list);
+		assertEquals(1, countDTDs());
+
+		try {
+			transformer.parseToDocument(invalidList);
+			fail("An invalid document was parsed.");
+		} catch (SAXException e) {
+			// Expected.
+		}
+
+		for (int i = 0; i < 2; i++) {
+			Document document = transformer.parseToDocument(sampleFileEntityReferences);
+			assertEquals("Hello World!", document.getElementsByTagName("p").item(0).getTextContent().trim());
+		}
+		assertEquals(1, countDTDs());
+
+		try {
+			transformer.parseToDocument(INVALID);
+			fail("An invalid document was parsed.");
+		} catch (SAXException e) {
+			// Expected.
+		}
+
+		// The native tree is built by a reader that validates in the same way
+		transformer.parseToTreeSource(list);
+		try {
+			transformer.parseToTreeSource(invalidList);
+			fail("An invalid document was parsed.");
+		} catch (Exception e) {
+			// Expected.
+		}
+
+	}
+
+	/**
+	 * Check that a validating factory that wasn't made by a GrammarCache keeps
+	 * the parser's default handling, under which validity errors are only
+	 * reported.
+	 */
+	@Test
+	public void testGrammarCache_otherFactory() throws Exception {
+
+		DocumentBuilderFactory factory = PrimedTransformer.newDocumentBuilderFactory();
+		factory.setValidating(true);
+
+		PrimedTransformer transformer = new PrimedTransformer(factory, PrimedTransformer.newTransformerFactory(), new TemplatesCache());
+		transformer.setCatalogResolver(catalogResolver);
+
+		assertNotNull(transformer.parseToDocument(invalidList));
+
+	}
+
+	/**
+	 * Check that an XML Schema named up front is compiled once, via the
+	 * catalog, and that documents are validated against it.
+	 */
+	@Test
+	public void testGrammarCache_xsd() throws Exception {
+
+		Schema schema = cache.getSchema("../../schema/document.xsd");
+		assertSame(schema, cache.getSchema("../../schema/document.xsd"));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.size());
+
+		PrimedTransformer transformer = new PrimedTransformer(cache.newDocumentBuilderFactory(GrammarCache.Mode.XSD, "../../schema/document.xsd"), PrimedTransformer.newTransformerFactory(), new TemplatesCache());
+		transformer.setCatalogResolver(catalogResolver);
+		assertEquals(1, cache.size());
+
+		transformer.parseToDocument(sampleFileHelloWorldSemantic);
+
+		try {
+			transformer.parseToDocument(INVALID);
+			fail("An invalid document was parsed.");
+		} catch (SAXException e) {
+			// Expected.
+		}
+
+	}
+
+	/**
+	 * Check that documents are transformed in each mode, with the stylesheet
+	 * read without being validated against the documents' grammars.
+	 */
+	@Test
+	public void testGrammarCache_transform() throws Exception {
+
+		File xsl = new File(TestGrammarCache.class.getResource("/xsl/reverse.xsl").getFile());
+
+		// The schema is named by the document, rather than up front
+		File named = new File(directory, "named.xml");
+		FileUtils.writeStringToFile(named, "<document xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:noNamespaceSchemaLocation=\"" + new File(TestGrammarCache.class.getResource("/schema/document.xsd").getFile()).toURI() + "\"><p>One</p></document>", "UTF-8");
+
+		PrimedTransformer dtd = new PrimedTransformer(cache.newDocumentBuilderFactory(GrammarCache.Mode.DTD, null), PrimedTransformer.newTransformerFactory(), new TemplatesCache());
+		PrimedTransformer xsd = new PrimedTransformer(cache.newDocumentBuilderFactory(GrammarCache.Mode.XSD, "../../schema/document.xsd"), PrimedTransformer.newTransformerFactory(), new TemplatesCache());
+		PrimedTransformer xsdNamed = new PrimedTransformer(cache.newDocumentBuilderFactory(GrammarCache.Mode.XSD, null), PrimedTransformer.newTransformerFactory(), new TemplatesCache());
+
+		Object[][] cases = { { dtd, list }, { xsd, sampleFileHelloWorldSemantic }, { xsdNamed, named } };
+		for (Object[] test : cases) {
+
+			PrimedTransformer transformer = (PrimedTransformer) test[0];
+			transformer.setCatalogResolver(catalogResolver);
+
+			StringWriter writer = new StringWriter();
+			transformer.transform((File) test[1], xsl, new StreamResult(writer), null, null);
+			assertTrue(writer.toString().length() > 0);
+
+		}
+
+		try {
+			dtd.transform(invalidList, xsl, new StreamResult(new StringWriter()), null, null);
+			fail("An invalid document was transformed.");
+		} catch (Exception e) {
+			// Expected.
+		}
+
+	}
+
+	/**
+	 * Check that a single GrammarCache can be used by many threads at once.
+	 */
+	@Test
+	public void testGrammarCache_sharedTransformer() throws Exception {
+
+		final SharedTransformer transformer = new SharedTransformer(cache.newDocumentBuilderFactory(GrammarCache.Mode.DTD, null), PrimedTransformer.newTransformerFactory(), new TemplatesCache(), catalogResolver);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 40; i++) {
+
+				final File input = (i % 2 == 0) ? list : invalidList;
+				futures.add(executor.submit(new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() throws Exception {
+						try {
+							transformer.parseToDocument(input);
+							return true;
+						} catch (SAXException e) {
+							return false;
+						}
+					}
+
+				}));
+
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				assertEquals(i % 2 == 0, futures.get(i).get());
+			}
+
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(1, countDTDs());
+
+	}
+
+	/**
+	 * @return the number of DTDs in the pool.
+	 */
+	private int countDTDs() {
+		return cache.getGrammarPool().retrieveInitialGrammarSet(XMLGrammarDescription.XML_DTD).length;
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.kaikoda.willow;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+import javax.xml.transform.stream.StreamResult;
+
+import net.sf.saxon.om.DocumentInfo;
+
+import org.apache.commons.io.FileUtils;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestIncludeCache {
+
+	/**
+	 * The XInclude namespace declaration used by the documents written here.
+	 */
+	private static final String XI = " xmlns:xi=\"http://www.w3.org/2001/XInclude\"";
+
+	/**
+	 * A temporary directory holding shared boilerplate and documents that
+	 * include it.
+	 */
+	private File directory;
+
+	/**
+	 * A document that includes parts of the boilerplate.
+	 */
+	private File document;
+
+	/**
+	 * The boilerplate included by the document.
+	 */
+	private File shared;
+
+	/**
+	 * The PrimedTransformer used during these tests.
+	 */
+	private PrimedTransformer transformer;
+
+	/**
+	 * Before each test, prepare boilerplate and a document that includes it.
+	 */
+	@Before
+	public void setup() throws Exception {
+
+		transformer = new PrimedTransformer();
+
+		directory = Files.createTempDirectory("willow-xinclude").toFile();
+
+		shared = new File(directory, "shared.xml");
+		FileUtils.writeStringToFile(shared, "<shared><legal xml:id=\"legal\">Copyright</legal><header>Head</header></shared>", "UTF-8");
+		FileUtils.writeStringToFile(new File(directory, "note.txt"), "A note", "UTF-8");
+
+		document = new File(directory, "document.xml");
+		FileUtils.writeStringToFile(document, "<document" + XI + "><xi:include href=\"shared.xml\" xpointer=\"legal\" /><xi:include href=\"shared.xml\" xpointer=\"element(/1/2)\" /><p><xi:include href=\"note.txt\" parse=\"text\" /></p><xi:include href=\"missing.xml\"><xi:fallback><p>Missing</p></xi:fallback></xi:include></document>", "UTF-8");
+
+		XMLUnit.setIgnoreWhitespace(true);
+		XMLUnit.setIgnoreAttributeOrder(true);
+
+	}
+
+	/**
+	 * After each test, remove the boilerplate and documents.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	/**
+	 * Check that a DOM Document and a native tree have their XIncludes
+	 * resolved the same way as by the DocumentBuilder, and that the target is
+	 * only read once.
+	 */
+	@Test
+	public void testIncludeCache_include() throws Exception {
+
+		IncludeCache cache = transformer.newIncludeCache(IncludeCache.DEFAULT_MAXIMUM_BYTES);
+		transformer.setIncludeCache(cache);
+
+		File source = new File(TestIncludeCache.class.getResource("/data/source/hello_world_xinclude.xml").getFile());
+		String expected = FileUtils.readFileToString(new File(TestIncludeCache.class.getResource("/data/control/hello_world_expanded.xml").getFile()), "UTF-8");
+
+		assertXMLEqual(expected, transformer.parseToString(transformer.parseToDocument(source)));
+		assertXMLEqual(expected, serialize(transformer.parseToTreeSource(source)));
+
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.size());
+
+	}
+
+	/**
+	 * Check that fragments selected by a pointer, text and fallbacks are
+	 * included, and that a target is read again once it changes.
+	 */
+	@Test
+	public void testIncludeCache_modified() throws Exception {
+
+		IncludeCache cache = new IncludeCache(null, IncludeCache.DEFAULT_MAXIMUM_BYTES);
+		transformer.setIncludeCache(cache);
+
+		String expected = "<document><legal xml:id=\"legal\" xml:base=\"shared.xml\">Copyright</legal><header xml:base=\"shared.xml\">Head</header><p>A note</p><p>Missing</p></document>";
+
+		Document parsed = transformer.parseToDocument(document);
+		assertXMLEqual(expected, transformer.parseToString(parsed));
+		assertXMLEqual(expected, serialize(transformer.parseToTreeSource(document)));
+
+		// The shared target and the text, each read once; the missing target is looked for every time
+		assertEquals(2, cache.size());
+		assertEquals(4, cache.getHits());
+
+		FileUtils.writeStringToFile(shared, "<shared><legal xml:id=\"legal\">Copyright 2013</legal><header>Head</header></shared>", "UTF-8");
+		shared.setLastModified(shared.lastModified() + 2000L);
+
+		assertXMLEqual(expected.replace("Copyright", "Copyright 2013"), serialize(transformer.parseToTreeSource(document)));
+		assertEquals(1, cache.getEvictions());
+
+	}
+
+	/**
+	 * Check that a target which includes itself, or can't be read and has no
+	 * fallback, is rejected.
+	 */
+	@Test
+	public void testIncludeCache_errors() throws Exception {
+
+		transformer.setIncludeCache(new IncludeCache(null, IncludeCache.DEFAULT_MAXIMUM_BYTES));
+
+		File loop = new File(directory, "loop.xml");
+		FileUtils.writeStringToFile(loop, "<loop" + XI + "><xi:include href=\"loop.xml\" /></loop>", "UTF-8");
+
+		File missing = new File(directory, "missing.xml");
+		FileUtils.writeStringToFile(new File(directory, "unresolved.xml"), "<document" + XI + "><xi:include href=\"" + missing.getName() + "\" /></document>", "UTF-8");
+
+		for (File xml : new File[] { loop, new File(directory, "unresolved.xml") }) {
+
+			try {
+				transformer.parseToDocument(xml);
+				fail("An unresolvable XInclude was accepted.");
+			} catch (SAXException e) {
+				// Expected.
+			}
+
+			try {
+				transformer.parseToTreeSource(xml);
+				fail("An unresolvable XInclude was accepted.");
+			} catch (Exception e) {
+				// Expected.
+			}
+
+		}
+
+	}
+
+	/**
+	 * @return the native tree supplied, as a string of XML.
+	 */
+	private String serialize(DocumentInfo tree) throws Exception {
+		StringWriter out = new StringWriter();
+		transformer.transformWithTemplates(tree, null, new StreamResult(out), null, null);
+		return out.toString();
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.kaikoda.willow;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestMappedFileInputStream {
+
+	/**
+	 * An empty file, removed after each test.
+	 */
+	private File empty;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private File sampleFileHelloWorldSemantic;
+
+	/**
+	 * The instance of PrimedTransformer used during these tests.
+	 */
+	private PrimedTransformer transformer;
+
+	/**
+	 * Before each test, prepare a PrimedTransformer that resolves entities via
+	 * the catalog.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException, IOException {
+
+		sampleFileHelloWorldSemantic = new File(TestMappedFileInputStream.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		File catalog = new File(TestMappedFileInputStream.class.getResource("/schema/catalog.xml").getFile());
+
+		empty = File.createTempFile("empty", ".xml");
+
+		transformer = new PrimedTransformer();
+		transformer.setCatalogResolver(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+
+		XMLUnit.setIgnoreWhitespace(true);
+		XMLUnit.setControlEntityResolver(transformer.getCatalogResolver());
+		XMLUnit.setTestEntityResolver(transformer.getCatalogResolver());
+
+	}
+
+	/**
+	 * After each test, remove the empty file.
+	 */
+	@After
+	public void tearDown() {
+		empty.delete();
+	}
+
+	/**
+	 * Check that every byte of the file is read, in order, across however many
+	 * regions it's mapped in.
+	 */
+	@Test
+	public void testMappedFileInputStream_read() throws IOException {
+
+		byte[] expected = FileUtils.readFileToByteArray(sampleFileHelloWorldSemantic);
+
+		InputStream stream = new MappedFileInputStream(sampleFileHelloWorldSemantic, 7);
+		try {
+			assertEquals(expected.length, stream.available());
+			assertArrayEquals(expected, IOUtils.toByteArray(stream));
+			assertEquals(-1, stream.read());
+		} finally {
+			stream.close();
+		}
+
+		// Single bytes and skips crossing region boundaries
+		stream = new MappedFileInputStream(sampleFileHelloWorldSemantic, 7);
+		try {
+
+			assertEquals(expected[0], (byte) stream.read());
+			assertEquals(10, stream.skip(10));
+			assertEquals(expected[11], (byte) stream.read());
+
+			ByteArrayOutputStream rest = new ByteArrayOutputStream();
+			IOUtils.copy(stream, rest);
+			assertEquals(expected.length - 12, rest.size());
+
+		} finally {
+			stream.close();
+		}
+
+		stream = new MappedFileInputStream(empty);
+		try {
+			assertEquals(-1, stream.read());
+		} finally {
+			stream.close();
+		}
+
+	}
+
+	/**
+	 * Check that files over the threshold are parsed through mapped regions
+	 * with the same result, still resolving relative references.
+	 */
+	@Test
+	public void testPrimedTransformer_setMappedInputThreshold() throws ParserConfigurationException, SAXException, IOException, TransformerException {
+
+		String expected = FileUtils.readFileToString(sampleFileHelloWorldSemantic);
+
+		assertEquals(-1L, transformer.getMappedInputThreshold());
+		transformer.setMappedInputThreshold(0L);
+
+		assertXMLEqual(expected, transformer.parseToString(transformer.parseToDocument(sampleFileHelloWorldSemantic)));
+
+		StringWriter writer = new StringWriter();
+		transformer.transform(transformer.parseToTreeSource(sampleFileHelloWorldSemantic), null, new StreamResult(writer), null, null);
+		assertXMLEqual(expected, writer.toString());
+
+	}
+
+}
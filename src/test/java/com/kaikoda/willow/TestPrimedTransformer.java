@@ -3,26 +3,39 @@ package com.kaikoda.willow;
 import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.TreeMap;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.lib.FeatureKeys;
+import net.sf.saxon.om.DocumentInfo;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.xerces.util.XMLCatalogResolver;
@@ -248,6 +261,35 @@ public class TestPrimedTransformer {
 
 	}
 
+	/**
+	 * Check that the PrimedTransformer correctly converts XML bytes into a DOM
+	 * Document, leaving the parser to detect the encoding.
+	 */
+	@Test
+	public void testPrimedTransformer_parseToDocument_inputBytes() throws ParserConfigurationException, SAXException, IOException {
+
+		byte[] utf16 = sampleStringHelloWorldSemantic.replace("encoding=\"UTF-8\"", "encoding=\"UTF-16\"").getBytes("UTF-16");
+
+		assertXMLEqual(transformer.parseToDocument(sampleStringHelloWorldSemantic), transformer.parseToDocument(utf16));
+		assertXMLEqual(transformer.parseToDocument(sampleStringHelloWorldSemantic), (Document) transformer.parseToDOMSource(utf16).getNode());
+
+		// Only the remaining bytes are read, and the buffer is left as it was
+		ByteBuffer buffer = ByteBuffer.allocateDirect(utf16.length + 4);
+		buffer.put(new byte[4]).put(utf16).flip();
+		buffer.position(4);
+
+		assertXMLEqual(transformer.parseToDocument(sampleStringHelloWorldSemantic), transformer.parseToDocument(buffer));
+		assertEquals(4, buffer.position());
+
+		InputStream stream = new FileInputStream(sampleFileHelloWorldSemantic);
+		try {
+			assertXMLEqual(transformer.parseToDocument(sampleStringHelloWorldSemantic), (Document) transformer.parseToDOMSource(stream).getNode());
+		} finally {
+			stream.close();
+		}
+
+	}
+
 	/**
 	 * Check that the PrimedTransformer correctly converts an XML File into a
 	 * DOM Document.
@@ -312,6 +354,95 @@ public class TestPrimedTransformer {
 
 	}
 
+	/**
+	 * Check that the PrimedTransformer correctly converts an XML File into a
+	 * native tree, resolving entities via the catalog as it goes.
+	 */
+	@Test
+	public void testPrimedTransformer_parseToTreeSource_inputFile() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		DocumentInfo result = transformer.parseToTreeSource(sampleFileHelloWorldSemantic);
+		assertNotNull(result);
+		assertEquals(sampleFileHelloWorldSemantic.toURI().toString(), result.getSystemId());
+
+		StringWriter writer = new StringWriter();
+		transformer.transform(result, null, new StreamResult(writer), null, null);
+		assertXMLEqual(sampleStringHelloWorldSemantic, writer.toString());
+
+		// Entity references should be expanded, as they are in a DOM Document
+		writer = new StringWriter();
+		transformer.transform(transformer.parseToTreeSource(sampleFileEntityReferences), null, new StreamResult(writer), null, null);
+		assertXMLEqual(sampleStringHelloWorldPlain, writer.toString());
+
+	}
+
+	/**
+	 * Check that the PrimedTransformer correctly converts an XML stream into a
+	 * native tree.
+	 */
+	@Test
+	public void testPrimedTransformer_parseToTreeSource_inputStream() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		InputStream stream = new FileInputStream(sampleFileHelloWorldSemantic);
+		try {
+
+			DocumentInfo result = transformer.parseToTreeSource(stream, sampleFileHelloWorldSemantic.toURI().toString());
+			assertNotNull(result);
+
+			StringWriter writer = new StringWriter();
+			transformer.transform(result, null, new StreamResult(writer), null, null);
+			assertXMLEqual(sampleStringHelloWorldSemantic, writer.toString());
+
+		} finally {
+			stream.close();
+		}
+
+	}
+
+	/**
+	 * Check that the PrimedTransformer correctly converts an XML String into a
+	 * native tree.
+	 */
+	@Test
+	public void testPrimedTransformer_parseToTreeSource_inputString() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		DocumentInfo result = transformer.parseToTreeSource(sampleStringHelloWorldPlain);
+		assertNotNull(result);
+
+		StringWriter writer = new StringWriter();
+		transformer.transform(result, null, new StreamResult(writer), null, null);
+		assertXMLEqual(sampleStringHelloWorldPlain, writer.toString());
+
+	}
+
+	/**
+	 * Check that the PrimedTransformer correctly transforms XML supplied as
+	 * bytes, a buffer or a stream.
+	 */
+	@Test
+	public void testPrimedTransformer_transform_inputBytes() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		byte[] bytes = FileUtils.readFileToByteArray(sampleFileHelloWorldSemantic);
+
+		StringWriter writer = new StringWriter();
+		transformer.transform(bytes, xslReverse, new StreamResult(writer), null, null);
+		assertXMLEqual(sampleStringHelloWorldSemanticReversed, writer.toString());
+
+		writer = new StringWriter();
+		transformer.transform(ByteBuffer.wrap(bytes), xslReverse, new StreamResult(writer), null, null);
+		assertXMLEqual(sampleStringHelloWorldSemanticReversed, writer.toString());
+
+		InputStream stream = new FileInputStream(sampleFileHelloWorldSemantic);
+		try {
+			writer = new StringWriter();
+			transformer.transform(stream, null, new StreamResult(writer), null, null);
+			assertXMLEqual(sampleStringHelloWorldSemantic, writer.toString());
+		} finally {
+			stream.close();
+		}
+
+	}
+
 	/**
 	 * Check that the PrimedTransformer correctly executes a transformation
 	 * using the XML supplied but no XSL Stylesheet.
@@ -446,6 +577,62 @@ public class TestPrimedTransformer {
 
 	}
 
+	/**
+	 * Check that the PrimedTransformer correctly writes a DOM Document and an
+	 * XML File to an OutputStream as UTF-8 encoded XML.
+	 */
+	@Test
+	public void testPrimedTransformer_parseToStream() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		transformer.parseToStream(transformer.parseToDocument(sampleFileHelloWorldSemantic), out);
+		assertXMLEqual(sampleStringHelloWorldSemantic, out.toString("UTF-8"));
+
+		out = new ByteArrayOutputStream();
+		transformer.parseToStream(sampleFileHelloWorldSemantic, out);
+		assertXMLEqual(sampleStringHelloWorldSemantic, out.toString("UTF-8"));
+
+	}
+
+	/**
+	 * Check that the PrimedTransformer correctly writes a DOM Document and an
+	 * XML File to a WritableByteChannel.
+	 */
+	@Test
+	public void testPrimedTransformer_parseToChannel() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		transformer.parseToChannel(transformer.parseToDocument(sampleFileHelloWorldSemantic), Channels.newChannel(out));
+		assertXMLEqual(sampleStringHelloWorldSemantic, out.toString("UTF-8"));
+
+		out = new ByteArrayOutputStream();
+		transformer.parseToChannel(sampleFileHelloWorldSemantic, Channels.newChannel(out));
+		assertXMLEqual(sampleStringHelloWorldSemantic, out.toString("UTF-8"));
+
+	}
+
+	/**
+	 * Check that the PrimedTransformer correctly writes a DOM Document and an
+	 * XML File to a Path.
+	 */
+	@Test
+	public void testPrimedTransformer_parseToFile() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		Path out = Files.createTempFile("hello_world", ".xml");
+		try {
+
+			transformer.parseToFile(transformer.parseToDocument(sampleFileHelloWorldSemantic), out);
+			assertXMLEqual(sampleStringHelloWorldSemantic, FileUtils.readFileToString(out.toFile(), "UTF-8"));
+
+			transformer.parseToFile(sampleFileHelloWorldSemantic, out);
+			assertXMLEqual(sampleStringHelloWorldSemantic, FileUtils.readFileToString(out.toFile(), "UTF-8"));
+
+		} finally {
+			Files.delete(out);
+		}
+
+	}
+
 	/**
 	 * Check that the default configuration for a Transformer created using a
 	 * PrimedTransformer without an XSL Stylesheet.
@@ -706,6 +893,52 @@ public class TestPrimedTransformer {
 		}
 	}
 
+	/**
+	 * Check that the Transformer is kept while the XSL Stylesheet is
+	 * unchanged, without parameters or documents read by document() carrying
+	 * over from one transformation to the next.
+	 */
+	@Test
+	public void testPrimedTransformer_transformWithTemplates_reused() throws Exception {
+
+		File lookup = File.createTempFile("lookup", ".xml");
+		lookup.deleteOnExit();
+		FileUtils.writeStringToFile(lookup, "<v>one</v>", "UTF-8");
+
+		String xsl = "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\"><xsl:param name=\"p\" select=\"'none'\" /><xsl:template match=\"/\"><r><xsl:value-of select=\"doc('" + lookup.toURI() + "'), $p\" /></r></xsl:template></xsl:stylesheet>";
+
+		PrimedTransformer customTransformer = new PrimedTransformer();
+		Templates templates = customTransformer.newTemplates(new StreamSource(new StringReader(xsl)));
+		CustomErrorListener listener = new CustomErrorListener();
+
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		params.put("p", "set");
+
+		StringWriter writer = new StringWriter();
+		customTransformer.transformWithTemplates(customTransformer.parseToTreeSource("<a />"), templates, new StreamResult(writer), params, listener);
+		assertTrue(writer.toString(), writer.toString().endsWith("<r>one set</r>"));
+
+		Transformer first = customTransformer.getTransformer();
+		assertSame(listener, first.getErrorListener());
+
+		FileUtils.writeStringToFile(lookup, "<v>two</v>", "UTF-8");
+
+		writer = new StringWriter();
+		customTransformer.transformWithTemplates(customTransformer.parseToTreeSource("<a />"), templates, new StreamResult(writer), null, listener);
+		assertTrue(writer.toString(), writer.toString().endsWith("<r>two none</r>"));
+		assertSame(first, customTransformer.getTransformer());
+
+		// Removing the listener restores the Transformer's own
+		customTransformer.setTransformerErrorListener(null);
+		assertNotSame(listener, first.getErrorListener());
+		assertNotNull(first.getErrorListener());
+
+		// A different stylesheet needs a Transformer of its own
+		customTransformer.transformWithTemplates(customTransformer.parseToTreeSource("<a />"), null, new StreamResult(new StringWriter()), null, null);
+		assertNotSame(first, customTransformer.getTransformer());
+
+	}
+
 	/**
 	 * Check that the default configuration of the PrimedTransformation is as
 	 * expected.
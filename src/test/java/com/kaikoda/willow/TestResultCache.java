@@ -0,0 +1,259 @@
+package com.kaikoda.willow;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestResultCache {
+
+	/**
+	 * A temporary directory for the on-disk tier, removed after each test.
+	 */
+	private File directory;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private File sampleFileHelloWorldSemantic;
+
+	/**
+	 * The expected result of reversing the sample XML file.
+	 */
+	private String sampleStringHelloWorldSemanticReversed;
+
+	/**
+	 * The SharedTransformer used during these tests.
+	 */
+	private SharedTransformer transformer;
+
+	/**
+	 * An XSL stylesheet that reverses the order of elements.
+	 */
+	private File xslReverse;
+
+	/**
+	 * Before each test, prepare a SharedTransformer that resolves entities via
+	 * the catalog.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException, IOException {
+
+		sampleFileHelloWorldSemantic = new File(TestResultCache.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		sampleStringHelloWorldSemanticReversed = FileUtils.readFileToString(new File(TestResultCache.class.getResource("/data/control/hello_world_semantic_reversed.xml").getFile()));
+		xslReverse = new File(TestResultCache.class.getResource("/xsl/reverse.xsl").getFile());
+		File catalog = new File(TestResultCache.class.getResource("/schema/catalog.xml").getFile());
+
+		transformer = new SharedTransformer(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+		directory = Files.createTempDirectory("willow-results").toFile();
+
+		XMLUnit.setIgnoreWhitespace(true);
+		XMLUnit.setControlEntityResolver(transformer.getCatalogResolver());
+		XMLUnit.setTestEntityResolver(transformer.getCatalogResolver());
+
+	}
+
+	/**
+	 * After each test, remove the on-disk tier.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	/**
+	 * Check that the same input, stylesheet and parameters are only
+	 * transformed once, and that the stored result is written to whichever
+	 * kind of StreamResult is supplied.
+	 */
+	@Test
+	public void testResultCache_transform() throws Exception {
+
+		ResultCache cache = new ResultCache(ResultCache.DEFAULT_MAXIMUM_BYTES);
+		transformer.setResultCache(cache);
+
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(first), null, null);
+		assertXMLEqual(sampleStringHelloWorldSemanticReversed, first.toString("UTF-8"));
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.size());
+
+		StringWriter writer = new StringWriter();
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(writer), null, null);
+		assertEquals(first.toString("UTF-8"), writer.toString());
+		assertEquals(1, cache.getHits());
+
+		// The same bytes without the file's location are a miss, then a hit
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		transformer.transform(FileUtils.readFileToByteArray(sampleFileHelloWorldSemantic), xslReverse, new StreamResult(second), null, null);
+		transformer.transform(FileUtils.readFileToByteArray(sampleFileHelloWorldSemantic), xslReverse, new StreamResult(new ByteArrayOutputStream()), null, null);
+		assertEquals(first.toString("UTF-8"), second.toString("UTF-8"));
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		// Different parameters are a miss
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		params.put("unused", "value");
+
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new ByteArrayOutputStream()), params, null);
+		assertEquals(3, cache.getMisses());
+		assertEquals(3, cache.size());
+
+		// Results that aren't streams bypass the cache
+		DOMResult dom = new DOMResult();
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverse, dom, null, null);
+		assertFalse(ResultCache.isCacheable(dom));
+		assertEquals(3, cache.getMisses());
+		assertEquals(2, cache.getHits());
+
+	}
+
+	/**
+	 * Check that AsyncTransformer and BatchTransformer transform files
+	 * through the cache.
+	 */
+	@Test
+	public void testResultCache_transform_asyncAndBatch() throws Exception {
+
+		ResultCache cache = new ResultCache(ResultCache.DEFAULT_MAXIMUM_BYTES);
+		transformer.setResultCache(cache);
+
+		AsyncTransformer async = new AsyncTransformer(transformer);
+		try {
+			async.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new ByteArrayOutputStream()), null, null).get();
+		} finally {
+			async.shutdown();
+		}
+		assertEquals(1, cache.getMisses());
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			BatchReport report = new BatchTransformer(transformer, executor).transform(Arrays.asList(sampleFileHelloWorldSemantic), xslReverse, null, BatchTransformer.newOutputNamer(directory, ".xml"));
+			assertEquals(1, report.getTotalSuccesses());
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		assertXMLEqual(sampleStringHelloWorldSemanticReversed, FileUtils.readFileToString(new File(directory, "hello_world_semantic.xml")));
+
+	}
+
+	/**
+	 * Check that a stored result is ignored once a module imported by the
+	 * stylesheet changes.
+	 */
+	@Test
+	public void testResultCache_transform_moduleChanged() throws Exception {
+
+		File main = new File(directory, "main.xsl");
+		File module = new File(directory, "module.xsl");
+
+		FileUtils.writeStringToFile(main, "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\"><xsl:import href=\"module.xsl\" /></xsl:stylesheet>", "UTF-8");
+		FileUtils.writeStringToFile(module, "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\"><xsl:output method=\"text\" /><xsl:template match=\"/\">one</xsl:template></xsl:stylesheet>", "UTF-8");
+
+		ResultCache cache = new ResultCache(ResultCache.DEFAULT_MAXIMUM_BYTES);
+		transformer.setResultCache(cache);
+
+		StringWriter before = new StringWriter();
+		transformer.transform(sampleFileHelloWorldSemantic, main, new StreamResult(before), null, null);
+		assertEquals("one", before.toString());
+
+		FileUtils.writeStringToFile(module, "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\"><xsl:output method=\"text\" /><xsl:template match=\"/\">two</xsl:template></xsl:stylesheet>", "UTF-8");
+		module.setLastModified(module.lastModified() + 2000L);
+
+		StringWriter after = new StringWriter();
+		transformer.transform(sampleFileHelloWorldSemantic, main, new StreamResult(after), null, null);
+		assertEquals("two", after.toString());
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+	}
+
+	/**
+	 * Check that results are kept on disk, within the limit, and found again
+	 * by a new ResultCache using the same directory.
+	 */
+	@Test
+	public void testResultCache_disk() throws Exception {
+
+		ResultCache cache = new ResultCache(1L, directory, 1024L * 1024L);
+		transformer.setResultCache(cache);
+
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(first), null, null);
+
+		// Too big to hold in memory, but not on disk
+		assertEquals(0, cache.size());
+		assertTrue(cache.getDiskBytes() > first.size());
+
+		// A new cache, as after a restart
+		ResultCache restarted = new ResultCache(ResultCache.DEFAULT_MAXIMUM_BYTES, directory, 1024L * 1024L);
+		transformer.setResultCache(restarted);
+
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(second), null, null);
+		assertEquals(first.toString("UTF-8"), second.toString("UTF-8"));
+		assertEquals(1, restarted.getDiskHits());
+		assertEquals(1, restarted.size());
+
+		// Shrinking the limit evicts the least recently used results
+		long used = restarted.getDiskBytes();
+		ResultCache smaller = new ResultCache(ResultCache.DEFAULT_MAXIMUM_BYTES, directory, used - 1);
+		assertEquals(0L, smaller.getDiskBytes());
+		assertEquals(1, smaller.getEvictions());
+
+		restarted.clear();
+		assertEquals(0, restarted.size());
+		assertEquals(0, directory.list().length);
+
+	}
+
+	/**
+	 * Check that parameters whose name and value only differ in where an '='
+	 * falls don't share a key.
+	 */
+	@Test
+	public void testResultCache_newKey_params() throws Exception {
+
+		byte[] xml = FileUtils.readFileToByteArray(sampleFileHelloWorldSemantic);
+
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		params.put("{urn:a=b}c", "d");
+
+		TreeMap<String, String> shifted = new TreeMap<String, String>();
+		shifted.put("{urn:a", "b}c=d");
+
+		assertFalse(ResultCache.newKey(xml, null, params).equals(ResultCache.newKey(xml, null, shifted)));
+
+	}
+
+}
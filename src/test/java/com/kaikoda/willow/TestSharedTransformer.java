@@ -0,0 +1,221 @@
+package com.kaikoda.willow;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestSharedTransformer {
+
+	/**
+	 * The number of transformations executed by each thread during the stress
+	 * test.
+	 */
+	private static final int TRANSFORMS_PER_THREAD = 200;
+
+	/**
+	 * The default instance of SharedTransformer that will be used during these
+	 * tests.
+	 */
+	private static SharedTransformer transformer;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private static File sampleFileHelloWorldSemantic;
+
+	/**
+	 * A sample XML string for use during tests.
+	 */
+	private static String sampleStringHelloWorldSemanticReversed;
+
+	/**
+	 * An XSL stylesheet that reverses the order of elements.
+	 */
+	private static File xslReverse;
+
+	/**
+	 * An XSL stylesheet that wraps a message in an element. The message and
+	 * wrapper element name can both be set via parameters.
+	 */
+	private static File xslWrapMessage;
+
+	/**
+	 * Test environment configuration steps.
+	 */
+	@BeforeClass
+	public static void setupOnce() throws ParserConfigurationException, TransformerException, IOException {
+
+		sampleFileHelloWorldSemantic = new File(TestSharedTransformer.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		xslReverse = new File(TestSharedTransformer.class.getResource("/xsl/reverse.xsl").getFile());
+		xslWrapMessage = new File(TestSharedTransformer.class.getResource("/xsl/wrap_message.xsl").getFile());
+		File catalog = new File(TestSharedTransformer.class.getResource("/schema/catalog.xml").getFile());
+
+		sampleStringHelloWorldSemanticReversed = FileUtils.readFileToString(new File(TestSharedTransformer.class.getResource("/data/control/hello_world_semantic_reversed.xml").getFile()));
+
+		transformer = new SharedTransformer(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+
+	}
+
+	/**
+	 * Before each test, check that all is as expected.
+	 */
+	@Before
+	public void setup() {
+
+		XMLUnit.setIgnoreWhitespace(true);
+		XMLUnit.setControlEntityResolver(transformer.getCatalogResolver());
+		XMLUnit.setTestEntityResolver(transformer.getCatalogResolver());
+
+		assertTrue(transformer != null);
+		assertTrue(sampleFileHelloWorldSemantic.exists());
+		assertTrue(xslReverse.exists());
+		assertTrue(xslWrapMessage.exists());
+
+	}
+
+	/**
+	 * Check that each thread is given its own PrimedTransformer, and that they
+	 * share the factories and cache of compiled stylesheets.
+	 */
+	@Test
+	public void testSharedTransformer_getWorker() throws Exception {
+
+		final PrimedTransformer local = transformer.getWorker();
+		assertSame(local, transformer.getWorker());
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+
+			PrimedTransformer other = executor.submit(new Callable<PrimedTransformer>() {
+				@Override
+				public PrimedTransformer call() {
+					return transformer.getWorker();
+				}
+			}).get();
+
+			assertNotSame(local, other);
+			assertNotSame(local.getDocumentBuilder(), other.getDocumentBuilder());
+			assertSame(local.getDocumentBuilderFactory(), other.getDocumentBuilderFactory());
+			assertSame(local.getTransformerFactory(), other.getTransformerFactory());
+			assertSame(local.getTemplatesCache(), other.getTemplatesCache());
+			assertSame(transformer.getCatalogResolver(), other.getCatalogResolver());
+
+		} finally {
+			executor.shutdown();
+		}
+
+	}
+
+	/**
+	 * Check that the SharedTransformer correctly executes a transformation
+	 * using the XML and XSL Stylesheet specified.
+	 */
+	@Test
+	public void testSharedTransformer_transform_inputXSL_reverse() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		StringWriter writer = new StringWriter();
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(writer), null, null);
+
+		assertXMLEqual(sampleStringHelloWorldSemanticReversed, writer.toString());
+
+	}
+
+	/**
+	 * Check that many threads can transform with a single SharedTransformer at
+	 * once, each with its own parameters, as the number of threads rises
+	 * towards the number of cores.
+	 */
+	@Test
+	public void testSharedTransformer_transform_concurrent() throws Exception {
+
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		// Compile once, so that every thread below hits the cache
+		transformer.newTemplates(xslWrapMessage);
+		long misses = transformer.getTemplatesCache().getMisses();
+
+		for (int threads = 1; threads <= Math.max(2, cores); threads = threads * 2) {
+
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+
+			for (int t = 0; t < threads; t++) {
+
+				final String message = "Message from thread " + t;
+
+				tasks.add(new Callable<Integer>() {
+
+					@Override
+					public Integer call() throws Exception {
+
+						TreeMap<String, String> params = new TreeMap<String, String>();
+						params.put("wrapper", "document");
+						params.put("message", message);
+
+						String expected = "<p>" + message + "</p>";
+
+						for (int i = 0; i < TRANSFORMS_PER_THREAD; i++) {
+
+							StringWriter writer = new StringWriter();
+							transformer.transform(sampleFileHelloWorldSemantic, xslWrapMessage, new StreamResult(writer), params, new CustomErrorListener());
+
+							assertTrue(writer.toString().contains(expected));
+
+						}
+
+						return TRANSFORMS_PER_THREAD;
+
+					}
+
+				});
+
+			}
+
+			int completed = 0;
+			try {
+				for (Future<Integer> future : executor.invokeAll(tasks)) {
+					completed = completed + future.get();
+				}
+			} finally {
+				executor.shutdown();
+			}
+
+			assertEquals(threads * TRANSFORMS_PER_THREAD, completed);
+
+		}
+
+		// No thread should have had to recompile the stylesheet
+		assertEquals(misses, transformer.getTemplatesCache().getMisses());
+
+	}
+
+}
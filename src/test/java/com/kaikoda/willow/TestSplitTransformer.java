@@ -0,0 +1,150 @@
+package com.kaikoda.willow;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestSplitTransformer {
+
+	/**
+	 * The ExecutorService used during these tests.
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * A generated file of records, removed after each test.
+	 */
+	private File records;
+
+	/**
+	 * The SharedTransformer used during these tests.
+	 */
+	private SharedTransformer transformer;
+
+	/**
+	 * An XSL stylesheet that turns each record into an item.
+	 */
+	private File xslRecords;
+
+	/**
+	 * Before each test, generate a file of records.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException, IOException {
+
+		xslRecords = new File(TestSplitTransformer.class.getResource("/xsl/records.xsl").getFile());
+		File catalog = new File(TestSplitTransformer.class.getResource("/schema/catalog.xml").getFile());
+
+		transformer = new SharedTransformer(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+		executor = Executors.newFixedThreadPool(3);
+
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<records>\n<header>Not a record</header>\n");
+		for (int i = 0; i < 25; i++) {
+			xml.append("<!-- ").append(i).append(" -->\n<record id=\"").append(i).append("\">record <b>").append(i).append("</b></record>\n");
+		}
+		xml.append("</records>\n");
+
+		records = File.createTempFile("records", ".xml");
+		FileUtils.writeStringToFile(records, xml.toString(), "UTF-8");
+
+		XMLUnit.setIgnoreWhitespace(true);
+
+	}
+
+	/**
+	 * After each test, remove the file of records and stop the workers.
+	 */
+	@After
+	public void tearDown() {
+		executor.shutdown();
+		records.delete();
+	}
+
+	/**
+	 * Check that transforming a file in chunks gives the same result as
+	 * transforming it whole.
+	 */
+	@Test
+	public void testSplitTransformer_transform() throws Exception {
+
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		params.put("prefix", "#");
+
+		StringWriter whole = new StringWriter();
+		transformer.transform(records, xslRecords, new StreamResult(whole), params, null);
+
+		// Small enough chunks, and few enough pending, to wait on the output
+		SplitTransformer split = new SplitTransformer(transformer, executor, new QName("record"), 4, 2);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(25, split.transform(records, xslRecords, params, null, out));
+
+		String result = out.toString("UTF-8");
+		assertXMLEqual(whole.toString(), result);
+		assertTrue(result, result.contains("<item n=\"24\">#RECORD 24</item>"));
+
+	}
+
+	/**
+	 * Check that the results are merged under the wrapper specified, and that
+	 * a file without any records still gives a well-formed result.
+	 */
+	@Test
+	public void testSplitTransformer_transform_wrapper() throws Exception {
+
+		SplitTransformer split = new SplitTransformer(transformer, executor, new QName("record"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		split.transform(records, xslRecords, null, new QName("urn:example", "list", "ex"), out);
+
+		String result = out.toString("UTF-8");
+		assertTrue(result, result.contains("<ex:list xmlns:ex=\"urn:example\">"));
+		assertEquals(25, XMLUnit.newXpathEngine().getMatchingNodes("/*/item", XMLUnit.buildControlDocument(result)).getLength());
+
+		FileUtils.writeStringToFile(records, "<records><header /></records>", "UTF-8");
+
+		out = new ByteArrayOutputStream();
+		assertEquals(0, split.transform(records, xslRecords, null, null, out));
+		assertXMLEqual("<items />", out.toString("UTF-8"));
+
+	}
+
+	/**
+	 * Check that a file that can't be read to the end fails the
+	 * transformation.
+	 */
+	@Test(expected = TransformerException.class)
+	public void testSplitTransformer_transform_malformed() throws Exception {
+
+		FileUtils.writeStringToFile(records, "<records><record id=\"1\">one</record><record id=\"2\">two</records>", "UTF-8");
+
+		SplitTransformer split = new SplitTransformer(transformer, executor, new QName("record"), 1, 1);
+		split.transform(records, xslRecords, null, null, new ByteArrayOutputStream());
+
+	}
+
+}
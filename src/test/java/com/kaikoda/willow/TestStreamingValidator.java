@@ -0,0 +1,178 @@
+package com.kaikoda.willow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXParseException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestStreamingValidator {
+
+	/**
+	 * The GrammarCache used during these tests.
+	 */
+	private GrammarCache cache;
+
+	/**
+	 * A temporary directory holding a DTD and documents that use it.
+	 */
+	private File directory;
+
+	/**
+	 * A document with three elements the DTD doesn't declare.
+	 */
+	private File invalidList;
+
+	/**
+	 * A document that matches the DTD.
+	 */
+	private File list;
+
+	/**
+	 * A document that isn't well-formed.
+	 */
+	private File malformedList;
+
+	/**
+	 * The SharedTransformer used during these tests.
+	 */
+	private SharedTransformer transformer;
+
+	/**
+	 * Before each test, prepare a DTD and documents that use it.
+	 */
+	@Before
+	public void setup() throws Exception {
+
+		File catalog = new File(TestStreamingValidator.class.getResource("/schema/catalog.xml").getFile());
+		XMLCatalogResolver catalogResolver = new XMLCatalogResolver(new String[] { catalog.toURI().toString() });
+
+		cache = new GrammarCache(catalogResolver);
+		transformer = new SharedTransformer(PrimedTransformer.newDocumentBuilderFactory(), PrimedTransformer.newTransformerFactory(), new TemplatesCache(), catalogResolver);
+
+		directory = Files.createTempDirectory("willow-stream").toFile();
+		FileUtils.writeStringToFile(new File(directory, "list.dtd"), "<!ELEMENT list (item+)>\n<!ELEMENT item (#PCDATA)>\n", "UTF-8");
+
+		list = new File(directory, "list.xml");
+		FileUtils.writeStringToFile(list, "<!DOCTYPE list SYSTEM \"list.dtd\"><list><item>One</item></list>", "UTF-8");
+
+		invalidList = new File(directory, "invalid.xml");
+		FileUtils.writeStringToFile(invalidList, "<!DOCTYPE list SYSTEM \"list.dtd\"><list><a /><b /><c /></list>", "UTF-8");
+
+		malformedList = new File(directory, "malformed.xml");
+		FileUtils.writeStringToFile(malformedList, "<!DOCTYPE list SYSTEM \"list.dtd\"><list><item>One</list>", "UTF-8");
+
+	}
+
+	/**
+	 * After each test, remove the DTD and documents.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	/**
+	 * Check that a valid document is transformed, and that an invalid one is
+	 * rejected before anything is written.
+	 */
+	@Test
+	public void testStreamingValidator_transform() throws Exception {
+
+		StreamingValidator validator = new StreamingValidator(transformer, cache, GrammarCache.Mode.DTD, null, 10);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		validator.transform(list, null, new StreamResult(out), null, null);
+		assertTrue(out.toString("UTF-8").contains("<item>One</item>"));
+
+		out = new ByteArrayOutputStream();
+		try {
+			validator.transform(invalidList, null, new StreamResult(out), null, null);
+			fail("An invalid document was transformed.");
+		} catch (ValidationException e) {
+			assertTrue(e.getErrors().size() >= 3);
+		}
+		assertEquals(0, out.size());
+
+		try {
+			validator.transform(malformedList, null, new StreamResult(out), null, null);
+			fail("A malformed document was transformed.");
+		} catch (ValidationException e) {
+			assertEquals(1, e.getErrors().size());
+		}
+		assertEquals(0, out.size());
+
+	}
+
+	/**
+	 * Check that an invalid document is rejected before anything is written
+	 * when the TransformerFactory isn't Saxon's, even if there are fewer
+	 * errors than the maximum.
+	 */
+	@Test
+	public void testStreamingValidator_transform_otherFactory() throws Exception {
+
+		TransformerFactory factory = TransformerFactory.newInstance("com.sun.org.apache.xalan.internal.xsltc.trax.TransformerFactoryImpl", null);
+		SharedTransformer other = new SharedTransformer(PrimedTransformer.newDocumentBuilderFactory(), factory, new TemplatesCache(), transformer.getCatalogResolver());
+
+		StreamingValidator validator = new StreamingValidator(other, cache, GrammarCache.Mode.DTD, null, 10);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		validator.transform(list, null, new StreamResult(out), null, null);
+		assertTrue(out.toString("UTF-8").contains("<item>One</item>"));
+
+		out = new ByteArrayOutputStream();
+		try {
+			validator.transform(invalidList, null, new StreamResult(out), null, null);
+			fail("An invalid document was transformed.");
+		} catch (ValidationException e) {
+			assertTrue(e.getErrors().size() >= 3);
+		}
+		assertEquals(0, out.size());
+
+	}
+
+	/**
+	 * Check that validation stops at the first error by default, or once the
+	 * maximum number of errors has been collected.
+	 */
+	@Test
+	public void testStreamingValidator_validate() throws Exception {
+
+		StreamingValidator first = new StreamingValidator(transformer, cache, GrammarCache.Mode.DTD, null);
+		assertTrue(first.validate(list).isEmpty());
+		assertEquals(1, first.validate(invalidList).size());
+
+		StreamingValidator two = new StreamingValidator(transformer, cache, GrammarCache.Mode.DTD, null, 2);
+		List<SAXParseException> errors = two.validate(invalidList);
+		assertEquals(2, errors.size());
+		assertTrue(errors.get(0).getLineNumber() > 0);
+
+		StreamingValidator all = new StreamingValidator(transformer, cache, GrammarCache.Mode.DTD, null, 100);
+		assertTrue(all.validate(invalidList).size() >= 3);
+		assertEquals(1, all.validate(malformedList).size());
+
+		// The same reader is reused, without carrying errors from one document to the next
+		assertTrue(all.validate(list).isEmpty());
+
+	}
+
+}
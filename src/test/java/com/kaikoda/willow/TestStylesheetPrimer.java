@@ -0,0 +1,186 @@
+package com.kaikoda.willow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestStylesheetPrimer {
+
+	/**
+	 * The ExecutorService used during these tests.
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private File sampleFileHelloWorldSemantic;
+
+	/**
+	 * The SharedTransformer used during these tests.
+	 */
+	private SharedTransformer transformer;
+
+	/**
+	 * An XSL stylesheet that reverses the order of elements.
+	 */
+	private File xslReverse;
+
+	/**
+	 * An XSL stylesheet that wraps a message in a document.
+	 */
+	private File xslWrapMessage;
+
+	/**
+	 * Before each test, prepare a fresh SharedTransformer.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException, IOException {
+
+		sampleFileHelloWorldSemantic = new File(TestStylesheetPrimer.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		xslReverse = new File(TestStylesheetPrimer.class.getResource("/xsl/reverse.xsl").getFile());
+		xslWrapMessage = new File(TestStylesheetPrimer.class.getResource("/xsl/wrap_message.xsl").getFile());
+		File catalog = new File(TestStylesheetPrimer.class.getResource("/schema/catalog.xml").getFile());
+
+		transformer = new SharedTransformer(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+		executor = Executors.newFixedThreadPool(2);
+
+	}
+
+	/**
+	 * After each test, stop the ExecutorService.
+	 */
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Check that every stylesheet is compiled into the shared cache and warmed
+	 * up, and that readiness is only reported once priming has finished.
+	 */
+	@Test
+	public void testStylesheetPrimer_prime() throws InterruptedException {
+
+		StylesheetPrimer primer = new StylesheetPrimer(transformer, executor);
+		assertFalse(primer.isReady());
+		assertFalse(primer.awaitReady(1, TimeUnit.MILLISECONDS));
+		assertNull(primer.getReport());
+
+		PrimingReport report = primer.prime(Arrays.asList(xslReverse, xslWrapMessage), Arrays.asList(sampleFileHelloWorldSemantic), null, 3);
+
+		assertTrue(report.isSuccessful());
+		assertTrue(primer.isReady());
+		assertTrue(primer.awaitReady(1, TimeUnit.MILLISECONDS));
+		assertEquals(report, primer.getReport());
+
+		assertEquals(2, report.getResults().size());
+		assertEquals(xslReverse, report.getResults().get(0).getStylesheet());
+		assertEquals(xslWrapMessage, report.getResults().get(1).getStylesheet());
+
+		for (PrimingResult result : report.getResults()) {
+			assertEquals(3, result.getWarmUps());
+			assertTrue(result.getCompileTime() > 0);
+			assertTrue(result.getWarmUpTime() > 0);
+		}
+
+		assertEquals(2, transformer.getTemplatesCache().size());
+		assertEquals(2, transformer.getTemplatesCache().getMisses());
+
+	}
+
+	/**
+	 * Check that a stylesheet that can't be compiled is reported, doesn't stop
+	 * the rest of the set, and leaves the primer not ready.
+	 */
+	@Test
+	public void testStylesheetPrimer_prime_failure() throws InterruptedException {
+
+		File missing = new File(xslReverse.getParentFile(), "missing.xsl");
+
+		StylesheetPrimer primer = new StylesheetPrimer(transformer, executor);
+		PrimingReport report = primer.prime(Arrays.asList(missing, xslReverse), null, null, 1);
+
+		assertFalse(report.isSuccessful());
+		assertFalse(primer.isReady());
+		assertFalse(primer.awaitReady(1, TimeUnit.MILLISECONDS));
+
+		assertEquals(1, report.getFailures().size());
+		assertEquals(missing, report.getFailures().get(0).getStylesheet());
+		assertNotNull(report.getFailures().get(0).getException());
+
+		PrimingResult primed = report.getResults().get(1);
+		assertTrue(primed.isSuccessful());
+		assertEquals(0, primed.getWarmUps());
+		assertTrue(report.toString().contains("missing.xsl"));
+
+	}
+
+	/**
+	 * Check that interrupting priming cancels the stylesheets not yet primed
+	 * and releases anyone waiting, without reporting the primer ready.
+	 */
+	@Test
+	public void testStylesheetPrimer_prime_interrupted() throws Exception {
+
+		// Keep both threads busy, so that nothing submitted by prime() can start
+		final CountDownLatch blocked = new CountDownLatch(1);
+		for (int i = 0; i < 2; i++) {
+			executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws InterruptedException {
+					blocked.await();
+					return null;
+				}
+
+			});
+		}
+
+		StylesheetPrimer primer = new StylesheetPrimer(transformer, executor);
+
+		Thread.currentThread().interrupt();
+		try {
+			primer.prime(Arrays.asList(xslReverse, xslWrapMessage), null, null, 1);
+			fail("Priming should have been interrupted.");
+		} catch (InterruptedException e) {
+			// Expected
+		}
+
+		assertFalse(primer.awaitReady(1, TimeUnit.SECONDS));
+		assertNull(primer.getReport());
+
+		blocked.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+		// Neither stylesheet was compiled once cancelled
+		assertEquals(0, transformer.getTemplatesCache().getMisses());
+
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.kaikoda.willow;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.TreeMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestStylesheetResolver {
+
+	/**
+	 * The catalog resolver used during these tests.
+	 */
+	private XMLCatalogResolver catalogResolver;
+
+	/**
+	 * The StylesheetResolver belonging to the transformer below.
+	 */
+	private StylesheetResolver resolver;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private File sampleFileHelloWorldSemantic;
+
+	/**
+	 * The instance of PrimedTransformer used during these tests.
+	 */
+	private PrimedTransformer transformer;
+
+	/**
+	 * An XSL stylesheet that imports reverse.xsl via a URI mapped by the
+	 * catalog.
+	 */
+	private File xslReverseImported;
+
+	/**
+	 * Before each test, check that all is as expected.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException {
+
+		sampleFileHelloWorldSemantic = new File(TestStylesheetResolver.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		xslReverseImported = new File(TestStylesheetResolver.class.getResource("/xsl/reverse_imported.xsl").getFile());
+		File catalog = new File(TestStylesheetResolver.class.getResource("/schema/catalog.xml").getFile());
+
+		catalogResolver = new XMLCatalogResolver(new String[] { catalog.toURI().toString() });
+
+		transformer = new PrimedTransformer();
+		transformer.setCatalogResolver(catalogResolver);
+
+		XMLUnit.setIgnoreWhitespace(true);
+		XMLUnit.setControlEntityResolver(catalogResolver);
+		XMLUnit.setTestEntityResolver(catalogResolver);
+
+		resolver = transformer.getStylesheetResolver();
+		assertNotNull(resolver);
+		assertEquals(catalogResolver, resolver.getCatalogResolver());
+		assertEquals(0, resolver.size());
+
+	}
+
+	/**
+	 * Check that module URIs are mapped to local files via the catalog.
+	 */
+	@Test
+	public void testStylesheetResolver_resolveLocation() throws TransformerException {
+
+		String location = resolver.resolveLocation("http://xml.kaikoda.com/xsl/reverse.xsl", xslReverseImported.toURI().toString());
+		assertTrue(location, location.endsWith("/xsl/reverse.xsl"));
+		assertTrue(location, !location.startsWith("http:"));
+
+		// Without a catalog entry, the href is resolved against the base URI
+		String base = xslReverseImported.toURI().toString();
+		assertEquals(base.replace("reverse_imported.xsl", "wrap_message.xsl"), resolver.resolveLocation("wrap_message.xsl", base));
+
+	}
+
+	/**
+	 * Check that every module a stylesheet imports is listed, at the location
+	 * it's actually read from, after the stylesheet itself.
+	 */
+	@Test
+	public void testStylesheetResolver_listModules() throws TransformerException {
+
+		List<String> modules = resolver.listModules(xslReverseImported.toURI().toString());
+
+		assertEquals(2, modules.size());
+		assertEquals(xslReverseImported.toURI().toString(), modules.get(0));
+		assertTrue(modules.get(1), modules.get(1).endsWith("/xsl/reverse.xsl"));
+
+		// Listing doesn't fill the cache
+		assertEquals(0, resolver.size());
+
+	}
+
+	/**
+	 * Check that an imported module is only read once, however often the
+	 * stylesheet importing it is compiled.
+	 */
+	@Test
+	public void testStylesheetResolver_resolve_compiledTwice() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		String expected = FileUtils.readFileToString(new File(TestStylesheetResolver.class.getResource("/data/control/hello_world_semantic_reversed.xml").getFile()));
+
+		StringWriter writer = new StringWriter();
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverseImported, new StreamResult(writer), null, null);
+		assertXMLEqual(expected, writer.toString());
+
+		assertEquals(1, resolver.getMisses());
+		assertEquals(0, resolver.getHits());
+		assertEquals(1, resolver.size());
+
+		// Force the stylesheet to be compiled again
+		transformer.getTemplatesCache().clear();
+
+		writer = new StringWriter();
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverseImported, new StreamResult(writer), null, null);
+		assertXMLEqual(expected, writer.toString());
+
+		assertEquals(1, resolver.getMisses());
+		assertEquals(1, resolver.getHits());
+
+	}
+
+	/**
+	 * Check that documents loaded by a stylesheet at run time aren't held by
+	 * the StylesheetResolver.
+	 */
+	@Test
+	public void testStylesheetResolver_resolve_notAtRunTime() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		File xslLookup = new File(TestStylesheetResolver.class.getResource("/xsl/lookup.xsl").getFile());
+		File lookup = new File(TestStylesheetResolver.class.getResource("/data/control/hello_world_plain.xml").getFile());
+
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		params.put("lookup", lookup.toURI().toString());
+
+		StringWriter writer = new StringWriter();
+		transformer.transform(sampleFileHelloWorldSemantic, xslLookup, new StreamResult(writer), params, null);
+		assertTrue(writer.toString().contains("<p>Hello World!</p>"));
+
+		assertEquals(0, resolver.getMisses());
+		assertEquals(0, resolver.size());
+
+	}
+
+}
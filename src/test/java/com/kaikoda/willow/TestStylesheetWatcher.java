@@ -0,0 +1,162 @@
+package com.kaikoda.willow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestStylesheetWatcher {
+
+	/**
+	 * A temporary directory holding the stylesheets, removed after each test.
+	 */
+	private File directory;
+
+	/**
+	 * A stylesheet that imports the module below.
+	 */
+	private File main;
+
+	/**
+	 * A module imported by the stylesheet above.
+	 */
+	private File module;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private File sampleFileHelloWorldSemantic;
+
+	/**
+	 * The SharedTransformer used during these tests.
+	 */
+	private SharedTransformer transformer;
+
+	/**
+	 * Before each test, write a stylesheet that imports a module.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException, IOException {
+
+		sampleFileHelloWorldSemantic = new File(TestStylesheetWatcher.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+
+		directory = Files.createTempDirectory("willow-xsl").toFile();
+		main = new File(directory, "main.xsl");
+		module = new File(directory, "module.xsl");
+
+		FileUtils.writeStringToFile(main, "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\"><xsl:import href=\"module.xsl\" /></xsl:stylesheet>", "UTF-8");
+		writeModule("one");
+
+		transformer = new SharedTransformer();
+
+	}
+
+	/**
+	 * After each test, remove the stylesheets.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	/**
+	 * Check that a change to an imported module is compiled in the
+	 * background and swapped into the cache, and that a module that no longer
+	 * compiles leaves the last good copy in place.
+	 */
+	@Test
+	public void testStylesheetWatcher_watch() throws Exception {
+
+		StylesheetWatcher watcher = new StylesheetWatcher(transformer, 10L);
+		try {
+
+			Templates first = watcher.watch(main);
+			assertFalse(transformer.getTemplatesCache().isCheckingModified(main.getAbsoluteFile().toURI().toString()));
+
+			// Stylesheets that aren't watched are still checked
+			assertTrue(transformer.getTemplatesCache().isCheckingModified());
+			assertTrue(transformer.getTemplatesCache().isCheckingModified(module.toURI().toString()));
+			assertTrue(watcher.getWatched().contains(main.getAbsoluteFile()));
+			assertSame(first, transformer.newTemplates(main));
+			assertEquals("one", transform());
+
+			writeModule("two");
+			awaitReloads(watcher, 1);
+
+			assertEquals("two", transform());
+			assertEquals(0, watcher.getFailures());
+
+			FileUtils.writeStringToFile(module, "<xsl:stylesheet", "UTF-8");
+			awaitFailures(watcher, 1);
+
+			assertNotNull(watcher.getLastFailure());
+			assertEquals("two", transform());
+
+		} finally {
+			watcher.close();
+		}
+
+		assertTrue(transformer.getTemplatesCache().isCheckingModified(main.getAbsoluteFile().toURI().toString()));
+
+	}
+
+	/**
+	 * Waits up to ten seconds for the watcher to report the number of
+	 * failures specified.
+	 */
+	private void awaitFailures(StylesheetWatcher watcher, long failures) throws InterruptedException {
+		for (int i = 0; i < 1000 && watcher.getFailures() < failures; i++) {
+			Thread.sleep(10L);
+		}
+		assertEquals(failures, watcher.getFailures());
+	}
+
+	/**
+	 * Waits up to ten seconds for the watcher to report the number of reloads
+	 * specified.
+	 */
+	private void awaitReloads(StylesheetWatcher watcher, long reloads) throws InterruptedException {
+		for (int i = 0; i < 1000 && watcher.getReloads() < reloads; i++) {
+			Thread.sleep(10L);
+		}
+		assertTrue(watcher.getReloads() >= reloads);
+	}
+
+	/**
+	 * @return the result of transforming the sample XML file with the
+	 *         stylesheet.
+	 */
+	private String transform() throws Exception {
+		StringWriter writer = new StringWriter();
+		transformer.transform(sampleFileHelloWorldSemantic, main, new StreamResult(writer), null, null);
+		return writer.toString().replaceAll("<[^>]*>", "").trim();
+	}
+
+	/**
+	 * Writes a module that outputs the text specified.
+	 */
+	private void writeModule(String text) throws IOException {
+		FileUtils.writeStringToFile(module, "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\"><xsl:template match=\"/\"><result>" + text + "</result></xsl:template></xsl:stylesheet>", "UTF-8");
+	}
+
+}
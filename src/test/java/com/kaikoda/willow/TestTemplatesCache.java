@@ -0,0 +1,282 @@
+package com.kaikoda.willow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestTemplatesCache {
+
+	/**
+	 * The instance of PrimedTransformer used to compile stylesheets during
+	 * these tests.
+	 */
+	private static PrimedTransformer transformer;
+
+	/**
+	 * A compiled XSL stylesheet that reverses the order of elements.
+	 */
+	private static Templates templatesReverse;
+
+	/**
+	 * A compiled XSL stylesheet that wraps a message in an element.
+	 */
+	private static Templates templatesWrapMessage;
+
+	/**
+	 * An XSL stylesheet that reverses the order of elements.
+	 */
+	private static File xslReverse;
+
+	/**
+	 * An XSL stylesheet that wraps a message in an element.
+	 */
+	private static File xslWrapMessage;
+
+	/**
+	 * The default instance of TemplatesCache that will be used during these
+	 * tests.
+	 */
+	private TemplatesCache cache;
+
+	/**
+	 * Test environment configuration steps.
+	 */
+	@BeforeClass
+	public static void setupOnce() throws ParserConfigurationException, TransformerException, SAXException, IOException {
+
+		xslReverse = new File(TestTemplatesCache.class.getResource("/xsl/reverse.xsl").getFile());
+		xslWrapMessage = new File(TestTemplatesCache.class.getResource("/xsl/wrap_message.xsl").getFile());
+
+		transformer = new PrimedTransformer();
+		templatesReverse = transformer.newTemplates(xslReverse);
+		templatesWrapMessage = transformer.newTemplates(xslWrapMessage);
+
+	}
+
+	/**
+	 * Before each test, check that all is as expected.
+	 */
+	@Before
+	public void setup() {
+
+		cache = new TemplatesCache(1);
+
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getMisses());
+		assertEquals(0, cache.getEvictions());
+
+	}
+
+	/**
+	 * Check that a stored stylesheet is found and counted as a hit.
+	 */
+	@Test
+	public void testTemplatesCache_get_hit() {
+
+		String systemId = xslReverse.toURI().toString();
+		cache.put(systemId, templatesReverse, xslReverse.lastModified(), xslReverse.length());
+
+		assertSame(templatesReverse, cache.get(systemId));
+		assertEquals(1, cache.getHits());
+		assertEquals(0, cache.getMisses());
+
+	}
+
+	/**
+	 * Check that a stylesheet that hasn't been stored is counted as a miss.
+	 */
+	@Test
+	public void testTemplatesCache_get_miss() {
+
+		assertNull(cache.get(xslReverse.toURI().toString()));
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+	}
+
+	/**
+	 * Check that the least recently used stylesheet is evicted when the cache
+	 * is full.
+	 */
+	@Test
+	public void testTemplatesCache_put_eviction() {
+
+		String systemIdReverse = xslReverse.toURI().toString();
+		String systemIdWrapMessage = xslWrapMessage.toURI().toString();
+
+		cache.put(systemIdReverse, templatesReverse, xslReverse.lastModified(), xslReverse.length());
+		cache.put(systemIdWrapMessage, templatesWrapMessage, xslWrapMessage.lastModified(), xslWrapMessage.length());
+
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get(systemIdReverse));
+		assertSame(templatesWrapMessage, cache.get(systemIdWrapMessage));
+
+	}
+
+	/**
+	 * Check that a stylesheet is discarded once the file it was compiled from
+	 * changes.
+	 */
+	@Test
+	public void testTemplatesCache_get_stale() throws IOException {
+
+		File copy = File.createTempFile("reverse", ".xsl");
+		copy.deleteOnExit();
+		FileUtils.copyFile(xslReverse, copy);
+
+		String systemId = copy.toURI().toString();
+		cache.put(systemId, templatesReverse, copy.lastModified(), copy.length());
+		assertSame(templatesReverse, cache.get(systemId));
+
+		FileUtils.writeStringToFile(copy, FileUtils.readFileToString(xslReverse) + "\n", "UTF-8");
+
+		assertNull(cache.get(systemId));
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getEvictions());
+
+	}
+
+	/**
+	 * Check that only the system IDs excluded from checking keep a stylesheet
+	 * after the file it was compiled from changes.
+	 */
+	@Test
+	public void testTemplatesCache_get_unchecked() throws IOException {
+
+		File watched = File.createTempFile("reverse", ".xsl");
+		watched.deleteOnExit();
+		FileUtils.copyFile(xslReverse, watched);
+
+		File other = File.createTempFile("reverse", ".xsl");
+		other.deleteOnExit();
+		FileUtils.copyFile(xslReverse, other);
+
+		String watchedId = watched.toURI().toString();
+		String otherId = other.toURI().toString();
+
+		TemplatesCache pair = new TemplatesCache(2);
+		pair.setCheckingModified(watchedId, false);
+		assertFalse(pair.isCheckingModified(watchedId));
+		assertTrue(pair.isCheckingModified(otherId));
+
+		pair.put(watchedId, templatesReverse, watched.lastModified(), watched.length());
+		pair.put(otherId, templatesWrapMessage, other.lastModified(), other.length());
+
+		FileUtils.writeStringToFile(watched, FileUtils.readFileToString(xslReverse) + "\n", "UTF-8");
+		FileUtils.writeStringToFile(other, FileUtils.readFileToString(xslReverse) + "\n", "UTF-8");
+
+		assertSame(templatesReverse, pair.get(watchedId));
+		assertNull(pair.get(otherId));
+
+		pair.setCheckingModified(watchedId, true);
+		assertNull(pair.get(watchedId));
+
+	}
+
+	/**
+	 * Check that a PrimedTransformer only compiles a stylesheet once.
+	 */
+	@Test
+	public void testTemplatesCache_primedTransformer_newTemplates() throws ParserConfigurationException, TransformerException, SAXException, IOException {
+
+		PrimedTransformer customTransformer = new PrimedTransformer();
+		TemplatesCache customCache = customTransformer.getTemplatesCache();
+
+		Templates first = customTransformer.newTemplates(xslReverse);
+		assertNotNull(first);
+		assertEquals(0, customCache.getHits());
+		assertEquals(1, customCache.getMisses());
+
+		assertSame(first, customTransformer.newTemplates(xslReverse));
+		assertSame(first, customTransformer.newTemplates(new StreamSource(xslReverse)));
+		assertEquals(2, customCache.getHits());
+		assertEquals(1, customCache.getMisses());
+
+		// A DOM is identified by its content as well as its system ID
+		Templates dom = customTransformer.newTemplates(transformer.parseToDOMSource(xslReverse));
+		assertNotSame(first, dom);
+		assertSame(dom, customTransformer.newTemplates(transformer.parseToDOMSource(xslReverse)));
+
+		DOMSource different = transformer.parseToDOMSource(xslWrapMessage);
+		different.setSystemId(xslReverse.toURI().toString());
+		assertNotSame(dom, customTransformer.newTemplates(different));
+
+	}
+
+	/**
+	 * Check that a stylesheet is compiled again once a module it imports
+	 * changes, whether it's read from a file or supplied in memory.
+	 */
+	@Test
+	public void testTemplatesCache_primedTransformer_modules() throws Exception {
+
+		File directory = Files.createTempDirectory("willow-xsl").toFile();
+		try {
+
+			File main = new File(directory, "main.xsl");
+			File module = new File(directory, "module.xsl");
+
+			String stylesheet = "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\"><xsl:import href=\"module.xsl\" /></xsl:stylesheet>";
+			FileUtils.writeStringToFile(main, stylesheet, "UTF-8");
+			FileUtils.writeStringToFile(module, "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\"><xsl:template match=\"/\">one</xsl:template></xsl:stylesheet>", "UTF-8");
+
+			PrimedTransformer customTransformer = new PrimedTransformer();
+
+			Templates fromFile = customTransformer.newTemplates(main);
+			Templates inMemory = customTransformer.newTemplates(new StreamSource(new StringReader(stylesheet), main.toURI().toString()));
+			assertSame(fromFile, customTransformer.newTemplates(main));
+			assertSame(inMemory, customTransformer.newTemplates(new StreamSource(new StringReader(stylesheet), main.toURI().toString())));
+
+			// The module was noted as it was resolved, without being read again
+			StylesheetResolver resolver = customTransformer.getStylesheetResolver();
+			assertEquals(1, resolver.getMisses());
+			assertTrue(customTransformer.getTemplatesCache().getStamps(main.toURI().toString()).containsKey(module));
+			assertTrue(customTransformer.getTemplatesCache().getStamps(main.toURI().toString()).containsKey(main));
+
+			FileUtils.writeStringToFile(module, "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\"><xsl:template match=\"/\">two</xsl:template></xsl:stylesheet>", "UTF-8");
+			module.setLastModified(module.lastModified() + 2000L);
+
+			Templates recompiled = customTransformer.newTemplates(main);
+			assertNotSame(fromFile, recompiled);
+			assertNotSame(inMemory, customTransformer.newTemplates(new StreamSource(new StringReader(stylesheet), main.toURI().toString())));
+
+			StringWriter writer = new StringWriter();
+			recompiled.newTransformer().transform(new StreamSource(new StringReader("<a />")), new StreamResult(writer));
+			assertTrue(writer.toString(), writer.toString().endsWith("two"));
+
+		} finally {
+			FileUtils.deleteDirectory(directory);
+		}
+
+	}
+
+}
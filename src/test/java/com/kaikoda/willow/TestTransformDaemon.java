@@ -0,0 +1,309 @@
+package com.kaikoda.willow;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.TransformerException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestTransformDaemon {
+
+	/**
+	 * The TransformDaemon used during these tests.
+	 */
+	private TransformDaemon daemon;
+
+	/**
+	 * A temporary directory to write output to.
+	 */
+	private File outputDirectory;
+
+	/**
+	 * Before each test, start a daemon on a free port.
+	 */
+	@Before
+	public void setup() throws Exception {
+
+		File catalog = new File(TestTransformDaemon.class.getResource("/schema/catalog.xml").getFile());
+		XMLCatalogResolver catalogResolver = new XMLCatalogResolver(new String[] { catalog.toURI().toString() });
+
+		daemon = new TransformDaemon(new SharedTransformer(catalogResolver), 0, 2);
+		outputDirectory = Files.createTempDirectory("willow-daemon").toFile();
+
+		XMLUnit.setIgnoreWhitespace(true);
+		XMLUnit.setControlEntityResolver(catalogResolver);
+		XMLUnit.setTestEntityResolver(catalogResolver);
+
+	}
+
+	/**
+	 * After each test, stop the daemon and remove the output.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		daemon.close();
+		FileUtils.deleteDirectory(outputDirectory);
+	}
+
+	/**
+	 * Check that files are transformed by the daemon, which keeps the compiled
+	 * stylesheet between requests and reports how long each phase took.
+	 */
+	@Test
+	public void testTransformDaemon_transform() throws Exception {
+
+		File xml = new File(TestTransformDaemon.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		File xsl = new File(TestTransformDaemon.class.getResource("/xsl/reverse.xsl").getFile());
+		File expected = new File(TestTransformDaemon.class.getResource("/data/control/hello_world_semantic_reversed.xml").getFile());
+
+		TransformClient client = new TransformClient(daemon.getPort(), daemon.getToken());
+
+		for (int i = 0; i < 3; i++) {
+
+			File output = new File(outputDirectory, "out/" + i + ".xml");
+
+			RequestTimings timings = client.transform(xml, xsl, output, null);
+			assertXMLEqual(FileUtils.readFileToString(expected, "UTF-8"), FileUtils.readFileToString(output, "UTF-8"));
+
+			assertTrue(timings.getTransform() > 0);
+			assertTrue(timings.getTotal() >= timings.getCompile() + timings.getParse() + timings.getTransform());
+
+		}
+
+		assertEquals(1, daemon.getTransformer().getTemplatesCache().size());
+		assertEquals(3, daemon.getRequests());
+		assertEquals(0, daemon.getFailures());
+
+	}
+
+	/**
+	 * Check that a failed request is reported to the client, and leaves no
+	 * output behind.
+	 */
+	@Test
+	public void testTransformDaemon_failure() throws Exception {
+
+		File output = new File(outputDirectory, "missing.xml");
+
+		try {
+			new TransformClient(daemon.getPort(), daemon.getToken()).transform(new File(outputDirectory, "no_such_file.xml"), null, output, null);
+			fail("A missing file was transformed.");
+		} catch (TransformerException e) {
+			// Expected.
+		}
+
+		assertFalse(output.exists());
+		assertEquals(1, daemon.getFailures());
+
+	}
+
+	/**
+	 * Check that a request without the daemon's token is refused before
+	 * anything is read or written.
+	 */
+	@Test
+	public void testTransformDaemon_transform_wrongToken() throws Exception {
+
+		File xml = new File(TestTransformDaemon.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		File output = new File(outputDirectory, "refused.xml");
+
+		try {
+			new TransformClient(daemon.getPort(), "guess").transform(xml, null, output, null);
+			fail("A request without the token was served.");
+		} catch (TransformerException e) {
+			// Expected.
+		}
+
+		assertFalse(output.exists());
+		assertEquals(1, daemon.getFailures());
+
+	}
+
+	/**
+	 * Check that the token is written to a file only its owner can read, and
+	 * that each daemon has a token of its own.
+	 */
+	@Test
+	public void testTransformDaemon_writeToken() throws Exception {
+
+		File file = new File(outputDirectory, "token");
+		daemon.writeToken(file);
+
+		assertEquals(daemon.getToken(), TransformClient.readToken(file));
+		if (file.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+		}
+
+		TransformDaemon other = new TransformDaemon(daemon.getTransformer(), 0, 1);
+		try {
+			assertNotEquals(daemon.getToken(), other.getToken());
+		} finally {
+			other.close();
+		}
+
+	}
+
+	/**
+	 * Check that a request written as plain text, as a shell would, is
+	 * carried out, and that a parameter named in Clark notation keeps the '='
+	 * within its namespace URI.
+	 */
+	@Test
+	public void testTransformDaemon_textProtocol() throws Exception {
+
+		File xml = new File(TestTransformDaemon.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		File xsl = new File(TestTransformDaemon.class.getResource("/xsl/reverse.xsl").getFile());
+		File output = new File(outputDirectory, "text.xml");
+
+		String request = daemon.getToken() + "\nTRANSFORM\n" + xml.getAbsolutePath() + "\n" + xsl.getAbsolutePath() + "\r\n" + output.getAbsolutePath() + "\n{http://example.com/?a=b}unused=value\n\n";
+
+		String response = this.send(request, 10000);
+		assertTrue(response, response.matches("OK( \\d+){5}"));
+		assertTrue(output.exists());
+
+		response = this.send("guess\nTRANSFORM\n", 10000);
+		assertTrue(response, response.startsWith("ERROR "));
+
+	}
+
+	/**
+	 * Check that a connection that sends nothing is dropped once the read
+	 * timeout passes.
+	 */
+	@Test
+	public void testTransformDaemon_readTimeout() throws Exception {
+
+		daemon.setReadTimeout(200);
+
+		// Send only part of a request
+		String response = this.send(daemon.getToken(), 10000);
+		assertTrue(response, response.startsWith("ERROR "));
+
+		assertEquals(1, daemon.getFailures());
+
+	}
+
+	/**
+	 * Check that a connection that keeps sending, but too slowly to finish its
+	 * request in time, is dropped once the request timeout passes.
+	 */
+	@Test
+	public void testTransformDaemon_requestTimeout() throws Exception {
+
+		daemon.setRequestTimeout(500);
+
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+		try {
+
+			socket.setSoTimeout(10000);
+
+			// One byte at a time, well within the read timeout
+			OutputStream out = socket.getOutputStream();
+			long start = System.nanoTime();
+			try {
+				for (int i = 0; i < 20; i++) {
+					out.write('a');
+					out.flush();
+					Thread.sleep(100);
+				}
+			} catch (IOException e) {
+				// The daemon may already have dropped the connection.
+			}
+
+			String response = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")).readLine();
+			assertTrue(response, response.startsWith("ERROR "));
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+		} finally {
+			socket.close();
+		}
+
+	}
+
+	/**
+	 * Check that once every thread is busy and the queue is full, further
+	 * connections are refused straight away.
+	 */
+	@Test
+	public void testTransformDaemon_queueFull() throws Exception {
+
+		TransformDaemon single = new TransformDaemon(daemon.getTransformer(), 0, 1);
+		List<Socket> stalled = new ArrayList<Socket>();
+		try {
+
+			// One connection for the thread, and four more to fill its queue
+			for (int i = 0; i < 5; i++) {
+				stalled.add(new Socket(InetAddress.getLoopbackAddress(), single.getPort()));
+			}
+
+			Socket refused = new Socket(InetAddress.getLoopbackAddress(), single.getPort());
+			try {
+				refused.setSoTimeout(10000);
+				String response = new BufferedReader(new InputStreamReader(refused.getInputStream(), "UTF-8")).readLine();
+				assertEquals("ERROR Too many requests waiting.", response);
+			} finally {
+				refused.close();
+			}
+
+		} finally {
+			for (Socket socket : stalled) {
+				socket.close();
+			}
+			single.close();
+		}
+
+		assertEquals(6, single.getFailures());
+
+	}
+
+	/**
+	 * Sends the text supplied over a new connection, without closing it, and
+	 * returns the response line.
+	 */
+	private String send(String request, int timeout) throws IOException {
+
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+		try {
+
+			socket.setSoTimeout(timeout);
+
+			OutputStream out = socket.getOutputStream();
+			out.write(request.getBytes("UTF-8"));
+			out.flush();
+
+			return new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")).readLine();
+
+		} finally {
+			socket.close();
+		}
+
+	}
+
+}
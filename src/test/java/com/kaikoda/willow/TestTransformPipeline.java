@@ -0,0 +1,174 @@
+package com.kaikoda.willow;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.TreeMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestTransformPipeline {
+
+	/**
+	 * The pipeline used during these tests.
+	 */
+	private TransformPipeline pipeline;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private File sampleFileHelloWorldSemantic;
+
+	/**
+	 * The instance of PrimedTransformer used during these tests.
+	 */
+	private PrimedTransformer transformer;
+
+	/**
+	 * An XSL stylesheet that reverses the order of elements.
+	 */
+	private File xslReverse;
+
+	/**
+	 * Before each test, prepare an empty pipeline.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException {
+
+		sampleFileHelloWorldSemantic = new File(TestTransformPipeline.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		xslReverse = new File(TestTransformPipeline.class.getResource("/xsl/reverse.xsl").getFile());
+		File catalog = new File(TestTransformPipeline.class.getResource("/schema/catalog.xml").getFile());
+
+		transformer = new PrimedTransformer();
+		transformer.setCatalogResolver(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+
+		XMLUnit.setIgnoreWhitespace(true);
+		XMLUnit.setControlEntityResolver(transformer.getCatalogResolver());
+		XMLUnit.setTestEntityResolver(transformer.getCatalogResolver());
+
+		pipeline = new TransformPipeline(transformer.getTransformerFactory());
+
+	}
+
+	/**
+	 * Check that a pipeline with no stages copies its input unchanged, and
+	 * that a single stage matches a plain transformation.
+	 */
+	@Test
+	public void testTransformPipeline_transform_singleStage() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		String semantic = FileUtils.readFileToString(sampleFileHelloWorldSemantic);
+		String reversed = FileUtils.readFileToString(new File(TestTransformPipeline.class.getResource("/data/control/hello_world_semantic_reversed.xml").getFile()));
+
+		assertXMLEqual(semantic, this.transform());
+
+		pipeline.addStage(transformer.newTemplates(xslReverse), null);
+		assertEquals(1, pipeline.size());
+		assertXMLEqual(reversed, this.transform());
+
+	}
+
+	/**
+	 * Check that each stage feeds the next, with its own parameters.
+	 */
+	@Test
+	public void testTransformPipeline_transform_multipleStages() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		File xslWrapMessage = new File(TestTransformPipeline.class.getResource("/xsl/wrap_message.xsl").getFile());
+
+		// Reversing twice restores the original order
+		pipeline.addStage(transformer.newTemplates(xslReverse), null);
+		pipeline.addStage(transformer.newTemplates(xslReverse), null);
+		assertXMLEqual(FileUtils.readFileToString(sampleFileHelloWorldSemantic), this.transform());
+
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		params.put("wrapper", "page");
+		params.put("message", "Goodbye World!");
+
+		pipeline.addStage(transformer.newTemplates(xslWrapMessage), params);
+		assertEquals(3, pipeline.size());
+
+		String output = this.transform();
+		assertTrue(output, output.contains("<page>"));
+		assertTrue(output, output.contains("<p>Goodbye World!</p>"));
+
+	}
+
+	/**
+	 * Check that a later stage resolves relative URIs against the input, and
+	 * loads documents through the pipeline's DocumentCache.
+	 */
+	@Test
+	public void testTransformPipeline_transform_documentCache() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		File xslLookupRelative = new File(TestTransformPipeline.class.getResource("/xsl/lookup_relative.xsl").getFile());
+
+		DocumentCache cache = transformer.newDocumentCache(DocumentCache.DEFAULT_MAXIMUM_BYTES);
+		pipeline.setDocumentCache(cache);
+
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		params.put("lookup", "hello_world_plain.xml");
+
+		pipeline.addStage(transformer.newTemplates(xslReverse), null);
+		pipeline.addStage(transformer.newTemplates(xslLookupRelative), params);
+
+		String output = this.transform();
+		assertTrue(output, output.contains("<p>Hello World!</p>"));
+		assertEquals(1, cache.getMisses());
+
+		this.transform();
+		assertEquals(1, cache.getHits());
+
+	}
+
+	/**
+	 * Check that a TransformerFactory without SAX support is refused.
+	 */
+	@Test(expected = TransformerConfigurationException.class)
+	public void testTransformPipeline_notSAX() throws TransformerConfigurationException {
+
+		TransformerFactory factory = new net.sf.saxon.TransformerFactoryImpl() {
+
+			@Override
+			public boolean getFeature(String name) {
+				return false;
+			}
+
+		};
+
+		new TransformPipeline(factory);
+
+	}
+
+	/**
+	 * Runs the sample file through the pipeline.
+	 */
+	private String transform() throws TransformerException, SAXException, ParserConfigurationException {
+
+		StringWriter writer = new StringWriter();
+		pipeline.transform(transformer.parseToTreeSource(sampleFileHelloWorldSemantic), new StreamResult(writer), null);
+
+		return writer.toString();
+
+	}
+
+}
@@ -0,0 +1,289 @@
+package com.kaikoda.willow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.xerces.util.XMLCatalogResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Sheila Ellen Thomson
+ *
+ */
+public class TestTransformerMetrics {
+
+	/**
+	 * The metrics recorded to during these tests.
+	 */
+	private TransformerMetrics metrics;
+
+	/**
+	 * A sample XML file for use during tests.
+	 */
+	private File sampleFileHelloWorldSemantic;
+
+	/**
+	 * The instance of PrimedTransformer used during these tests.
+	 */
+	private PrimedTransformer transformer;
+
+	/**
+	 * An XSL stylesheet that reverses the order of elements.
+	 */
+	private File xslReverse;
+
+	/**
+	 * Before each test, prepare a fresh set of metrics.
+	 */
+	@Before
+	public void setup() throws ParserConfigurationException, TransformerException {
+
+		sampleFileHelloWorldSemantic = new File(TestTransformerMetrics.class.getResource("/data/control/hello_world_semantic.xml").getFile());
+		xslReverse = new File(TestTransformerMetrics.class.getResource("/xsl/reverse.xsl").getFile());
+		File catalog = new File(TestTransformerMetrics.class.getResource("/schema/catalog.xml").getFile());
+
+		transformer = new PrimedTransformer();
+		transformer.setCatalogResolver(new XMLCatalogResolver(new String[] { catalog.toURI().toString() }));
+
+		metrics = new TransformerMetrics();
+		transformer.setMetrics(metrics);
+
+	}
+
+	/**
+	 * Check that percentiles are estimated to within the resolution of the
+	 * histogram.
+	 */
+	@Test
+	public void testLatencyHistogram_getPercentile() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(0.99));
+
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000L, histogram.getMaximum());
+		assertEquals(500500L, histogram.getMean());
+
+		assertWithin(500000L, histogram.getPercentile(0.5));
+		assertWithin(950000L, histogram.getPercentile(0.95));
+		assertWithin(990000L, histogram.getPercentile(0.99));
+		assertEquals(1000000L, histogram.getPercentile(1));
+
+		// Every value maps to a bucket whose upper bound is at least the value
+		for (long value : new long[] { 0L, 7L, 8L, 15L, 16L, 1000L, 123456789L, Long.MAX_VALUE }) {
+			int index = LatencyHistogram.indexOf(value);
+			assertTrue(value + "", LatencyHistogram.upperBound(index) >= value);
+			assertTrue(value + "", index == 0 || LatencyHistogram.upperBound(index - 1) < value);
+		}
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(0.5));
+
+	}
+
+	/**
+	 * Check that values recorded by many threads at once are all counted.
+	 */
+	@Test
+	public void testLatencyHistogram_record_concurrent() throws Exception {
+
+		final LatencyHistogram histogram = new LatencyHistogram();
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 4; t++) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() {
+						for (int i = 1; i <= 10000; i++) {
+							histogram.record(i);
+						}
+						return null;
+					}
+
+				}));
+			}
+
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(40000, histogram.getCount());
+		assertEquals(10000L, histogram.getMaximum());
+
+	}
+
+	/**
+	 * Check that each phase of a transformation is recorded under the right
+	 * name, together with the bytes read and written.
+	 */
+	@Test
+	public void testTransformerMetrics_phases() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		String name = xslReverse.toURI().toString();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(out), null, null);
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new StringWriter()), null, null);
+
+		StylesheetSnapshot stylesheet = metrics.getStylesheet(name);
+		assertNotNull(stylesheet);
+		assertEquals(1, stylesheet.getCompile().getCount());
+		assertEquals(2, stylesheet.getTransform().getCount());
+		assertEquals(0, stylesheet.getParse().getCount());
+		assertEquals(out.size(), stylesheet.getBytesOut());
+		assertEquals(xslReverse.length(), stylesheet.getBytesIn());
+		assertTrue(stylesheet.getTransform().getP99() > 0);
+		assertTrue(stylesheet.getTransform().getP50() <= stylesheet.getTransform().getP99());
+
+		StylesheetSnapshot none = metrics.getStylesheet(TransformerMetrics.NO_STYLESHEET);
+		assertEquals(2, none.getParse().getCount());
+		assertEquals(2 * sampleFileHelloWorldSemantic.length(), none.getBytesIn());
+
+		// Serializing without a stylesheet
+		transformer.parseToStream(sampleFileHelloWorldSemantic, new ByteArrayOutputStream());
+		assertEquals(1, metrics.getStylesheet(TransformerMetrics.NO_STYLESHEET).getSerialize().getCount());
+
+		assertEquals(2, metrics.getStylesheets().size());
+		assertEquals(0, metrics.getTotalErrors());
+
+		// Nothing's recorded once the metrics are removed
+		transformer.setMetrics(null);
+		transformer.parseToDocument(sampleFileHelloWorldSemantic);
+		assertEquals(3, metrics.getStylesheet(TransformerMetrics.NO_STYLESHEET).getParse().getCount());
+
+	}
+
+	/**
+	 * Check that failures are counted against the phase that failed.
+	 */
+	@Test
+	public void testTransformerMetrics_recordError() throws ParserConfigurationException, IOException {
+
+		try {
+			transformer.parseToDocument("<document><p>Unclosed</document>");
+		} catch (SAXException e) {
+			// Expected
+		}
+
+		StylesheetSnapshot none = metrics.getStylesheet(TransformerMetrics.NO_STYLESHEET);
+		assertEquals(1, none.getParse().getErrors());
+		assertEquals(0, none.getParse().getCount());
+		assertEquals(1, none.getErrors());
+		assertEquals(1, metrics.getTotalErrors());
+
+		metrics.reset();
+		assertNull(metrics.getStylesheet(TransformerMetrics.NO_STYLESHEET));
+		assertEquals(0, metrics.getTotalErrors());
+
+	}
+
+	/**
+	 * Check that the name of a compiled stylesheet still in use isn't
+	 * forgotten, however many others are named.
+	 */
+	@Test
+	public void testTransformerMetrics_name() throws TransformerException, SAXException, IOException, ParserConfigurationException {
+
+		Templates longLived = transformer.newTemplates(xslReverse);
+		assertEquals(xslReverse.toURI().toString(), metrics.nameOf(longLived));
+
+		for (int i = 0; i < 5000; i++) {
+			Templates shortLived = new Templates() {
+
+				@Override
+				public Properties getOutputProperties() {
+					return new Properties();
+				}
+
+				@Override
+				public Transformer newTransformer() {
+					return null;
+				}
+
+			};
+			metrics.name(shortLived, "short-lived-" + i);
+			assertEquals("short-lived-" + i, metrics.nameOf(shortLived));
+		}
+
+		assertEquals(xslReverse.toURI().toString(), metrics.nameOf(longLived));
+		assertEquals(TransformerMetrics.UNNAMED_STYLESHEET, metrics.nameOf(transformer.getTransformerFactory().newTemplates(new StreamSource(xslReverse))));
+
+	}
+
+	/**
+	 * Check that the metrics can be read over JMX.
+	 */
+	@Test
+	public void testTransformerMetrics_register() throws Exception {
+
+		transformer.transform(sampleFileHelloWorldSemantic, xslReverse, new StreamResult(new ByteArrayOutputStream()), null, null);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = metrics.register(server, new ObjectName(TransformerMetrics.DEFAULT_OBJECT_NAME + ",name=test"));
+		try {
+
+			assertEquals(0L, server.getAttribute(name, "TotalErrors"));
+			assertTrue((Long) server.getAttribute(name, "TotalBytesOut") > 0);
+
+			CompositeData[] stylesheets = (CompositeData[]) server.getAttribute(name, "Stylesheets");
+			assertEquals(2, stylesheets.length);
+
+			CompositeData transform = (CompositeData) stylesheets[1].get("transform");
+			assertEquals(xslReverse.toURI().toString(), stylesheets[1].get("name"));
+			assertEquals(1L, transform.get("count"));
+
+		} finally {
+			server.unregisterMBean(name);
+		}
+
+	}
+
+	/**
+	 * Checks that an estimated percentile is within the resolution of the
+	 * histogram.
+	 */
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(expected + " ~ " + actual, Math.abs(actual - expected) <= expected / 8);
+	}
+
+}
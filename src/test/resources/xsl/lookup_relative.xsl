@@ -0,0 +1,24 @@
+<?xml version="1.0" encoding="UTF-8" ?>
+<xsl:stylesheet 
+    xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+    xmlns:xs="http://www.w3.org/2001/XMLSchema"
+    version="2.0"
+	exclude-result-prefixes="#all">
+    
+    <xsl:output
+        encoding="UTF-8"
+        method="xml"        
+        indent="yes"
+        omit-xml-declaration="no"
+    />
+    
+    <xsl:param name="lookup" as="xs:string" />
+    
+    <!-- Resolves the lookup against the location of the input, rather than the stylesheet -->
+    <xsl:template match="/">
+        <document>
+        	<p><xsl:value-of select="document($lookup, /)/document/p" /></p>
+        </document>    	
+    </xsl:template>      
+    
+</xsl:stylesheet>
@@ -0,0 +1,27 @@
+<?xml version="1.0" encoding="UTF-8" ?>
+<xsl:stylesheet 
+    xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+    xmlns:xs="http://www.w3.org/2001/XMLSchema"
+    version="2.0"
+	exclude-result-prefixes="#all">
+    
+    <xsl:output
+        encoding="UTF-8"
+        method="xml"        
+        indent="yes"
+        omit-xml-declaration="no"
+    />
+    
+    <xsl:param name="prefix" select="''" as="xs:string" />
+    
+    <xsl:template match="/records">
+        <items>
+        	<xsl:apply-templates select="record" />
+        </items>    	
+    </xsl:template>      
+    
+    <xsl:template match="record">
+        <item n="{@id}"><xsl:value-of select="concat($prefix, upper-case(.))" /></item>
+    </xsl:template>      
+    
+</xsl:stylesheet>
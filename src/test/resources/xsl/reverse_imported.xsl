@@ -0,0 +1,9 @@
+<?xml version="1.0" encoding="UTF-8" ?>
+<xsl:stylesheet 
+    xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+    version="2.0">
+    
+    <!-- Resolved to reverse.xsl via the XML catalog -->
+    <xsl:import href="http://xml.kaikoda.com/xsl/reverse.xsl" />
+    
+</xsl:stylesheet>